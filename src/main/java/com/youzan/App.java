@@ -1,13 +1,176 @@
 package com.youzan;
 
+import com.youzan.filebackup.context.BackupScopeInspector;
+import com.youzan.filebackup.files.BackupCipher;
+import com.youzan.filebackup.files.BackupFileScanner;
+import com.youzan.filebackup.files.BackupLocation;
+import com.youzan.filebackup.files.BackupSegments;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
- * Hello world!
- *
+ * Offline inspector of backup scope folder. Backup scope is read as it is on disk, without lease of backup scope, so
+ * it is meant for backup scope not open in any process:
+ * <pre>
+ * meta     &lt;scope folder&gt;     dump meta data, stripes and count of keys in scope index
+ * segments &lt;scope folder&gt;     list backup files with sizes and record counts
+ * verify   &lt;scope folder&gt;     verify record framing of backup files end to end, exit code is 1 on problems
+ * print    &lt;scope folder&gt;     print records from --from sequence, --count records at most
+ * tail     &lt;scope folder&gt;     print the last --count records
+ * </pre>
+ * Backup files are scanned with memory mapping, on --threads threads. Contents of encrypted backup files are printed
+ * with master key passed in --key in hex, or in hex as they are stored without it.
+ * Created by lin on 17/4/27.
  */
-public class App 
-{
-    public static void main( String[] args )
-    {
-        System.out.println( "Hello World!" );
+public class App {
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_PROBLEM = 1;
+    private static final int EXIT_USAGE = 2;
+    private static final long DEFAULT_COUNT = 10;
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Run command in passin arguments.
+     * @return exit code, 0 if command is done with nothing wrong
+     */
+    public static int run(final String[] args, final PrintStream out, final PrintStream err) {
+        if(args.length < 2) {
+            usage(err);
+            return EXIT_USAGE;
+        }
+        Map<String, String> options = new HashMap<>();
+        for(int i = 2; i < args.length; i++) {
+            if(!args[i].startsWith("--") || i + 1 >= args.length) {
+                err.println("Invalid option " + args[i]);
+                usage(err);
+                return EXIT_USAGE;
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        try {
+            int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            long count = Long.parseLong(options.getOrDefault("count", String.valueOf(DEFAULT_COUNT)));
+            BackupCipher cipher = options.containsKey("key") ? new BackupCipher(parseHex(options.get("key"))) : null;
+            BackupScopeInspector inspector = new BackupScopeInspector(Paths.get(args[1]));
+            switch (args[0]) {
+                case "meta":
+                    return meta(inspector, out);
+                case "segments":
+                    return segments(inspector, threads, out);
+                case "verify":
+                    return verify(inspector, threads, out);
+                case "print":
+                    long from = Long.parseLong(options.getOrDefault("from", "0"));
+                    inspector.read(from, count, cipher, record -> print(record, out));
+                    return EXIT_OK;
+                case "tail":
+                    inspector.tail(count, cipher, record -> print(record, out));
+                    return EXIT_OK;
+                default:
+                    err.println("Unknown command " + args[0]);
+                    usage(err);
+                    return EXIT_USAGE;
+            }
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            usage(err);
+            return EXIT_USAGE;
+        } catch (IOException e) {
+            err.println("Fail to inspect " + args[1] + ", " + e.getMessage());
+            return EXIT_PROBLEM;
+        }
+    }
+
+    private static void usage(final PrintStream err) {
+        err.println("Usage: App <command> <scope folder> [--threads n] [--key hex] [--from sequence] [--count n]");
+        err.println("  meta       dump meta data, stripes and count of keys in scope index");
+        err.println("  segments   list backup files with sizes and record counts");
+        err.println("  verify     verify record framing of backup files end to end");
+        err.println("  print      print records from --from sequence, --count records at most");
+        err.println("  tail       print the last --count records");
+    }
+
+    private static int meta(final BackupScopeInspector inspector, final PrintStream out) {
+        String json = inspector.getMetaJson();
+        out.println(null == json ? "No meta data." : json);
+        List<Path> stripes = inspector.getStripes();
+        if(null != stripes)
+            out.println("Stripes: " + stripes);
+        out.println("Segments: " + inspector.getSegments().size());
+        int keyCount = inspector.getKeyCount();
+        out.println("Keys: " + (keyCount < 0 ? "no scope index" : keyCount));
+        return EXIT_OK;
+    }
+
+    private static int segments(final BackupScopeInspector inspector, int threads, final PrintStream out) throws IOException {
+        out.println(String.format("%8s %12s %12s %10s %16s %12s %6s  %s", "index", "size", "max size", "records",
+                "first sequence", "end offset", "flags", "timestamps"));
+        long totalSize = 0;
+        long totalRecords = 0;
+        int problems = 0;
+        for(BackupScopeInspector.SegmentReport report : inspector.scan(threads)) {
+            BackupSegments.SegmentInfo info = report.getInfo();
+            BackupFileScanner.Result result = report.getResult();
+            if(null == result) {
+                out.println(String.format("%8d %12s", report.getBackupFileIndex(), "-"));
+            } else {
+                out.println(String.format("%8d %12d %12d %10d %16s %12d %6d  %s", report.getBackupFileIndex(),
+                        result.getFileSize(), result.getHeader().getMaxSize(), result.getRecordCount(),
+                        null == info ? "-" : String.valueOf(info.getFirstSequence()), result.getEndOffset(),
+                        result.getHeader().getFlags(), formatTimestamps(result, info)));
+                totalSize += result.getFileSize();
+                totalRecords += result.getRecordCount();
+            }
+            problems += report.getProblems().size();
+        }
+        out.println("Total: " + totalSize + " bytes, " + totalRecords + " records" + (problems > 0 ? ", " + problems + " problems, run verify for them" : ""));
+        return problems > 0 ? EXIT_PROBLEM : EXIT_OK;
+    }
+
+    private static String formatTimestamps(final BackupFileScanner.Result result, final BackupSegments.SegmentInfo info) {
+        if(result.getHeader().hasRecordTimestamp())
+            return result.getRecordCount() == 0 ? "-" : "[" + result.getMinTimestamp() + ", " + result.getMaxTimestamp() + "]";
+        return null == info || info.getContentCount() == 0 ? "-" : "[" + info.getMinTimestamp() + ", " + info.getMaxTimestamp() + "]";
+    }
+
+    private static int verify(final BackupScopeInspector inspector, int threads, final PrintStream out) throws IOException {
+        List<String> problems = inspector.verify(threads);
+        for(String problem : problems)
+            out.println(problem);
+        out.println(problems.isEmpty() ? "OK, " + inspector.getSegments().size() + " backup files verified." : problems.size() + " problems found.");
+        return problems.isEmpty() ? EXIT_OK : EXIT_PROBLEM;
+    }
+
+    private static boolean print(final BackupScopeInspector.InspectedRecord record, final PrintStream out) {
+        BackupLocation loc = record.getLocation();
+        StringBuilder line = new StringBuilder();
+        line.append(record.getSequence()).append(" @").append(loc.getBackupFileIndex()).append(':').append(loc.getBackupFileOffset());
+        if(record.getTimestamp() >= 0)
+            line.append(" ts=").append(record.getTimestamp());
+        line.append(" len=").append(record.getContent().length);
+        if(record.isEncrypted())
+            line.append(" encrypted");
+        line.append(' ').append(BackupScopeInspector.format(record.getContent()));
+        out.println(line);
+        return true;
+    }
+
+    private static byte[] parseHex(final String hex) {
+        String digits = hex.startsWith("0x") ? hex.substring(2) : hex;
+        if(digits.length() % 2 != 0)
+            throw new IllegalArgumentException("Key needs to be even count of hex digits.");
+        byte[] bytes = new byte[digits.length() / 2];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(digits.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
     }
 }
@@ -0,0 +1,40 @@
+package com.youzan.filebackup;
+
+import com.youzan.filebackup.codec.Codec;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writer which appends contents without waiting for write to complete. Write position is reserved when content is
+ * appended, future of append is completed when content is written into backup file.
+ */
+public interface IAsyncBackupWriter extends IBackupWriter {
+
+    /**
+     * Append one content at current write position, without waiting for write to complete.
+     * @param contents  content in byte
+     * @param timestamp append timestamp of content
+     * @return future of byte count written, completed when content is written into backup file
+     */
+    CompletableFuture<Integer> appendAsync(final byte[] contents, long timestamp) throws IOException;
+
+    /**
+     * Append contents in batch at current write position, without waiting for write to complete.
+     * @param contents  contents in byte
+     * @param timestamp append timestamp of contents
+     * @return future of byte count written, completed when contents are written into backup file
+     */
+    CompletableFuture<Integer> appendAsync(final List<byte[]> contents, long timestamp) throws IOException;
+
+    /**
+     * Append values in batch encoded by passin codec at current write position, without waiting for write to
+     * complete. Values are encoded before append returns.
+     * @param values    values to append
+     * @param codec     codec of values
+     * @param timestamp append timestamp of contents
+     * @return future of byte count written, completed when contents are written into backup file
+     */
+    <T> CompletableFuture<Integer> appendAsync(final List<T> values, final Codec<T> codec, long timestamp) throws IOException;
+}
@@ -1,7 +1,108 @@
 package com.youzan.filebackup;
 
+import com.youzan.filebackup.codec.Codec;
+import com.youzan.filebackup.files.BackupFileHeader;
+import com.youzan.filebackup.files.BackupFileScanner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
 /**
+ * Reader reads contents from one backup file of backup scope, in the order they are written by {@link IBackupWriter}.
  * Created by lin on 17/4/7.
  */
-public interface IBackupReader {
+public interface IBackupReader extends Closeable {
+
+    /**
+     * Read one content at current read position.
+     * @return content in byte array, or null if there is no complete content at current read position
+     */
+    byte[] read() throws IOException;
+
+    /**
+     * Read contents in batch from current read position. Read stops when max count is reached, or read position goes
+     * beyond passin limit.
+     * @param maxCount  max count of contents to read
+     * @param limit     offset in backup file, contents starting after limit are not read
+     * @return contents in byte array, empty list if there is nothing to read
+     */
+    List<byte[]> read(int maxCount, long limit) throws IOException;
+
+    /**
+     * Read contents in batch as {@link #read(int, long)} does, with offset of next content after each one read. By
+     * default offsets are counted from record size of each content.
+     * @param maxCount  max count of contents to read
+     * @param limit     offset in backup file, contents starting after limit are not read
+     * @param ends      list offset after each content read is added into
+     * @return contents in byte array, empty list if there is nothing to read
+     */
+    default List<byte[]> read(int maxCount, long limit, final List<Long> ends) throws IOException {
+        long offset = position();
+        List<byte[]> contents = read(maxCount, limit);
+        for(byte[] content : contents) {
+            offset += getHeader().getStoredRecordSize(content.length);
+            ends.add(offset);
+        }
+        return contents;
+    }
+
+    /**
+     * Read one value decoded by passin codec at current read position. Reader decodes value straight from its read
+     * buffer when it could, by default content is read into byte array and decoded.
+     * @param codec codec of value
+     * @return value decoded, or null if there is no complete content at current read position
+     */
+    default <T> T read(final Codec<T> codec) throws IOException {
+        byte[] content = read();
+        return null == content ? null : codec.decode(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Visit contents in batch from current read position, straight in read buffer of reader when it could. Read goes
+     * over each content visited, and stops after the content visitor returns false for, or when there is no complete
+     * content at read position. By default contents are read into byte array one by one.
+     * @param visitor   visitor of contents read, content is valid in visit call only
+     * @return count of contents visited
+     */
+    default int read(final BackupFileScanner.RecordVisitor visitor) throws IOException {
+        int count = 0;
+        while(true) {
+            long offset = position();
+            byte[] content = read();
+            if(null == content)
+                return count;
+            count++;
+            if(!visitor.visit(offset, timestamp(), ByteBuffer.wrap(content)))
+                return count;
+        }
+    }
+
+    /**
+     * Move read position to passin offset in backup file.
+     * @param offset    offset in backup file
+     */
+    void seek(long offset) throws IOException;
+
+    /**
+     * @return offset in backup file where next content is read
+     */
+    long position();
+
+    /**
+     * @return max size of backup file, read from head of backup file
+     */
+    long getMaxSize();
+
+    /**
+     * @return head of backup file
+     */
+    BackupFileHeader getHeader();
+
+    /**
+     * @return append timestamp of the last content read, or -1 if there is none, or backup file has no record
+     * timestamp
+     */
+    long timestamp();
 }
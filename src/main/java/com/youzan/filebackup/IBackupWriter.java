@@ -1,7 +1,113 @@
 package com.youzan.filebackup;
 
+import com.youzan.filebackup.codec.Codec;
+import com.youzan.filebackup.files.BackupFileHeader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
+ * Writer appends contents into one backup file of backup scope. Each content is written with a length head in front
+ * of it, and max size of backup file is kept in head of backup file.
  * Created by lin on 17/4/7.
  */
-public interface IBackupWriter {
+public interface IBackupWriter extends Closeable {
+
+    /**
+     * Append one content at current write position, with current time as append timestamp.
+     * @param contents  content in byte
+     * @return byte count written, including length head of content
+     */
+    default int append(final byte[] contents) throws IOException {
+        return append(contents, System.currentTimeMillis());
+    }
+
+    /**
+     * Append one content at current write position. Timestamp is written in record head if backup file has record
+     * timestamp, see {@link BackupFileHeader#hasRecordTimestamp()}.
+     * @param contents  content in byte
+     * @param timestamp append timestamp of content
+     * @return byte count written, including record head of content
+     */
+    int append(final byte[] contents, long timestamp) throws IOException;
+
+    /**
+     * Append contents in batch at current write position, in order of passin list, with current time as append
+     * timestamp.
+     * @param contents  contents in byte
+     * @return byte count written, including length heads of contents
+     */
+    default int append(final List<byte[]> contents) throws IOException {
+        return append(contents, System.currentTimeMillis());
+    }
+
+    /**
+     * Append contents in batch at current write position, in order of passin list, all with passin timestamp.
+     * @param contents  contents in byte
+     * @param timestamp append timestamp of contents
+     * @return byte count written, including record heads of contents
+     */
+    int append(final List<byte[]> contents, long timestamp) throws IOException;
+
+    /**
+     * Append one value encoded by passin codec at current write position. Writer encodes value straight into its
+     * write buffer when it could, by default value is encoded into byte array and appended.
+     * @param value value to append
+     * @param codec codec of value
+     * @param timestamp append timestamp of content
+     * @return byte count written, including record head of content
+     */
+    default <T> int append(final T value, final Codec<T> codec, long timestamp) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(codec.encodedSize(value));
+        codec.encode(value, buf);
+        return append(buf.array(), timestamp);
+    }
+
+    /**
+     * Append values in batch encoded by passin codec at current write position, in order of passin list, all with
+     * passin timestamp. Writer encodes values straight into its write buffer when it could, by default values are
+     * encoded into byte arrays and appended in batch.
+     * @param values    values to append
+     * @param codec     codec of values
+     * @param timestamp append timestamp of contents
+     * @return byte count written, including record heads of contents
+     */
+    default <T> int append(final List<T> values, final Codec<T> codec, long timestamp) throws IOException {
+        List<byte[]> contents = new ArrayList<>(values.size());
+        for(T value : values) {
+            ByteBuffer buf = ByteBuffer.allocate(codec.encodedSize(value));
+            codec.encode(value, buf);
+            contents.add(buf.array());
+        }
+        return append(contents, timestamp);
+    }
+
+    /**
+     * Move write position to passin offset in backup file.
+     * @param offset    offset in backup file
+     */
+    void seek(long offset) throws IOException;
+
+    /**
+     * @return offset in backup file where next content is appended
+     */
+    long position();
+
+    /**
+     * @return max size of backup file, read from head of backup file
+     */
+    long getMaxSize();
+
+    /**
+     * @return head of backup file
+     */
+    BackupFileHeader getHeader();
+
+    /**
+     * Flush appended contents to storage device.
+     */
+    void flush() throws IOException;
 }
@@ -0,0 +1,28 @@
+package com.youzan.filebackup.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of contents in byte buffer as they are, from position to limit of buffer. Buffer encoded is left as it is.
+ */
+public class ByteBufferCodec implements Codec<ByteBuffer> {
+    public static final ByteBufferCodec INSTANCE = new ByteBufferCodec();
+
+    @Override
+    public int encodedSize(final ByteBuffer value) {
+        return value.remaining();
+    }
+
+    @Override
+    public void encode(final ByteBuffer value, final ByteBuffer buf) {
+        buf.put(value.duplicate());
+    }
+
+    @Override
+    public ByteBuffer decode(final ByteBuffer buf) {
+        ByteBuffer value = ByteBuffer.allocate(buf.remaining());
+        value.put(buf);
+        value.flip();
+        return value;
+    }
+}
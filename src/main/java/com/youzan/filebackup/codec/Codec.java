@@ -0,0 +1,33 @@
+package com.youzan.filebackup.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec encodes value into content of backup scope, and decodes value from it. Value is encoded straight into write
+ * buffer of backup file, and decoded straight from read buffer of backup file, so that there is no intermediate byte
+ * array for each content.
+ */
+public interface Codec<T> {
+
+    /**
+     * @param value value to encode
+     * @return exact bytes passin value is encoded into
+     */
+    int encodedSize(T value);
+
+    /**
+     * Encode passin value at position of passin buffer. Exactly {@link #encodedSize(Object)} bytes are put, buffer has
+     * room for them.
+     * @param value value to encode
+     * @param buf   buffer to encode into
+     */
+    void encode(T value, ByteBuffer buf);
+
+    /**
+     * Decode value from passin buffer, with position at the first byte of content and limit at the end of content.
+     * Buffer is valid only within decode, value MUST not keep reference to it.
+     * @param buf   buffer to decode from
+     * @return value decoded
+     */
+    T decode(ByteBuffer buf);
+}
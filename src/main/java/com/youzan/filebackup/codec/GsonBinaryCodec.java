@@ -0,0 +1,341 @@
+package com.youzan.filebackup.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import com.youzan.filebackup.util.IOUtils;
+
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of POJOs mapped by {@link Gson}. Value is written by type adapter of Gson, so that field naming, adapters and
+ * exclusions of Gson apply, into a {@link JsonWriter} which puts a compact binary form instead of json text: each
+ * element has a one byte tag, integers are zigzag varints, floating numbers are 8 bytes, strings and names are varint
+ * length followed by UTF-8 bytes, and arrays and objects end with an end tag. Value is written twice per write, once
+ * to count bytes and once into buffer, without json tree or text in between.
+ */
+public class GsonBinaryCodec<T> implements Codec<T> {
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_STRING = 5;
+    private static final byte TAG_ARRAY = 6;
+    private static final byte TAG_OBJECT = 7;
+    //big numbers in decimal string
+    private static final byte TAG_BIG_NUMBER = 8;
+    //end of array or object
+    private static final byte TAG_END = 9;
+
+    private final Gson gson;
+    private final Type type;
+
+    /**
+     * Create codec with gson shared in {@link IOUtils}.
+     */
+    public GsonBinaryCodec(final Type type) {
+        this(IOUtils.getGson(), type);
+    }
+
+    public GsonBinaryCodec(final Gson gson, final Type type) {
+        if(null == gson || null == type)
+            throw new IllegalArgumentException("Gson and type could not be null.");
+        this.gson = gson;
+        this.type = type;
+    }
+
+    @Override
+    public int encodedSize(final T value) {
+        BinaryWriter writer = new BinaryWriter(null);
+        gson.toJson(value, type, writer);
+        return writer.size;
+    }
+
+    @Override
+    public void encode(final T value, final ByteBuffer buf) {
+        gson.toJson(value, type, new BinaryWriter(buf));
+    }
+
+    @Override
+    public T decode(final ByteBuffer buf) {
+        return gson.fromJson(get(buf), type);
+    }
+
+    private static JsonElement get(final ByteBuffer buf) {
+        byte tag = buf.get();
+        switch (tag) {
+            case TAG_NULL:
+                return JsonNull.INSTANCE;
+            case TAG_TRUE:
+                return new JsonPrimitive(true);
+            case TAG_FALSE:
+                return new JsonPrimitive(false);
+            case TAG_LONG:
+                long zigzag = getVarint(buf);
+                return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+            case TAG_DOUBLE:
+                return new JsonPrimitive(buf.getDouble());
+            case TAG_STRING:
+                return new JsonPrimitive(getString(buf));
+            case TAG_BIG_NUMBER:
+                return new JsonPrimitive(new BigDecimal(getString(buf)));
+            case TAG_ARRAY: {
+                JsonArray array = new JsonArray();
+                while(!atEnd(buf))
+                    array.add(get(buf));
+                return array;
+            }
+            case TAG_OBJECT: {
+                JsonObject object = new JsonObject();
+                while(!atEnd(buf)) {
+                    String name = getString(buf);
+                    object.add(name, get(buf));
+                }
+                return object;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown tag " + tag + " at " + (buf.position() - 1));
+        }
+    }
+
+    /**
+     * @return true if next byte is end tag, which is read then
+     */
+    private static boolean atEnd(final ByteBuffer buf) {
+        if(buf.get(buf.position()) != TAG_END)
+            return false;
+        buf.get();
+        return true;
+    }
+
+    private static boolean isIntegral(final Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte
+                || (number instanceof BigInteger && ((BigInteger) number).bitLength() < 64);
+    }
+
+    private static boolean isBig(final Number number) {
+        return number instanceof BigInteger || number instanceof BigDecimal;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(long value, final ByteBuffer buf) {
+        while((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static long getVarint(final ByteBuffer buf) {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint at " + buf.position());
+    }
+
+    private static String getString(final ByteBuffer buf) {
+        int length = (int) getVarint(buf);
+        return Utf8StringCodec.getUtf8(buf, length);
+    }
+
+    /**
+     * json writer which puts binary form into passin buffer, or only counts bytes of binary form if buffer is null.
+     * Name is deferred till its value, and dropped with null value if nulls are not serialized, as json writer does.
+     */
+    private static class BinaryWriter extends JsonWriter {
+        private static final Writer NO_TEXT = new Writer() {
+            @Override
+            public void write(final char[] cbuf, int off, int len) {
+                throw new UnsupportedOperationException("Binary writer writes no json text.");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        private final ByteBuffer buf;
+        private int size = 0;
+        private String deferredName = null;
+
+        BinaryWriter(final ByteBuffer buf) {
+            super(NO_TEXT);
+            this.buf = buf;
+        }
+
+        @Override
+        public JsonWriter beginArray() {
+            putDeferredName();
+            putTag(TAG_ARRAY);
+            return this;
+        }
+
+        @Override
+        public JsonWriter endArray() {
+            putTag(TAG_END);
+            return this;
+        }
+
+        @Override
+        public JsonWriter beginObject() {
+            putDeferredName();
+            putTag(TAG_OBJECT);
+            return this;
+        }
+
+        @Override
+        public JsonWriter endObject() {
+            putTag(TAG_END);
+            return this;
+        }
+
+        @Override
+        public JsonWriter name(final String name) {
+            if(null == name)
+                throw new NullPointerException("name == null");
+            if(null != deferredName)
+                throw new IllegalStateException("Name " + name + " follows name " + deferredName);
+            deferredName = name;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(final String value) {
+            if(null == value)
+                return nullValue();
+            putDeferredName();
+            putTag(TAG_STRING);
+            putString(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter jsonValue(final String value) {
+            throw new UnsupportedOperationException("Raw json value is not written in binary form.");
+        }
+
+        @Override
+        public JsonWriter nullValue() {
+            if(null != deferredName && !getSerializeNulls()) {
+                deferredName = null;
+                return this;
+            }
+            putDeferredName();
+            putTag(TAG_NULL);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(boolean value) {
+            putDeferredName();
+            putTag(value ? TAG_TRUE : TAG_FALSE);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(final Boolean value) {
+            return null == value ? nullValue() : value(value.booleanValue());
+        }
+
+        @Override
+        public JsonWriter value(double value) {
+            putDeferredName();
+            putTag(TAG_DOUBLE);
+            if(null != buf)
+                buf.putDouble(value);
+            size += 8;
+            return this;
+        }
+
+        //float value of gson since 2.11, which writes it as double as number of other gson versions does
+        public JsonWriter value(float value) {
+            return value((double) value);
+        }
+
+        @Override
+        public JsonWriter value(long value) {
+            putDeferredName();
+            putTag(TAG_LONG);
+            putVarint(zigzag(value));
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(final Number value) {
+            if(null == value)
+                return nullValue();
+            if(isIntegral(value))
+                return value(value.longValue());
+            if(!isBig(value))
+                return value(value.doubleValue());
+            putDeferredName();
+            putTag(TAG_BIG_NUMBER);
+            putString(value.toString());
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void putDeferredName() {
+            if(null != deferredName) {
+                putString(deferredName);
+                deferredName = null;
+            }
+        }
+
+        private void putTag(byte tag) {
+            if(null != buf)
+                buf.put(tag);
+            size++;
+        }
+
+        private void putVarint(long value) {
+            if(null != buf)
+                GsonBinaryCodec.putVarint(value, buf);
+            size += varintSize(value);
+        }
+
+        private void putString(final String value) {
+            int length = Utf8StringCodec.utf8Length(value);
+            putVarint(length);
+            if(null != buf)
+                Utf8StringCodec.putUtf8(value, buf);
+            size += length;
+        }
+    }
+}
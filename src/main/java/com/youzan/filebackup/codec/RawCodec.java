@@ -0,0 +1,27 @@
+package com.youzan.filebackup.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of contents in byte array as they are.
+ */
+public class RawCodec implements Codec<byte[]> {
+    public static final RawCodec INSTANCE = new RawCodec();
+
+    @Override
+    public int encodedSize(final byte[] value) {
+        return value.length;
+    }
+
+    @Override
+    public void encode(final byte[] value, final ByteBuffer buf) {
+        buf.put(value);
+    }
+
+    @Override
+    public byte[] decode(final ByteBuffer buf) {
+        byte[] value = new byte[buf.remaining()];
+        buf.get(value);
+        return value;
+    }
+}
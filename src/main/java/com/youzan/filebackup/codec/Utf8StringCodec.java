@@ -0,0 +1,92 @@
+package com.youzan.filebackup.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codec of strings in UTF-8. Chars are encoded into buffer one by one, without encoding string into byte array first.
+ */
+public class Utf8StringCodec implements Codec<String> {
+    public static final Utf8StringCodec INSTANCE = new Utf8StringCodec();
+
+    @Override
+    public int encodedSize(final String value) {
+        return utf8Length(value);
+    }
+
+    @Override
+    public void encode(final String value, final ByteBuffer buf) {
+        putUtf8(value, buf);
+    }
+
+    @Override
+    public String decode(final ByteBuffer buf) {
+        return getUtf8(buf, buf.remaining());
+    }
+
+    /**
+     * @return bytes of passin chars in UTF-8, unpaired surrogate takes one byte as it is encoded into '?'
+     */
+    static int utf8Length(final CharSequence chars) {
+        int length = 0;
+        for(int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if(c < 0x80) {
+                length++;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if(Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encode passin chars in UTF-8 at position of passin buffer, see {@link #utf8Length(CharSequence)}.
+     */
+    static void putUtf8(final CharSequence chars, final ByteBuffer buf) {
+        for(int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if(c < 0x80) {
+                buf.put((byte) c);
+            } else if(c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if(Character.isHighSurrogate(c) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                buf.put((byte) (0xF0 | (codePoint >> 18)));
+                buf.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if(Character.isSurrogate(c)) {
+                buf.put((byte) '?');
+            } else {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Decode passin bytes of UTF-8 from position of passin buffer, position moves after them.
+     */
+    static String getUtf8(final ByteBuffer buf, int length) {
+        String value;
+        if(buf.hasArray()) {
+            value = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,246 @@
+package com.youzan.filebackup.context;
+
+import com.youzan.filebackup.IBackupReader;
+import com.youzan.filebackup.IBackupWriter;
+import com.youzan.filebackup.files.BackupCipher;
+import com.youzan.filebackup.files.BackupFileHeader;
+import com.youzan.filebackup.files.BackupIndex;
+import com.youzan.filebackup.files.BackupSegments;
+import com.youzan.filebackup.files.BackupSparseIndex;
+import com.youzan.filebackup.files.FileChannelBackupWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key based compaction of backup scopes. Sealed backup file is rewritten into a compacting copy next to it, which keeps
+ * contents without key and the latest content of each key according to scope index, with append timestamps they
+ * have. Max size in head of compacted backup file is cut to its end, as if it rolled over there. Backup scope swaps
+ * compacting copy in with atomic move, and moves scope index items to offsets in it.
+ * Background compactions of all backup scopes run on one shared daemon thread, like retention checks do.
+ */
+class BackupCompaction {
+    private final static Logger logger = LoggerFactory.getLogger(BackupCompaction.class);
+    private final static String COMPACTING_SUFFIX = ".compacting";
+    private final static ScheduledExecutorService compactionExec = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "backup-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Backup file rewritten by compaction, not swapped in yet.
+     */
+    static class Compacted {
+        private final long backupFileIndex;
+        //offset of each keyed content kept, before and after compaction
+        private final Map<Long, Long> offsets = new HashMap<>();
+        private long contentCount = 0;
+        private long droppedCount = 0;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+        private long endOffset = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+
+        Compacted(long backupFileIndex) {
+            this.backupFileIndex = backupFileIndex;
+        }
+
+        long getBackupFileIndex() {
+            return this.backupFileIndex;
+        }
+
+        Map<Long, Long> getOffsets() {
+            return this.offsets;
+        }
+
+        long getContentCount() {
+            return this.contentCount;
+        }
+
+        long getDroppedCount() {
+            return this.droppedCount;
+        }
+
+        long getMinTimestamp() {
+            return this.minTimestamp;
+        }
+
+        long getMaxTimestamp() {
+            return this.maxTimestamp;
+        }
+
+        long getEndOffset() {
+            return this.endOffset;
+        }
+    }
+
+    /**
+     * Schedule compaction of passin backup scope.
+     * @param scope backup scope
+     * @param intervalInMillis  interval between two compactions
+     * @return future to cancel compaction
+     */
+    static ScheduledFuture<?> schedule(final BackupScope scope, long intervalInMillis) {
+        return compactionExec.scheduleWithFixedDelay(() -> {
+            try {
+                int count = scope.compact();
+                if(count > 0)
+                    logger.info("{} backup files compacted in {}.", count, scope);
+            } catch (Throwable e) {
+                logger.error("Fail to compact backup scope {}.", scope, e);
+            }
+        }, intervalInMillis, intervalInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Contents kept which are appended together. Contents of encrypted backup file are appended in blocks of
+     * consecutive sequences and the same timestamp, so that sequences jump at block heads only, others are appended
+     * one by one.
+     */
+    private static class Block {
+        private final List<byte[]> contents = new ArrayList<>();
+        //offsets of keyed contents in backup file compacted, -1 for contents without key
+        private final List<Long> offsets = new ArrayList<>();
+        private long sequence;
+        private long timestamp;
+        private long size = 0;
+
+        /**
+         * @return true if content of passin sequence and timestamp could be appended in this block
+         */
+        boolean follows(final BackupFileHeader header, long sequence, long timestamp) {
+            return contents.isEmpty() || (header.isEncrypted() && sequence == this.sequence + contents.size()
+                    && timestamp == this.timestamp && size < BackupCipher.BLOCK_MAX_SIZE_IN_BYTE);
+        }
+
+        void add(final byte[] content, long offset, long sequence, long timestamp) {
+            if(contents.isEmpty()) {
+                this.sequence = sequence;
+                this.timestamp = timestamp;
+            }
+            contents.add(content);
+            offsets.add(offset);
+            size += content.length;
+        }
+
+        /**
+         * append contents with one batch append, and index them at offsets they are moved to
+         */
+        void append(final IBackupWriter writer, final BackupSparseIndex sparseIndex, final Compacted compacted) throws IOException {
+            if(contents.isEmpty())
+                return;
+            BackupFileHeader header = writer.getHeader();
+            long start = writer.position();
+            int count = writer.append(contents, timestamp);
+            if(header.isEncrypted())
+                sparseIndex.onAppend(sequence, contents.size(), timestamp, start, count);
+            long newOffset = start;
+            for(int i = 0; i < contents.size(); i++) {
+                long recordSize = header.getStoredRecordSize(contents.get(i).length) + (i == 0 ? header.getBlockHeadSize() : 0);
+                if(!header.isEncrypted())
+                    sparseIndex.onAppend(sequence + i, timestamp, newOffset, recordSize);
+                if(offsets.get(i) >= 0)
+                    compacted.offsets.put(offsets.get(i), newOffset);
+                newOffset += recordSize;
+            }
+            contents.clear();
+            offsets.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @return path of compacting copy of passin backup file or sparse index file
+     */
+    static Path compactingPath(final Path path) {
+        return path.resolveSibling(path.getFileName() + COMPACTING_SUFFIX);
+    }
+
+    /**
+     * Rewrite backup file of passin segment info into compacting copies of backup file and its sparse index. Contents
+     * kept keep their sequences, compacting sparse index has an entry wherever sequence jumps over contents dropped.
+     * @param scope backup scope
+     * @param info  segment info of sealed backup file
+     * @param index scope index
+     * @return backup file rewritten, or null if there is no content to drop
+     */
+    static Compacted rewrite(final BackupScope scope, final BackupSegments.SegmentInfo info, final BackupIndex index,
+                             final BackupScopeConfig config) throws IOException {
+        long backupFileIndex = info.getBackupFileIndex();
+        Path target = compactingPath(scope.getBackupFilePath(backupFileIndex));
+        Path sparseTarget = compactingPath(scope.getSparseIndexPath(backupFileIndex));
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(sparseTarget);
+        BackupKeyExtractor extractor = config.getKeyExtractor();
+        Compacted compacted = new Compacted(backupFileIndex);
+        boolean kept = false;
+        int bufferSize = (int) config.getBackupContentBufferSizeInByte();
+        try(IBackupReader reader = scope.newScanReader(scope.getBackupFilePath(backupFileIndex))) {
+            BackupFileHeader header = reader.getHeader();
+            //contents are encrypted again, at offsets they are moved to
+            try(IBackupWriter writer = scope.encrypted(new FileChannelBackupWriter(target, header, bufferSize));
+                BackupSparseIndex sparseIndex = new BackupSparseIndex(sparseTarget, config.getSparseIndexIntervalInByte(), config.getSparseIndexIntervalInContent())) {
+                reader.seek(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+                long offset = reader.position();
+                long sequence = info.getFirstSequence();
+                //backup file compacted before has sequences of its contents in its sparse index
+                NavigableMap<Long, Long> sequences = info.getCompactionGeneration() > 0
+                        ? BackupSparseIndex.sequencesByOffset(scope.getSparseIndexPath(backupFileIndex)) : null;
+                Block block = new Block();
+                byte[] content;
+                while(offset < info.getEndOffset() && null != (content = reader.read())) {
+                    if(null != sequences)
+                        sequence = sequences.getOrDefault(offset, sequence);
+                    String key = extractor.keyOf(content);
+                    if(null == key || index.isLatest(key, backupFileIndex, offset)) {
+                        //without record timestamp, contents kept take timestamp range of backup file
+                        long timestamp = header.hasRecordTimestamp() ? reader.timestamp()
+                                : (compacted.contentCount == 0 ? info.getMinTimestamp() : info.getMaxTimestamp());
+                        if(!block.follows(header, sequence, timestamp))
+                            block.append(writer, sparseIndex, compacted);
+                        block.add(content, null == key ? -1 : offset, sequence, timestamp);
+                        compacted.contentCount++;
+                        compacted.minTimestamp = Math.min(compacted.minTimestamp, timestamp);
+                        compacted.maxTimestamp = Math.max(compacted.maxTimestamp, timestamp);
+                    } else {
+                        compacted.droppedCount++;
+                    }
+                    sequence++;
+                    offset = reader.position();
+                }
+                block.append(writer, sparseIndex, compacted);
+                if(offset < info.getEndOffset())
+                    throw new IOException("Backup file " + backupFileIndex + " of " + scope + " ends at " + offset + " before " + info.getEndOffset());
+                compacted.endOffset = writer.position();
+            }
+            if(compacted.droppedCount > 0) {
+                //max size right before end, so that read goes to next backup file after the last content kept
+                try(FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                    BackupFileHeader.write(channel, new BackupFileHeader(compacted.endOffset - 1, header.getFlags()));
+                    channel.force(false);
+                }
+                kept = true;
+            }
+        } finally {
+            if(!kept) {
+                Files.deleteIfExists(target);
+                Files.deleteIfExists(sparseTarget);
+            }
+        }
+        return kept ? compacted : null;
+    }
+}
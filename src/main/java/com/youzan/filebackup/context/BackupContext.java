@@ -3,43 +3,328 @@ package com.youzan.filebackup.context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Context which has multi back up scopes within.
  * Created by lin on 17/4/7.
  */
-abstract public class BackupContext {
+abstract public class BackupContext implements AutoCloseable {
     private final static Logger logger = LoggerFactory.getLogger(BackupContext.class);
     final static String CONTEXT_ID_FORMAT = "backup_context_%s";
     //context name
     private final String name;
     private final String contextId;
     private final ReentrantReadWriteLock scopesLock = new ReentrantReadWriteLock();
-    private final Set<BackupScope> scopes;
+    //backup scopes in current context, by scope id
+    private final Map<String, BackupScope> scopes;
+    private final BackupContextConfig config;
+    //fan-in readers tracking backup scopes with contents to read
+    private final List<BackupFanInReader> fanInReaders = new CopyOnWriteArrayList<>();
+    //completion threads of asynchronous I/O, shared by backup scopes in context, created on first use
+    private volatile ExecutorService completionExec = null;
+    //bandwidth shared by backup scopes in context, null if there is no limit
+    private final BackupRateLimiter writeLimiter;
+    private final BackupRateLimiter readLimiter;
+    //total size of backup files of backup scopes in context
+    private final AtomicLong diskUsageInByte = new AtomicLong(0);
+    //data directories backup scopes are placed on, null if there is none in config
+    private final BackupDataDirs dataDirs;
 
     public BackupContext(String name) {
+        this(name, new BackupContextConfig());
+    }
+
+    public BackupContext(String name, final BackupContextConfig config) {
         if(null == name || name.isEmpty())
             throw new IllegalArgumentException("Backup context could not be null.");
+        if(null == config)
+            throw new IllegalArgumentException("Backup context config could not be null.");
         this.name = name;
+        this.config = config;
         contextId = String.format(CONTEXT_ID_FORMAT, UUID.randomUUID());
-        scopes = new HashSet<>();
+        scopes = new HashMap<>();
+        writeLimiter = config.getWriteRateInBytePerSecond() > 0 ? new BackupRateLimiter(config.getWriteRateInBytePerSecond()) : null;
+        readLimiter = config.getReadRateInBytePerSecond() > 0 ? new BackupRateLimiter(config.getReadRateInBytePerSecond()) : null;
+        dataDirs = config.getDataDirs().isEmpty() ? null : new BackupDataDirs(config.getDataDirs(), config.getDataDirMinFreeByte());
     }
 
-    void addScope(final BackupScope scope) {
+    /**
+     * @return false if there is another backup scope of the same scope id in current context, passin scope is not
+     * added then
+     */
+    boolean addScope(final BackupScope scope) {
         try{
             scopesLock.writeLock().lock();
-            if(scopes.contains(scope))
-                return;
-            scopes.add(scope);
+            if(scopes.containsKey(scope.getScopeId()))
+                return false;
+            scopes.put(scope.getScopeId(), scope);
+            if(null != dataDirs)
+                dataDirs.onScopeAdded(scope.getParent());
             logger.info("Backup scope {} added in current context {}.", scope, this);
         }finally {
             scopesLock.writeLock().unlock();
         }
+        onReadable(scope);
+        return true;
+    }
+
+    /**
+     * Invoked when backup scope in current context is closed, so that scope could be added again with new instance.
+     */
+    void removeScope(final BackupScope scope) {
+        try{
+            scopesLock.writeLock().lock();
+            if(!scopes.remove(scope.getScopeId(), scope))
+                return;
+            if(null != dataDirs)
+                dataDirs.onScopeRemoved(scope.getParent());
+            logger.info("Backup scope {} removed from current context {}.", scope, this);
+        }finally {
+            scopesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * return backup scope with passin scope id in current context
+     * @param scopeId   scope id
+     * @return backup scope, or null if there is no such scope
+     */
+    public BackupScope getScope(String scopeId) {
+        try{
+            scopesLock.readLock().lock();
+            return scopes.get(scopeId);
+        }finally {
+            scopesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return snapshot of backup scopes in current context
+     */
+    public List<BackupScope> getScopes() {
+        try{
+            scopesLock.readLock().lock();
+            return new ArrayList<>(scopes.values());
+        }finally {
+            scopesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pick parent path of backup scope with passin scope id among data directories, data directory which already has
+     * folder of backup scope is picked, otherwise new backup scope is placed by usable space and write load of data
+     * directories.
+     * @param scopeId   backup scope id
+     * @return data directory as parent path of backup scope
+     */
+    Path placeScope(String scopeId) throws IOException {
+        if(null == dataDirs)
+            throw new IllegalStateException("There is no data directory in config of backup context " + this);
+        Path located = dataDirs.locate(scopeId);
+        if(null != located)
+            return located;
+        Path placed = dataDirs.place();
+        logger.info("Backup scope {} placed on {}.", scopeId, placed);
+        return placed;
+    }
+
+    /**
+     * @return data directories of current context, in order of config, empty if there is none
+     */
+    public List<Path> getDataDirs() {
+        return null == dataDirs ? Collections.<Path>emptyList() : dataDirs.getPaths();
+    }
+
+    /**
+     * @return index of passin path in data directories, -1 if it is not one of them
+     */
+    int indexOfDataDir(final Path path) {
+        return null == dataDirs ? -1 : dataDirs.indexOf(path);
+    }
+
+    /**
+     * Invoked when bytes are written into backup file on data directory with passin index, as write load of it.
+     */
+    void onWritten(int dataDirIndex, long bytes) {
+        dataDirs.onWritten(dataDirIndex, bytes);
+    }
+
+    /**
+     * Create bootstrap which discovers backup scopes in all data directories of current context, and initializes them
+     * into current context.
+     * @return bootstrap, which starts with {@link BackupContextBootstrap#start()}
+     */
+    public BackupContextBootstrap bootstrap() {
+        if(null == dataDirs)
+            throw new IllegalStateException("There is no data directory in config of backup context " + this);
+        return new BackupContextBootstrap(this, dataDirs.getPaths());
+    }
 
+    /**
+     * Create bootstrap which discovers backup scopes under passin parent path and initializes them into current
+     * context.
+     * @param parentPath    parent path of backup scope folders
+     * @return bootstrap, which starts with {@link BackupContextBootstrap#start()}
+     */
+    public BackupContextBootstrap bootstrap(String parentPath) {
+        return new BackupContextBootstrap(this, parentPath);
+    }
+
+    /**
+     * Create fan-in reader which reads all backup scopes in current context, starting with
+     * {@link BackupFanInReader#open()}.
+     * @return fan-in reader
+     */
+    public BackupFanInReader newFanInReader() {
+        return new BackupFanInReader(this);
+    }
+
+    void addFanInReader(final BackupFanInReader fanInReader) {
+        fanInReaders.add(fanInReader);
+    }
+
+    void removeFanInReader(final BackupFanInReader fanInReader) {
+        fanInReaders.remove(fanInReader);
+    }
+
+    /**
+     * Invoked when read end of passin backup scope moves, fan-in readers are notified.
+     */
+    void onReadable(final BackupScope scope) {
+        for(BackupFanInReader fanInReader : fanInReaders)
+            fanInReader.onReadable(scope);
+    }
+
+    BackupRateLimiter getWriteLimiter() {
+        return this.writeLimiter;
+    }
+
+    BackupRateLimiter getReadLimiter() {
+        return this.readLimiter;
+    }
+
+    /**
+     * Invoked when backup files of backup scope in current context are written or deleted.
+     * @param delta bytes added, negative for bytes deleted
+     */
+    void onDiskUsage(long delta) {
+        diskUsageInByte.addAndGet(delta);
+    }
+
+    /**
+     * @return total size of backup files of backup scopes in current context
+     */
+    public long getDiskUsageInByte() {
+        return this.diskUsageInByte.get();
+    }
+
+    /**
+     * Take stats of backup scopes in current context, see {@link BackupScope#getStats()}. Read and write of backup
+     * scopes are not blocked.
+     * @return stats of initialized backup scopes, with totals
+     */
+    public BackupContextStats getStats() throws IOException {
+        List<BackupScopeStats> scopeStats = new ArrayList<>();
+        for(BackupScope scope : getScopes()) {
+            BackupScopeStats stats = scope.getStats();
+            if(null != stats)
+                scopeStats.add(stats);
+        }
+        return new BackupContextStats(this.name, scopeStats, getDiskUsageInByte());
+    }
+
+    public BackupContextConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * @return executor completing asynchronous I/O of backup scopes in current context
+     */
+    ExecutorService getCompletionExecutor() {
+        if(null == completionExec) {
+            synchronized (this) {
+                if(null == completionExec) {
+                    final AtomicInteger threadIndex = new AtomicInteger(0);
+                    completionExec = Executors.newFixedThreadPool(config.getCompletionThreads(), r -> {
+                        Thread thread = new Thread(r, "backup-completion-" + name + "-" + threadIndex.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    logger.info("Completion executor with {} threads created in {}.", config.getCompletionThreads(), this);
+                }
+            }
+        }
+        return completionExec;
+    }
+
+    /**
+     * Drain writes of all backup scopes in current context, see {@link BackupScope#drain(long, TimeUnit)}.
+     * @param timeout   max time to wait for writes of all backup scopes
+     * @param unit  unit of timeout
+     * @return true if writes of all backup scopes are drained in time
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws IOException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        for(BackupScope scope : getScopes())
+            drained &= scope.drain(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        return drained;
+    }
+
+    /**
+     * Close fan-in readers and backup scopes in current context, then completion threads of asynchronous I/O once
+     * writes in flight of backup scopes are completed. Backup scopes which fail to close do not stop others from
+     * closing, the first failure is thrown at last.
+     */
+    @Override
+    public void close() throws IOException {
+        for(BackupFanInReader fanInReader : fanInReaders)
+            fanInReader.close();
+        IOException failure = null;
+        for(BackupScope scope : getScopes()) {
+            try {
+                scope.close();
+            } catch (IOException e) {
+                logger.error("Fail to close backup scope {} in {}.", scope, this, e);
+                if(null == failure)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        ExecutorService exec;
+        synchronized (this) {
+            exec = completionExec;
+            completionExec = null;
+        }
+        if(null != exec) {
+            exec.shutdown();
+            try {
+                if(!exec.awaitTermination(config.getCloseTimeoutInMillis(), TimeUnit.MILLISECONDS))
+                    logger.error("Completion executor of {} does not exit in time, {} completions dropped.", this, exec.shutdownNow().size());
+            } catch (InterruptedException e) {
+                exec.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        logger.info("Backup context {} closed.", this);
+        if(null != failure)
+            throw failure;
     }
 
     public String toString() {
@@ -0,0 +1,291 @@
+package com.youzan.filebackup.context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bootstrap discovers backup scope folders under parent paths, and initializes them into backup context in parallel
+ * on a fork-join pool. Backup scope is added into backup context as soon as it is initialized, so that scopes already
+ * initialized could be written while others are still in bootstrap. Backup scope whose scope id is already in backup
+ * context fails, and is closed. Index of backup scope is not loaded in bootstrap, it is loaded on first lookup.
+ */
+public class BackupContextBootstrap {
+    private final static Logger logger = LoggerFactory.getLogger(BackupContextBootstrap.class);
+
+    private final BackupContext backupContext;
+    private final List<Path> parents;
+    private BackupScopeConfig config = new BackupScopeConfig();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private Listener listener = null;
+    private ForkJoinPool pool = null;
+
+    private final AtomicInteger discovered = new AtomicInteger(0);
+    private final AtomicInteger ready = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private final AtomicLong maxScopeInitNanos = new AtomicLong(0);
+    private final AtomicLong totalScopeInitNanos = new AtomicLong(0);
+    private volatile long startNanos;
+    private volatile long endNanos = -1;
+
+    /**
+     * Listener of bootstrap progress. Listener is invoked in threads of bootstrap pool.
+     */
+    public interface Listener {
+        /**
+         * Invoked when backup scope is initialized and added into backup context.
+         */
+        void onScopeReady(final BackupScope scope, final Metrics metrics);
+
+        /**
+         * Invoked when backup scope fails to initialize, it is not added into backup context.
+         */
+        void onScopeFailed(final BackupScope scope, final Metrics metrics);
+    }
+
+    /**
+     * Snapshot of bootstrap progress.
+     */
+    public static class Metrics {
+        private final int discovered;
+        private final int ready;
+        private final int failed;
+        private final long elapsedMillis;
+        private final long maxScopeInitMillis;
+        private final long avgScopeInitMillis;
+
+        Metrics(int discovered, int ready, int failed, long elapsedMillis, long maxScopeInitMillis, long avgScopeInitMillis) {
+            this.discovered = discovered;
+            this.ready = ready;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+            this.maxScopeInitMillis = maxScopeInitMillis;
+            this.avgScopeInitMillis = avgScopeInitMillis;
+        }
+
+        public int getDiscovered() {
+            return this.discovered;
+        }
+
+        public int getReady() {
+            return this.ready;
+        }
+
+        public int getFailed() {
+            return this.failed;
+        }
+
+        public long getElapsedMillis() {
+            return this.elapsedMillis;
+        }
+
+        public long getMaxScopeInitMillis() {
+            return this.maxScopeInitMillis;
+        }
+
+        public long getAvgScopeInitMillis() {
+            return this.avgScopeInitMillis;
+        }
+
+        public String toString() {
+            return "discovered: " + discovered + ", ready: " + ready + ", failed: " + failed + ", elapsed: " + elapsedMillis
+                    + "ms, max scope init: " + maxScopeInitMillis + "ms, avg scope init: " + avgScopeInitMillis + "ms";
+        }
+    }
+
+    BackupContextBootstrap(final BackupContext backupContext, String parentPath) {
+        if(null == backupContext)
+            throw new IllegalArgumentException("Backup context could not be null.");
+        if(null == parentPath || parentPath.isEmpty())
+            throw new IllegalArgumentException("Scope parent path could not be null.");
+        this.backupContext = backupContext;
+        this.parents = Collections.singletonList(Paths.get(parentPath));
+    }
+
+    /**
+     * bootstrap of backup scopes under all passin parent paths, as data directories of backup context
+     */
+    BackupContextBootstrap(final BackupContext backupContext, final List<Path> parents) {
+        if(null == backupContext)
+            throw new IllegalArgumentException("Backup context could not be null.");
+        if(null == parents || parents.isEmpty())
+            throw new IllegalArgumentException("Scope parent paths could not be empty.");
+        this.backupContext = backupContext;
+        this.parents = parents;
+    }
+
+    /**
+     * Set {@link BackupScopeConfig} for backup scopes discovered.
+     */
+    public BackupContextBootstrap setBackupScopeConfig(final BackupScopeConfig config) {
+        if(null == config)
+            throw new IllegalArgumentException("Backup scope config could not be null.");
+        this.config = config;
+        return this;
+    }
+
+    public BackupContextBootstrap setParallelism(int parallelism) {
+        if(parallelism <= 0)
+            throw new IllegalArgumentException("Parallelism should be positive.");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public BackupContextBootstrap setListener(final Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Discover backup scope folders and start initializing them. Function returns once initialization is submitted.
+     * @return current bootstrap
+     */
+    public synchronized BackupContextBootstrap start() throws IOException {
+        if(null != pool)
+            throw new IllegalStateException("Bootstrap already started.");
+        startNanos = System.nanoTime();
+        List<Path> scopePaths = discover();
+        discovered.set(scopePaths.size());
+        logger.info("{} backup scopes discovered under {}.", scopePaths.size(), parents);
+        if(scopePaths.isEmpty())
+            endNanos = System.nanoTime();
+        pool = new ForkJoinPool(parallelism);
+        pool.execute(new InitScopesAction(scopePaths, 0, scopePaths.size()));
+        pool.shutdown();
+        return this;
+    }
+
+    private List<Path> discover() throws IOException {
+        List<Path> scopePaths = new ArrayList<>();
+        for(Path parent : parents) {
+            if(!Files.isDirectory(parent))
+                continue;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(parent, BackupScope.SCOPE_FOLDER_PREFIX + "*")) {
+                for (Path path : stream) {
+                    if (Files.isDirectory(path))
+                        scopePaths.add(path);
+                }
+            }
+        }
+        return scopePaths;
+    }
+
+    /**
+     * Wait for bootstrap to complete.
+     * @return true if all discovered backup scopes are initialized or failed before timeout
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if(null == pool)
+            throw new IllegalStateException("Bootstrap not started.");
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return null != pool && pool.isTerminated();
+    }
+
+    /**
+     * @return snapshot of bootstrap progress
+     */
+    public Metrics getMetrics() {
+        int readyCnt = ready.get();
+        int failedCnt = failed.get();
+        int initCnt = readyCnt + failedCnt;
+        long end = endNanos > 0 ? endNanos : System.nanoTime();
+        return new Metrics(discovered.get(), readyCnt, failedCnt,
+                null == pool ? 0 : TimeUnit.NANOSECONDS.toMillis(end - startNanos),
+                TimeUnit.NANOSECONDS.toMillis(maxScopeInitNanos.get()),
+                initCnt == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalScopeInitNanos.get() / initCnt));
+    }
+
+    private void initScope(final Path scopePath) {
+        long start = System.nanoTime();
+        BackupScope scope = new BackupScope(scopePath.getParent(), scopePath.getFileName().toString());
+        scope.setBackupScopeConfig(this.config);
+        boolean success;
+        try {
+            scope.init();
+            success = scope.isInit();
+        } catch (Exception e) {
+            logger.error("Fail to initialize backup scope {}.", scope, e);
+            success = false;
+        }
+        long elapsed = System.nanoTime() - start;
+        totalScopeInitNanos.addAndGet(elapsed);
+        long max;
+        while(elapsed > (max = maxScopeInitNanos.get()) && !maxScopeInitNanos.compareAndSet(max, elapsed));
+
+        if(success && !scope.setBackupContext(this.backupContext)) {
+            //scope initialized holds lease and background tasks of scope folder, which go with it
+            logger.error("Backup scope {} is already in backup context {}, scope initialized is closed.", scope, this.backupContext);
+            try {
+                scope.close();
+            } catch (IOException e) {
+                logger.error("Fail to close backup scope {}.", scope, e);
+            }
+            success = false;
+        }
+        if(success) {
+            ready.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        Metrics metrics = getMetrics();
+        if(metrics.getReady() + metrics.getFailed() == metrics.getDiscovered()) {
+            endNanos = System.nanoTime();
+            metrics = getMetrics();
+            logger.info("Bootstrap of {} done, {}", this.backupContext, metrics);
+        }
+        if(null != listener) {
+            try {
+                if(success)
+                    listener.onScopeReady(scope, metrics);
+                else
+                    listener.onScopeFailed(scope, metrics);
+            } catch (Exception e) {
+                logger.error("Bootstrap listener fails on {}.", scope, e);
+            }
+        }
+    }
+
+    /**
+     * initialize backup scopes in range of passin list, range is split till it is small enough
+     */
+    private class InitScopesAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final static int THRESHOLD = 4;
+        private final List<Path> scopePaths;
+        private final int from;
+        private final int to;
+
+        InitScopesAction(final List<Path> scopePaths, int from, int to) {
+            this.scopePaths = scopePaths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= THRESHOLD) {
+                for(int i = from; i < to; i++)
+                    initScope(scopePaths.get(i));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new InitScopesAction(scopePaths, from, mid), new InitScopesAction(scopePaths, mid, to));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.youzan.filebackup.context;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Config shared by backup scopes in one {@link BackupContext}.
+ */
+public class BackupContextConfig {
+    //threads completing asynchronous I/O of all backup scopes in context
+    private volatile int completionThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    //write and read bandwidth shared by all backup scopes in context, 0 for no limit
+    private volatile long writeRateInBytePerSecond = 0;
+    private volatile long readRateInBytePerSecond = 0;
+    //max total size of backup files of all backup scopes in context, 0 for no limit
+    private volatile long diskQuotaInByte = 0;
+    //data directories on separate disks, empty if backup scopes are placed by their parent path
+    private volatile List<Path> dataDirs = Collections.emptyList();
+    //data directories below it are taken for new backup scopes only when all of them are
+    private volatile long dataDirMinFreeByte = 0;
+    //backup files of one backup scope go round-robin across data directories
+    private volatile boolean segmentStriping = false;
+    //max wait of close for completion threads to exit
+    private volatile long closeTimeoutInMillis = 10 * 1000;
+
+    public int getCompletionThreads() {
+        return this.completionThreads;
+    }
+
+    /**
+     * Set size of thread pool which completes asynchronous I/O of backup scopes in {@link BackupScopeConfig.IOMode#ASYNC}
+     * mode. Setting needs to be done BEFORE first backup scope in context opens for write.
+     * @param completionThreads count of threads
+     */
+    public BackupContextConfig setCompletionThreads(int completionThreads) {
+        if(completionThreads <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.completionThreads = completionThreads;
+        return this;
+    }
+
+    public long getWriteRateInBytePerSecond() {
+        return this.writeRateInBytePerSecond;
+    }
+
+    /**
+     * Set max bytes written per second into all backup scopes in context, on top of write rate limit of each backup
+     * scope. Setting needs to be done BEFORE backup context is created. 0 disables write rate limit.
+     * @param writeRateInBytePerSecond  write rate in byte per second
+     */
+    public BackupContextConfig setWriteRateInBytePerSecond(long writeRateInBytePerSecond) {
+        if(writeRateInBytePerSecond < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.writeRateInBytePerSecond = writeRateInBytePerSecond;
+        return this;
+    }
+
+    public long getReadRateInBytePerSecond() {
+        return this.readRateInBytePerSecond;
+    }
+
+    /**
+     * Set max bytes read per second from all backup scopes in context. Setting needs to be done BEFORE backup context
+     * is created. 0 disables read rate limit.
+     * @param readRateInBytePerSecond   read rate in byte per second
+     */
+    public BackupContextConfig setReadRateInBytePerSecond(long readRateInBytePerSecond) {
+        if(readRateInBytePerSecond < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.readRateInBytePerSecond = readRateInBytePerSecond;
+        return this;
+    }
+
+    public long getDiskQuotaInByte() {
+        return this.diskQuotaInByte;
+    }
+
+    /**
+     * Set max total size of backup files of all backup scopes in context. Write going beyond it is handled by quota
+     * policy of backup scope written. 0 disables disk quota.
+     * @param diskQuotaInByte   disk quota in byte
+     */
+    public BackupContextConfig setDiskQuotaInByte(long diskQuotaInByte) {
+        if(diskQuotaInByte < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.diskQuotaInByte = diskQuotaInByte;
+        return this;
+    }
+
+    public long getCloseTimeoutInMillis() {
+        return this.closeTimeoutInMillis;
+    }
+
+    /**
+     * Set max time close of backup context waits for completion threads of asynchronous I/O to exit, after backup
+     * scopes in context are closed.
+     * @param closeTimeoutInMillis  timeout in milliseconds
+     */
+    public BackupContextConfig setCloseTimeoutInMillis(long closeTimeoutInMillis) {
+        if(closeTimeoutInMillis < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.closeTimeoutInMillis = closeTimeoutInMillis;
+        return this;
+    }
+
+    public List<Path> getDataDirs() {
+        return this.dataDirs;
+    }
+
+    /**
+     * Set data directories, usually one on each data disk of host. Backup scopes created with
+     * {@link BackupScopeBuilder#create(BackupContext, String)} are placed on one of them, by usable space and current
+     * write load. Setting needs to be done BEFORE backup context is created.
+     * @param dataDirs  paths of data directories
+     */
+    public BackupContextConfig setDataDirs(String... dataDirs) {
+        List<Path> paths = new ArrayList<>();
+        for(String dataDir : dataDirs) {
+            if(null == dataDir || dataDir.isEmpty())
+                throw new IllegalArgumentException("Data directory could not be empty.");
+            paths.add(Paths.get(dataDir));
+        }
+        this.dataDirs = Collections.unmodifiableList(paths);
+        return this;
+    }
+
+    public long getDataDirMinFreeByte() {
+        return this.dataDirMinFreeByte;
+    }
+
+    /**
+     * Set usable bytes below which data directory is taken for new backup scope only when all data directories are
+     * below it. 0 places by usable space and load only.
+     * @param dataDirMinFreeByte    min free bytes
+     */
+    public BackupContextConfig setDataDirMinFreeByte(long dataDirMinFreeByte) {
+        if(dataDirMinFreeByte < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.dataDirMinFreeByte = dataDirMinFreeByte;
+        return this;
+    }
+
+    public boolean isSegmentStriping() {
+        return this.segmentStriping;
+    }
+
+    /**
+     * Set whether backup files of one backup scope go round-robin across data directories, starting from data
+     * directory backup scope is placed on, so that one busy backup scope writes and reads with bandwidth of all disks.
+     * Striping applies to backup scopes created after it is set, backup scopes with backup files already keep them
+     * where they are.
+     * @param segmentStriping   true to stripe backup files
+     */
+    public BackupContextConfig setSegmentStriping(boolean segmentStriping) {
+        this.segmentStriping = segmentStriping;
+        return this;
+    }
+}
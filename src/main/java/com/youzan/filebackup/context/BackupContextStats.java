@@ -0,0 +1,69 @@
+package com.youzan.filebackup.context;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of backlog and health of backup scopes in one backup context, taken with {@link BackupContext#getStats()}.
+ */
+public class BackupContextStats {
+    private final String name;
+    private final List<BackupScopeStats> scopeStats;
+    private final long diskUsageInByte;
+    private long segmentCount = 0;
+    private long unreadByte = 0;
+    private long unreadCount = 0;
+    private long oldestUnreadTimestamp = -1;
+
+    BackupContextStats(String name, final List<BackupScopeStats> scopeStats, long diskUsageInByte) {
+        this.name = name;
+        this.scopeStats = Collections.unmodifiableList(scopeStats);
+        this.diskUsageInByte = diskUsageInByte;
+        for(BackupScopeStats stats : scopeStats) {
+            segmentCount += stats.getSegmentCount();
+            unreadByte += stats.getUnreadByte();
+            unreadCount += stats.getUnreadCount();
+            if(stats.getOldestUnreadTimestamp() >= 0 && (oldestUnreadTimestamp < 0 || stats.getOldestUnreadTimestamp() < oldestUnreadTimestamp))
+                oldestUnreadTimestamp = stats.getOldestUnreadTimestamp();
+        }
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return stats of initialized backup scopes in context
+     */
+    public List<BackupScopeStats> getScopeStats() {
+        return this.scopeStats;
+    }
+
+    public long getDiskUsageInByte() {
+        return this.diskUsageInByte;
+    }
+
+    public long getSegmentCount() {
+        return this.segmentCount;
+    }
+
+    public long getUnreadByte() {
+        return this.unreadByte;
+    }
+
+    public long getUnreadCount() {
+        return this.unreadCount;
+    }
+
+    /**
+     * @return append timestamp of the oldest content not read in all backup scopes, -1 if everything is read
+     */
+    public long getOldestUnreadTimestamp() {
+        return this.oldestUnreadTimestamp;
+    }
+
+    public String toString() {
+        return "Context: " + name + ", Scopes: " + scopeStats.size() + ", Segments: " + segmentCount + ", DiskUsage: "
+                + diskUsageInByte + ", Unread: " + unreadCount + "/" + unreadByte + "B";
+    }
+}
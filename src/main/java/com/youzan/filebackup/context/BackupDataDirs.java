@@ -0,0 +1,153 @@
+package com.youzan.filebackup.context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Data directories of backup context, on separate disks of host. New backup scope is placed on data directory with the
+ * most usable space per load, where load of data directory is count of backup scopes on it, plus its recent write rate
+ * in {@link #BYTES_PER_SECOND_PER_SCOPE}, so that a directory busy with writes counts as one with more scopes. Data
+ * directories with usable space below min free bytes are taken only when all of them are.
+ */
+class BackupDataDirs {
+    private final static Logger logger = LoggerFactory.getLogger(BackupDataDirs.class);
+    //write rate which counts as one more backup scope on data directory
+    final static long BYTES_PER_SECOND_PER_SCOPE = 1024 * 1024;
+    //weight of latest rate in moving average
+    private final static double RATE_WEIGHT = 0.5;
+
+    private final List<DataDir> dirs;
+    private final long minFreeByte;
+
+    /**
+     * one data directory, with backup scopes and bytes written on it
+     */
+    private static class DataDir {
+        private final Path path;
+        private final AtomicInteger scopes = new AtomicInteger(0);
+        private final AtomicLong writtenByte = new AtomicLong(0);
+        private long sampleNanos = System.nanoTime();
+        private long sampleWrittenByte = 0;
+        private double rateInBytePerSecond = 0;
+
+        DataDir(final Path path) {
+            this.path = path;
+        }
+
+        /**
+         * @return write rate since last sample, smoothed with moving average
+         */
+        double sampleRate() {
+            long now = System.nanoTime();
+            long written = writtenByte.get();
+            double rate = (written - sampleWrittenByte) * 1e9 / Math.max(1, now - sampleNanos);
+            rateInBytePerSecond = RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * rateInBytePerSecond;
+            sampleNanos = now;
+            sampleWrittenByte = written;
+            return rateInBytePerSecond;
+        }
+    }
+
+    BackupDataDirs(final List<Path> paths, long minFreeByte) {
+        List<DataDir> dirs = new ArrayList<>();
+        for(Path path : paths)
+            dirs.add(new DataDir(normalize(path)));
+        this.dirs = Collections.unmodifiableList(dirs);
+        this.minFreeByte = minFreeByte;
+    }
+
+    private static Path normalize(final Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private DataDir find(final Path path) {
+        int index = indexOf(path);
+        return index < 0 ? null : dirs.get(index);
+    }
+
+    /**
+     * @return index of passin data directory, or -1 if it is not one of data directories
+     */
+    int indexOf(final Path path) {
+        Path normalized = normalize(path);
+        for(int i = 0; i < dirs.size(); i++) {
+            if(dirs.get(i).path.equals(normalized))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return paths of data directories, in order of config
+     */
+    List<Path> getPaths() {
+        List<Path> paths = new ArrayList<>();
+        for(DataDir dir : dirs)
+            paths.add(dir.path);
+        return paths;
+    }
+
+    /**
+     * @return data directory which has folder of passin backup scope id, or null if there is none
+     */
+    Path locate(final String scopeId) {
+        for(DataDir dir : dirs) {
+            if(Files.isDirectory(dir.path.resolve(scopeId)))
+                return dir.path;
+        }
+        return null;
+    }
+
+    /**
+     * Pick data directory for new backup scope.
+     * @return data directory with the most usable space per load
+     */
+    synchronized Path place() throws IOException {
+        DataDir best = null;
+        double bestScore = -1;
+        boolean bestHasRoom = false;
+        for(DataDir dir : dirs) {
+            Files.createDirectories(dir.path);
+            long usable = Files.getFileStore(dir.path).getUsableSpace();
+            double load = dir.scopes.get() + dir.sampleRate() / BYTES_PER_SECOND_PER_SCOPE;
+            double score = usable / (1 + load);
+            boolean hasRoom = usable >= minFreeByte;
+            if(null == best || (hasRoom && !bestHasRoom) || (hasRoom == bestHasRoom && score > bestScore)) {
+                best = dir;
+                bestScore = score;
+                bestHasRoom = hasRoom;
+            }
+        }
+        if(!bestHasRoom)
+            logger.warn("All data directories are below {} bytes free, backup scope is placed on {}.", minFreeByte, best.path);
+        return best.path;
+    }
+
+    void onScopeAdded(final Path path) {
+        DataDir dir = find(path);
+        if(null != dir)
+            dir.scopes.incrementAndGet();
+    }
+
+    void onScopeRemoved(final Path path) {
+        DataDir dir = find(path);
+        if(null != dir)
+            dir.scopes.decrementAndGet();
+    }
+
+    /**
+     * Invoked when bytes are written into backup file on data directory with passin index.
+     */
+    void onWritten(int index, long bytes) {
+        dirs.get(index).writtenByte.addAndGet(bytes);
+    }
+}
@@ -0,0 +1,229 @@
+package com.youzan.filebackup.context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reader drains all backup scopes in one {@link BackupContext}. Backup scope notifies backup context whenever its read
+ * end moves, and fan-in reader keeps backup scopes notified in a ready queue, so that idle backup scopes are never
+ * read. Each poll takes the first ready backup scope and reads a batch of at most its quantum of contents from it.
+ * Backup scope which may have more to read goes back to the end of ready queue.
+ * Ready backup scopes are served by priority, backup scopes with the same priority are served in turn. Quantum of
+ * backup scope weights its share among backup scopes with the same priority.
+ */
+public class BackupFanInReader implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(BackupFanInReader.class);
+
+    private final BackupContext backupContext;
+    //backup scopes which may have contents to read, by priority, then in order they become ready
+    private final PriorityBlockingQueue<Ready> readyScopes = new PriorityBlockingQueue<>();
+    //backup scopes in ready queue, backup scope is in ready queue at most once
+    private final Set<BackupScope> queued = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> priorities = new ConcurrentHashMap<>();
+    private final Map<String, Integer> quantums = new ConcurrentHashMap<>();
+    private volatile int defaultQuantum = 100;
+    private final AtomicLong readyOrder = new AtomicLong(0);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger(0);
+    private volatile boolean open = false;
+
+    /**
+     * Batch of contents read from one backup scope.
+     */
+    public static class Batch {
+        private final BackupScope scope;
+        private final List<BackupRecord> records;
+
+        Batch(final BackupScope scope, final List<BackupRecord> records) {
+            this.scope = scope;
+            this.records = records;
+        }
+
+        public BackupScope getScope() {
+            return this.scope;
+        }
+
+        public List<BackupRecord> getRecords() {
+            return this.records;
+        }
+    }
+
+    private static class Ready implements Comparable<Ready> {
+        private final BackupScope scope;
+        private final int priority;
+        private final long order;
+
+        Ready(final BackupScope scope, int priority, long order) {
+            this.scope = scope;
+            this.priority = priority;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(final Ready other) {
+            if(this.priority != other.priority)
+                return this.priority > other.priority ? -1 : 1;
+            return Long.compare(this.order, other.order);
+        }
+    }
+
+    BackupFanInReader(final BackupContext backupContext) {
+        this.backupContext = backupContext;
+    }
+
+    /**
+     * Set default count of contents read from one backup scope in one poll.
+     */
+    public BackupFanInReader setQuantum(int quantum) {
+        if(quantum <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.defaultQuantum = quantum;
+        return this;
+    }
+
+    /**
+     * Set count of contents read from backup scope with passin scope id in one poll, which weights share of backup
+     * scope among backup scopes with the same priority.
+     */
+    public BackupFanInReader setQuantum(final String scopeId, int quantum) {
+        if(quantum <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.quantums.put(scopeId, quantum);
+        return this;
+    }
+
+    /**
+     * Set priority of backup scope with passin scope id, ready backup scopes with higher priority are read first.
+     * Default priority is 0.
+     */
+    public BackupFanInReader setPriority(final String scopeId, int priority) {
+        this.priorities.put(scopeId, priority);
+        return this;
+    }
+
+    /**
+     * Start tracking backup scopes in backup context, all backup scopes in backup context are ready at start.
+     */
+    public BackupFanInReader open() {
+        if(open)
+            return this;
+        open = true;
+        backupContext.addFanInReader(this);
+        for(BackupScope scope : backupContext.getScopes())
+            onReadable(scope);
+        logger.info("Fan-in reader opened on {}.", backupContext);
+        return this;
+    }
+
+    /**
+     * Invoked when read end of backup scope moves, or backup scope is added in backup context.
+     */
+    void onReadable(final BackupScope scope) {
+        if(!open || !queued.add(scope))
+            return;
+        readyScopes.add(new Ready(scope, priorities.getOrDefault(scope.getScopeId(), 0), readyOrder.getAndIncrement()));
+        if(waiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read a batch of contents from the first ready backup scope, without waiting.
+     * @return batch read, or null if there is no backup scope ready
+     */
+    public Batch poll() throws IOException {
+        try {
+            return poll(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Read a batch of contents from the first ready backup scope, waiting for passin timeout if there is none.
+     * @return batch read, or null if there is no backup scope ready within timeout
+     */
+    public Batch poll(long timeout, final TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(open) {
+            Ready ready = readyScopes.poll();
+            if(null == ready) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0)
+                    return null;
+                awaitReady(remaining);
+                continue;
+            }
+            BackupScope scope = ready.scope;
+            //scope is removed before read, so that read end moving during read makes it ready again
+            queued.remove(scope);
+            int quantum = quantums.getOrDefault(scope.getScopeId(), defaultQuantum);
+            List<BackupRecord> records = scope.tryReadRecords(quantum);
+            if(records.isEmpty())
+                continue;
+            if(records.size() >= quantum)
+                onReadable(scope);
+            return new Batch(scope, records);
+        }
+        return null;
+    }
+
+    private void awaitReady(long nanos) throws InterruptedException {
+        lock.lock();
+        waiters.incrementAndGet();
+        try {
+            while(open && readyScopes.isEmpty() && nanos > 0)
+                nanos = notEmpty.awaitNanos(nanos);
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return count of backup scopes ready to read
+     */
+    public int getReadyCount() {
+        return readyScopes.size();
+    }
+
+    /**
+     * Stop tracking backup scopes, consumers waiting in poll return null.
+     */
+    @Override
+    public void close() {
+        if(!open)
+            return;
+        open = false;
+        backupContext.removeFanInReader(this);
+        readyScopes.clear();
+        queued.clear();
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        logger.info("Fan-in reader closed on {}.", backupContext);
+    }
+}
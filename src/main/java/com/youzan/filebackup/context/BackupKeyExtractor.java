@@ -0,0 +1,15 @@
+package com.youzan.filebackup.context;
+
+/**
+ * Extractor of key from content written into backup scope. With key extractor in {@link BackupScopeConfig}, backup
+ * scope keeps location of the latest content of each key in {@link com.youzan.filebackup.files.BackupIndex}, and
+ * compaction drops contents overwritten by later ones of the same key.
+ */
+@FunctionalInterface
+public interface BackupKeyExtractor {
+    /**
+     * @param content   content written into backup scope
+     * @return key of content, or null if content has no key, content without key is never dropped by compaction
+     */
+    String keyOf(byte[] content);
+}
@@ -0,0 +1,15 @@
+package com.youzan.filebackup.context;
+
+import java.io.IOException;
+
+/**
+ * Thrown when write to backup scope is refused by disk quota or write rate limit, according to
+ * {@link BackupScopeConfig.QuotaPolicy}. Nothing is written when it is thrown.
+ */
+public class BackupLimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public BackupLimitExceededException(String message) {
+        super(message);
+    }
+}
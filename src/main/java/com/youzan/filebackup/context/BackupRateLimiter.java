@@ -0,0 +1,76 @@
+package com.youzan.filebackup.context;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting bytes read or written per second. Bucket refills at rate and holds at most one second of
+ * tokens, so that I/O could burst after idle. Acquire takes tokens right away and waits for the debt, so that one big
+ * content is never starved by small ones.
+ */
+class BackupRateLimiter {
+    private final long ratePerSecond;
+    private final long burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    BackupRateLimiter(long ratePerSecond) {
+        if(ratePerSecond <= 0)
+            throw new IllegalArgumentException("Rate should be positive.");
+        this.ratePerSecond = ratePerSecond;
+        this.burst = ratePerSecond;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * ratePerSecond / 1e9);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Take passin permits if there are enough tokens, without waiting. Permits more than burst are taken once bucket
+     * is full.
+     * @return true if permits are taken
+     */
+    synchronized boolean tryAcquire(long permits) {
+        refill();
+        if(tokens < Math.min(permits, burst))
+            return false;
+        tokens -= permits;
+        return true;
+    }
+
+    /**
+     * Take passin permits, waiting till tokens taken are refilled.
+     */
+    void acquire(long permits) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= permits;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / ratePerSecond) : 0;
+        }
+        if(waitNanos <= 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for rate limit.");
+        }
+    }
+
+    /**
+     * Give back passin permits taken, for I/O refused after permits are taken. Bucket holds at most burst still.
+     */
+    synchronized void release(long permits) {
+        refill();
+        tokens = Math.min(burst, tokens + permits);
+    }
+
+    long getRatePerSecond() {
+        return this.ratePerSecond;
+    }
+}
@@ -0,0 +1,342 @@
+package com.youzan.filebackup.context;
+
+import com.youzan.filebackup.IBackupReader;
+import com.youzan.filebackup.files.BackupLocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-ahead of backup scope. A background thread reads contents after read start of backup scope into a bounded
+ * buffer with its own backup reader, going through backup files like read does, so that disk read overlaps with
+ * consumer processing. Position of read-ahead is never persisted, read start of backup scope only moves when content
+ * is consumed. When consumer reads from somewhere else, after seek for example, read-ahead restarts from there.
+ * Consumer never waits for read-ahead, it reads backup file itself when content is not read ahead yet.
+ * Read-ahead thread with nothing new to read waits till backup scope tells read end moves, and backs off exponentially
+ * when read fails, logging each location read fails at once.
+ */
+class BackupReadAhead implements Runnable {
+    private final static Logger logger = LoggerFactory.getLogger(BackupReadAhead.class);
+    //max count of contents read in one batch by read-ahead thread
+    private final static int BATCH_COUNT = 256;
+    //max wait of read-ahead thread for read end to move, in case read end moves without notice
+    private final static long READABLE_WAIT_IN_MILLIS = 1000;
+    //wait of read-ahead thread after failed read, doubled on each failure in a row up to max
+    private final static long FAIL_WAIT_MIN_IN_MILLIS = 1;
+    private final static long FAIL_WAIT_MAX_IN_MILLIS = 1000;
+
+    private final BackupScope scope;
+    private final long capacityInByte;
+    private final ArrayDeque<Content> buffered = new ArrayDeque<>();
+    private long bufferedByte = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition readable = lock.newCondition();
+    //count of read end moves, read-ahead thread with nothing to read waits till it changes
+    private final AtomicLong readableCount = new AtomicLong(0);
+    //read-ahead thread is waiting for read end to move
+    private volatile boolean waitingReadable = false;
+    //location next content is read ahead from
+    private BackupLocation position;
+    //increased on each restart, so that contents read before restart are dropped
+    private long generation = 0;
+    private volatile boolean running = false;
+    private Thread thread = null;
+    //backup reader of read-ahead thread
+    private IBackupReader reader = null;
+    private long readerBackupFileIndex = -1;
+    //location the last read failed at, and wait after next failure
+    private BackupLocation failedLoc = null;
+    private long failWaitInMillis = FAIL_WAIT_MIN_IN_MILLIS;
+
+    /**
+     * Content read ahead, with its location and location of content next to it.
+     */
+    static class Content {
+        private final BackupLocation location;
+        private final BackupLocation next;
+        private final byte[] content;
+
+        Content(final BackupLocation location, final BackupLocation next, final byte[] content) {
+            this.location = location;
+            this.next = next;
+            this.content = content;
+        }
+
+        BackupLocation getNext() {
+            return this.next;
+        }
+
+        byte[] getContent() {
+            return this.content;
+        }
+    }
+
+    BackupReadAhead(final BackupScope scope, long capacityInByte) {
+        this.scope = scope;
+        this.capacityInByte = capacityInByte;
+    }
+
+    /**
+     * Start read-ahead thread from passin location.
+     */
+    void start(final BackupLocation readStartLoc) {
+        lock.lock();
+        try {
+            if(running)
+                return;
+            position = readStartLoc;
+            running = true;
+            thread = new Thread(this, "backup-read-ahead-" + scope.getScopeId());
+            thread.setDaemon(true);
+            thread.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop read-ahead thread and drop contents read ahead.
+     */
+    void stop() {
+        Thread current;
+        lock.lock();
+        try {
+            if(!running)
+                return;
+            running = false;
+            restart(null);
+            current = thread;
+            thread = null;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            current.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wake up read-ahead thread waiting for contents to read, invoked by backup scope when read end moves.
+     */
+    void onReadable() {
+        readableCount.incrementAndGet();
+        if(!waitingReadable)
+            return;
+        lock.lock();
+        try {
+            readable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * Take content at passin read start. Contents before read start are dropped, and read-ahead restarts from read start
+     * if it is not where read-ahead goes. Consumer does not wait for content being read ahead, as it holds read lock
+     * of backup scope.
+     * @param readStartLoc  read start of backup scope
+     * @return content read ahead, or null if it is not ready
+     */
+    Content poll(BackupLocation readStartLoc) {
+        if(readStartLoc.getBackupFileOffset() < BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)
+            readStartLoc = new BackupLocation(readStartLoc.getBackupFileIndex(), BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+        lock.lock();
+        try {
+            if(!running)
+                return null;
+            while(!buffered.isEmpty() && buffered.peek().location.compareTo(readStartLoc) < 0)
+                drop();
+            Content head = buffered.peek();
+            if(null != head && head.location.equals(readStartLoc)) {
+                drop();
+                return head;
+            }
+            if(null != head || !position.equals(readStartLoc))
+                restart(readStartLoc);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drop() {
+        Content content = buffered.poll();
+        bufferedByte -= content.content.length;
+        notFull.signal();
+    }
+
+    /**
+     * drop contents read ahead and restart from passin location, invoked with lock held
+     */
+    private void restart(final BackupLocation loc) {
+        buffered.clear();
+        bufferedByte = 0;
+        position = loc;
+        generation++;
+        notFull.signal();
+        readable.signal();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(running) {
+                BackupLocation loc;
+                long gen;
+                lock.lock();
+                try {
+                    while(running && bufferedByte >= capacityInByte)
+                        notFull.await();
+                    if(!running)
+                        break;
+                    loc = position;
+                    gen = generation;
+                } finally {
+                    lock.unlock();
+                }
+                List<byte[]> batch;
+                List<Long> ends = new ArrayList<>();
+                //read end moves after count is taken are waited for no more
+                long readable = readableCount.get();
+                BackupLocation readEndLoc = scope.getBackupMetaInfo().getReadEnd();
+                try {
+                    loc = positionReader(loc, readEndLoc);
+                    if(null == loc) {
+                        awaitReadable(gen, readable);
+                        continue;
+                    }
+                    long limit = readEndLoc.getBackupFileIndex() == loc.getBackupFileIndex() ? readEndLoc.getBackupFileOffset() : reader.getMaxSize();
+                    batch = reader.read(BATCH_COUNT, limit, ends);
+                } catch (IOException e) {
+                    if(!loc.equals(failedLoc)) {
+                        logger.error("Fail to read ahead {} in {}, read-ahead retries with backoff.", loc, scope, e);
+                        failedLoc = loc;
+                    }
+                    closeReader();
+                    backoff(gen);
+                    continue;
+                }
+                failedLoc = null;
+                failWaitInMillis = FAIL_WAIT_MIN_IN_MILLIS;
+                if(batch.isEmpty()) {
+                    awaitReadable(gen, readable);
+                    continue;
+                }
+                put(gen, loc, batch, ends);
+            }
+        } catch (InterruptedException e) {
+            logger.info("Read-ahead of {} interrupted.", scope);
+        } finally {
+            closeReader();
+        }
+    }
+
+    /**
+     * move reader of read-ahead thread to passin location, going to next backup file when backup file is read through
+     * @return location reader is on, or null if there is nothing to read from passin location
+     */
+    private BackupLocation positionReader(BackupLocation loc, final BackupLocation readEndLoc) throws IOException {
+        if(null != reader && readerBackupFileIndex == loc.getBackupFileIndex()
+                && loc.getBackupFileOffset() > reader.getMaxSize() && readEndLoc.getBackupFileIndex() > loc.getBackupFileIndex())
+            loc = nextBackupFile(loc);
+        if(!BackupLocation.hasOffset(loc, readEndLoc))
+            return null;
+        if(null == reader || readerBackupFileIndex != loc.getBackupFileIndex()) {
+            closeReader();
+            reader = scope.newBackupReader(scope.getBackupFilePath(loc.getBackupFileIndex()));
+            readerBackupFileIndex = loc.getBackupFileIndex();
+        }
+        long offset = Math.max(loc.getBackupFileOffset(), BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+        if(reader.position() != offset)
+            reader.seek(offset);
+        return new BackupLocation(loc.getBackupFileIndex(), offset);
+    }
+
+    private static BackupLocation nextBackupFile(final BackupLocation loc) {
+        return new BackupLocation(loc.getBackupFileIndex() + 1, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+    }
+
+    /**
+     * buffer contents read from passin location, unless read-ahead restarts in between
+     * @param ends  offset after each content read
+     */
+    private void put(long gen, final BackupLocation loc, final List<byte[]> batch, final List<Long> ends) {
+        lock.lock();
+        try {
+            if(gen != generation)
+                return;
+            long backupFileIndex = loc.getBackupFileIndex();
+            long offset = loc.getBackupFileOffset();
+            for(int i = 0; i < batch.size(); i++) {
+                byte[] content = batch.get(i);
+                long nextOffset = ends.get(i);
+                //content going beyond max size is the last one in backup file
+                BackupLocation next = nextOffset > reader.getMaxSize() ? nextBackupFile(loc) : new BackupLocation(backupFileIndex, nextOffset);
+                buffered.add(new Content(new BackupLocation(backupFileIndex, offset), next, content));
+                bufferedByte += content.length;
+                position = next;
+                offset = nextOffset;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wait till read end moves after passin count of read end moves is taken, or read-ahead restarts
+     */
+    private void awaitReadable(long gen, long readable) throws InterruptedException {
+        lock.lock();
+        try {
+            waitingReadable = true;
+            long nanos = TimeUnit.MILLISECONDS.toNanos(READABLE_WAIT_IN_MILLIS);
+            while(running && gen == generation && readableCount.get() == readable && nanos > 0)
+                nanos = this.readable.awaitNanos(nanos);
+        } finally {
+            waitingReadable = false;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wait after failed read, wait doubles with each failure in a row
+     */
+    private void backoff(long gen) throws InterruptedException {
+        lock.lock();
+        try {
+            if(running && gen == generation)
+                notFull.await(failWaitInMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+        failWaitInMillis = Math.min(failWaitInMillis * 2, FAIL_WAIT_MAX_IN_MILLIS);
+    }
+
+    private void closeReader() {
+        if(null == reader)
+            return;
+        try {
+            reader.close();
+        } catch (IOException e) {
+            logger.error("Fail to close read-ahead reader {}.", reader, e);
+        } finally {
+            reader = null;
+            readerBackupFileIndex = -1;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.youzan.filebackup.context;
+
+/**
+ * Content read from backup scope, with its sequence in backup scope.
+ */
+public class BackupRecord {
+    private final byte[] content;
+    private final long sequence;
+
+    public BackupRecord(final byte[] content, long sequence) {
+        this.content = content;
+        this.sequence = sequence;
+    }
+
+    public byte[] getContent() {
+        return this.content;
+    }
+
+    /**
+     * @return sequence of content, which is passed to {@link BackupScope#ack(long)} once content is processed
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public String toString() {
+        return "Sequence: " + sequence + ", Length: " + content.length;
+    }
+}
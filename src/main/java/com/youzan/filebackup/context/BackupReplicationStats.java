@@ -0,0 +1,76 @@
+package com.youzan.filebackup.context;
+
+/**
+ * Snapshot of replication of one backup scope, taken with {@link BackupScope#getReplicationStats()}.
+ */
+public class BackupReplicationStats {
+    private final String scopeId;
+    private final long timestamp;
+    private final long replicatedByte;
+    private final long lagByte;
+    private final long lagInMillis;
+    private final long lastReplicationTimestamp;
+    private final long failureCount;
+
+    BackupReplicationStats(String scopeId, long timestamp, long replicatedByte, long lagByte, long lagInMillis,
+                           long lastReplicationTimestamp, long failureCount) {
+        this.scopeId = scopeId;
+        this.timestamp = timestamp;
+        this.replicatedByte = replicatedByte;
+        this.lagByte = lagByte;
+        this.lagInMillis = lagInMillis;
+        this.lastReplicationTimestamp = lastReplicationTimestamp;
+        this.failureCount = failureCount;
+    }
+
+    public String getScopeId() {
+        return this.scopeId;
+    }
+
+    /**
+     * @return time stats are taken at
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return bytes of backup files sent to replica since backup scope initialized
+     */
+    public long getReplicatedByte() {
+        return this.replicatedByte;
+    }
+
+    /**
+     * @return bytes written into backup files and to be replicated, which are not in replica yet
+     */
+    public long getLagByte() {
+        return this.lagByte;
+    }
+
+    /**
+     * @return time since contents written are all in replica, 0 if there is no lag
+     */
+    public long getLagInMillis() {
+        return this.lagInMillis;
+    }
+
+    /**
+     * @return time last replication completes at, -1 if there is none yet
+     */
+    public long getLastReplicationTimestamp() {
+        return this.lastReplicationTimestamp;
+    }
+
+    /**
+     * @return count of failed replications since backup scope initialized
+     */
+    public long getFailureCount() {
+        return this.failureCount;
+    }
+
+    public String toString() {
+        return "replication of " + scopeId + ", replicated: " + replicatedByte + "B, lag: " + lagByte + "B/" + lagInMillis
+                + "ms, failures: " + failureCount;
+    }
+}
@@ -0,0 +1,225 @@
+package com.youzan.filebackup.context;
+
+import com.youzan.filebackup.files.BackupLocation;
+import com.youzan.filebackup.files.BackupSegments;
+import com.youzan.filebackup.replica.BackupReplicaTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous replication of one backup scope through {@link BackupReplicaTransport}. Each round copies bytes of
+ * backup files written since last round, up to read end so that writes in flight are not copied, then replaces meta
+ * data files in replica with checkpoint taken before the round, which refers to bytes copied only. Backup files
+ * compacted since they are copied are copied again as a whole, as compaction generation in segment info changes.
+ * Backup files deleted by retention are deleted from replica one round later, after checkpoint in replica no longer
+ * refers to them.
+ * When active backup file is not replicated, backup file is copied once it is sealed, and checkpoint is the one
+ * committed at rollover.
+ * Background replications of all backup scopes run on one shared daemon thread, like retention checks do.
+ */
+class BackupReplicator {
+    private final static Logger logger = LoggerFactory.getLogger(BackupReplicator.class);
+    private final static ScheduledExecutorService replicationExec = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "backup-replication");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BackupScope scope;
+    private final BackupReplicaTransport transport;
+    private final boolean replicateActive;
+    //bytes of each backup file in replica, size in replica is looked up once for backup file not known yet
+    private final ConcurrentHashMap<Long, Copy> replicated = new ConcurrentHashMap<>();
+    //backup files deleted in current scope, to delete from replica after checkpoint taken after time in value
+    private final Map<Long, Long> pendingDeletes = new HashMap<>();
+    //content of meta data files last replaced in replica, file of the same content in later checkpoint is skipped
+    private final Map<String, ByteBuffer> replaced = new HashMap<>();
+    //checkpoint committed at last rollover, when active backup file is not replicated
+    private volatile Checkpoint sealedCheckpoint = null;
+    private final AtomicLong replicatedByte = new AtomicLong(0);
+    private final AtomicLong failureCount = new AtomicLong(0);
+    //contents written before it are all in replica
+    private volatile long caughtUpMillis = System.currentTimeMillis();
+    private volatile long lastReplicationMillis = -1;
+
+    /**
+     * content of meta data files, with time it is taken at
+     */
+    static class Checkpoint {
+        private final long timestamp;
+        private final Map<String, ByteBuffer> files;
+
+        Checkpoint(long timestamp, final Map<String, ByteBuffer> files) {
+            this.timestamp = timestamp;
+            this.files = files;
+        }
+    }
+
+    /**
+     * bytes of one backup file in replica, with compaction generation of backup file they are copied from
+     */
+    private static class Copy {
+        private final long end;
+        private final long compactionGeneration;
+
+        Copy(long end, long compactionGeneration) {
+            this.end = end;
+            this.compactionGeneration = compactionGeneration;
+        }
+    }
+
+    BackupReplicator(final BackupScope scope, final BackupReplicaTransport transport, boolean replicateActive) {
+        this.scope = scope;
+        this.transport = transport;
+        this.replicateActive = replicateActive;
+    }
+
+    /**
+     * Schedule replication of passin backup scope.
+     * @param scope backup scope
+     * @param intervalInMillis  interval between two replications
+     * @return future to cancel replication
+     */
+    static ScheduledFuture<?> schedule(final BackupScope scope, long intervalInMillis) {
+        return replicationExec.scheduleWithFixedDelay(() -> {
+            try {
+                scope.replicate();
+            } catch (Throwable e) {
+                logger.error("Fail to replicate backup scope {}.", scope, e);
+            }
+        }, intervalInMillis, intervalInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isReplicateActive() {
+        return this.replicateActive;
+    }
+
+    /**
+     * Invoked with checkpoint committed when write goes to next backup file.
+     */
+    void onRollover(final Checkpoint checkpoint) {
+        if(null != checkpoint)
+            this.sealedCheckpoint = checkpoint;
+    }
+
+    /**
+     * @return end of bytes to copy of backup file of passin segment info, 0 if none of it is to copy
+     */
+    private static long replicableEnd(final BackupSegments.SegmentInfo info, final BackupLocation readEnd,
+                                      long writeBackupFileIndex, boolean active) {
+        long backupFileIndex = info.getBackupFileIndex();
+        if(backupFileIndex > readEnd.getBackupFileIndex() || (!active && backupFileIndex >= writeBackupFileIndex))
+            return 0;
+        if(backupFileIndex == readEnd.getBackupFileIndex())
+            return Math.min(info.getEndOffset(), readEnd.getBackupFileOffset() + 1);
+        return info.getEndOffset();
+    }
+
+    /**
+     * Run one round of replication.
+     * @param checkpoint    checkpoint taken before segments info and read end, null if there is none
+     * @param segments  segment info of backup files
+     * @param readEnd   read end of backup scope
+     * @param writeBackupFileIndex  index of backup file writer is on
+     * @param all   true to copy active backup file and replace checkpoint, even if active backup file is not replicated,
+     *              as it is when write is closed
+     * @return count of backup files copied
+     */
+    synchronized int replicate(final Checkpoint checkpoint, final List<BackupSegments.SegmentInfo> segments,
+                               final BackupLocation readEnd, long writeBackupFileIndex, boolean all) throws IOException {
+        String scopeId = scope.getScopeId();
+        long start = System.currentTimeMillis();
+        try {
+            int copied = 0;
+            Map<Long, BackupSegments.SegmentInfo> live = new HashMap<>();
+            for(BackupSegments.SegmentInfo info : segments) {
+                long backupFileIndex = info.getBackupFileIndex();
+                live.put(backupFileIndex, info);
+                long end = replicableEnd(info, readEnd, writeBackupFileIndex, replicateActive || all);
+                if(end <= 0)
+                    continue;
+                String fileName = scope.getBackupFilePath(backupFileIndex).getFileName().toString();
+                Copy copy = replicated.get(backupFileIndex);
+                long done = null == copy ? transport.size(scopeId, fileName) : copy.end;
+                //compacted since it is copied, backup file in replica copied before restart may be either one
+                boolean rewritten = null == copy ? info.getCompactionGeneration() > 0 && done > 0
+                        : copy.compactionGeneration != info.getCompactionGeneration();
+                if(rewritten || end < done) {
+                    transport.delete(scopeId, fileName);
+                    done = 0L;
+                }
+                if(end > done) {
+                    try(FileChannel source = FileChannel.open(scope.getBackupFilePath(backupFileIndex), StandardOpenOption.READ)) {
+                        transport.transfer(scopeId, fileName, source, done, end - done);
+                    }
+                    replicatedByte.addAndGet(end - done);
+                    copied++;
+                }
+                replicated.put(backupFileIndex, new Copy(end, info.getCompactionGeneration()));
+            }
+            Checkpoint replicating = replicateActive || all ? checkpoint : sealedCheckpoint;
+            if(null != replicating) {
+                for(Map.Entry<String, ByteBuffer> file : replicating.files.entrySet()) {
+                    if(replaced.get(file.getKey()) == file.getValue())
+                        continue;
+                    transport.replace(scopeId, file.getKey(), file.getValue().duplicate());
+                    replaced.put(file.getKey(), file.getValue());
+                }
+                //checkpoint replicated no longer refers to backup files deleted before it is taken
+                for(Iterator<Map.Entry<Long, Long>> it = pendingDeletes.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<Long, Long> pending = it.next();
+                    if(pending.getValue() < replicating.timestamp) {
+                        transport.delete(scopeId, scope.getBackupFilePath(pending.getKey()).getFileName().toString());
+                        it.remove();
+                    }
+                }
+                caughtUpMillis = replicating.timestamp;
+            }
+            for(Iterator<Long> it = replicated.keySet().iterator(); it.hasNext(); ) {
+                long backupFileIndex = it.next();
+                if(!live.containsKey(backupFileIndex)) {
+                    pendingDeletes.put(backupFileIndex, start);
+                    it.remove();
+                }
+            }
+            lastReplicationMillis = System.currentTimeMillis();
+            return copied;
+        } catch (IOException e) {
+            failureCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return stats of replication, with lag summed up from passin segment info and read end, active backup file
+     * included whether it is replicated or not
+     */
+    BackupReplicationStats getStats(final List<BackupSegments.SegmentInfo> segments, final BackupLocation readEnd,
+                                    long writeBackupFileIndex) {
+        long lagByte = 0;
+        for(BackupSegments.SegmentInfo info : segments) {
+            long end = replicableEnd(info, readEnd, writeBackupFileIndex, true);
+            Copy copy = replicated.get(info.getBackupFileIndex());
+            if(end > 0)
+                lagByte += null == copy || copy.compactionGeneration != info.getCompactionGeneration() ? end : Math.max(0, end - copy.end);
+        }
+        long now = System.currentTimeMillis();
+        return new BackupReplicationStats(scope.getScopeId(), now, replicatedByte.get(), lagByte,
+                lagByte == 0 ? 0 : Math.max(0, now - caughtUpMillis), lastReplicationMillis, failureCount.get());
+    }
+}
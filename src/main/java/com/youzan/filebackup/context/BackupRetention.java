@@ -0,0 +1,40 @@
+package com.youzan.filebackup.context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background retention of backup scopes. Retention checks of all backup scopes run on one shared daemon thread, each
+ * check deletes whole backup files according to segments info of backup scope, contents are never read.
+ */
+class BackupRetention {
+    private final static Logger logger = LoggerFactory.getLogger(BackupRetention.class);
+    private final static ScheduledExecutorService retentionExec = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "backup-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Schedule retention check of passin backup scope.
+     * @param scope backup scope
+     * @param intervalInMillis  interval between two retention checks
+     * @return future to cancel retention check
+     */
+    static ScheduledFuture<?> schedule(final BackupScope scope, long intervalInMillis) {
+        return retentionExec.scheduleWithFixedDelay(() -> {
+            try {
+                int count = scope.applyRetention();
+                if(count > 0)
+                    logger.info("{} backup files deleted by retention in {}.", count, scope);
+            } catch (Throwable e) {
+                logger.error("Fail to apply retention on backup scope {}.", scope, e);
+            }
+        }, intervalInMillis, intervalInMillis, TimeUnit.MILLISECONDS);
+    }
+}
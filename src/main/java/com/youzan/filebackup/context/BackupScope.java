@@ -1,36 +1,80 @@
 package com.youzan.filebackup.context;
 
+import com.youzan.filebackup.IAsyncBackupWriter;
+import com.youzan.filebackup.IBackupReader;
+import com.youzan.filebackup.IBackupWriter;
+import com.youzan.filebackup.codec.Codec;
+import com.youzan.filebackup.files.AsyncBackupWriter;
+import com.youzan.filebackup.files.BackupArchive;
+import com.youzan.filebackup.files.BackupBloomFilter;
+import com.youzan.filebackup.files.BackupCipher;
+import com.youzan.filebackup.files.BackupFileHeader;
 import com.youzan.filebackup.files.BackupIndex;
+import com.youzan.filebackup.files.BackupLease;
 import com.youzan.filebackup.files.BackupLocation;
 import com.youzan.filebackup.files.BackupMeta;
+import com.youzan.filebackup.files.BackupSegments;
+import com.youzan.filebackup.files.BackupSparseIndex;
+import com.youzan.filebackup.files.EncryptedBackupReader;
+import com.youzan.filebackup.files.EncryptedBackupWriter;
+import com.youzan.filebackup.files.FileChannelBackupReader;
+import com.youzan.filebackup.files.FileChannelBackupWriter;
+import com.youzan.filebackup.files.MappedBackupReader;
+import com.youzan.filebackup.files.MappedBackupWriter;
+import com.youzan.filebackup.replica.BackupReplicaTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by lin on 17/4/7.
  */
-public class BackupScope {
+public class BackupScope implements AutoCloseable {
     private final static Logger logger = LoggerFactory.getLogger(BackupScope.class);
-    private final static String SCOPE_FOLDER_FORMAT = "backup_scope_%s";
-    private final static String SCOPE_INDEX_FILE_NAME = "scope.idx";
-    private final static String SCOPE_META_FILE_NAME = "scope.meta";
-    private final static String SCOPE_BACKUP_FILE_NAME = "scope.backup_%d";
+    final static String SCOPE_FOLDER_PREFIX = "backup_scope_";
+    private final static String SCOPE_FOLDER_FORMAT = SCOPE_FOLDER_PREFIX + "%s";
+    final static String SCOPE_INDEX_FILE_NAME = "scope.idx";
+    final static String SCOPE_META_FILE_NAME = "scope.meta";
+    private final static String SCOPE_LOCK_FILE_NAME = "scope.lock";
+    final static String SCOPE_SEGMENTS_FILE_NAME = "scope.segments";
+    final static String SCOPE_STRIPES_FILE_NAME = "scope.stripes";
+    private final static String SCOPE_STRIPE_FOLDER_FORMAT = "stripe_%s";
+    final static String SCOPE_BACKUP_FILE_NAME = "scope.backup_%d";
+    private final static String SCOPE_SPARSE_INDEX_SUFFIX = ".sidx";
+    final static String SCOPE_SPARSE_INDEX_FILE_NAME = SCOPE_BACKUP_FILE_NAME + SCOPE_SPARSE_INDEX_SUFFIX;
+    private final static String SCOPE_BLOOM_FILTER_FILE_NAME = SCOPE_BACKUP_FILE_NAME + ".bloom";
+    //max wait of blocked write between two checks of disk quota
+    private final static long QUOTA_CHECK_INTERVAL_IN_MILLIS = 10;
 
-    //TODO resources need shutdown
-    private final ExecutorService writeExec = Executors.newSingleThreadExecutor();
+    //executor of writeAsync, created on first use and shut down when write closes
+    private ExecutorService writeExec = null;
+    private final Object syncWriteExec = new Object();
 
     private final Path parent;
     //initialize with default backup scope config
@@ -41,27 +85,123 @@ public class BackupScope {
     private BackupContext backupContext = null;
     private BackupIndex index;
     private BackupMeta metaData;
+    private BackupSegments segments;
+    //folders which backup files go round-robin across, scope folder first, null if backup files are in scope folder
+    private List<Path> stripes = null;
+    //ownership of scope folder, taken in init and retained by open read/write
+    private BackupLease lease;
+    //cache of recently written contents, null if cache is disabled
+    private BackupTailCache tailCache = null;
+    //read-ahead of contents after read start, null if read-ahead is disabled
+    private BackupReadAhead readAhead = null;
+    //background retention check, null if retention is disabled
+    private ScheduledFuture<?> retentionFuture = null;
+    //background compaction, null if compaction is disabled
+    private ScheduledFuture<?> compactionFuture = null;
+    //replication of backup files and meta data checkpoints, null if replication is disabled
+    private BackupReplicator replicator = null;
+    //background replication, null if replication is disabled
+    private ScheduledFuture<?> replicationFuture = null;
+    //meta data files are committed and taken into checkpoint under it
+    private final Object syncMetaCommit = new Object();
+    //content of scope index file in last checkpoint, with commit count of scope index it is taken at
+    private ByteBuffer checkpointIndex = null;
+    private long checkpointIndexCommitCount = -1;
+    //one compaction at a time in current scope
+    private final Object syncCompaction = new Object();
+    //bloom filters of keys in sealed backup files, loaded on first key lookup
+    private final ConcurrentHashMap<Long, BackupBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    //bandwidth of current scope, null if there is no limit
+    private BackupRateLimiter writeLimiter = null;
+    private BackupRateLimiter readLimiter = null;
+    //total size of backup files in current scope, writes blocked by disk quota wait on monitor of it
+    private final AtomicLong diskUsageInByte = new AtomicLong(0);
     private final AtomicInteger state = new AtomicInteger(Status.READY.ordinal());
+    //append timestamp of the oldest content not read, taken by last stats, kept till read moves
+    private volatile OldestUnread oldestUnread = null;
 
     private volatile boolean read = false;
-    private ReentrantReadWriteLock readChannelLock = new ReentrantReadWriteLock();
     private final Object syncReadChannel = new Object();
-    private FileChannel readFileChannel = null;
-    private long readFileMaxSize;
-    private FileLock readLock;
+    private IBackupReader reader = null;
+    //index of backup file reader opens
+    private long readBackupFileIndex = -1;
+    //sequences by offset in compacted backup file with the index, null if sequences in it are consecutive
+    private long sequencesBackupFileIndex = -1;
+    private NavigableMap<Long, Long> compactedSequences = null;
+    //contents acknowledged since last commit of meta data file
+    private final AtomicLong ackedSinceCommit = new AtomicLong(0);
 
     private volatile boolean write = false;
-    private ReentrantReadWriteLock writeChannelLock = new ReentrantReadWriteLock();
     private final Object syncWriteChannel = new Object();
-    private FileChannel writeFileChannel = null;
-    private long writeFileMaxSize;
-    private FileLock writeLock;
+    private IBackupWriter writer = null;
+    //sparse index of backup file writer opens
+    private BackupSparseIndex sparseIndex = null;
+    //key hashes of backup file writer opens, null if backup file is not written from its head in current session
+    private BackupBloomFilter.Builder bloomBuilder = null;
+    //bytes written since last flush of writer
+    private long unflushedByte = 0;
+    //sizer of new backup files, null if adaptive segment size is off
+    private BackupSegmentSizer segmentSizer = null;
+    //time and offset writer opens backup file at, to measure write rate on rollover
+    private long writerOpenMillis;
+    private long writerOpenOffset;
+    //index of data directory of backup file writer opens in backup context, -1 if it is not on data directory
+    private int writeDataDirIndex = -1;
+    //writes not completed yet in ASYNC mode, in order of write location. Read end moves after completed writes only
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    //asynchronous write failed, read end stays in front of it, and write is closed before next write goes past it
+    private volatile boolean writeFailed = false;
+
+    /**
+     * write issued and not completed, with location of its last byte
+     */
+    private static class PendingWrite {
+        private final BackupLocation end;
+        private boolean completed = false;
+        //write failed, or issued after failed one, read end never moves over it
+        private boolean failed = false;
+        //keys of contents in write, indexed once read end moves over write
+        private List<KeyedContent> keyed = null;
+
+        PendingWrite(final BackupLocation end) {
+            this.end = end;
+        }
+    }
+
+    /**
+     * content with key, at its location in backup file
+     */
+    private static class KeyedContent {
+        private final String key;
+        private final BackupLocation loc;
+        private final long length;
+
+        KeyedContent(final String key, final BackupLocation loc, long length) {
+            this.key = key;
+            this.loc = loc;
+            this.length = length;
+        }
+    }
+
+    /**
+     * append timestamp of content with sequence at read start
+     */
+    private static class OldestUnread {
+        private final long readSequence;
+        private final long timestamp;
+
+        OldestUnread(long readSequence, long timestamp) {
+            this.readSequence = readSequence;
+            this.timestamp = timestamp;
+        }
+    }
 
     enum Status {
         READY,
         IN_INIT,
         INIT,
         INVALID,
+        CLOSED,
     }
 
     BackupScope(Path parent) {
@@ -89,13 +229,17 @@ public class BackupScope {
        this.config = config;
     }
 
-    void setBackupContext(final BackupContext backupcxt) {
+    /**
+     * @return false if backup context has another backup scope of the same scope id, current scope is not added into
+     * backup context then
+     */
+    boolean setBackupContext(final BackupContext backupcxt) {
         if(null != this.backupContext)
             throw new IllegalStateException("Backup context already existed in current back up scope.");
         if(null == backupcxt)
             throw new IllegalArgumentException("Backup context could not be null.");
         this.backupContext = backupcxt;
-        backupcxt.addScope(this);
+        return backupcxt.addScope(this);
     }
 
     public Path getParent() {
@@ -124,6 +268,24 @@ public class BackupScope {
                 .resolve(SCOPE_META_FILE_NAME);
     }
 
+    /**
+     * return lock file path of current backup scope
+     * @return lock file path
+     */
+    public Path getLockPath() {
+        return this.parent.resolve(this.scopeId)
+                .resolve(SCOPE_LOCK_FILE_NAME);
+    }
+
+    /**
+     * return segments file path of current backup scope
+     * @return segments file path
+     */
+    public Path getSegmentsPath() {
+        return this.parent.resolve(this.scopeId)
+                .resolve(SCOPE_SEGMENTS_FILE_NAME);
+    }
+
     public String toString(){
         return this.scopeId + "@" + this.parent;
     }
@@ -149,17 +311,241 @@ public class BackupScope {
                 logger.error("Could not initialize scope directory {}.", parent, e);
             }
         }
+        lease = new BackupLease(this);
+        try {
+            if(!lease.lock()) {
+                logger.error("Backup scope {} is owned by others.", this);
+                state.set(Status.INVALID.ordinal());
+                return;
+            }
+        } catch (IOException e) {
+            logger.error("Could not take lease on backup scope {}.", this, e);
+            state.set(Status.INVALID.ordinal());
+            return;
+        }
+        try {
+            loadStripes(!Files.exists(getMetaPath()));
+        } catch (IOException e) {
+            logger.error("Could not load stripes of backup scope {}.", this, e);
+            lease.unlock();
+            state.set(Status.INVALID.ordinal());
+            return;
+        }
         index = new BackupIndex(this);
         metaData = new BackupMeta(this);
+        metaData.setAutoAck(this.config.isAutoAck());
+        segments = new BackupSegments(this);
+        recoverCompaction();
+        if(this.config.getTailCacheSizeInByte() > 0)
+            tailCache = new BackupTailCache(this.config.getTailCacheSizeInByte());
+        if(this.config.getReadAheadSizeInByte() > 0)
+            readAhead = new BackupReadAhead(this, this.config.getReadAheadSizeInByte());
+        if(this.config.isAdaptiveSegmentSize())
+            segmentSizer = new BackupSegmentSizer(this.config);
+        if(this.config.getWriteRateInBytePerSecond() > 0)
+            writeLimiter = new BackupRateLimiter(this.config.getWriteRateInBytePerSecond());
+        if(this.config.getReadRateInBytePerSecond() > 0)
+            readLimiter = new BackupRateLimiter(this.config.getReadRateInBytePerSecond());
+        long diskUsage = 0;
+        for(BackupSegments.SegmentInfo info : segments.getSegments())
+            diskUsage += info.getEndOffset();
+        addDiskUsage(diskUsage);
         state.compareAndSet(Status.IN_INIT.ordinal(), Status.INIT.ordinal());
+        if(this.config.isRetentionEnabled())
+            retentionFuture = BackupRetention.schedule(this, this.config.getRetentionCheckIntervalInMillis());
+        if(this.config.isCompactionEnabled())
+            compactionFuture = BackupCompaction.schedule(this, this.config.getCompactionIntervalInMillis());
+        if(null != this.config.getReplicaTransport()) {
+            replicator = new BackupReplicator(this, this.config.getReplicaTransport(), this.config.isReplicateActiveSegment());
+            if(this.config.getReplicationIntervalInMillis() > 0)
+                replicationFuture = BackupReplicator.schedule(this, this.config.getReplicationIntervalInMillis());
+        }
         logger.info("BackupScope {} initialized.", this);
     }
 
+    /**
+     * Initialize current backup scope, and fail if it is not valid for read/write afterwards, as when scope folder is
+     * owned by others or scope is closed.
+     */
+    public void start() throws IOException {
+        init();
+        if(!isInit())
+            throw new AccessDeniedException("Fail to start backup scope " + this + " in status " + Status.values()[state.get()]);
+    }
+
+    /**
+     * @return true if current scope is initialized and valid for read/write
+     */
+    boolean isInit() {
+        return state.get() == Status.INIT.ordinal();
+    }
+
     private boolean isScopeExist(final Path scopePath) {
         //check if there is same scope id in parent folder
         return Files.exists(this.parent.resolve(scopeId));
     }
 
+    /**
+     * return stripes file path of current backup scope
+     * @return stripes file path
+     */
+    public Path getStripesPath() {
+        return this.parent.resolve(this.scopeId)
+                .resolve(SCOPE_STRIPES_FILE_NAME);
+    }
+
+    /**
+     * @return folder of backup file with passin index, and of its sparse index and bloom filter
+     */
+    private Path getSegmentFolder(long backupFileIndex) {
+        if(null == stripes)
+            return this.parent.resolve(this.scopeId);
+        return stripes.get((int) (backupFileIndex % stripes.size()));
+    }
+
+    /**
+     * Load folders backup files are striped across. New backup scope in backup context with segment striping stripes
+     * across all data directories, starting from the one it is placed on, and keeps stripe folders in stripes file so
+     * that they do not move with config of data directories.
+     * @param fresh true if backup scope has no meta data file yet
+     */
+    private void loadStripes(boolean fresh) throws IOException {
+        Path stripesPath = getStripesPath();
+        if(Files.exists(stripesPath)) {
+            List<Path> folders = new ArrayList<>();
+            for(String line : Files.readAllLines(stripesPath, StandardCharsets.UTF_8)) {
+                if(!line.isEmpty())
+                    folders.add(Paths.get(line));
+            }
+            stripes = folders;
+        } else if(fresh && null != this.backupContext && this.backupContext.getConfig().isSegmentStriping()) {
+            List<Path> dataDirs = this.backupContext.getDataDirs();
+            int home = this.backupContext.indexOfDataDir(this.parent);
+            if(home < 0 || dataDirs.size() < 2)
+                return;
+            List<Path> folders = new ArrayList<>();
+            folders.add(this.parent.resolve(this.scopeId).toAbsolutePath());
+            List<String> lines = new ArrayList<>();
+            lines.add(folders.get(0).toString());
+            for(int i = 1; i < dataDirs.size(); i++) {
+                Path folder = dataDirs.get((home + i) % dataDirs.size()).resolve(String.format(SCOPE_STRIPE_FOLDER_FORMAT, this.scopeId));
+                folders.add(folder);
+                lines.add(folder.toString());
+            }
+            Files.write(stripesPath, lines, StandardCharsets.UTF_8);
+            stripes = folders;
+        }
+        if(null != stripes) {
+            for(Path folder : stripes)
+                Files.createDirectories(folder);
+            logger.info("Backup files of {} striped across {}.", this, stripes);
+        }
+    }
+
+    /**
+     * return path of backup file with passin index in current backup scope
+     * @param backupFileIndex   index of backup file
+     * @return  backup file path
+     */
+    public Path getBackupFilePath(long backupFileIndex) {
+        return getSegmentFolder(backupFileIndex)
+                .resolve(String.format(SCOPE_BACKUP_FILE_NAME, backupFileIndex));
+    }
+
+    /**
+     * return path of bloom filter file of backup file with passin index in current backup scope
+     * @param backupFileIndex   index of backup file
+     * @return  bloom filter file path
+     */
+    public Path getBloomFilterPath(long backupFileIndex) {
+        return getSegmentFolder(backupFileIndex)
+                .resolve(String.format(SCOPE_BLOOM_FILTER_FILE_NAME, backupFileIndex));
+    }
+
+    /**
+     * return path of sparse index file of backup file with passin index in current backup scope
+     * @param backupFileIndex   index of backup file
+     * @return  sparse index file path
+     */
+    public Path getSparseIndexPath(long backupFileIndex) {
+        return getSegmentFolder(backupFileIndex)
+                .resolve(String.format(SCOPE_SPARSE_INDEX_FILE_NAME, backupFileIndex));
+    }
+
+    private IBackupWriter newBackupWriter(final Path backupFilePath) throws IOException {
+        long maxSize = null != segmentSizer ? segmentSizer.nextSize() : this.config.getBackupFileMaxByte();
+        BackupFileHeader header = new BackupFileHeader(maxSize, headerFlags());
+        IBackupWriter writer;
+        switch (this.config.getIOMode()) {
+            case MEMORY_MAPPED:
+                writer = new MappedBackupWriter(backupFilePath, header, this.config.getMappedPreallocateSizeInByte());
+                break;
+            case ASYNC:
+                writer = new AsyncBackupWriter(backupFilePath, header, null == this.backupContext ? null : this.backupContext.getCompletionExecutor(),
+                        this.config.getChannelFactory());
+                break;
+            case FILE_CHANNEL:
+            default:
+                writer = new FileChannelBackupWriter(backupFilePath, header, (int) this.config.getBackupContentBufferSizeInByte(),
+                        this.config.getChannelFactory());
+        }
+        return encrypted(writer);
+    }
+
+    /**
+     * @return flags in head of backup file created with current config
+     */
+    private int headerFlags() {
+        return (this.config.isRecordTimestamp() ? BackupFileHeader.FLAG_RECORD_TIMESTAMP : 0)
+                | (this.config.isEncryption() ? BackupFileHeader.FLAG_ENCRYPTED : 0);
+    }
+
+    IBackupReader newBackupReader(final Path backupFilePath) throws IOException {
+        switch (this.config.getIOMode()) {
+            case MEMORY_MAPPED:
+                return decrypted(new MappedBackupReader(backupFilePath), backupFilePath);
+            case FILE_CHANNEL:
+            default:
+                return newScanReader(backupFilePath);
+        }
+    }
+
+    /**
+     * @return reader of backup file for scan in background, which reads with FileChannel whatever I/O mode is
+     */
+    IBackupReader newScanReader(final Path backupFilePath) throws IOException {
+        return decrypted(new FileChannelBackupReader(backupFilePath, (int) this.config.getBackupContentBufferSizeInByte()), backupFilePath);
+    }
+
+    /**
+     * Wrap passin writer with encryption, if head of backup file it opens has encrypted flag. Existing backup file
+     * keeps its record format, whatever encryption setting is.
+     */
+    IBackupWriter encrypted(final IBackupWriter writer) throws IOException {
+        if(!writer.getHeader().isEncrypted())
+            return writer;
+        if(!this.config.isEncryption()) {
+            writer.close();
+            throw new IOException("Backup file of " + this + " is encrypted, and there is no encryption key in config.");
+        }
+        return new EncryptedBackupWriter(writer, this.config.getCipher());
+    }
+
+    /**
+     * Wrap passin reader with decryption, if head of backup file it opens has encrypted flag. Decryption seeks to
+     * block heads with sparse index of backup file.
+     */
+    private IBackupReader decrypted(final IBackupReader reader, final Path backupFilePath) throws IOException {
+        if(!reader.getHeader().isEncrypted())
+            return reader;
+        if(!this.config.isEncryption()) {
+            reader.close();
+            throw new IOException("Backup file of " + this + " is encrypted, and there is no encryption key in config.");
+        }
+        return new EncryptedBackupReader(reader, this.config.getCipher(),
+                backupFilePath.resolveSibling(backupFilePath.getFileName() + SCOPE_SPARSE_INDEX_SUFFIX));
+    }
+
     /**
      * Open current backup scope for I/O. open operation open channel to target backup file, according to read/write
      * start in meta-data file.
@@ -170,67 +556,79 @@ public class BackupScope {
         if(this.write)
             return true;
         synchronized(syncWriteChannel) {
-            //for write
-            BackupLocation writeStartBackupFileLoc = metaData.getWriteStart();
-            Path writeBackupFilePath = this.parent.resolve(this.scopeId).resolve(String.format(SCOPE_BACKUP_FILE_NAME, writeStartBackupFileLoc.getBackupFileIndex()));
-            boolean shouldRecordMaxSize = false;
-            if (Files.exists(writeBackupFilePath))
-                shouldRecordMaxSize = true;
-
+            if(this.write)
+                return true;
+            retainLease();
             try {
-                writeFileChannel = FileChannel.open(writeBackupFilePath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-                long position = writeFileChannel.position();
-                if (shouldRecordMaxSize) {
-                    logger.info("Record current position {} in existing backup file for writing.", position);
-                    writeFileChannel.position(0);
-                    ByteBuffer maxSizeBuf = ByteBuffer.allocateDirect(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
-                    writeFileChannel.read(maxSizeBuf);
-                    maxSizeBuf.flip();
-                    this.writeFileMaxSize = maxSizeBuf.getLong();
-                    maxSizeBuf.clear();
-                    writeFileChannel.position(position);
-                    logger.info("Current backup file max size, for write {}", this.writeFileMaxSize);
-                } else {
-                    //write max size in config into new created backup file
-                    ByteBuffer maxSizeBuf = ByteBuffer.allocateDirect(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
-                    maxSizeBuf.putLong(this.config.getBackupFileMaxByte());
-                    maxSizeBuf.flip();
-                    writeFileChannel.write(maxSizeBuf);
-                    this.writeFileMaxSize = this.config.getBackupFileMaxByte();
-                    maxSizeBuf.clear();
-                    updateEnd(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
-                    logger.info("Write max backup file size {} into newly created file.", this.config.getBackupFileMaxByte());
-                }
+                openBackupWriter();
             } catch (IOException e) {
-                logger.error("Fail to open write backup file {}.", writeBackupFilePath, e);
-                state.set(Status.INVALID.ordinal());
+                lease.release();
                 throw e;
             }
-
-            updateWriteLock();
-            logger.info("Backup file {} open for write.", writeBackupFilePath);
             //update status
             this.write = true;
             return this.write;
         }
     }
 
-    private void updateWriteLock() throws IOException {
+    /**
+     * open backup writer on backup file of write start, write position is moved after head of backup file for newly
+     * created backup file.
+     */
+    private void openBackupWriter() throws IOException {
         BackupLocation writeStartBackupFileLoc = metaData.getWriteStart();
-        Path writeBackupFilePath = this.parent.resolve(this.scopeId).resolve(String.format(SCOPE_BACKUP_FILE_NAME, writeStartBackupFileLoc.getBackupFileIndex()));
+        Path writeBackupFilePath = getBackupFilePath(writeStartBackupFileLoc.getBackupFileIndex());
         try {
-            writeChannelLock.writeLock().lock();
-            if(null != writeLock && writeLock.isValid()) {
-                writeLock.release();
-//                logger.info("Write lock released for {}", writeBackupFilePath);
+            writer = newBackupWriter(writeBackupFilePath);
+            sparseIndex = new BackupSparseIndex(getSparseIndexPath(writeStartBackupFileLoc.getBackupFileIndex()),
+                    this.config.getSparseIndexIntervalInByte(), this.config.getSparseIndexIntervalInContent());
+            long position = Math.max(writeStartBackupFileLoc.getBackupFileOffset(), BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+            writer.seek(position);
+            if(position != writeStartBackupFileLoc.getBackupFileOffset()) {
+                metaData.setWriteStart(new BackupLocation(writeStartBackupFileLoc.getBackupFileIndex(), position));
+                //head of new backup file
+                addDiskUsage(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
             }
-            long writeBackupFileOffset = writeStartBackupFileLoc.getBackupFileOffset();
-            if ((writeLock = writeFileChannel.tryLock(writeBackupFileOffset, Long.MAX_VALUE - writeBackupFileOffset, false)) == null) {
-                state.set(Status.INVALID.ordinal());
-                throw new AccessDeniedException("Fail to acquire write lock on backup file " + writeBackupFilePath);
+            //keys written before are not known, bloom filter is built from backup file once it is looked up
+            bloomBuilder = null != this.config.getKeyExtractor() && writeStartBackupFileLoc.getBackupFileOffset() <= BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE
+                    ? new BackupBloomFilter.Builder() : null;
+            writerOpenMillis = System.currentTimeMillis();
+            writerOpenOffset = position;
+            writeDataDirIndex = null == this.backupContext ? -1
+                    : this.backupContext.indexOfDataDir(getSegmentFolder(writeStartBackupFileLoc.getBackupFileIndex()).getParent());
+            logger.info("Current backup file max size, for write {}", writer.getMaxSize());
+        } catch (IOException e) {
+            logger.error("Fail to open write backup file {}.", writeBackupFilePath, e);
+            state.set(Status.INVALID.ordinal());
+            throw e;
+        }
+        logger.info("Backup file {} open for write.", writeBackupFilePath);
+    }
+
+    private void closeBackupWriter() throws IOException {
+        try {
+            if(this.config.getFlushPolicy() != BackupScopeConfig.FlushPolicy.NONE && unflushedByte > 0)
+                this.writer.flush();
+        } finally {
+            unflushedByte = 0;
+            try {
+                this.writer.close();
+            } finally {
+                this.writer = null;
+                if(null != this.sparseIndex)
+                    this.sparseIndex.close();
+                this.sparseIndex = null;
             }
-        }finally {
-            writeChannelLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * retain lease of backup scope for read or write
+     */
+    private void retainLease() throws IOException {
+        if(!lease.retain()) {
+            state.set(Status.INVALID.ordinal());
+            throw new AccessDeniedException("Fail to acquire lease on backup scope " + this);
         }
     }
 
@@ -242,257 +640,1995 @@ public class BackupScope {
             }
             try {
                 read = false;
-                this.readFileChannel.close();
+                if(null != readAhead)
+                    readAhead.stop();
+                closeBackupReader();
                 logger.info("Backup file {} closed.", this.metaData.getReadStart());
                 //persist meta data file
-                this.metaData.commitMetaFile();
+                commitMeta();
             } catch (IOException e) {
                 logger.error("Fail to close backup file {}.", this.metaData.getReadStart(), e);
             } finally {
-                if (this.readLock.isValid())
-                    this.readLock.release();
+                lease.release();
             }
         }
     }
 
     public void closeWrite() throws IOException{
+        //writes queued by writeAsync need write monitor, they are drained before it is taken
+        shutdownWriteExecutor();
         synchronized (syncWriteChannel) {
             if (!couldWrite()) {
                 logger.info("Backup write is already closed.");
                 return;
             }
             write = false;
-            //stop write async loop
-            this.writeExec.shutdown();
-            try {
-                this.writeExec.awaitTermination(this.config.getWriteExecutorTerminationAwaitTimeoutInSecond(), TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                logger.error("Thread interrupted waiting for write executor exit.");
-            }
-
             try {
-                this.writeFileChannel.close();
+                closeBackupWriter();
                 logger.info("Backup file {} closed.", this.metaData.getWriteStart());
-                this.metaData.commitMetaFile();
+                commitMeta();
             } catch (IOException e) {
                 logger.error("Fail to close backup file {}.", this.metaData.getWriteStart(), e);
             } finally {
-                if (this.writeLock.isValid())
-                    this.writeLock.release();
+                lease.release();
             }
         }
     }
 
     /**
-     * read next content from back up file
-     * @return  content in byte array
+     * @return executor of writeAsync, created if write executor is not created yet or shut down by close of write
      */
-    private byte[] readOne() throws IOException {
-        if(!couldRead())
-            return null;
-        //read content size
-        ByteBuffer buf = ByteBuffer.allocateDirect(BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE);
-        readFileChannel.read(buf);
-        buf.position(0);
-        int length = buf.getInt();
-        buf.clear();
-        buf = ByteBuffer.allocateDirect(length);
-        readFileChannel.read(buf);
-        byte[] content = new byte[length];
-        buf.position(0);
-        buf.get(content);
-        buf.clear();
-        return content;
+    private ExecutorService writeExecutor() {
+        synchronized (syncWriteExec) {
+            if(null == writeExec) {
+                writeExec = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "backup-write-" + scopeId);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return writeExec;
+        }
     }
 
     /**
-     * Read one content from current backup file
-     * @return byte[] array
+     * Shut down write executor, writes queued are completed within write executor termination await timeout, and
+     * the rest are dropped.
      */
-    public byte[] tryRead() throws IOException {
-        synchronized(syncReadChannel){
-            if(!couldRead() && !openRead())
-                return null;
+    private void shutdownWriteExecutor() {
+        ExecutorService exec;
+        synchronized (syncWriteExec) {
+            exec = writeExec;
+            writeExec = null;
+        }
+        if(null == exec)
+            return;
+        exec.shutdown();
+        try {
+            if(!exec.awaitTermination(this.config.getWriteExecutorTerminationAwaitTimeoutInSecond(), TimeUnit.SECONDS)) {
+                List<Runnable> dropped = exec.shutdownNow();
+                logger.error("Write executor of {} does not exit in time, {} queued writes dropped.", this, dropped.size());
+            }
+        } catch (InterruptedException e) {
+            exec.shutdownNow();
+            Thread.currentThread().interrupt();
+            logger.error("Thread interrupted waiting for write executor exit.");
+        }
+    }
 
-            BackupLocation readStartLoc = metaData.getReadStart();
-            BackupLocation readEndLoc = metaData.getReadEnd();
-            if(!BackupLocation.hasOffset(readStartLoc, readEndLoc))
-                return null;
-            byte[] content = null;
+    /**
+     * Wait for writes queued by writeAsync and asynchronous writes in flight to complete, then flush backup file and
+     * commit meta data, so that contents written so far survive restart. Write goes on after drain.
+     * @param timeout   max time to wait for writes
+     * @param unit  unit of timeout
+     * @return true if all writes issued before drain are completed in time
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws IOException {
+        if(!isInit())
+            return false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        ExecutorService exec;
+        synchronized (syncWriteExec) {
+            exec = writeExec;
+        }
+        if(null != exec) {
+            //single write thread runs in order, writes queued before marker are done once marker is done
             try {
-                content = readOne();
-            } catch (IOException e) {
-                logger.error("Fail to read backup file {}.", metaData.getReadStart());
+                exec.submit(() -> {}).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                //write executor is shut down by close of write, which drains it
+            } catch (ExecutionException | TimeoutException e) {
+                drained = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted draining writes of " + this);
             }
-
-            if(null != content) {
-                long newReadOffset = readStartLoc.getBackupFileOffset() + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + content.length;
-                //update read start
-                metaData.setReadStart(new BackupLocation(readStartLoc.getBackupFileIndex(), newReadOffset));
-                //open next backup file, if read start offset reaches position and write start in another backup file
-                if(this.readFileMaxSize < newReadOffset && readEndLoc.getBackupFileIndex() > readStartLoc.getBackupFileIndex()) {
-                    logger.info("Backup file reached end of {}, file size {}", readStartLoc, this.readFileMaxSize);
-                    metaData.setReadStart(new BackupLocation(readStartLoc.getBackupFileIndex() + 1, 0));
-                    //open next backup file for read
-                    closeRead();
-                    openRead();
-                } else {
-                    //update lock lock, including read start and read end(updated after write)
-                    updateReadLock();
+        }
+        synchronized (pendingWrites) {
+            long remaining;
+            while(!pendingWrites.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(pendingWrites, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted draining writes of " + this);
                 }
-            }else{
-                logger.info("Read nothing from {}", readStartLoc);
             }
-            return content;
+            if(!pendingWrites.isEmpty())
+                drained = false;
         }
+        synchronized (syncWriteChannel) {
+            if(couldWrite()) {
+                this.writer.flush();
+                unflushedByte = 0;
+            }
+            commitMeta();
+        }
+        if(!drained)
+            logger.warn("Writes of {} are not drained in {} {}.", this, timeout, unit);
+        return drained;
     }
 
-    public boolean openRead() throws IOException {
-        if(state.get() != Status.INIT.ordinal())
-            return false;
-
-        //initialize read offset and
-        BackupLocation readEndBackupFileLoc = metaData.getReadEnd();
-        BackupLocation readStartBackupFileLoc = metaData.getReadStart();
-        //check if there is need to create read
-        if(!BackupLocation.hasOffset(readStartBackupFileLoc, readEndBackupFileLoc)){
-            logger.info("There is no existing backup content to read. openRead exits.");
-            return false;
+    /**
+     * Close current backup scope. Writes queued by writeAsync and asynchronous writes in flight are drained within
+     * write executor termination await timeout, read and write are closed, background retention, compaction and
+     * read-ahead are stopped, meta data is committed for the last time and lease of scope folder is released. Closed
+     * scope could not be initialized again, build a new scope on the same folder instead.
+     */
+    @Override
+    public void close() throws IOException {
+        int previous = state.get();
+        if(previous == Status.CLOSED.ordinal())
+            return;
+        if(previous == Status.INIT.ordinal())
+            drain(this.config.getWriteExecutorTerminationAwaitTimeoutInSecond(), TimeUnit.SECONDS);
+        if(state.getAndSet(Status.CLOSED.ordinal()) == Status.CLOSED.ordinal())
+            return;
+        if(null != retentionFuture)
+            retentionFuture.cancel(false);
+        if(null != compactionFuture)
+            compactionFuture.cancel(false);
+        if(null != replicationFuture)
+            replicationFuture.cancel(false);
+        replicationFuture = null;
+        //wait for compaction running to swap in
+        synchronized (syncCompaction) {
+            compactionFuture = null;
         }
-
-        Path readBackupFilePath = this.parent.resolve(this.scopeId).resolve(String.format(SCOPE_BACKUP_FILE_NAME, readStartBackupFileLoc.getBackupFileIndex()));
+        retentionFuture = null;
         try {
-            readFileChannel = FileChannel.open(readBackupFilePath, StandardOpenOption.READ);
-        } catch (IOException e) {
-            logger.error("Fail to open read backup file {}.", readBackupFilePath, e);
-            state.set(Status.INVALID.ordinal());
-            throw  e;
+            closeRead();
+            closeWrite();
+            if(null != metaData)
+                commitMeta();
+            //last round, so that replica has contents written before close
+            if(null != replicator && previous == Status.INIT.ordinal())
+                replicateRound(true);
+        } finally {
+            if(null != readAhead)
+                readAhead.stop();
+            bloomFilters.clear();
+            if(null != lease)
+                lease.unlock();
+            if(null != backupContext)
+                backupContext.removeScope(this);
+            logger.info("BackupScope {} closed.", this);
         }
-        ByteBuffer maxSizeBuf = ByteBuffer.allocateDirect(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
-        readFileChannel.read(maxSizeBuf);
-        maxSizeBuf.flip();
-        this.readFileMaxSize = maxSizeBuf.getLong();
-        logger.info("Set backup file max size {} for {}", this,readFileMaxSize, readBackupFilePath);
-        maxSizeBuf.clear();
+    }
 
-        long newReadOffset = readStartBackupFileLoc.getBackupFileOffset();
-        if(newReadOffset == 0)
-            newReadOffset += BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
-        //update read start
-        metaData.setReadStart(new BackupLocation(readStartBackupFileLoc.getBackupFileIndex(), newReadOffset));
+    /**
+     * Replicate backup files written and meta data checkpoint through replica transport in config, see
+     * {@link BackupScopeConfig#setReplicaTransport(BackupReplicaTransport)}. Replication runs in background when
+     * replication interval is set, function runs one round in caller thread.
+     * @return count of backup files copied to replica
+     */
+    public int replicate() throws IOException {
+        if(!isInit() || null == replicator)
+            return 0;
+        return replicateRound(false);
+    }
 
-        updateReadLock();
-        readFileChannel.position(metaData.getReadStart().getBackupFileOffset());
-        logger.info("Backup file {} open for read.", readBackupFilePath);
-        //update status
-        read = true;
-        return read;
+    /**
+     * @param all   true to copy active backup file and latest checkpoint, whether active backup file is replicated or not
+     */
+    private int replicateRound(boolean all) throws IOException {
+        //checkpoint is taken before read end, so that bytes it refers to are copied in the same round
+        BackupReplicator.Checkpoint checkpoint = all || replicator.isReplicateActive() ? takeCheckpoint() : null;
+        BackupLocation readEnd = this.metaData.getReadEnd();
+        long writeBackupFileIndex = this.metaData.getWriteStart().getBackupFileIndex();
+        return replicator.replicate(checkpoint, this.segments.getSegments(), readEnd, writeBackupFileIndex, all);
     }
 
-    private void updateReadLock() throws IOException {
-        BackupLocation readEndBackupFileLoc = metaData.getReadEnd();
-        BackupLocation readStartBackupFileLoc = metaData.getReadStart();
-        Path readBackupFilePath = this.parent.resolve(this.scopeId).resolve(String.format(SCOPE_BACKUP_FILE_NAME, readStartBackupFileLoc.getBackupFileIndex()));
-        Long readLockEnd = Long.MAX_VALUE - 1;
-        long readStartBackupFileOffset = readStartBackupFileLoc.getBackupFileOffset();
-        if(readEndBackupFileLoc.getBackupFileIndex() == readStartBackupFileLoc.getBackupFileIndex())
-            readLockEnd = readEndBackupFileLoc.getBackupFileOffset();
-        try {
-            readChannelLock.writeLock().lock();
-            if(null != readLock && readLock.isValid())
-                readLock.release();
-            if ((readLock = readFileChannel.tryLock(readStartBackupFileOffset, readLockEnd - readStartBackupFileOffset + 1, true)) == null) {
-                state.set(Status.INVALID.ordinal());
-                throw new AccessDeniedException("Fail to acquire read lock on backup file " + readBackupFilePath);
+    /**
+     * Take content of meta data, segments and scope index files as committed. Files are read under the monitor they
+     * are committed under, so that the three of them are from one commit. Content of scope index file is read again
+     * only when scope index is committed since last checkpoint, replicator skips replacing it otherwise.
+     * @return checkpoint of meta data files, or null if one of them fails to read
+     */
+    private BackupReplicator.Checkpoint takeCheckpoint() {
+        long timestamp = System.currentTimeMillis();
+        Map<String, ByteBuffer> files = new LinkedHashMap<>();
+        synchronized (syncMetaCommit) {
+            Path indexPath = getIndexPath();
+            try {
+                long indexCommitCount = this.index.getCommitCount();
+                if(null == checkpointIndex || indexCommitCount != checkpointIndexCommitCount) {
+                    checkpointIndex = Files.exists(indexPath) ? ByteBuffer.wrap(Files.readAllBytes(indexPath)).asReadOnlyBuffer() : null;
+                    checkpointIndexCommitCount = indexCommitCount;
+                }
+                if(null != checkpointIndex)
+                    files.put(indexPath.getFileName().toString(), checkpointIndex);
+                for(Path path : new Path[]{getSegmentsPath(), getMetaPath()}) {
+                    if(Files.exists(path))
+                        files.put(path.getFileName().toString(), ByteBuffer.wrap(Files.readAllBytes(path)).asReadOnlyBuffer());
+                }
+            } catch (IOException e) {
+                logger.warn("Checkpoint of {} is dropped, meta data files fail to read.", this, e);
+                return null;
             }
-        } finally {
-            readChannelLock.writeLock().unlock();
         }
+        return new BackupReplicator.Checkpoint(timestamp, files);
     }
 
-    public boolean couldWrite() {
-        return write;
+    /**
+     * Take stats of replication of current scope, lag is summed up from segment info and read end.
+     * @return stats of replication, or null if scope is not initialized or replication is disabled
+     */
+    public BackupReplicationStats getReplicationStats() {
+        if(!isInit() || null == replicator)
+            return null;
+        BackupLocation readEnd = this.metaData.getReadEnd();
+        return replicator.getStats(this.segments.getSegments(), readEnd, this.metaData.getWriteStart().getBackupFileIndex());
     }
 
-    public boolean couldRead() {
-        return read;
+    /**
+     * persist meta data and segments of current backup scope
+     */
+    private void commitMeta() throws IOException {
+        synchronized (syncMetaCommit) {
+            this.metaData.commitMetaFile();
+            this.segments.commitSegmentsFile();
+            this.index.commitIndexFile();
+        }
     }
 
     /**
-     * Write byte array content into backup file.
-     * @param contents  content in byte
-     * @return byte write
+     * Move read start to next backup file, if backup file of read start is read through and write has gone to
+     * next backup file. Read start moved to head of backup file compacted to empty, by content taken from read-ahead
+     * for example, moves on the same way.
+     * @return true if there is content to read from read start
      */
-    private int writeBytes(final byte[] contents, long pos) throws IOException {
-        if(!couldWrite())
-            return 0;
-        //create buffer according to BackupScope config
-        ByteBuffer buf = ByteBuffer.allocateDirect(contents.length + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE);
-        buf.putInt(contents.length);
-        buf.put(contents);
-        buf.flip();
-        try {
-            return writeFileChannel.write(buf, pos);
-        }finally {
-            buf.clear();
+    private boolean prepareRead() throws IOException {
+        BackupLocation readStartLoc = metaData.getReadStart();
+        BackupLocation readEndLoc = metaData.getReadEnd();
+        if(readEndLoc.getBackupFileIndex() <= readStartLoc.getBackupFileIndex())
+            return BackupLocation.hasOffset(readStartLoc, readEndLoc);
+        long backupFileIndex = readStartLoc.getBackupFileIndex();
+        if(null != reader && readBackupFileIndex == backupFileIndex && readStartLoc.getBackupFileOffset() > reader.getMaxSize()) {
+            logger.info("Backup file reached end of {}, file size {}", readStartLoc, reader.getMaxSize());
+            backupFileIndex++;
+        } else if(readStartLoc.getBackupFileOffset() > BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE) {
+            return BackupLocation.hasOffset(readStartLoc, readEndLoc);
+        }
+        long sequence = metaData.getReadSequence();
+        //sequences of contents dropped by compaction are skipped, so are backup files compacted to empty
+        BackupSegments.SegmentInfo next;
+        while(null != (next = segments.getSegment(backupFileIndex))) {
+            sequence = Math.max(sequence, next.getFirstSequence());
+            if(next.getContentCount() > 0 || backupFileIndex >= readEndLoc.getBackupFileIndex())
+                break;
+            backupFileIndex++;
         }
+        if(backupFileIndex != readStartLoc.getBackupFileIndex()) {
+            readStartLoc = new BackupLocation(backupFileIndex, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+            metaData.setReadStart(readStartLoc, sequenceAt(backupFileIndex, readStartLoc.getBackupFileOffset(), sequence));
+        }
+        return BackupLocation.hasOffset(readStartLoc, readEndLoc);
     }
 
     /**
-     * Write bytes array into current backup scope.
-     * @param contents bytes array to write
-     * @return byte write count
+     * Sequence of content at passin location, which is the passin one unless contents before it are dropped by
+     * compaction. Sequences in compacted backup file are found from entries of its sparse index, which has an entry
+     * wherever sequence jumps. Invoked under read monitor.
+     * @param sequence  sequence of content at location, when it follows the content before
      */
-    public int tryWrite(final byte[] contents) throws IOException {
-        synchronized (syncWriteChannel){
-            if(!couldWrite() && !openWrite())
-                return 0;
-            //1. write file
-            int count;
-            try {
-                count = writeBytes(contents, this.metaData.getWriteStart().getBackupFileOffset());
-            } catch (IOException e) {
-                logger.error("Fail to write to backup file.");
-                throw e;
-            }
-            updateEnd(count);//update meta info in memory
-            return count;
+    private long sequenceAt(long backupFileIndex, long offset, long sequence) throws IOException {
+        NavigableMap<Long, Long> sequences = compactedSequencesOf(backupFileIndex);
+        if(null == sequences)
+            return sequence;
+        Long jumped = sequences.get(offset);
+        return null == jumped ? sequence : jumped;
+    }
+
+    /**
+     * @return sequences by offset in backup file with passin index, or null if it is not compacted. Sequences of the
+     * last backup file looked up are kept. Invoked under read monitor.
+     */
+    private NavigableMap<Long, Long> compactedSequencesOf(long backupFileIndex) throws IOException {
+        if(backupFileIndex != sequencesBackupFileIndex) {
+            BackupSegments.SegmentInfo info = this.segments.getSegment(backupFileIndex);
+            compactedSequences = null != info && info.getCompactionGeneration() > 0
+                    ? BackupSparseIndex.sequencesByOffset(getSparseIndexPath(backupFileIndex)) : null;
+            sequencesBackupFileIndex = backupFileIndex;
         }
+        return compactedSequences;
     }
 
     /**
-     * Update write end and read end
-     * @param count byte count
+     * Make sure backup reader is on backup file and offset of passin read start. Backup file reader opens is switched
+     * when read start goes to another backup file.
      */
-    private void updateEnd(int count) throws IOException {
-        long backupFileIndex = this.metaData.getWriteStart().getBackupFileIndex();
-        long backupFileOffset = this.metaData.getWriteStart().getBackupFileOffset();
-        if (count > 0) {
-            //check if we need to create another backup file
-            if((backupFileOffset + count) > this.writeFileMaxSize) {
-                //update meta data in memory
-                this.metaData.setWriteStart(new BackupLocation(++backupFileIndex, 0));
-                closeWrite();
-                //open write should lock new backup file
-                openWrite();
-            } else {
-                this.metaData.setWriteStart(new BackupLocation(backupFileIndex, backupFileOffset + count));
-                //write lock update
-                updateWriteLock();
-            }
-            //update read end without updating read lock
-            this.metaData.setReadEnd(new BackupLocation(backupFileIndex, backupFileOffset + count - 1));
+    private void positionBackupReader(final BackupLocation readStartLoc) throws IOException {
+        if(null != reader && readBackupFileIndex == readStartLoc.getBackupFileIndex()) {
+            if(reader.position() != readStartLoc.getBackupFileOffset())
+                reader.seek(readStartLoc.getBackupFileOffset());
+            return;
+        }
+        if(null != reader) {
+            closeBackupReader();
+            commitMeta();
         }
+        //open next backup file for read
+        openBackupReader(readStartLoc);
     }
 
     /**
-     * Async write to backup file, function answers with {@link Future<Integer>} for future byte count.
-     * @param contents content to write to backup file
-     * @return  future
-     * @throws RejectedExecutionException
+     * Read content at read start from tail cache, read start is moved to location of next content if cache hits.
+     * @return content in byte, or null if content is not in cache
      */
-    public Future<Integer> writeAsync(final byte[] contents) throws RejectedExecutionException {
-        return writeExec.submit((Callable<Integer>) () -> {
+    private byte[] readTailCache(final BackupLocation readStartLoc) throws IOException {
+        if(null == tailCache)
+            return null;
+        BackupTailCache.Content cached = tailCache.get(readStartLoc);
+        if(null == cached)
+            return null;
+        moveReadStart(cached.getNext(), metaData.getReadSequence() + 1);
+        return cached.getContent();
+    }
+
+    /**
+     * Read content at read start from read-ahead buffer, read start is moved to location of next content if content
+     * is read ahead. Read-ahead thread starts on first read.
+     * @return content in byte, or null if content is not read ahead
+     */
+    private byte[] readAhead(final BackupLocation readStartLoc) throws IOException {
+        if(null == readAhead)
+            return null;
+        if(!readAhead.isRunning())
+            readAhead.start(readStartLoc);
+        BackupReadAhead.Content ahead = readAhead.poll(readStartLoc);
+        if(null == ahead)
+            return null;
+        moveReadStart(ahead.getNext(), metaData.getReadSequence() + 1);
+        return ahead.getContent();
+    }
+
+    /**
+     * Read one content from current backup file
+     * @return byte[] array
+     */
+    public byte[] tryRead() throws IOException {
+        synchronized(syncReadChannel){
+            if(!couldRead() && !openRead())
+                return null;
+            if(!prepareRead())
+                return null;
+
+            BackupLocation readStartLoc = metaData.getReadStart();
+            byte[] content = readAhead(readStartLoc);
+            if(null == content)
+                content = readTailCache(readStartLoc);
+            if(null != content) {
+                throttleRead(content.length);
+                return content;
+            }
+            try {
+                positionBackupReader(readStartLoc);
+                content = reader.read();
+            } catch (IOException e) {
+                logger.error("Fail to read backup file {}.", readStartLoc);
+            }
+
+            if(null != content) {
+                //update read start
+                moveReadStart(new BackupLocation(readStartLoc.getBackupFileIndex(), reader.position()), metaData.getReadSequence() + 1);
+                throttleRead(content.length);
+            }else{
+                logger.info("Read nothing from {}", readStartLoc);
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Read one value decoded by passin codec, value is decoded straight from read buffer of backup file. Content
+     * taken from read-ahead or tail cache is decoded from byte array kept there.
+     * @param codec codec of value
+     * @return value, or null if there is nothing to read
+     */
+    public <T> T tryRead(final Codec<T> codec) throws IOException {
+        synchronized(syncReadChannel){
+            if(!couldRead() && !openRead())
+                return null;
+            if(!prepareRead())
+                return null;
+
+            BackupLocation readStartLoc = metaData.getReadStart();
+            byte[] content = readAhead(readStartLoc);
+            if(null == content)
+                content = readTailCache(readStartLoc);
+            if(null != content) {
+                throttleRead(content.length);
+                return codec.decode(ByteBuffer.wrap(content));
+            }
+            T value = null;
+            try {
+                positionBackupReader(readStartLoc);
+                value = reader.read(codec);
+            } catch (IOException e) {
+                logger.error("Fail to read backup file {}.", readStartLoc);
+            }
+
+            if(null != value) {
+                long start = Math.max(readStartLoc.getBackupFileOffset(), BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+                moveReadStart(new BackupLocation(readStartLoc.getBackupFileIndex(), reader.position()), metaData.getReadSequence() + 1);
+                throttleRead(reader.position() - start);
+            }else{
+                logger.info("Read nothing from {}", readStartLoc);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Read contents in batch from current backup scope, read goes through backup files till max count is reached,
+     * or there is nothing more to read.
+     * @param maxCount  max count of contents to read
+     * @return contents in byte array, empty list if there is nothing to read
+     */
+    public List<byte[]> tryRead(int maxCount) throws IOException {
+        return read(maxCount, null);
+    }
+
+    /**
+     * read contents in batch, see {@link #tryRead(int)}
+     * @param sequences list sequence of each content read is added into, null if sequences are not needed
+     */
+    private List<byte[]> read(int maxCount, final List<Long> sequences) throws IOException {
+        List<byte[]> contents = new ArrayList<>();
+        synchronized(syncReadChannel){
+            if(!couldRead() && !openRead())
+                return contents;
+            while(contents.size() < maxCount && prepareRead()) {
+                BackupLocation readStartLoc = metaData.getReadStart();
+                long sequence = metaData.getReadSequence();
+                byte[] cached = readAhead(readStartLoc);
+                if(null == cached)
+                    cached = readTailCache(readStartLoc);
+                if(null != cached) {
+                    contents.add(cached);
+                    if(null != sequences)
+                        sequences.add(sequence);
+                    continue;
+                }
+                BackupLocation readEndLoc = metaData.getReadEnd();
+                positionBackupReader(readStartLoc);
+                //read through backup file, unless read end is in it
+                long limit = readEndLoc.getBackupFileIndex() == readStartLoc.getBackupFileIndex() ? readEndLoc.getBackupFileOffset() : reader.getMaxSize();
+                List<Long> ends = new ArrayList<>();
+                List<byte[]> batch = reader.read(maxCount - contents.size(), limit, ends);
+                if(batch.isEmpty()) {
+                    logger.info("Read nothing from {}", readStartLoc);
+                    break;
+                }
+                contents.addAll(batch);
+                //sequences of contents in compacted backup file are not consecutive
+                if(this.config.isAutoAck() && null == sequences && null == compactedSequencesOf(readStartLoc.getBackupFileIndex()))
+                    metaData.setReadStart(new BackupLocation(readStartLoc.getBackupFileIndex(), reader.position()), sequence + batch.size());
+                else
+                    moveReadStart(readStartLoc, ends, sequences);
+            }
+            long bytes = 0;
+            for(byte[] content : contents)
+                bytes += content.length;
+            throttleRead(bytes);
+        }
+        return contents;
+    }
+
+    /**
+     * wait for read rate limits of current scope and backup context, after passin bytes are read
+     */
+    private void throttleRead(long bytes) throws IOException {
+        if(bytes <= 0)
+            return;
+        if(null != readLimiter)
+            readLimiter.acquire(bytes);
+        if(null != this.backupContext && null != this.backupContext.getReadLimiter())
+            this.backupContext.getReadLimiter().acquire(bytes);
+    }
+
+    /**
+     * Move read start to content with passin sequence. Reader goes to the nearest sparse index entry before the
+     * content, and scans contents after entry till the content.
+     * @param sequence  sequence of content, from sequence of first content in current backup scope, to sequence of
+     *                  next content to write
+     * @return true if read start is moved, false if there is no content with passin sequence
+     */
+    public boolean seek(long sequence) throws IOException {
+        synchronized(syncReadChannel) {
+            if(!isInit())
+                return false;
+            BackupSegments.SegmentInfo segment = segments.floorBySequence(sequence);
+            long writeSequence = metaData.getWriteSequence();
+            if(null == segment || sequence > writeSequence)
+                return false;
+            retainRead();
+            if(sequence == writeSequence) {
+                BackupLocation writeStartLoc = metaData.getWriteStart();
+                metaData.setReadStart(new BackupLocation(writeStartLoc.getBackupFileIndex(),
+                        Math.max(writeStartLoc.getBackupFileOffset(), BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)), sequence);
+                return true;
+            }
+            BackupSparseIndex.Entry entry = BackupSparseIndex.floorBySequence(getSparseIndexPath(segment.getBackupFileIndex()), sequence);
+            if(null == entry)
+                seekInBackupFile(segment, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE, segment.getFirstSequence(), sequence);
+            else
+                seekInBackupFile(segment, entry.getOffset(), entry.getSequence(), sequence);
+            return true;
+        }
+    }
+
+    /**
+     * Move read start to first content appended at or after passin timestamp. Reader goes to the sparse index entry
+     * before that content, and scans record timestamps after entry. For backup file without record timestamp, read
+     * start stays at sparse index entry, contents read after seek may include a few ones appended before timestamp,
+     * within one sparse index interval.
+     * @param timestamp append timestamp in millisecond
+     * @return true if read start is moved, false if there is no content appended at or after passin timestamp
+     */
+    public boolean seekByTimestamp(long timestamp) throws IOException {
+        synchronized(syncReadChannel) {
+            if(!isInit())
+                return false;
+            BackupSegments.SegmentInfo segment = segments.ceilingByTimestamp(timestamp);
+            if(null == segment)
+                return false;
+            retainRead();
+            BackupSparseIndex.Entry entry = BackupSparseIndex.floorByTimestamp(getSparseIndexPath(segment.getBackupFileIndex()), timestamp);
+            long sequence = null == entry ? segment.getFirstSequence() : entry.getSequence();
+            long offset = null == entry ? BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE : entry.getOffset();
+            seekInBackupFile(segment, offset, sequence, sequence);
+            if(reader.getHeader().hasRecordTimestamp())
+                skipBefore(segment.getBackupFileIndex(), sequence, timestamp);
+            return true;
+        }
+    }
+
+    /**
+     * Position backup reader at passin offset of backup file, and scan contents from passin sequence till content
+     * with target sequence. Read start is moved to target content, or to the next content kept if target content is
+     * dropped by compaction.
+     */
+    private void seekInBackupFile(final BackupSegments.SegmentInfo segment, long offset, long fromSequence, long sequence) throws IOException {
+        long backupFileIndex = segment.getBackupFileIndex();
+        positionBackupReader(new BackupLocation(backupFileIndex, Math.max(offset, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)));
+        long seq = sequenceAt(backupFileIndex, reader.position(), fromSequence);
+        while(seq < sequence) {
+            if(reader.position() >= segment.getEndOffset() && backupFileIndex < metaData.getWriteStart().getBackupFileIndex()) {
+                //contents at the end of backup file are dropped by compaction, read goes on from the next backup file
+                BackupSegments.SegmentInfo next = segments.getSegment(backupFileIndex + 1);
+                seq = null == next ? metaData.getWriteSequence() : next.getFirstSequence();
+                break;
+            }
+            if(null == reader.read())
+                throw new IOException("Fail to scan content " + seq + " in backup file " + getBackupFilePath(backupFileIndex));
+            seq = sequenceAt(backupFileIndex, reader.position(), seq + 1);
+        }
+        metaData.setReadStart(new BackupLocation(backupFileIndex, reader.position()), seq);
+    }
+
+    /**
+     * scan record timestamps from current read position, read start is moved to first content appended at or after
+     * passin timestamp.
+     */
+    private void skipBefore(long backupFileIndex, long sequence, long timestamp) throws IOException {
+        long position = reader.position();
+        while(null != reader.read() && reader.timestamp() < timestamp) {
+            position = reader.position();
+            sequence = sequenceAt(backupFileIndex, position, sequence + 1);
+        }
+        reader.seek(position);
+        metaData.setReadStart(new BackupLocation(backupFileIndex, position), sequence);
+    }
+
+    /**
+     * retain lease for read, without opening backup reader
+     */
+    private void retainRead() throws IOException {
+        if(this.read)
+            return;
+        retainLease();
+        this.read = true;
+    }
+
+    /**
+     * move read start over contents read in batch one by one, so that each of them could be acknowledged
+     * @param ends  offset after each content read
+     * @param sequences list sequence of each content is added into, or null
+     */
+    private void moveReadStart(final BackupLocation readStartLoc, final List<Long> ends, final List<Long> sequences) throws IOException {
+        for(long end : ends) {
+            if(null != sequences)
+                sequences.add(metaData.getReadSequence());
+            moveReadStart(new BackupLocation(readStartLoc.getBackupFileIndex(), end), metaData.getReadSequence() + 1);
+        }
+    }
+
+    /**
+     * move read start to location of next content, with sequence of it
+     * @param sequence  sequence of next content, when it follows the content read
+     */
+    private void moveReadStart(final BackupLocation next, long sequence) throws IOException {
+        metaData.setReadStart(next, sequenceAt(next.getBackupFileIndex(), next.getBackupFileOffset(), sequence));
+    }
+
+    /**
+     * Read contents in batch with their sequences, see {@link #tryRead(int)}.
+     * @param maxCount  max count of contents to read
+     * @return contents read, empty list if there is nothing to read
+     */
+    public List<BackupRecord> tryReadRecords(int maxCount) throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        List<byte[]> contents = read(maxCount, sequences);
+        List<BackupRecord> records = new ArrayList<>(contents.size());
+        for(int i = 0; i < contents.size(); i++)
+            records.add(new BackupRecord(contents.get(i), sequences.get(i)));
+        return records;
+    }
+
+    /**
+     * Acknowledge contents read till the one with passin sequence, when auto acknowledgement is off. Read start
+     * persisted moves after it, meta data file is committed once ack commit interval is reached. Contents read and not
+     * acknowledged are read again after restart. Acknowledge could be invoked from threads other than reader.
+     * @param sequence  sequence of last content processed
+     * @return count of contents newly acknowledged
+     */
+    public long ack(long sequence) throws IOException {
+        if(!isInit())
+            return 0;
+        long acked = metaData.ack(sequence);
+        if(acked > 0 && ackedSinceCommit.addAndGet(acked) >= this.config.getAckCommitIntervalInContent()) {
+            ackedSinceCommit.set(0);
+            commitMeta();
+        }
+        return acked;
+    }
+
+    public boolean openRead() throws IOException {
+        if(state.get() != Status.INIT.ordinal())
+            return false;
+        synchronized(syncReadChannel) {
+            if(this.read)
+                return true;
+            //initialize read offset and
+            BackupLocation readEndBackupFileLoc = metaData.getReadEnd();
+            BackupLocation readStartBackupFileLoc = metaData.getReadStart();
+            //check if there is need to create read
+            if (!BackupLocation.hasOffset(readStartBackupFileLoc, readEndBackupFileLoc)) {
+                logger.info("There is no existing backup content to read. openRead exits.");
+                return false;
+            }
+            retainLease();
+            try {
+                openBackupReader(readStartBackupFileLoc);
+            } catch (IOException e) {
+                lease.release();
+                throw e;
+            }
+            //update status
+            read = true;
+            return read;
+        }
+    }
+
+    /**
+     * open backup reader on backup file of passin read start, read position is moved after head of backup file if
+     * read start offset is 0.
+     */
+    private void openBackupReader(final BackupLocation readStartBackupFileLoc) throws IOException {
+        Path readBackupFilePath = getBackupFilePath(readStartBackupFileLoc.getBackupFileIndex());
+        try {
+            reader = newBackupReader(readBackupFilePath);
+            readBackupFileIndex = readStartBackupFileLoc.getBackupFileIndex();
+        } catch (IOException e) {
+            logger.error("Fail to open read backup file {}.", readBackupFilePath, e);
+            state.set(Status.INVALID.ordinal());
+            throw  e;
+        }
+        logger.info("Set backup file max size {} for {}", reader.getMaxSize(), readBackupFilePath);
+
+        long newReadOffset = Math.max(readStartBackupFileLoc.getBackupFileOffset(), BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+        //update read start
+        metaData.setReadStart(new BackupLocation(readStartBackupFileLoc.getBackupFileIndex(), newReadOffset));
+        reader.seek(newReadOffset);
+        logger.info("Backup file {} open for read.", readBackupFilePath);
+    }
+
+    private void closeBackupReader() throws IOException {
+        try {
+            if(null != this.reader)
+                this.reader.close();
+        } finally {
+            this.reader = null;
+            this.readBackupFileIndex = -1;
+        }
+    }
+
+    public boolean couldWrite() {
+        return write;
+    }
+
+    public boolean couldRead() {
+        return read;
+    }
+
+    /**
+     * Write bytes array into current backup scope.
+     * @param contents bytes array to write
+     * @return byte write count
+     */
+    public int tryWrite(final byte[] contents) throws IOException {
+        long size = writeSizeOf(1, contents.length);
+        admitWrite(size);
+        int count = 0;
+        try {
+            synchronized (syncWriteChannel){
+                if(!ensureWrite())
+                    return 0;
+                //1. write file
+                BackupLocation writeStartLoc = this.metaData.getWriteStart();
+                long sequence = this.metaData.getWriteSequence();
+                long timestamp = System.currentTimeMillis();
+                try {
+                    count = writer.append(contents, timestamp);
+                } catch (IOException e) {
+                    logger.error("Fail to write to backup file.");
+                    rewindWriter(writeStartLoc);
+                    throw e;
+                }
+                addDiskUsage(count);
+                sparseIndex.onAppend(sequence, timestamp, writeStartLoc.getBackupFileOffset(), count);
+                segments.onAppend(writeStartLoc.getBackupFileIndex(), writer.getMaxSize(), sequence, 1, timestamp, writeStartLoc.getBackupFileOffset() + count);
+                List<KeyedContent> keyed = addKey(null, contents, writeStartLoc);
+                completeWrite(indexOnComplete(updateEnd(count, 1), keyed));//update meta info in memory
+                if(null != tailCache)
+                    tailCache.put(writeStartLoc, contents, this.metaData.getWriteStart());
+                return count;
+            }
+        } finally {
+            if(0 == count)
+                releaseWrite(size);
+        }
+    }
+
+    /**
+     * Write one value encoded by passin codec into current backup scope, value is encoded straight into write buffer
+     * of backup file. When tail cache or key extractor is on, value is encoded into byte array, which is kept in tail
+     * cache and passed to key extractor.
+     * @param value value to write
+     * @param codec codec of value
+     * @return byte write count
+     */
+    public <T> int tryWrite(final T value, final Codec<T> codec) throws IOException {
+        if(null != tailCache || null != this.config.getKeyExtractor()) {
+            ByteBuffer buf = ByteBuffer.allocate(codec.encodedSize(value));
+            codec.encode(value, buf);
+            return tryWrite(buf.array());
+        }
+        long size = writeSizeOf(1, codec.encodedSize(value));
+        admitWrite(size);
+        int count = 0;
+        try {
+            synchronized (syncWriteChannel){
+                if(!ensureWrite())
+                    return 0;
+                BackupLocation writeStartLoc = this.metaData.getWriteStart();
+                long sequence = this.metaData.getWriteSequence();
+                long timestamp = System.currentTimeMillis();
+                try {
+                    count = writer.append(value, codec, timestamp);
+                } catch (IOException e) {
+                    logger.error("Fail to write to backup file.");
+                    rewindWriter(writeStartLoc);
+                    throw e;
+                }
+                addDiskUsage(count);
+                sparseIndex.onAppend(sequence, timestamp, writeStartLoc.getBackupFileOffset(), count);
+                segments.onAppend(writeStartLoc.getBackupFileIndex(), writer.getMaxSize(), sequence, 1, timestamp, writeStartLoc.getBackupFileOffset() + count);
+                completeWrite(updateEnd(count, 1));
+                return count;
+            }
+        } finally {
+            if(0 == count)
+                releaseWrite(size);
+        }
+    }
+
+    /**
+     * Write bytes arrays into current backup scope in batch. Contents going to one backup file are appended with one
+     * batch append, or with one batch append per block if backup file is encrypted.
+     * @param contents bytes arrays to write
+     * @return byte write count
+     */
+    public int tryWrite(final List<byte[]> contents) throws IOException {
+        long length = 0;
+        for(byte[] content : contents)
+            length += content.length;
+        long size = writeSizeOf(contents.size(), length);
+        admitWrite(size);
+        int total = 0;
+        boolean written = false;
+        try {
+            synchronized (syncWriteChannel){
+                if(!ensureWrite())
+                    return 0;
+                int from = 0;
+                while(from < contents.size()) {
+                    //contents till the one goes beyond max size of current backup file, encrypted contents of one append
+                    //make one block, which is cut at block size
+                    BackupFileHeader header = writer.getHeader();
+                    long offset = writer.position() + header.getBlockHeadSize();
+                    long limit = header.isEncrypted() ? Math.min(header.getMaxSize(), writer.position() + BackupCipher.BLOCK_MAX_SIZE_IN_BYTE) : header.getMaxSize();
+                    int to = from;
+                    while(to < contents.size() && (to == from || offset <= limit))
+                        offset += header.getStoredRecordSize(contents.get(to++).length);
+                    BackupLocation writeStartLoc = this.metaData.getWriteStart();
+                    long sequence = this.metaData.getWriteSequence();
+                    long timestamp = System.currentTimeMillis();
+                    int count;
+                    try {
+                        count = writer.append(contents.subList(from, to), timestamp);
+                    } catch (IOException e) {
+                        logger.error("Fail to write to backup file.");
+                        rewindWriter(writeStartLoc);
+                        throw e;
+                    }
+                    addDiskUsage(count);
+                    List<KeyedContent> keyed = indexAppended(header, writeStartLoc, sequence, timestamp, contents.subList(from, to));
+                    completeWrite(indexOnComplete(updateEnd(count, to - from), keyed));
+                    if(null != tailCache)
+                        putTailCache(header, writeStartLoc, contents.subList(from, to));
+                    total += count;
+                    from = to;
+                }
+                written = true;
+                return total;
+            }
+        } finally {
+            //contents appended before failed append keep their tokens
+            if(!written)
+                releaseWrite(Math.max(0, size - total));
+        }
+    }
+
+    /**
+     * Move writer back to write start after failed append, so that bytes of torn write are overwritten by next write,
+     * instead of being left in front of it.
+     */
+    private void rewindWriter(final BackupLocation writeStartLoc) {
+        try {
+            writer.seek(writeStartLoc.getBackupFileOffset());
+        } catch (IOException e) {
+            logger.error("Fail to rewind writer of {} to {}.", this, writeStartLoc, e);
+            state.set(Status.INVALID.ordinal());
+        }
+    }
+
+    /**
+     * Add key of content written at passin location into passin list, if key extractor is set. Key goes into bloom
+     * filter of backup file writer is on right away, and into scope index once write completes.
+     * @return list with key of content added, or passin list if content has no key
+     */
+    private List<KeyedContent> addKey(List<KeyedContent> keyed, final byte[] content, final BackupLocation loc) {
+        BackupKeyExtractor extractor = this.config.getKeyExtractor();
+        if(null == extractor)
+            return keyed;
+        String key = extractor.keyOf(content);
+        if(null == key)
+            return keyed;
+        if(null != bloomBuilder)
+            bloomBuilder.add(BackupBloomFilter.hash(key));
+        if(null == keyed)
+            keyed = new ArrayList<>();
+        keyed.add(new KeyedContent(key, loc, content.length));
+        return keyed;
+    }
+
+    /**
+     * Update scope index with keys of contents written, once write is completed. Keys of pending write in ASYNC mode
+     * are indexed when read end moves over it, in order of write, so that lookup by key never reads content not
+     * written yet.
+     * @return passin pending write
+     */
+    private PendingWrite indexOnComplete(final PendingWrite pending, final List<KeyedContent> keyed) {
+        if(null == keyed)
+            return pending;
+        if(null == pending)
+            indexKeys(keyed);
+        else
+            pending.keyed = keyed;
+        return pending;
+    }
+
+    /**
+     * update scope index with keys of contents written. Content of the same key written before is counted as
+     * obsolete in its backup file.
+     */
+    private void indexKeys(final List<KeyedContent> keyed) {
+        for(KeyedContent content : keyed) {
+            BackupIndex.IndexItem previous = index.put(content.key, content.loc.getBackupFileIndex(), content.loc.getBackupFileOffset(), content.length);
+            if(null != previous)
+                segments.onObsolete(previous.getBackupFileIndex());
+        }
+    }
+
+    /**
+     * update sparse index and segments with contents appended in one backup file from passin location
+     * @return keys of contents appended, or null if there is none
+     */
+    private List<KeyedContent> indexAppended(final BackupFileHeader header, final BackupLocation writeStartLoc, long sequence, long timestamp, final List<byte[]> contents) throws IOException {
+        long offset = writeStartLoc.getBackupFileOffset();
+        List<KeyedContent> keyed = null;
+        for(int i = 0; i < contents.size(); i++) {
+            long size = header.getStoredRecordSize(contents.get(i).length) + (i == 0 ? header.getBlockHeadSize() : 0);
+            //encrypted backup file is indexed at block head only
+            if(!header.isEncrypted())
+                sparseIndex.onAppend(sequence + i, timestamp, offset, size);
+            keyed = addKey(keyed, contents.get(i), new BackupLocation(writeStartLoc.getBackupFileIndex(), offset));
+            offset += size;
+        }
+        if(header.isEncrypted())
+            sparseIndex.onAppend(sequence, contents.size(), timestamp, writeStartLoc.getBackupFileOffset(), offset - writeStartLoc.getBackupFileOffset());
+        segments.onAppend(writeStartLoc.getBackupFileIndex(), header.getMaxSize(), sequence, contents.size(), timestamp, offset);
+        return keyed;
+    }
+
+    /**
+     * put contents appended in one backup file from passin location into tail cache
+     */
+    private void putTailCache(final BackupFileHeader header, final BackupLocation writeStartLoc, final List<byte[]> contents) {
+        long backupFileIndex = writeStartLoc.getBackupFileIndex();
+        long offset = writeStartLoc.getBackupFileOffset();
+        for(int i = 0; i < contents.size(); i++) {
+            byte[] content = contents.get(i);
+            long nextOffset = offset + header.getStoredRecordSize(content.length) + (i == 0 ? header.getBlockHeadSize() : 0);
+            //the last one may go to next backup file
+            BackupLocation next = i == contents.size() - 1 ? this.metaData.getWriteStart() : new BackupLocation(backupFileIndex, nextOffset);
+            tailCache.put(new BackupLocation(backupFileIndex, offset), content, next);
+            offset = nextOffset;
+        }
+    }
+
+    /**
+     * Flush written contents of current backup file to storage device, and commit meta data file.
+     */
+    public void flush() throws IOException {
+        synchronized (syncWriteChannel) {
+            if(!couldWrite())
+                return;
+            this.writer.flush();
+            unflushedByte = 0;
+            commitMeta();
+        }
+    }
+
+    /**
+     * flush writer after write, according to flush policy
+     */
+    private void flushOnWrite(int count) throws IOException {
+        unflushedByte += count;
+        BackupScopeConfig.FlushPolicy policy = this.config.getFlushPolicy();
+        if(policy == BackupScopeConfig.FlushPolicy.EVERY_WRITE
+                || (policy == BackupScopeConfig.FlushPolicy.INTERVAL && unflushedByte >= this.config.getFlushIntervalInByte())) {
+            this.writer.flush();
+            unflushedByte = 0;
+        }
+    }
+
+    /**
+     * Update write end and read end
+     * @param count byte count
+     * @param contentCount  count of contents written
+     * @return pending write which moves read end once it is completed, or null if read end is updated
+     */
+    private PendingWrite updateEnd(int count, int contentCount) throws IOException {
+        long nextSequence = this.metaData.getWriteSequence() + contentCount;
+        flushOnWrite(count);
+        long backupFileIndex = this.metaData.getWriteStart().getBackupFileIndex();
+        long backupFileOffset = this.metaData.getWriteStart().getBackupFileOffset();
+        PendingWrite pending = null;
+        if (count > 0) {
+            BackupLocation readEndLoc = new BackupLocation(backupFileIndex, backupFileOffset + count - 1);
+            if(this.config.getIOMode() == BackupScopeConfig.IOMode.ASYNC) {
+                pending = new PendingWrite(readEndLoc);
+                synchronized (pendingWrites) {
+                    if(writeFailed)
+                        pending.failed = true;
+                    else
+                        pendingWrites.add(pending);
+                }
+            } else {
+                //update read end without updating read lock
+                this.metaData.setReadEnd(readEndLoc);
+                notifyReadable();
+            }
+            //check if we need to create another backup file
+            if((backupFileOffset + count) > this.writer.getMaxSize()) {
+                if(null != segmentSizer)
+                    segmentSizer.onRollover(backupFileOffset + count - writerOpenOffset, System.currentTimeMillis() - writerOpenMillis);
+                sealBloomFilter(backupFileIndex);
+                //update meta data in memory
+                this.metaData.setWriteStart(new BackupLocation(backupFileIndex + 1, 0), nextSequence);
+                closeBackupWriter();
+                commitMeta();
+                if(null != replicator && !replicator.isReplicateActive())
+                    replicator.onRollover(takeCheckpoint());
+                //open write should lock new backup file
+                try {
+                    openBackupWriter();
+                } catch (IOException e) {
+                    //there is no writer to go on with, write closes
+                    write = false;
+                    lease.release();
+                    throw e;
+                }
+            } else {
+                this.metaData.setWriteStart(new BackupLocation(backupFileIndex, backupFileOffset + count), nextSequence);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Mark passin write completed, read end is moved to the end of completed writes in front of the first pending one.
+     */
+    private void completeWrite(final PendingWrite completed) {
+        if(null == completed)
+            return;
+        BackupLocation readEndLoc = null;
+        synchronized (pendingWrites) {
+            if(completed.failed)
+                return;
+            completed.completed = true;
+            while(!pendingWrites.isEmpty() && pendingWrites.peek().completed) {
+                PendingWrite done = pendingWrites.poll();
+                if(null != done.keyed)
+                    indexKeys(done.keyed);
+                readEndLoc = done.end;
+            }
+            if(null != readEndLoc)
+                this.metaData.setReadEnd(readEndLoc);
+            //drain waits for pending writes to complete
+            if(pendingWrites.isEmpty())
+                pendingWrites.notifyAll();
+        }
+        if(null != readEndLoc)
+            notifyReadable();
+    }
+
+    /**
+     * Drop passin failed write and pending writes issued after it, so that read end stays in front of failed write,
+     * and drain waiting for them is woken up. Failure comes in I/O completion thread, which could not take write
+     * monitor, so writer is closed by next write, or by close of write.
+     */
+    private void failWrite(final PendingWrite failed) {
+        if(null == failed)
+            return;
+        synchronized (pendingWrites) {
+            writeFailed = true;
+            boolean after = false;
+            Iterator<PendingWrite> it = pendingWrites.iterator();
+            while(it.hasNext()) {
+                PendingWrite pending = it.next();
+                if(pending == failed)
+                    after = true;
+                if(after) {
+                    pending.failed = true;
+                    it.remove();
+                }
+            }
+            failed.failed = true;
+            pendingWrites.notifyAll();
+        }
+        state.set(Status.INVALID.ordinal());
+    }
+
+    /**
+     * Open write if it is not open, after closing writer left by failed asynchronous write, under write monitor.
+     * @return false if write could not go on
+     */
+    private boolean ensureWrite() throws IOException {
+        if(writeFailed && couldWrite()) {
+            logger.error("Close write of {} after failed asynchronous write, at {}.", this, this.metaData.getWriteStart());
+            write = false;
+            try {
+                closeBackupWriter();
+            } catch (IOException e) {
+                logger.error("Fail to close backup file {}.", this.metaData.getWriteStart(), e);
+            } finally {
+                lease.release();
+            }
+        }
+        return couldWrite() || openWrite();
+    }
+
+    /**
+     * notify read-ahead and backup context that there are contents to read in current scope
+     */
+    private void notifyReadable() {
+        if(null != readAhead)
+            readAhead.onReadable();
+        if(null != this.backupContext)
+            this.backupContext.onReadable(this);
+    }
+
+    /**
+     * Append content with asynchronous write in ASYNC mode. Write is issued under write monitor, and future is
+     * completed by I/O completion after read end is updated.
+     */
+    private CompletableFuture<Integer> appendAsync(final byte[] contents) throws IOException {
+        long size = writeSizeOf(1, contents.length);
+        admitWrite(size);
+        boolean issued = false;
+        try {
+            synchronized (syncWriteChannel) {
+                if(!ensureWrite())
+                    return CompletableFuture.completedFuture(0);
+                BackupLocation writeStartLoc = this.metaData.getWriteStart();
+                long sequence = this.metaData.getWriteSequence();
+                long timestamp = System.currentTimeMillis();
+                int count = (int) (writer.getHeader().getStoredRecordSize(contents.length) + writer.getHeader().getBlockHeadSize());
+                CompletableFuture<Integer> future = ((IAsyncBackupWriter) writer).appendAsync(contents, timestamp);
+                issued = true;
+                sparseIndex.onAppend(sequence, timestamp, writeStartLoc.getBackupFileOffset(), count);
+                segments.onAppend(writeStartLoc.getBackupFileIndex(), writer.getMaxSize(), sequence, 1, timestamp, writeStartLoc.getBackupFileOffset() + count);
+                List<KeyedContent> keyed = addKey(null, contents, writeStartLoc);
+                addDiskUsage(count);
+                final PendingWrite pending = indexOnComplete(updateEnd(count, 1), keyed);
+                if(null != tailCache)
+                    tailCache.put(writeStartLoc, contents, this.metaData.getWriteStart());
+                return future.whenComplete((written, e) -> {
+                    if(null == e) {
+                        completeWrite(pending);
+                    } else {
+                        //read end could not move beyond failed write
+                        logger.error("Fail to write to backup file {}.", writeStartLoc, e);
+                        releaseWrite(size);
+                        failWrite(pending);
+                    }
+                });
+            }
+        } finally {
+            if(!issued)
+                releaseWrite(size);
+        }
+    }
+
+    /**
+     * Delete oldest backup files beyond retention time or retention size, according to segments info. Backup file
+     * writer is on is never deleted. Read start is moved to next backup file, if it is in backup files deleted.
+     * @return count of backup files deleted
+     */
+    public int applyRetention() throws IOException {
+        if(!isInit())
+            return 0;
+        long retentionTime = this.config.getRetentionTimeInMillis();
+        long retentionSize = this.config.getRetentionSizeInByte();
+        if(retentionTime <= 0 && retentionSize <= 0)
+            return 0;
+        long writeBackupFileIndex = this.metaData.getWriteStart().getBackupFileIndex();
+        List<BackupSegments.SegmentInfo> infos = this.segments.getSegments();
+        long totalSize = 0;
+        for(BackupSegments.SegmentInfo info : infos)
+            totalSize += info.getEndOffset();
+        long expireBefore = System.currentTimeMillis() - retentionTime;
+        List<BackupSegments.SegmentInfo> expired = new ArrayList<>();
+        for(BackupSegments.SegmentInfo info : infos) {
+            if(info.getBackupFileIndex() >= writeBackupFileIndex)
+                break;
+            boolean expiredByTime = retentionTime > 0 && info.getMaxTimestamp() < expireBefore;
+            boolean expiredBySize = retentionSize > 0 && totalSize > retentionSize;
+            if(!expiredByTime && !expiredBySize)
+                break;
+            expired.add(info);
+            totalSize -= info.getEndOffset();
+        }
+        if(!expired.isEmpty())
+            deleteBackupFiles(expired);
+        return expired.size();
+    }
+
+    /**
+     * delete passin backup files, which are the oldest ones in current backup scope
+     */
+    private void deleteBackupFiles(final List<BackupSegments.SegmentInfo> expired) throws IOException {
+        synchronized (syncReadChannel) {
+            long lastIndex = expired.get(expired.size() - 1).getBackupFileIndex();
+            if(null != reader && readBackupFileIndex <= lastIndex)
+                closeBackupReader();
+            BackupLocation readStartLoc = this.metaData.getReadStart();
+            if(readStartLoc.getBackupFileIndex() <= lastIndex) {
+                BackupSegments.SegmentInfo next = this.segments.getSegment(lastIndex + 1);
+                long sequence = null != next ? sequenceAt(lastIndex + 1, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE, next.getFirstSequence()) : this.metaData.getWriteSequence();
+                logger.warn("Contents from sequence {} to {} are deleted by retention before read.", this.metaData.getReadSequence(), sequence);
+                this.metaData.setReadStart(new BackupLocation(lastIndex + 1, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE), sequence);
+            }
+            if(this.metaData.getAckStart().getBackupFileIndex() <= lastIndex) {
+                BackupSegments.SegmentInfo next = this.segments.getSegment(lastIndex + 1);
+                long sequence = null != next ? sequenceAt(lastIndex + 1, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE, next.getFirstSequence()) : this.metaData.getWriteSequence();
+                this.metaData.setAckStart(new BackupLocation(lastIndex + 1, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE), sequence);
+            }
+            for(BackupSegments.SegmentInfo info : expired) {
+                Files.deleteIfExists(getBackupFilePath(info.getBackupFileIndex()));
+                Files.deleteIfExists(getSparseIndexPath(info.getBackupFileIndex()));
+                Files.deleteIfExists(getBloomFilterPath(info.getBackupFileIndex()));
+                this.bloomFilters.remove(info.getBackupFileIndex());
+                this.segments.remove(info.getBackupFileIndex());
+                if(sequencesBackupFileIndex == info.getBackupFileIndex())
+                    sequencesBackupFileIndex = -1;
+                if(null != this.config.getKeyExtractor())
+                    this.index.removeBackupFile(info.getBackupFileIndex());
+                addDiskUsage(-info.getEndOffset());
+                logger.info("Backup file {} deleted by retention.", info);
+            }
+            commitMeta();
+        }
+    }
+
+    /**
+     * Compact sealed backup files before read start and read start persisted, whose ratio of obsolete contents reaches
+     * compaction min obsolete ratio. Each backup file is rewritten to keep contents without key and the latest content
+     * of each key, then swapped in with atomic move under read monitor, and scope index is moved to offsets in it.
+     * Contents kept keep their sequences, as they do over retention. Sparse index of compacted backup file has an entry
+     * wherever sequence jumps over contents dropped, so that read and seek skip sequences of contents dropped.
+     * @return count of backup files compacted
+     */
+    public int compact() throws IOException {
+        if(!isInit() || null == this.config.getKeyExtractor())
+            return 0;
+        synchronized (syncCompaction) {
+            int compacted = 0;
+            for(BackupSegments.SegmentInfo info : this.segments.getSegments()) {
+                if(!isCompactable(info.getBackupFileIndex()))
+                    break;
+                if(info.getObsoleteCount() == 0 || info.getObsoleteCount() < info.getContentCount() * this.config.getCompactionMinObsoleteRatio())
+                    continue;
+                BackupCompaction.Compacted result = BackupCompaction.rewrite(this, info, this.index, this.config);
+                if(null != result && swapCompacted(result, info.getObsoleteCount()))
+                    compacted++;
+            }
+            return compacted;
+        }
+    }
+
+    /**
+     * @return true if backup file with passin index is sealed, and before both read start and read start persisted
+     */
+    private boolean isCompactable(long backupFileIndex) {
+        return backupFileIndex < this.metaData.getWriteStart().getBackupFileIndex()
+                && backupFileIndex < this.metaData.getAckStart().getBackupFileIndex()
+                && backupFileIndex < this.metaData.getReadStart().getBackupFileIndex();
+    }
+
+    /**
+     * Swap compacted backup file in, unless it is deleted or read goes back to it in between. Backup file moved in is
+     * the commit point, compacting sparse index is moved in after segments and scope index are committed, so that it
+     * marks compaction to recover on init if it is left behind.
+     * @param compactedObsoleteCount    count of obsolete contents in backup file when compaction starts
+     * @return true if compacted backup file is swapped in
+     */
+    private boolean swapCompacted(final BackupCompaction.Compacted compacted, long compactedObsoleteCount) throws IOException {
+        long backupFileIndex = compacted.getBackupFileIndex();
+        Path backupFilePath = getBackupFilePath(backupFileIndex);
+        Path sparseIndexPath = getSparseIndexPath(backupFileIndex);
+        synchronized (syncReadChannel) {
+            BackupSegments.SegmentInfo info = this.segments.getSegment(backupFileIndex);
+            if(null == info || !isCompactable(backupFileIndex) || readBackupFileIndex == backupFileIndex) {
+                logger.info("Compaction of backup file {} in {} is given up.", backupFileIndex, this);
+                Files.deleteIfExists(BackupCompaction.compactingPath(backupFilePath));
+                Files.deleteIfExists(BackupCompaction.compactingPath(sparseIndexPath));
+                return false;
+            }
+            Files.move(BackupCompaction.compactingPath(backupFilePath), backupFilePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            this.index.relocate(backupFileIndex, compacted.getOffsets());
+            this.segments.onCompacted(backupFileIndex, compacted.getContentCount(), compacted.getMinTimestamp(),
+                    compacted.getMaxTimestamp(), compacted.getEndOffset(), compactedObsoleteCount);
+            //locations in compacted backup file hold other contents now, read-ahead starts again on next read
+            if(null != tailCache)
+                tailCache.clear();
+            if(null != readAhead)
+                readAhead.stop();
+            addDiskUsage(compacted.getEndOffset() - info.getEndOffset());
+            commitMeta();
+            Files.move(BackupCompaction.compactingPath(sparseIndexPath), sparseIndexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if(sequencesBackupFileIndex == backupFileIndex)
+                sequencesBackupFileIndex = -1;
+            logger.info("Backup file {} in {} compacted, {} contents dropped, {} contents kept, size from {} to {}.", backupFileIndex,
+                    this, compacted.getDroppedCount(), compacted.getContentCount(), info.getEndOffset(), compacted.getEndOffset());
+            return true;
+        }
+    }
+
+    /**
+     * Roll back or finish compaction interrupted by crash. Compacting backup file left behind is not swapped in, and
+     * is deleted. Compacting sparse index left alone means backup file is swapped in, while segment info and scope
+     * index of it may not be committed, they are rebuilt from compacted backup file.
+     */
+    private void recoverCompaction() {
+        for(BackupSegments.SegmentInfo info : this.segments.getSegments()) {
+            Path backupCompacting = BackupCompaction.compactingPath(getBackupFilePath(info.getBackupFileIndex()));
+            Path sparseCompacting = BackupCompaction.compactingPath(getSparseIndexPath(info.getBackupFileIndex()));
+            try {
+                if(Files.exists(backupCompacting)) {
+                    Files.deleteIfExists(backupCompacting);
+                    Files.deleteIfExists(sparseCompacting);
+                    logger.info("Compaction of backup file {} in {} rolled back.", info.getBackupFileIndex(), this);
+                } else if(Files.exists(sparseCompacting)) {
+                    Files.move(sparseCompacting, getSparseIndexPath(info.getBackupFileIndex()), StandardCopyOption.REPLACE_EXISTING);
+                    reindexCompacted(info);
+                    logger.info("Compaction of backup file {} in {} recovered.", info.getBackupFileIndex(), this);
+                }
+            } catch (IOException e) {
+                logger.error("Fail to recover compaction of backup file {} in {}.", info.getBackupFileIndex(), this, e);
+            }
+        }
+    }
+
+    /**
+     * rebuild segment info and scope index items of compacted backup file from contents in it
+     */
+    private void reindexCompacted(final BackupSegments.SegmentInfo info) throws IOException {
+        long backupFileIndex = info.getBackupFileIndex();
+        BackupKeyExtractor extractor = this.config.getKeyExtractor();
+        long count = 0;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        try(IBackupReader reader = newScanReader(getBackupFilePath(backupFileIndex))) {
+            reader.seek(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+            long offset = reader.position();
+            byte[] content;
+            while(null != (content = reader.read())) {
+                String key = null == extractor ? null : extractor.keyOf(content);
+                BackupIndex.IndexItem item = null == key ? null : this.index.lookup(key);
+                if(null != item && item.getBackupFileIndex() == backupFileIndex)
+                    this.index.put(key, backupFileIndex, offset, content.length);
+                if(reader.getHeader().hasRecordTimestamp()) {
+                    minTimestamp = Math.min(minTimestamp, reader.timestamp());
+                    maxTimestamp = Math.max(maxTimestamp, reader.timestamp());
+                }
+                count++;
+                offset = reader.position();
+            }
+            if(!reader.getHeader().hasRecordTimestamp() && count > 0) {
+                minTimestamp = info.getMinTimestamp();
+                maxTimestamp = info.getMaxTimestamp();
+            }
+            this.segments.onCompacted(backupFileIndex, count, minTimestamp, maxTimestamp, offset, info.getObsoleteCount());
+        }
+    }
+
+    /**
+     * Read the latest content of passin key, at location kept in scope index. Read start is not moved.
+     * @param key   key of content
+     * @return content, or null if key is not in scope index
+     */
+    public byte[] tryReadByKey(String key) throws IOException {
+        if(!isInit())
+            return null;
+        synchronized (syncReadChannel) {
+            BackupIndex.IndexItem item = this.index.lookup(key);
+            if(null == item)
+                return null;
+            Path backupFilePath = getBackupFilePath(item.getBackupFileIndex());
+            try(FileChannel channel = FileChannel.open(backupFilePath, StandardOpenOption.READ)) {
+                BackupFileHeader header = BackupFileHeader.read(channel);
+                if(header.isEncrypted()) {
+                    //content is decrypted with block it is in
+                    try(IBackupReader scan = newScanReader(backupFilePath)) {
+                        scan.seek(item.getOffset());
+                        byte[] content = scan.read();
+                        if(null == content)
+                            throw new IOException("No content of key " + key + " at " + item.getOffset() + " in backup file " + item.getBackupFileIndex());
+                        return content;
+                    }
+                }
+                int length = (int) item.getLength();
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                long position = item.getOffset() + header.getRecordHeadSize();
+                while(buf.hasRemaining()) {
+                    if(channel.read(buf, position + buf.position()) < 0)
+                        throw new IOException("Content of key " + key + " ends before " + length + " bytes in backup file " + item.getBackupFileIndex());
+                }
+                return buf.array();
+            }
+        }
+    }
+
+    /**
+     * write bloom filter of keys in backup file writer is sealing, if all keys of it are collected in current session
+     */
+    private void sealBloomFilter(long backupFileIndex) {
+        if(null == bloomBuilder)
+            return;
+        BackupBloomFilter filter = bloomBuilder.build(this.config.getBloomFilterFalsePositiveRate());
+        bloomBuilder = null;
+        try {
+            filter.write(getBloomFilterPath(backupFileIndex));
+            this.bloomFilters.put(backupFileIndex, filter);
+        } catch (IOException e) {
+            logger.error("Fail to write bloom filter of backup file {} in {}, it is rebuilt on lookup.", backupFileIndex, this, e);
+        }
+    }
+
+    /**
+     * Bloom filter of sealed backup file, loaded from bloom filter file, or built from keys of contents in backup file
+     * if bloom filter file is missing or broken. Bloom filter of compacted backup file is kept, as keys kept are in it.
+     * Invoked under read monitor.
+     * @return bloom filter, or null if backup file is not sealed
+     */
+    private BackupBloomFilter bloomFilterOf(final BackupSegments.SegmentInfo info) throws IOException {
+        long backupFileIndex = info.getBackupFileIndex();
+        if(backupFileIndex >= this.metaData.getWriteStart().getBackupFileIndex())
+            return null;
+        BackupBloomFilter filter = this.bloomFilters.get(backupFileIndex);
+        if(null != filter)
+            return filter;
+        Path path = getBloomFilterPath(backupFileIndex);
+        if(Files.exists(path)) {
+            try {
+                filter = BackupBloomFilter.read(path);
+            } catch (IOException e) {
+                logger.warn("Bloom filter {} is broken, rebuild it from backup file.", path, e);
+            }
+        }
+        if(null == filter) {
+            BackupBloomFilter.Builder builder = new BackupBloomFilter.Builder();
+            scanKeys(info, null, (key, record) -> {
+                builder.add(BackupBloomFilter.hash(key));
+                return true;
+            });
+            filter = builder.build(this.config.getBloomFilterFalsePositiveRate());
+            filter.write(path);
+            logger.info("Bloom filter of backup file {} in {} rebuilt with {} keys.", backupFileIndex, this, builder.getCount());
+        }
+        this.bloomFilters.put(backupFileIndex, filter);
+        return filter;
+    }
+
+    /**
+     * visitor of keyed contents in backup file
+     */
+    private interface KeyVisitor {
+        /**
+         * @return false to stop scan
+         */
+        boolean visit(String key, BackupRecord record);
+    }
+
+    /**
+     * scan keyed contents in backup file of passin segment info, till end of contents readable
+     * @param key   key to visit, or null to visit all keys
+     */
+    private void scanKeys(final BackupSegments.SegmentInfo info, final String key, final KeyVisitor visitor) throws IOException {
+        BackupKeyExtractor extractor = this.config.getKeyExtractor();
+        long backupFileIndex = info.getBackupFileIndex();
+        BackupLocation readEndLoc = this.metaData.getReadEnd();
+        long end = readEndLoc.getBackupFileIndex() == backupFileIndex ? Math.min(info.getEndOffset(), readEndLoc.getBackupFileOffset() + 1) : info.getEndOffset();
+        try(IBackupReader reader = newScanReader(getBackupFilePath(backupFileIndex))) {
+            reader.seek(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+            long sequence = info.getFirstSequence();
+            byte[] content;
+            while(reader.position() < end) {
+                sequence = sequenceAt(backupFileIndex, reader.position(), sequence);
+                if(null == (content = reader.read()))
+                    break;
+                String contentKey = extractor.keyOf(content);
+                if(null != contentKey && (null == key || key.equals(contentKey)) && !visitor.visit(contentKey, new BackupRecord(content, sequence)))
+                    return;
+                sequence++;
+            }
+        }
+    }
+
+    /**
+     * Read contents of passin key in backup files, in order of sequence. Content overwritten is there till it is
+     * dropped by compaction or retention. Sealed backup files whose bloom filter has no such key are skipped without
+     * being read, the backup file writer is on is scanned.
+     * @param key   key of contents
+     * @return contents of key with their sequences, empty list if there is none
+     */
+    public List<BackupRecord> tryReadHistory(final String key) throws IOException {
+        List<BackupRecord> records = new ArrayList<>();
+        if(!isInit() || null == this.config.getKeyExtractor())
+            return records;
+        synchronized (syncReadChannel) {
+            for(BackupSegments.SegmentInfo info : mightContainKey(key))
+                scanKeys(info, key, (contentKey, record) -> records.add(record));
+        }
+        return records;
+    }
+
+    /**
+     * Check whether there is content of passin key in backup files. Key in scope index exists, otherwise only backup
+     * files whose bloom filter might have the key are scanned, so that check of missing key reads no backup file in
+     * most cases.
+     * @param key   key of content
+     * @return true if there is content of key
+     */
+    public boolean containsKey(final String key) throws IOException {
+        if(!isInit() || null == this.config.getKeyExtractor())
+            return false;
+        if(null != this.index.lookup(key))
+            return true;
+        synchronized (syncReadChannel) {
+            boolean[] found = {false};
+            for(BackupSegments.SegmentInfo info : mightContainKey(key)) {
+                scanKeys(info, key, (contentKey, record) -> {
+                    found[0] = true;
+                    return false;
+                });
+                if(found[0])
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return infos of backup files which might have content of passin key, invoked under read monitor
+     */
+    private List<BackupSegments.SegmentInfo> mightContainKey(final String key) throws IOException {
+        long hash = BackupBloomFilter.hash(key);
+        List<BackupSegments.SegmentInfo> infos = new ArrayList<>();
+        for(BackupSegments.SegmentInfo info : this.segments.getSegments()) {
+            BackupBloomFilter filter = bloomFilterOf(info);
+            if(null == filter || filter.mightContain(hash))
+                infos.add(info);
+        }
+        return infos;
+    }
+
+    /**
+     * @return count of keys in scope index
+     */
+    public int getKeyCount() {
+        return isInit() ? this.index.size() : 0;
+    }
+
+    /**
+     * Export contents not acknowledged yet, from read start persisted to read end, as a streamable archive. Read end
+     * and backup files in range are taken under read monitor, so that archive is a consistent snapshot which never
+     * has half-written contents, and backup files deleted by retention in between are still exported. Records are
+     * copied with {@link FileChannel#transferTo}. Write could go on during export. Encrypted backup file is exported
+     * from head of the block read start persisted is in, and contents before it are skipped on import.
+     * @param out   channel archive is written into
+     * @return bytes of archive
+     */
+    public long export(final WritableByteChannel out) throws IOException {
+        if(!isInit())
+            throw new IllegalStateException("Backup scope " + this + " is not initialized.");
+        long firstSequence;
+        List<FileChannel> channels = new ArrayList<>();
+        List<BackupArchive.SegmentHead> heads = new ArrayList<>();
+        List<Long> froms = new ArrayList<>();
+        try {
+            synchronized (syncReadChannel) {
+                BackupLocation startLoc = this.metaData.getAckStart();
+                BackupLocation endLoc = this.metaData.getReadEnd();
+                firstSequence = this.metaData.getAckSequence();
+                for(long i = startLoc.getBackupFileIndex(); BackupLocation.hasOffset(startLoc, endLoc) && i <= endLoc.getBackupFileIndex(); i++) {
+                    long from = i == startLoc.getBackupFileIndex() ? Math.max(startLoc.getBackupFileOffset(), BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE) : BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+                    BackupSegments.SegmentInfo info = this.segments.getSegment(i);
+                    if(null == info)
+                        throw new IOException("No segment info of backup file " + i + " in " + this);
+                    long to = i == endLoc.getBackupFileIndex() ? endLoc.getBackupFileOffset() + 1 : info.getEndOffset();
+                    if(from >= to)
+                        continue;
+                    //sequences jump over contents dropped in compacted backup file
+                    long first = i == startLoc.getBackupFileIndex() ? firstSequence : sequenceAt(i, from, info.getFirstSequence());
+                    FileChannel channel = FileChannel.open(getBackupFilePath(i), StandardOpenOption.READ);
+                    channels.add(channel);
+                    BackupFileHeader header = BackupFileHeader.read(channel);
+                    if(header.isEncrypted() && from > BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE) {
+                        //encrypted contents are exported from block head, import skips contents acknowledged in block
+                        BackupSparseIndex.Entry entry = BackupSparseIndex.floorByOffset(getSparseIndexPath(i), from);
+                        from = null == entry ? BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE : entry.getOffset();
+                        first = null == entry ? info.getFirstSequence() : entry.getSequence();
+                    }
+                    NavigableMap<Long, Long> sequences = new TreeMap<>();
+                    NavigableMap<Long, Long> compacted = compactedSequencesOf(i);
+                    if(null != compacted) {
+                        for(Map.Entry<Long, Long> entry : compacted.subMap(from, true, to, false).entrySet())
+                            sequences.put(entry.getKey() - from, entry.getValue());
+                    }
+                    heads.add(new BackupArchive.SegmentHead(header, info.getMinTimestamp(), info.getMaxTimestamp(), to - from, first, sequences));
+                    froms.add(from);
+                }
+            }
+            long total = BackupArchive.writeHead(out, firstSequence);
+            for(int i = 0; i < channels.size(); i++)
+                total += BackupArchive.writeSegment(out, channels.get(i), heads.get(i), froms.get(i));
+            total += BackupArchive.writeEnd(out);
+            logger.info("{} bytes in {} backup files exported from {}, starting from sequence {}.", total, channels.size(), this, firstSequence);
+            return total;
+        } finally {
+            for(FileChannel channel : channels)
+                channel.close();
+        }
+    }
+
+    /**
+     * Import archive written by {@link #export(WritableByteChannel)} into current scope, which is initialized, empty,
+     * and not open for read or write. Records are copied into backup files with {@link FileChannel#transferFrom}, then
+     * sparse index and segments info are rebuilt from record heads, and meta data file is committed, so that contents
+     * are read from the first one in archive with sequences they have in exported backup scope. With key extractor in
+     * config, contents are read in the same pass, to rebuild scope index and bloom filters of sealed backup files.
+     * @param in    channel archive is read from
+     * @return count of contents imported
+     */
+    public long importFrom(final ReadableByteChannel in) throws IOException {
+        synchronized (syncWriteChannel) {
+            synchronized (syncReadChannel) {
+                if(!isInit() || couldWrite() || couldRead())
+                    throw new IllegalStateException("Backup scope " + this + " needs to be initialized and not open for import.");
+                if(this.metaData.getWriteSequence() != 0 || !this.segments.getSegments().isEmpty())
+                    throw new IllegalStateException("Backup scope " + this + " is not empty.");
+                long firstSequence = BackupArchive.readHead(in);
+                long sequence = firstSequence;
+                long count = 0;
+                long backupFileIndex = 0;
+                BackupArchive.SegmentHead head;
+                while(null != (head = BackupArchive.readSegmentHead(in))) {
+                    long end = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE + head.getLength();
+                    boolean sealed = end > head.getHeader().getMaxSize();
+                    try(FileChannel channel = FileChannel.open(getBackupFilePath(backupFileIndex), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                        BackupSparseIndex index = new BackupSparseIndex(getSparseIndexPath(backupFileIndex),
+                                this.config.getSparseIndexIntervalInByte(), this.config.getSparseIndexIntervalInContent())) {
+                        BackupFileHeader.readOrCreate(channel, head.getHeader());
+                        BackupArchive.readSegment(in, channel, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE, head.getLength());
+                        sequence = indexImported(channel, index, backupFileIndex, head, end, sealed);
+                    }
+                    BackupSegments.SegmentInfo info = this.segments.getSegment(backupFileIndex);
+                    if(null != info)
+                        count += info.getContentCount();
+                    addDiskUsage(end);
+                    this.metaData.setReadEnd(new BackupLocation(backupFileIndex, end - 1));
+                    //the last backup file goes on with write, unless it is full
+                    BackupLocation writeStartLoc = sealed ? new BackupLocation(backupFileIndex + 1, 0) : new BackupLocation(backupFileIndex, end);
+                    this.metaData.setWriteStart(writeStartLoc, sequence);
+                    backupFileIndex++;
+                }
+                BackupLocation readStartLoc = backupFileIndex > 0 ? locateImported(firstSequence) : this.metaData.getAckStart();
+                //contents before the first sequence are exported with the block they are in, with consecutive sequences
+                BackupSegments.SegmentInfo firstInfo = this.segments.getSegment(0);
+                if(null != firstInfo && firstInfo.getFirstSequence() < firstSequence)
+                    count -= firstSequence - firstInfo.getFirstSequence();
+                if(backupFileIndex == 0)
+                    this.metaData.setWriteStart(this.metaData.getWriteStart(), sequence);
+                this.metaData.setAckStart(readStartLoc, firstSequence);
+                this.metaData.setReadStart(readStartLoc, firstSequence);
+                commitMeta();
+                logger.info("{} contents in {} backup files imported into {}, starting from sequence {}.", count, backupFileIndex, this, firstSequence);
+                notifyReadable();
+                return count;
+            }
+        }
+    }
+    /**
+     * @return location of content with passin sequence in the first imported backup file, which starts from block head
+     * before it if it is encrypted
+     */
+    private BackupLocation locateImported(long sequence) throws IOException {
+        BackupSegments.SegmentInfo info = this.segments.getSegment(0);
+        if(null == info || info.getFirstSequence() >= sequence)
+            return new BackupLocation(0, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+        try(IBackupReader scan = newScanReader(getBackupFilePath(0))) {
+            scan.seek(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+            long seq = sequenceAt(0, scan.position(), info.getFirstSequence());
+            while(seq < sequence && null != scan.read())
+                seq = sequenceAt(0, scan.position(), seq + 1);
+            return new BackupLocation(0, scan.position());
+        }
+    }
+
+    /**
+     * Rebuild sparse index and segments info of imported backup file from record heads, and block heads if it is
+     * encrypted, contents are not read unless there is key extractor in config. Records are numbered from the first sequence in segment head, and take
+     * sequences in segment head where sequence jumps.
+     * @param sealed    true if backup file is full, bloom filter of its keys is written
+     * @return sequence of next content
+     */
+    private long indexImported(final FileChannel channel, final BackupSparseIndex index, long backupFileIndex,
+                               final BackupArchive.SegmentHead head, long end, boolean sealed) throws IOException {
+        BackupFileHeader header = head.getHeader();
+        BackupKeyExtractor extractor = this.config.getKeyExtractor();
+        BackupBloomFilter.Builder bloom = null != extractor && sealed ? new BackupBloomFilter.Builder() : null;
+        IBackupReader reader = null == extractor ? null : newScanReader(getBackupFilePath(backupFileIndex));
+        ByteBuffer recordHead = ByteBuffer.allocate(header.getRecordHeadSize());
+        //encrypted backup file is indexed at block heads, by count of contents in block head
+        ByteBuffer blockHead = header.isEncrypted() ? ByteBuffer.allocate(BackupCipher.BLOCK_HEAD_SIZE_IN_BYTE) : null;
+        int blockRemaining = 0;
+        long blockOffset = 0;
+        long blockSequence = 0;
+        long sequence = head.getFirstSequence();
+        boolean jumped = false;
+        long offset = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+        try {
+            if(null != reader)
+                reader.seek(offset);
+            while(offset < end) {
+                recordHead.clear();
+                while(recordHead.hasRemaining()) {
+                    if(channel.read(recordHead, offset + recordHead.position()) < 0)
+                        throw new IOException("Incomplete record head at " + offset + " in backup file " + backupFileIndex);
+                }
+                recordHead.flip();
+                long size = BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + recordHead.getInt();
+                //without record timestamp, the first content takes min timestamp of segment and the others max timestamp
+                long timestamp = header.hasRecordTimestamp() ? recordHead.getLong()
+                        : (offset == BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE ? head.getMinTimestamp() : head.getMaxTimestamp());
+                if(size < header.getRecordHeadSize() || offset + size > end)
+                    throw new IOException("Invalid record at " + offset + " in backup file " + backupFileIndex + ", size " + size);
+                Long jump = head.getSequences().get(offset - BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+                if(null != jump && jump != sequence) {
+                    sequence = jump;
+                    jumped = true;
+                }
+                if(null == blockHead) {
+                    index.onAppend(sequence, timestamp, offset, size);
+                } else {
+                    if(blockRemaining == 0) {
+                        blockHead.clear();
+                        while(blockHead.hasRemaining() && size - header.getRecordHeadSize() >= blockHead.capacity()) {
+                            if(channel.read(blockHead, offset + header.getRecordHeadSize() + blockHead.position()) < 0)
+                                break;
+                        }
+                        blockRemaining = blockHead.hasRemaining() ? -1 : BackupCipher.countOf(ByteBuffer.wrap(blockHead.array()));
+                        if(blockRemaining < 0)
+                            throw new IOException("Invalid block head at " + offset + " in backup file " + backupFileIndex);
+                        blockOffset = offset;
+                        blockSequence = sequence;
+                    }
+                    if(--blockRemaining == 0)
+                        index.onAppend(blockSequence, (int) (sequence - blockSequence + 1), timestamp, blockOffset, offset + size - blockOffset);
+                }
+                this.segments.onAppend(backupFileIndex, header.getMaxSize(), sequence, 1, timestamp, offset + size);
+                if(null != reader) {
+                    byte[] content = reader.read();
+                    if(null == content || reader.position() != offset + size)
+                        throw new IOException("Fail to read content at " + offset + " in backup file " + backupFileIndex);
+                    String key = extractor.keyOf(content);
+                    if(null != key) {
+                        BackupIndex.IndexItem previous = this.index.put(key, backupFileIndex, offset, content.length);
+                        if(null != previous)
+                            this.segments.onObsolete(previous.getBackupFileIndex());
+                        if(null != bloom)
+                            bloom.add(BackupBloomFilter.hash(key));
+                    }
+                }
+                offset += size;
+                sequence++;
+            }
+        } finally {
+            if(null != reader)
+                reader.close();
+        }
+        //sequences of imported backup file are found from its sparse index, as in compacted backup file
+        if(jumped)
+            this.segments.markCompacted(backupFileIndex);
+        if(null != bloom) {
+            BackupBloomFilter filter = bloom.build(this.config.getBloomFilterFalsePositiveRate());
+            filter.write(getBloomFilterPath(backupFileIndex));
+            this.bloomFilters.put(backupFileIndex, filter);
+        }
+        return sequence;
+    }
+
+    /**
+     * @return bytes of passin count of records with passin content length in total, appended together to backup file
+     * created with current config. Write is admitted with it before write monitor is taken, when backup file to
+     * write may not be open yet.
+     */
+    private long writeSizeOf(int count, long length) {
+        long recordHeadSize = BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE
+                + (this.config.isRecordTimestamp() ? BackupFileHeader.RECORD_TIMESTAMP_SIZE_IN_BYTE : 0);
+        return recordHeadSize * count + length + (this.config.isEncryption() ? BackupCipher.BLOCK_HEAD_SIZE_IN_BYTE : 0);
+    }
+
+    /**
+     * Check write of passin size against disk quotas and write rate limits of current scope and backup context, write
+     * waits, fails or drops oldest backup files according to quota policy. Disk quotas are checked before any rate
+     * limit tokens are taken, and tokens taken from rate limit of scope are given back if rate limit of backup context
+     * refuses write. Invoked before write monitor is taken, so that flush, drain and close do not wait for write
+     * waiting here.
+     * @param size  bytes to write
+     */
+    private void admitWrite(long size) throws IOException {
+        BackupScopeConfig.QuotaPolicy policy = this.config.getQuotaPolicy();
+        long deadline = System.currentTimeMillis() + this.config.getQuotaBlockTimeoutInMillis();
+        String exceeded;
+        while(null != (exceeded = exceededQuota(size))) {
+            switch (policy) {
+                case REJECT:
+                    throw new BackupLimitExceededException(exceeded);
+                case DROP_OLDEST:
+                    if(!dropOldestBackupFile())
+                        throw new BackupLimitExceededException(exceeded + ", and there is no backup file to drop.");
+                    break;
+                case BLOCK:
+                default:
+                    long remaining = deadline - System.currentTimeMillis();
+                    if(remaining <= 0)
+                        throw new BackupLimitExceededException(exceeded + ", after waiting " + this.config.getQuotaBlockTimeoutInMillis() + " ms.");
+                    try {
+                        synchronized (diskUsageInByte) {
+                            diskUsageInByte.wait(Math.min(remaining, QUOTA_CHECK_INTERVAL_IN_MILLIS));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for disk quota of " + this);
+                    }
+            }
+        }
+        acquireWrite(writeLimiter, size, policy);
+        if(null == this.backupContext)
+            return;
+        try {
+            acquireWrite(this.backupContext.getWriteLimiter(), size, policy);
+        } catch (IOException e) {
+            if(null != writeLimiter)
+                writeLimiter.release(size);
+            throw e;
+        }
+    }
+
+    /**
+     * Give back rate limit tokens taken by {@link #admitWrite(long)}, for write failed or refused after it is admitted.
+     */
+    private void releaseWrite(long size) {
+        if(null != writeLimiter)
+            writeLimiter.release(size);
+        if(null != this.backupContext && null != this.backupContext.getWriteLimiter())
+            this.backupContext.getWriteLimiter().release(size);
+    }
+
+    private void acquireWrite(final BackupRateLimiter limiter, long size, final BackupScopeConfig.QuotaPolicy policy) throws IOException {
+        if(null == limiter)
+            return;
+        if(policy != BackupScopeConfig.QuotaPolicy.REJECT)
+            limiter.acquire(size);
+        else if(!limiter.tryAcquire(size))
+            throw new BackupLimitExceededException("Write rate limit " + limiter.getRatePerSecond() + " byte/s reached writing " + this);
+    }
+
+    /**
+     * @return description of disk quota passin bytes go beyond, or null if there is room
+     */
+    private String exceededQuota(long size) {
+        long quota = this.config.getDiskQuotaInByte();
+        if(quota > 0 && diskUsageInByte.get() + size > quota)
+            return "Disk quota " + quota + " of " + this + " exceeded";
+        if(null != this.backupContext) {
+            long contextQuota = this.backupContext.getConfig().getDiskQuotaInByte();
+            if(contextQuota > 0 && this.backupContext.getDiskUsageInByte() + size > contextQuota)
+                return "Disk quota " + contextQuota + " of " + this.backupContext + " exceeded writing " + this;
+        }
+        return null;
+    }
+
+    /**
+     * delete oldest backup file of current scope, backup file writer is on is never deleted
+     * @return true if backup file is deleted
+     */
+    private boolean dropOldestBackupFile() throws IOException {
+        List<BackupSegments.SegmentInfo> infos = this.segments.getSegments();
+        if(infos.isEmpty() || infos.get(0).getBackupFileIndex() >= this.metaData.getWriteStart().getBackupFileIndex())
+            return false;
+        logger.warn("Backup file {} dropped for disk quota.", infos.get(0));
+        deleteBackupFiles(Collections.singletonList(infos.get(0)));
+        return true;
+    }
+
+    /**
+     * update size of backup files in current scope and backup context, writes waiting for disk quota are woken up when
+     * backup files are deleted
+     */
+    private void addDiskUsage(long delta) {
+        diskUsageInByte.addAndGet(delta);
+        if(null != this.backupContext) {
+            this.backupContext.onDiskUsage(delta);
+            if(delta > 0 && writeDataDirIndex >= 0)
+                this.backupContext.onWritten(writeDataDirIndex, delta);
+        }
+        if(delta < 0) {
+            synchronized (diskUsageInByte) {
+                diskUsageInByte.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return total size of backup files in current scope
+     */
+    public long getDiskUsageInByte() {
+        return this.diskUsageInByte.get();
+    }
+
+    /**
+     * Take stats of backlog and health of current scope. Positions are taken from one snapshot of meta data, backlog is
+     * summed up from end offset and content count in segment info of each backup file, and timestamp of the oldest
+     * content not read is looked up in sparse index once for each read start, so that stats could be polled often,
+     * without waiting for read or write of current scope, and without reading heads of backup files.
+     * @return stats of current scope, or null if scope is not initialized
+     */
+    public BackupScopeStats getStats() throws IOException {
+        if(!isInit())
+            return null;
+        BackupMeta.Snapshot snapshot = this.metaData.snapshot();
+        BackupSegments.Backlog unread = this.segments.backlog(snapshot.getReadStart(), snapshot.getReadSequence());
+        BackupSegments.Backlog unacked = this.segments.backlog(snapshot.getAckStart(), snapshot.getAckSequence());
+        long oldestUnreadTimestamp = unread.getContentCount() > 0 ? oldestUnreadTimestamp(snapshot) : -1;
+        return new BackupScopeStats(this.scopeId, System.currentTimeMillis(), unread.getSegmentCount(), getDiskUsageInByte(),
+                unread.getByteCount(), unread.getContentCount(), unacked.getByteCount(), unacked.getContentCount(),
+                oldestUnreadTimestamp, snapshot.getReadSequence(), snapshot.getAckSequence(), snapshot.getWriteSequence());
+    }
+
+    /**
+     * @return append timestamp of content at read start of passin snapshot, or of the sparse index entry before it
+     */
+    private long oldestUnreadTimestamp(final BackupMeta.Snapshot snapshot) throws IOException {
+        long readSequence = snapshot.getReadSequence();
+        OldestUnread cached = this.oldestUnread;
+        if(null != cached && cached.readSequence == readSequence)
+            return cached.timestamp;
+        long backupFileIndex = snapshot.getReadStart().getBackupFileIndex();
+        BackupSegments.SegmentInfo info = this.segments.getSegment(backupFileIndex);
+        //read start at the end of backup file goes on with the next one
+        if(null == info || readSequence >= info.getFirstSequence() + info.getContentCount())
+            info = this.segments.getSegment(backupFileIndex + 1);
+        if(null == info)
+            return -1;
+        long timestamp = info.getMinTimestamp();
+        if(readSequence > info.getFirstSequence()) {
+            BackupSparseIndex.Entry entry = BackupSparseIndex.floorBySequence(getSparseIndexPath(info.getBackupFileIndex()), readSequence);
+            if(null != entry)
+                timestamp = entry.getTimestamp();
+        }
+        this.oldestUnread = new OldestUnread(readSequence, timestamp);
+        return timestamp;
+    }
+
+    /**
+     * Async write to backup file, function answers with {@link Future<Integer>} for future byte count. In
+     * {@link BackupScopeConfig.IOMode#ASYNC} mode, write is issued in caller thread and future is completed by I/O
+     * completion, otherwise write is done in write executor of current scope.
+     * @param contents content to write to backup file
+     * @return  future
+     * @throws RejectedExecutionException
+     */
+    public Future<Integer> writeAsync(final byte[] contents) throws RejectedExecutionException {
+        if(this.config.getIOMode() == BackupScopeConfig.IOMode.ASYNC) {
+            try {
+                return appendAsync(contents);
+            } catch (IOException e) {
+                CompletableFuture<Integer> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+        return writeExecutor().submit((Callable<Integer>) () -> {
             int count = tryWrite(contents);
             return count;
         });
@@ -1,5 +1,6 @@
 package com.youzan.filebackup.context;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -28,6 +29,20 @@ public class BackupScopeBuilder {
         return new BackupScopeBuilder(path, scopeId);
     }
 
+    /**
+     * Create builder of backup scope placed on one of data directories of passin backup context, see
+     * {@link BackupContextConfig#setDataDirs(String...)}. Backup scope is set with passin backup context already.
+     * @param backupContext backup context with data directories
+     * @param scopeId   backup scope id
+     */
+    public static BackupScopeBuilder create(final BackupContext backupContext, String scopeId) throws IOException {
+        if(null == backupContext)
+            throw new IllegalArgumentException("Backup context could not be null.");
+        if(null == scopeId || scopeId.isEmpty())
+            throw new IllegalArgumentException("Scope Id passin could not be null.");
+        return new BackupScopeBuilder(backupContext.placeScope(scopeId), scopeId).setBackupContext(backupContext);
+    }
+
     public BackupScopeBuilder setBackupContext(final BackupContext backupContext) {
         this.nestedScope.setBackupContext(backupContext);
         return this;
@@ -1,5 +1,8 @@
 package com.youzan.filebackup.context;
 
+import com.youzan.filebackup.files.BackupChannelFactory;
+import com.youzan.filebackup.files.BackupCipher;
+import com.youzan.filebackup.replica.BackupReplicaTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,10 +16,104 @@ public class BackupScopeConfig {
     //100KB default value
     private volatile long backupContentBufferSizeInByte = 100 * 1024;
     private int writeExecutorTerminationAwaitTimeoutInSecond = 10;
+    private volatile IOMode ioMode = IOMode.FILE_CHANNEL;
+    //0 disables cache of recently written contents
+    private volatile int tailCacheSizeInByte = 0;
+    //0 maps backup file till its max size in MEMORY_MAPPED mode
+    private volatile long mappedPreallocateSizeInByte = 0;
+    private volatile FlushPolicy flushPolicy = FlushPolicy.NONE;
+    //1MB default value
+    private volatile long flushIntervalInByte = 1024 * 1024;
+    //4KB of contents between two sparse index entries
+    private volatile long sparseIndexIntervalInByte = 4 * 1024;
+    //0 indexes with byte interval only
+    private volatile long sparseIndexIntervalInContent = 0;
+    //append timestamp is written in each record of newly created backup file
+    private volatile boolean recordTimestamp = false;
+    //0 disables retention by age of backup file
+    private volatile long retentionTimeInMillis = 0;
+    //0 disables retention by total size of backup files
+    private volatile long retentionSizeInByte = 0;
+    //1 minute between two retention checks
+    private volatile long retentionCheckIntervalInMillis = 60 * 1000;
+    //0 disables read-ahead
+    private volatile long readAheadSizeInByte = 0;
+    //read start is acknowledged as soon as content is read
+    private volatile boolean autoAck = true;
+    //meta data file is committed after 1000 contents are acknowledged
+    private volatile long ackCommitIntervalInContent = 1000;
+    //write and read bandwidth of backup scope, 0 for no limit
+    private volatile long writeRateInBytePerSecond = 0;
+    private volatile long readRateInBytePerSecond = 0;
+    //max total size of backup files in backup scope, 0 for no limit
+    private volatile long diskQuotaInByte = 0;
+    private volatile QuotaPolicy quotaPolicy = QuotaPolicy.BLOCK;
+    private volatile long quotaBlockTimeoutInMillis = 10 * 1000;
+    //size new backup files from write rate, within min and max bytes
+    private volatile boolean adaptiveSegmentSize = false;
+    private volatile long segmentMinByte = 1024 * 1024;
+    private volatile long segmentMaxByte = 64 * 1024 * 1024;
+    //time in which backup file of adaptive size is expected to be filled
+    private volatile long segmentTargetFillTimeInMillis = 60 * 1000;
+    //null disables key index and compaction
+    private volatile BackupKeyExtractor keyExtractor = null;
+    //0 disables background compaction
+    private volatile long compactionIntervalInMillis = 0;
+    //ratio of contents overwritten in backup file, beyond which backup file is compacted
+    private volatile double compactionMinObsoleteRatio = 0.5;
+    //false positive rate of bloom filter of keys in each sealed backup file
+    private volatile double bloomFilterFalsePositiveRate = 0.01;
+    //opener of channels of backup files written in FILE_CHANNEL and ASYNC mode
+    private volatile BackupChannelFactory channelFactory = BackupChannelFactory.DEFAULT;
+    //null disables replication
+    private volatile BackupReplicaTransport replicaTransport = null;
+    private volatile long replicationIntervalInMillis = 1000;
+    //false replicates sealed backup files only
+    private volatile boolean replicateActiveSegment = false;
+    //null writes contents unencrypted
+    private volatile BackupCipher cipher = null;
 
     public static final int BACKUP_ITEM_MAX_SIZE_IN_BYTE = 4;
     public static final int BACKUP_FILE_MAX_SIZE_IN_BYTE = 8;
 
+    /**
+     * I/O engine which backup scope reads and writes backup files with.
+     */
+    public enum IOMode {
+        //positional read/write with FileChannel
+        FILE_CHANNEL,
+        //read/write on memory mapped backup file
+        MEMORY_MAPPED,
+        //write with AsynchronousFileChannel completed in threads shared by backup context, read with FileChannel
+        ASYNC,
+    }
+
+    /**
+     * Policy of flushing written contents to storage device.
+     */
+    public enum FlushPolicy {
+        //flush is left to OS
+        NONE,
+        //flush when backup file is closed, on rollover or close of write
+        ON_CLOSE,
+        //flush when bytes written since last flush exceed flush interval
+        INTERVAL,
+        //flush after each write
+        EVERY_WRITE,
+    }
+
+    /**
+     * Behavior of write when disk quota of backup scope or backup context is exceeded, or write rate limit is reached.
+     */
+    public enum QuotaPolicy {
+        //wait till there is room, or quota block timeout elapses
+        BLOCK,
+        //fail write with BackupLimitExceededException
+        REJECT,
+        //delete oldest backup files of backup scope to make room for write, block on write rate limit
+        DROP_OLDEST,
+    }
+
     public long getBackupFileMaxByte() {
         return backupFileMaxByte;
     }
@@ -49,4 +146,494 @@ public class BackupScopeConfig {
         this.backupContentBufferSizeInByte = newBufferSizeInByte;
         return this;
     }
+
+    public IOMode getIOMode() {
+        return this.ioMode;
+    }
+
+    public BackupScopeConfig setIOMode(final IOMode ioMode) {
+        if(null == ioMode)
+            throw new IllegalArgumentException("IO mode could not be null.");
+        this.ioMode = ioMode;
+        return this;
+    }
+
+    public int getTailCacheSizeInByte() {
+        return this.tailCacheSizeInByte;
+    }
+
+    /**
+     * Set size of off-heap cache keeping contents most recently written, reader close behind writer reads from cache
+     * instead of backup file. 0 disables cache.
+     * @param tailCacheSizeInByte   cache size in byte
+     */
+    public BackupScopeConfig setTailCacheSizeInByte(int tailCacheSizeInByte) {
+        if(tailCacheSizeInByte < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.tailCacheSizeInByte = tailCacheSizeInByte;
+        return this;
+    }
+
+    public long getMappedPreallocateSizeInByte() {
+        return this.mappedPreallocateSizeInByte;
+    }
+
+    /**
+     * Set size of chunk which memory mapped backup file is preallocated and mapped in. 0 maps backup file till its
+     * max size at once. One mapping holds at most 2GB, backup file beyond that is mapped in windows.
+     * @param preallocateSizeInByte preallocate size in byte
+     */
+    public BackupScopeConfig setMappedPreallocateSizeInByte(long preallocateSizeInByte) {
+        if(preallocateSizeInByte < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.mappedPreallocateSizeInByte = preallocateSizeInByte;
+        return this;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return this.flushPolicy;
+    }
+
+    public BackupScopeConfig setFlushPolicy(final FlushPolicy flushPolicy) {
+        if(null == flushPolicy)
+            throw new IllegalArgumentException("Flush policy could not be null.");
+        this.flushPolicy = flushPolicy;
+        return this;
+    }
+
+    public long getFlushIntervalInByte() {
+        return this.flushIntervalInByte;
+    }
+
+    public BackupScopeConfig setFlushIntervalInByte(long flushIntervalInByte) {
+        if(flushIntervalInByte <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.flushIntervalInByte = flushIntervalInByte;
+        return this;
+    }
+
+    public long getSparseIndexIntervalInByte() {
+        return this.sparseIndexIntervalInByte;
+    }
+
+    /**
+     * Set bytes of contents between two entries of sparse index of backup file. Seek goes to the nearest entry and
+     * scans contents after it, smaller interval makes shorter scan and bigger index.
+     * @param intervalInByte    interval in byte
+     */
+    public BackupScopeConfig setSparseIndexIntervalInByte(long intervalInByte) {
+        if(intervalInByte <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.sparseIndexIntervalInByte = intervalInByte;
+        return this;
+    }
+
+    public long getSparseIndexIntervalInContent() {
+        return this.sparseIndexIntervalInContent;
+    }
+
+    /**
+     * Set count of contents between two entries of sparse index of backup file, entry is written when either byte or
+     * content interval is reached. 0 indexes with byte interval only.
+     * @param intervalInContent interval in content count
+     */
+    public BackupScopeConfig setSparseIndexIntervalInContent(long intervalInContent) {
+        if(intervalInContent < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.sparseIndexIntervalInContent = intervalInContent;
+        return this;
+    }
+
+    public boolean isRecordTimestamp() {
+        return this.recordTimestamp;
+    }
+
+    /**
+     * Set whether append timestamp is written in each record. Setting applies to backup files created afterwards,
+     * existing backup files keep their record format.
+     * @param recordTimestamp   true to write record timestamp
+     */
+    public BackupScopeConfig setRecordTimestamp(boolean recordTimestamp) {
+        this.recordTimestamp = recordTimestamp;
+        return this;
+    }
+
+    public long getRetentionTimeInMillis() {
+        return this.retentionTimeInMillis;
+    }
+
+    /**
+     * Set retention time of backup files. Backup file is deleted once its last content is appended longer than
+     * retention time ago. 0 disables retention by time.
+     * @param retentionTimeInMillis retention time in millisecond
+     */
+    public BackupScopeConfig setRetentionTimeInMillis(long retentionTimeInMillis) {
+        if(retentionTimeInMillis < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.retentionTimeInMillis = retentionTimeInMillis;
+        return this;
+    }
+
+    public long getRetentionSizeInByte() {
+        return this.retentionSizeInByte;
+    }
+
+    /**
+     * Set max total size of backup files in backup scope. Oldest backup files are deleted when total size goes
+     * beyond it. 0 disables retention by size.
+     * @param retentionSizeInByte   retention size in byte
+     */
+    public BackupScopeConfig setRetentionSizeInByte(long retentionSizeInByte) {
+        if(retentionSizeInByte < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.retentionSizeInByte = retentionSizeInByte;
+        return this;
+    }
+
+    public long getRetentionCheckIntervalInMillis() {
+        return this.retentionCheckIntervalInMillis;
+    }
+
+    public BackupScopeConfig setRetentionCheckIntervalInMillis(long retentionCheckIntervalInMillis) {
+        if(retentionCheckIntervalInMillis <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.retentionCheckIntervalInMillis = retentionCheckIntervalInMillis;
+        return this;
+    }
+
+    /**
+     * @return true if either retention by time or by size is enabled
+     */
+    public boolean isRetentionEnabled() {
+        return this.retentionTimeInMillis > 0 || this.retentionSizeInByte > 0;
+    }
+
+    public long getReadAheadSizeInByte() {
+        return this.readAheadSizeInByte;
+    }
+
+    /**
+     * Set size of buffer which background thread reads contents ahead into, so that disk read overlaps with processing
+     * of consumer. 0 disables read-ahead.
+     * @param readAheadSizeInByte   read-ahead buffer size in byte
+     */
+    public BackupScopeConfig setReadAheadSizeInByte(long readAheadSizeInByte) {
+        if(readAheadSizeInByte < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.readAheadSizeInByte = readAheadSizeInByte;
+        return this;
+    }
+
+    public boolean isAutoAck() {
+        return this.autoAck;
+    }
+
+    /**
+     * Set whether contents are acknowledged as soon as they are read. When it is off, read moves an in-memory read
+     * position, and read start persisted only moves with {@link BackupScope#ack(long)}. Contents not acknowledged are
+     * read again after restart.
+     * @param autoAck   true to acknowledge on read
+     */
+    public BackupScopeConfig setAutoAck(boolean autoAck) {
+        this.autoAck = autoAck;
+        return this;
+    }
+
+    public long getAckCommitIntervalInContent() {
+        return this.ackCommitIntervalInContent;
+    }
+
+    /**
+     * Set count of contents acknowledged between two commits of meta data file, meta data file is also committed when
+     * read closes.
+     * @param ackCommitIntervalInContent    interval in content count
+     */
+    public BackupScopeConfig setAckCommitIntervalInContent(long ackCommitIntervalInContent) {
+        if(ackCommitIntervalInContent <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.ackCommitIntervalInContent = ackCommitIntervalInContent;
+        return this;
+    }
+
+    public long getWriteRateInBytePerSecond() {
+        return this.writeRateInBytePerSecond;
+    }
+
+    /**
+     * Set max bytes written into backup scope per second, burst up to one second of writes is allowed. 0 disables
+     * write rate limit.
+     * @param writeRateInBytePerSecond  write rate in byte per second
+     */
+    public BackupScopeConfig setWriteRateInBytePerSecond(long writeRateInBytePerSecond) {
+        if(writeRateInBytePerSecond < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.writeRateInBytePerSecond = writeRateInBytePerSecond;
+        return this;
+    }
+
+    public long getReadRateInBytePerSecond() {
+        return this.readRateInBytePerSecond;
+    }
+
+    /**
+     * Set max bytes read from backup scope per second, read waits when it goes beyond. 0 disables read rate limit.
+     * @param readRateInBytePerSecond   read rate in byte per second
+     */
+    public BackupScopeConfig setReadRateInBytePerSecond(long readRateInBytePerSecond) {
+        if(readRateInBytePerSecond < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.readRateInBytePerSecond = readRateInBytePerSecond;
+        return this;
+    }
+
+    public long getDiskQuotaInByte() {
+        return this.diskQuotaInByte;
+    }
+
+    /**
+     * Set max total size of backup files in backup scope. Unlike retention size, write which goes beyond disk quota is
+     * handled by quota policy before it is written. 0 disables disk quota.
+     * @param diskQuotaInByte   disk quota in byte
+     */
+    public BackupScopeConfig setDiskQuotaInByte(long diskQuotaInByte) {
+        if(diskQuotaInByte < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.diskQuotaInByte = diskQuotaInByte;
+        return this;
+    }
+
+    public QuotaPolicy getQuotaPolicy() {
+        return this.quotaPolicy;
+    }
+
+    public BackupScopeConfig setQuotaPolicy(final QuotaPolicy quotaPolicy) {
+        if(null == quotaPolicy)
+            throw new IllegalArgumentException("Quota policy could not be null.");
+        this.quotaPolicy = quotaPolicy;
+        return this;
+    }
+
+    public long getQuotaBlockTimeoutInMillis() {
+        return this.quotaBlockTimeoutInMillis;
+    }
+
+    /**
+     * Set max wait of write for room under disk quota with {@link QuotaPolicy#BLOCK}, write fails after timeout.
+     * @param quotaBlockTimeoutInMillis timeout in millisecond
+     */
+    public BackupScopeConfig setQuotaBlockTimeoutInMillis(long quotaBlockTimeoutInMillis) {
+        if(quotaBlockTimeoutInMillis < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.quotaBlockTimeoutInMillis = quotaBlockTimeoutInMillis;
+        return this;
+    }
+
+    public boolean isAdaptiveSegmentSize() {
+        return this.adaptiveSegmentSize;
+    }
+
+    /**
+     * Set whether max size of new backup file is sized from recent write rate of backup scope, so that backup file is
+     * filled in about segment target fill time, within segment min and max bytes. Max size is kept in head of each
+     * backup file, existing backup files keep their size. When it is off, backup file max byte applies.
+     * @param adaptiveSegmentSize   true to size backup files from write rate
+     */
+    public BackupScopeConfig setAdaptiveSegmentSize(boolean adaptiveSegmentSize) {
+        this.adaptiveSegmentSize = adaptiveSegmentSize;
+        return this;
+    }
+
+    public long getSegmentMinByte() {
+        return this.segmentMinByte;
+    }
+
+    /**
+     * Set min size of backup file sized from write rate, which could not go beyond segment max bytes set.
+     * @param segmentMinByte    min size in byte
+     */
+    public BackupScopeConfig setSegmentMinByte(long segmentMinByte) {
+        if(segmentMinByte <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        if(segmentMinByte > this.segmentMaxByte)
+            throw new IllegalArgumentException("Segment min byte " + segmentMinByte + " goes beyond segment max byte " + this.segmentMaxByte);
+        this.segmentMinByte = segmentMinByte;
+        return this;
+    }
+
+    public long getSegmentMaxByte() {
+        return this.segmentMaxByte;
+    }
+
+    /**
+     * Set max size of backup file sized from write rate, which could not go below segment min bytes set.
+     * @param segmentMaxByte    max size in byte
+     */
+    public BackupScopeConfig setSegmentMaxByte(long segmentMaxByte) {
+        if(segmentMaxByte <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        if(segmentMaxByte < this.segmentMinByte)
+            throw new IllegalArgumentException("Segment max byte " + segmentMaxByte + " goes below segment min byte " + this.segmentMinByte);
+        this.segmentMaxByte = segmentMaxByte;
+        return this;
+    }
+
+    public long getSegmentTargetFillTimeInMillis() {
+        return this.segmentTargetFillTimeInMillis;
+    }
+
+    public BackupScopeConfig setSegmentTargetFillTimeInMillis(long segmentTargetFillTimeInMillis) {
+        if(segmentTargetFillTimeInMillis <= 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.segmentTargetFillTimeInMillis = segmentTargetFillTimeInMillis;
+        return this;
+    }
+
+    public BackupKeyExtractor getKeyExtractor() {
+        return this.keyExtractor;
+    }
+
+    /**
+     * Set extractor of key from contents written, so that location of the latest content of each key is kept in scope
+     * index, and sealed backup files could be compacted to keep the latest content of each key only. Null disables
+     * scope index and compaction.
+     * @param keyExtractor  key extractor
+     */
+    public BackupScopeConfig setKeyExtractor(final BackupKeyExtractor keyExtractor) {
+        this.keyExtractor = keyExtractor;
+        return this;
+    }
+
+    public long getCompactionIntervalInMillis() {
+        return this.compactionIntervalInMillis;
+    }
+
+    /**
+     * Set interval between two background compactions of backup scope, which needs key extractor. 0 disables
+     * background compaction, backup scope could still be compacted with {@link BackupScope#compact()}.
+     * @param compactionIntervalInMillis    compaction interval in millisecond
+     */
+    public BackupScopeConfig setCompactionIntervalInMillis(long compactionIntervalInMillis) {
+        if(compactionIntervalInMillis < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.compactionIntervalInMillis = compactionIntervalInMillis;
+        return this;
+    }
+
+    public double getCompactionMinObsoleteRatio() {
+        return this.compactionMinObsoleteRatio;
+    }
+
+    /**
+     * Set ratio of contents overwritten by later contents of the same key in backup file, beyond which backup file is
+     * compacted, so that backup file with few contents to drop is not rewritten over and over.
+     * @param compactionMinObsoleteRatio    ratio from 0 to 1
+     */
+    public BackupScopeConfig setCompactionMinObsoleteRatio(double compactionMinObsoleteRatio) {
+        if(compactionMinObsoleteRatio < 0 || compactionMinObsoleteRatio > 1)
+            throw new IllegalArgumentException("Compaction min obsolete ratio needs to be in [0, 1].");
+        this.compactionMinObsoleteRatio = compactionMinObsoleteRatio;
+        return this;
+    }
+
+    /**
+     * @return true if key extractor is set and background compaction is enabled
+     */
+    public boolean isCompactionEnabled() {
+        return null != this.keyExtractor && this.compactionIntervalInMillis > 0;
+    }
+
+    public double getBloomFilterFalsePositiveRate() {
+        return this.bloomFilterFalsePositiveRate;
+    }
+
+    /**
+     * Set false positive rate of bloom filter of keys, which is kept for each sealed backup file when key extractor is
+     * set. Lower rate skips more backup files on key lookup, with larger bloom filter.
+     * @param bloomFilterFalsePositiveRate  rate in (0, 1)
+     */
+    public BackupScopeConfig setBloomFilterFalsePositiveRate(double bloomFilterFalsePositiveRate) {
+        if(bloomFilterFalsePositiveRate <= 0 || bloomFilterFalsePositiveRate >= 1)
+            throw new IllegalArgumentException("Bloom filter false positive rate needs to be in (0, 1).");
+        this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+        return this;
+    }
+
+    public BackupChannelFactory getChannelFactory() {
+        return this.channelFactory;
+    }
+
+    /**
+     * Set opener of channels which backup files are written through in {@link IOMode#FILE_CHANNEL} and
+     * {@link IOMode#ASYNC} mode, so that channels could be wrapped for instrumentation or fault injection.
+     * @param channelFactory    channel factory
+     */
+    public BackupScopeConfig setChannelFactory(final BackupChannelFactory channelFactory) {
+        if(null == channelFactory)
+            throw new IllegalArgumentException("Channel factory could not be null.");
+        this.channelFactory = channelFactory;
+        return this;
+    }
+
+    public BackupReplicaTransport getReplicaTransport() {
+        return this.replicaTransport;
+    }
+
+    /**
+     * Set transport which backup files and meta data checkpoints are replicated through, asynchronously to writes.
+     * Transport could be shared by backup scopes, and is not closed with backup scope. Null disables replication.
+     * @param replicaTransport  replica transport
+     */
+    public BackupScopeConfig setReplicaTransport(final BackupReplicaTransport replicaTransport) {
+        this.replicaTransport = replicaTransport;
+        return this;
+    }
+
+    public long getReplicationIntervalInMillis() {
+        return this.replicationIntervalInMillis;
+    }
+
+    /**
+     * Set interval between two background replications of backup scope with replica transport. 0 disables background
+     * replication, backup scope could still be replicated with {@link BackupScope#replicate()}.
+     * @param replicationIntervalInMillis   replication interval in millisecond
+     */
+    public BackupScopeConfig setReplicationIntervalInMillis(long replicationIntervalInMillis) {
+        if(replicationIntervalInMillis < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.replicationIntervalInMillis = replicationIntervalInMillis;
+        return this;
+    }
+
+    public boolean isReplicateActiveSegment() {
+        return this.replicateActiveSegment;
+    }
+
+    /**
+     * Set whether backup file being written is replicated as it grows. Otherwise backup file is replicated once it is
+     * sealed, and replica lags behind by contents in backup file being written.
+     * @param replicateActiveSegment    true to replicate backup file being written
+     */
+    public BackupScopeConfig setReplicateActiveSegment(boolean replicateActiveSegment) {
+        this.replicateActiveSegment = replicateActiveSegment;
+        return this;
+    }
+
+    public BackupCipher getCipher() {
+        return this.cipher;
+    }
+
+    public boolean isEncryption() {
+        return null != this.cipher;
+    }
+
+    /**
+     * Set master key which contents are encrypted with, in AES-GCM with segment keys derived from master key, see
+     * {@link BackupCipher}. Setting applies to backup files created afterwards, existing backup files keep their
+     * record format. Backup files encrypted could not be read without master key. Null disables encryption.
+     * @param masterKey master key of 16, 24 or 32 bytes
+     */
+    public BackupScopeConfig setEncryptionKey(final byte[] masterKey) {
+        this.cipher = null == masterKey ? null : new BackupCipher(masterKey);
+        return this;
+    }
 }
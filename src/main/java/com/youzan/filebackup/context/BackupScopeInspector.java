@@ -0,0 +1,518 @@
+package com.youzan.filebackup.context;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.youzan.filebackup.files.BackupCipher;
+import com.youzan.filebackup.files.BackupFileHeader;
+import com.youzan.filebackup.files.BackupFileScanner;
+import com.youzan.filebackup.files.BackupLocation;
+import com.youzan.filebackup.files.BackupSegments;
+import com.youzan.filebackup.files.BackupSparseIndex;
+import com.youzan.filebackup.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Offline inspection of backup scope folder, which reads meta data, segments, scope index and stripes files as they
+ * are on disk, without taking lease of backup scope or writing anything. Backup files are scanned with memory mapping,
+ * see {@link BackupFileScanner}, in parallel on a fork-join pool, one backup file per task. Inspection is meant for
+ * backup scope which is not open in any process, files of backup scope being written could be read in the middle of
+ * commit.
+ */
+public class BackupScopeInspector {
+    private final static Pattern BACKUP_FILE_PATTERN = Pattern.compile("scope\\.backup_(\\d+)");
+
+    private final Path scopeFolder;
+    //meta data, segments and scope index in json, null if file is missing
+    private final JsonObject meta;
+    private final List<BackupSegments.SegmentInfo> segments;
+    private final JsonObject index;
+    //folders of backup files, null if backup files are not striped
+    private final List<Path> stripes;
+    //problems found in loading files of backup scope
+    private final List<String> loadProblems = new ArrayList<>();
+
+    /**
+     * Backup file of backup scope, with its segment info and result of scan.
+     */
+    public static class SegmentReport {
+        private final long backupFileIndex;
+        private final Path path;
+        private final BackupSegments.SegmentInfo info;
+        private final BackupFileScanner.Result result;
+        private final List<String> problems = new ArrayList<>();
+
+        SegmentReport(long backupFileIndex, final Path path, final BackupSegments.SegmentInfo info, final BackupFileScanner.Result result) {
+            this.backupFileIndex = backupFileIndex;
+            this.path = path;
+            this.info = info;
+            this.result = result;
+        }
+
+        public long getBackupFileIndex() {
+            return this.backupFileIndex;
+        }
+
+        public Path getPath() {
+            return this.path;
+        }
+
+        /**
+         * @return segment info, or null if backup file is not in segments file
+         */
+        public BackupSegments.SegmentInfo getInfo() {
+            return this.info;
+        }
+
+        /**
+         * @return result of scan, or null if backup file is missing or could not be scanned
+         */
+        public BackupFileScanner.Result getResult() {
+            return this.result;
+        }
+
+        public List<String> getProblems() {
+            return this.problems;
+        }
+    }
+
+    /**
+     * Record read by inspection.
+     */
+    public static class InspectedRecord {
+        private final long sequence;
+        private final BackupLocation location;
+        private final long timestamp;
+        private final byte[] content;
+        private final boolean encrypted;
+
+        InspectedRecord(long sequence, final BackupLocation location, long timestamp, final byte[] content, boolean encrypted) {
+            this.sequence = sequence;
+            this.location = location;
+            this.timestamp = timestamp;
+            this.content = content;
+            this.encrypted = encrypted;
+        }
+
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        public BackupLocation getLocation() {
+            return this.location;
+        }
+
+        /**
+         * @return record timestamp, or -1 if backup file has no record timestamp
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        public byte[] getContent() {
+            return this.content;
+        }
+
+        /**
+         * @return true if content is encrypted, as there is no master key to decrypt it
+         */
+        public boolean isEncrypted() {
+            return this.encrypted;
+        }
+    }
+
+    /**
+     * Visitor of records read by inspection.
+     */
+    public interface RecordVisitor {
+        /**
+         * @return false to stop read
+         */
+        boolean visit(final InspectedRecord record) throws IOException;
+    }
+
+    /**
+     * Load files of backup scope in passin folder.
+     * @param scopeFolder   folder of backup scope, which has meta data file in it
+     */
+    public BackupScopeInspector(final Path scopeFolder) throws IOException {
+        if(!Files.isDirectory(scopeFolder))
+            throw new IOException("Backup scope folder " + scopeFolder + " does not exist.");
+        this.scopeFolder = scopeFolder;
+        this.meta = loadJsonObject(BackupScope.SCOPE_META_FILE_NAME);
+        this.index = loadJsonObject(BackupScope.SCOPE_INDEX_FILE_NAME);
+        List<BackupSegments.SegmentInfo> sorted = new ArrayList<>();
+        JsonElement segments = loadJson(BackupScope.SCOPE_SEGMENTS_FILE_NAME);
+        if(null != segments) {
+            try {
+                List<BackupSegments.SegmentInfo> infos = IOUtils.getGson().fromJson(segments, new TypeToken<List<BackupSegments.SegmentInfo>>(){}.getType());
+                if(null != infos)
+                    sorted.addAll(infos);
+            } catch (JsonParseException e) {
+                loadProblems.add(BackupScope.SCOPE_SEGMENTS_FILE_NAME + " is not a list of segment info, " + e.getMessage());
+            }
+        }
+        sorted.sort((a, b) -> Long.compare(a.getBackupFileIndex(), b.getBackupFileIndex()));
+        this.segments = Collections.unmodifiableList(sorted);
+        Path stripesPath = scopeFolder.resolve(BackupScope.SCOPE_STRIPES_FILE_NAME);
+        if(Files.exists(stripesPath)) {
+            List<Path> folders = new ArrayList<>();
+            for(String line : Files.readAllLines(stripesPath, StandardCharsets.UTF_8)) {
+                if(!line.isEmpty())
+                    folders.add(Paths.get(line));
+            }
+            this.stripes = folders.isEmpty() ? null : folders;
+        } else {
+            this.stripes = null;
+        }
+    }
+
+    /**
+     * @return json in file, or null if file is missing or broken
+     */
+    private JsonElement loadJson(final String fileName) throws IOException {
+        Path path = this.scopeFolder.resolve(fileName);
+        if(!Files.exists(path))
+            return null;
+        try {
+            return new JsonParser().parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        } catch (JsonParseException e) {
+            loadProblems.add(fileName + " is broken, " + e.getMessage());
+            return null;
+        }
+    }
+
+    private JsonObject loadJsonObject(final String fileName) throws IOException {
+        JsonElement json = loadJson(fileName);
+        if(null == json || json.isJsonObject())
+            return null == json ? null : json.getAsJsonObject();
+        loadProblems.add(fileName + " is not a json object.");
+        return null;
+    }
+
+    public Path getScopeFolder() {
+        return this.scopeFolder;
+    }
+
+    /**
+     * @return meta data in pretty printed json, or null if meta data file is missing or broken
+     */
+    public String getMetaJson() {
+        return null == meta ? null : new GsonBuilder().setPrettyPrinting().create().toJson(meta);
+    }
+
+    /**
+     * @return location in meta data, like "readStart", or null if there is none
+     */
+    public BackupLocation getMetaLocation(final String name) {
+        if(null == meta || !meta.has(name))
+            return null;
+        return IOUtils.getGson().fromJson(meta.get(name), BackupLocation.class);
+    }
+
+    /**
+     * @return sequence in meta data, like "writeSequence", or -1 if there is none
+     */
+    public long getMetaSequence(final String name) {
+        return null == meta || !meta.has(name) ? -1 : meta.get(name).getAsLong();
+    }
+
+    /**
+     * @return segment info in segments file, in order of backup file index
+     */
+    public List<BackupSegments.SegmentInfo> getSegments() {
+        return this.segments;
+    }
+
+    /**
+     * @return count of keys in scope index, or -1 if there is no scope index file
+     */
+    public int getKeyCount() {
+        return null == index ? -1 : index.size();
+    }
+
+    /**
+     * @return folders backup files are striped across, or null if backup files are in backup scope folder
+     */
+    public List<Path> getStripes() {
+        return this.stripes;
+    }
+
+    public Path getBackupFilePath(long backupFileIndex) {
+        Path folder = null == stripes ? scopeFolder : stripes.get((int) (backupFileIndex % stripes.size()));
+        return folder.resolve(String.format(BackupScope.SCOPE_BACKUP_FILE_NAME, backupFileIndex));
+    }
+
+    /**
+     * @return path of sparse index file of backup file with passin index, next to backup file
+     */
+    public Path getSparseIndexPath(long backupFileIndex) {
+        return getBackupFilePath(backupFileIndex).resolveSibling(String.format(BackupScope.SCOPE_SPARSE_INDEX_FILE_NAME, backupFileIndex));
+    }
+
+    /**
+     * @return backup files in folders of backup scope by index, compacting copies excluded
+     */
+    private Map<Long, Path> listBackupFiles() throws IOException {
+        Map<Long, Path> files = new TreeMap<>();
+        List<Path> folders = null == stripes ? Collections.singletonList(scopeFolder) : stripes;
+        for(Path folder : folders) {
+            if(!Files.isDirectory(folder))
+                continue;
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                for(Path path : stream) {
+                    Matcher matcher = BACKUP_FILE_PATTERN.matcher(path.getFileName().toString());
+                    if(matcher.matches())
+                        files.put(Long.parseLong(matcher.group(1)), path);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Scan backup files in segments file, and backup files found in folders of backup scope which are not, in
+     * parallel. Backup file in segments file is scanned till its end offset, others till their last complete record.
+     * @param parallelism   count of backup files scanned at the same time
+     * @return reports of backup files, in order of backup file index
+     */
+    public List<SegmentReport> scan(int parallelism) throws IOException {
+        Map<Long, BackupSegments.SegmentInfo> infos = new TreeMap<>();
+        for(BackupSegments.SegmentInfo info : segments)
+            infos.put(info.getBackupFileIndex(), info);
+        Map<Long, Path> files = listBackupFiles();
+        TreeMap<Long, Path> paths = new TreeMap<>(files);
+        for(Long backupFileIndex : infos.keySet())
+            paths.putIfAbsent(backupFileIndex, getBackupFilePath(backupFileIndex));
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            List<Future<SegmentReport>> futures = new ArrayList<>();
+            for(Map.Entry<Long, Path> entry : paths.entrySet()) {
+                final long backupFileIndex = entry.getKey();
+                final Path path = entry.getValue();
+                final BackupSegments.SegmentInfo info = infos.get(backupFileIndex);
+                futures.add(pool.submit(() -> scanSegment(backupFileIndex, path, info)));
+            }
+            List<SegmentReport> reports = new ArrayList<>();
+            for(Future<SegmentReport> future : futures)
+                reports.add(future.get());
+            return reports;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted in scan of " + scopeFolder, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Fail to scan " + scopeFolder, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private SegmentReport scanSegment(long backupFileIndex, final Path path, final BackupSegments.SegmentInfo info) {
+        if(!Files.exists(path)) {
+            SegmentReport report = new SegmentReport(backupFileIndex, path, info, null);
+            report.problems.add("backup file " + path + " in segments file is missing");
+            return report;
+        }
+        BackupFileScanner.Result result;
+        try {
+            result = BackupFileScanner.scan(path, null == info ? -1 : info.getEndOffset(), null);
+        } catch (IOException e) {
+            SegmentReport report = new SegmentReport(backupFileIndex, path, info, null);
+            report.problems.add("backup file " + path + " could not be scanned, " + e.getMessage());
+            return report;
+        }
+        SegmentReport report = new SegmentReport(backupFileIndex, path, info, result);
+        //backup file is in segments file from its first append on, so the empty one rolled over to is not in it
+        if(null == info) {
+            if(!result.isValid() || result.getRecordCount() > 0)
+                report.problems.add("backup file " + path + " is not in segments file");
+            return report;
+        }
+        if(!result.isValid())
+            report.problems.add("broken framing in " + path + ", " + result.getError());
+        else if(result.getRecordCount() != info.getContentCount())
+            report.problems.add(path + " has " + result.getRecordCount() + " records, segments file has " + info.getContentCount());
+        return report;
+    }
+
+    /**
+     * Verify backup scope end to end: files of backup scope are complete json, record framing of each backup file
+     * runs right to end offset in segments file with the same count of records, backup files in segments file are
+     * there and others are not, and positions in meta data fall in backup files.
+     * @param parallelism   count of backup files scanned at the same time
+     * @return problems found, empty if there is none
+     */
+    public List<String> verify(int parallelism) throws IOException {
+        List<String> problems = new ArrayList<>(loadProblems);
+        if(null == meta && !Files.exists(scopeFolder.resolve(BackupScope.SCOPE_META_FILE_NAME)))
+            problems.add(BackupScope.SCOPE_META_FILE_NAME + " is missing.");
+        List<SegmentReport> reports = scan(parallelism);
+        for(SegmentReport report : reports)
+            problems.addAll(report.getProblems());
+        BackupSegments.SegmentInfo previous = null;
+        for(BackupSegments.SegmentInfo info : segments) {
+            if(null != previous && previous.getFirstSequence() + previous.getContentCount() > info.getFirstSequence())
+                problems.add("backup file " + info.getBackupFileIndex() + " starts at sequence " + info.getFirstSequence()
+                        + ", before end of backup file " + previous.getBackupFileIndex());
+            previous = info;
+        }
+        BackupLocation writeStart = getMetaLocation("writeStart");
+        BackupLocation readStart = getMetaLocation("readStart");
+        if(null != writeStart && null != previous && writeStart.getBackupFileIndex() < previous.getBackupFileIndex())
+            problems.add("write start " + writeStart + " is before the last backup file " + previous.getBackupFileIndex());
+        if(null != writeStart && null != previous && writeStart.getBackupFileIndex() == previous.getBackupFileIndex()
+                && writeStart.getBackupFileOffset() < previous.getEndOffset())
+            problems.add("write start " + writeStart + " is before end offset " + previous.getEndOffset() + " of the last backup file");
+        if(null != readStart && !segments.isEmpty() && readStart.getBackupFileIndex() < segments.get(0).getBackupFileIndex())
+            problems.add("read start " + readStart + " is before the first backup file " + segments.get(0).getBackupFileIndex());
+        return problems;
+    }
+
+    /**
+     * Read records from passin sequence, in order of sequence.
+     * @param fromSequence  sequence of first record
+     * @param maxCount  max count of records
+     * @param cipher    cipher to decrypt encrypted backup files, null to leave contents encrypted
+     * @param visitor   visitor of records
+     * @return count of records read
+     */
+    public long read(long fromSequence, long maxCount, final BackupCipher cipher, final RecordVisitor visitor) throws IOException {
+        return read(fromSequence, 0, 0, maxCount, cipher, visitor);
+    }
+
+    /**
+     * read records from passin sequence, starting after passin count of records in backup file at passin position of
+     * segments list
+     */
+    private long read(long fromSequence, int fromSegment, long skip, long maxCount, final BackupCipher cipher, final RecordVisitor visitor) throws IOException {
+        long[] count = new long[]{0};
+        for(int i = fromSegment; i < segments.size(); i++) {
+            if(count[0] >= maxCount)
+                break;
+            BackupSegments.SegmentInfo info = segments.get(i);
+            //sequences of backup file go till the first one of next backup file
+            if(i + 1 < segments.size() && segments.get(i + 1).getFirstSequence() <= fromSequence)
+                continue;
+            final long backupFileIndex = info.getBackupFileIndex();
+            Path path = getBackupFilePath(backupFileIndex);
+            final boolean encrypted;
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                encrypted = BackupFileHeader.read(channel).isEncrypted();
+            }
+            final BackupCipher.Decryptor decryptor = encrypted && null != cipher ? cipher.newDecryptor() : null;
+            //sequences in compacted backup file jump at entries of its sparse index
+            final NavigableMap<Long, Long> sequences = info.getCompactionGeneration() > 0
+                    ? BackupSparseIndex.sequencesByOffset(getSparseIndexPath(backupFileIndex)) : null;
+            final long[] sequence = new long[]{info.getFirstSequence()};
+            final long[] skipped = new long[]{i == fromSegment ? skip : 0};
+            final boolean[] stopped = new boolean[]{false};
+            final RecordVisitor filtered = record -> {
+                if(record.getSequence() < fromSequence)
+                    return true;
+                if(skipped[0] > 0) {
+                    skipped[0]--;
+                    return true;
+                }
+                count[0]++;
+                if(!visitor.visit(record) || count[0] >= maxCount) {
+                    stopped[0] = true;
+                    return false;
+                }
+                return true;
+            };
+            //encrypted contents are decrypted by block, records of block are kept till the last one is scanned
+            final List<InspectedRecord> blockRecords = new ArrayList<>();
+            BackupFileScanner.Result result = BackupFileScanner.scan(path, info.getEndOffset(), (offset, timestamp, content) -> {
+                if(null != sequences)
+                    sequence[0] = sequences.getOrDefault(offset, sequence[0]);
+                long current = sequence[0]++;
+                BackupLocation location = new BackupLocation(backupFileIndex, offset);
+                if(null == decryptor) {
+                    byte[] bytes = new byte[content.remaining()];
+                    content.get(bytes);
+                    return filtered.visit(new InspectedRecord(current, location, timestamp, bytes, encrypted));
+                }
+                if(!decryptor.add(content))
+                    throw new IOException("Invalid block head at " + location);
+                blockRecords.add(new InspectedRecord(current, location, timestamp, null, false));
+                if(decryptor.remaining() > 0)
+                    return true;
+                List<byte[]> decrypted = decryptor.decrypt();
+                for(int j = 0; j < decrypted.size(); j++) {
+                    InspectedRecord record = blockRecords.get(j);
+                    if(!filtered.visit(new InspectedRecord(record.getSequence(), record.getLocation(), record.getTimestamp(), decrypted.get(j), false)))
+                        return false;
+                }
+                blockRecords.clear();
+                return true;
+            });
+            if(stopped[0])
+                break;
+            if(!result.isValid())
+                throw new IOException("Broken framing in " + result.getPath() + ", " + result.getError());
+        }
+        return count[0];
+    }
+
+    /**
+     * Read the last records in backup files. Records dropped by compaction are not counted.
+     * @param maxCount  max count of records
+     * @param cipher    cipher to decrypt encrypted backup files, null to leave contents encrypted
+     * @param visitor   visitor of records
+     * @return count of records read
+     */
+    public long tail(long maxCount, final BackupCipher cipher, final RecordVisitor visitor) throws IOException {
+        int fromSegment = segments.size();
+        long remaining = maxCount;
+        long skip = 0;
+        while(fromSegment > 0 && remaining > 0) {
+            BackupSegments.SegmentInfo info = segments.get(--fromSegment);
+            long taken = Math.min(remaining, info.getContentCount());
+            skip = info.getContentCount() - taken;
+            remaining -= taken;
+        }
+        return read(Long.MIN_VALUE, fromSegment, skip, maxCount, cipher, visitor);
+    }
+
+    /**
+     * @return content in UTF-8 if it is printable, or in hex otherwise
+     */
+    public static String format(final byte[] content) {
+        String str = new String(content, StandardCharsets.UTF_8);
+        boolean printable = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8)).equals(ByteBuffer.wrap(content));
+        for(int i = 0; printable && i < str.length(); i++) {
+            char c = str.charAt(i);
+            printable = !Character.isISOControl(c) || c == '\t';
+        }
+        if(printable)
+            return str;
+        StringBuilder hex = new StringBuilder("0x");
+        for(byte b : content)
+            hex.append(String.format("%02x", b & 0xFF));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,113 @@
+package com.youzan.filebackup.context;
+
+/**
+ * Snapshot of backlog and health of one backup scope, taken with {@link BackupScope#getStats()}. Stats do not change
+ * once taken.
+ */
+public class BackupScopeStats {
+    private final String scopeId;
+    private final long timestamp;
+    private final int segmentCount;
+    private final long diskUsageInByte;
+    private final long unreadByte;
+    private final long unreadCount;
+    private final long unackedByte;
+    private final long unackedCount;
+    private final long oldestUnreadTimestamp;
+    private final long readSequence;
+    private final long ackSequence;
+    private final long writeSequence;
+
+    BackupScopeStats(String scopeId, long timestamp, int segmentCount, long diskUsageInByte, long unreadByte, long unreadCount,
+                     long unackedByte, long unackedCount, long oldestUnreadTimestamp, long readSequence, long ackSequence, long writeSequence) {
+        this.scopeId = scopeId;
+        this.timestamp = timestamp;
+        this.segmentCount = segmentCount;
+        this.diskUsageInByte = diskUsageInByte;
+        this.unreadByte = unreadByte;
+        this.unreadCount = unreadCount;
+        this.unackedByte = unackedByte;
+        this.unackedCount = unackedCount;
+        this.oldestUnreadTimestamp = oldestUnreadTimestamp;
+        this.readSequence = readSequence;
+        this.ackSequence = ackSequence;
+        this.writeSequence = writeSequence;
+    }
+
+    public String getScopeId() {
+        return this.scopeId;
+    }
+
+    /**
+     * @return time stats are taken at
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return count of backup files with contents
+     */
+    public int getSegmentCount() {
+        return this.segmentCount;
+    }
+
+    public long getDiskUsageInByte() {
+        return this.diskUsageInByte;
+    }
+
+    /**
+     * @return bytes of records from read start to the end of backup files, record heads included
+     */
+    public long getUnreadByte() {
+        return this.unreadByte;
+    }
+
+    public long getUnreadCount() {
+        return this.unreadCount;
+    }
+
+    /**
+     * @return bytes of records from read start persisted to the end of backup files, which are read again after
+     * restart if they are not acknowledged
+     */
+    public long getUnackedByte() {
+        return this.unackedByte;
+    }
+
+    public long getUnackedCount() {
+        return this.unackedCount;
+    }
+
+    /**
+     * @return append timestamp of the oldest content not read, or of the content before it in the same sparse index
+     * interval, -1 if everything is read
+     */
+    public long getOldestUnreadTimestamp() {
+        return this.oldestUnreadTimestamp;
+    }
+
+    /**
+     * @return time the oldest content not read has waited for, 0 if everything is read
+     */
+    public long getLagInMillis() {
+        return this.oldestUnreadTimestamp < 0 ? 0 : Math.max(0, this.timestamp - this.oldestUnreadTimestamp);
+    }
+
+    public long getReadSequence() {
+        return this.readSequence;
+    }
+
+    public long getAckSequence() {
+        return this.ackSequence;
+    }
+
+    public long getWriteSequence() {
+        return this.writeSequence;
+    }
+
+    public String toString() {
+        return "Scope: " + scopeId + ", Segments: " + segmentCount + ", DiskUsage: " + diskUsageInByte + ", Unread: " + unreadCount
+                + "/" + unreadByte + "B, Unacked: " + unackedCount + "/" + unackedByte + "B, Lag: " + getLagInMillis() + "ms";
+    }
+}
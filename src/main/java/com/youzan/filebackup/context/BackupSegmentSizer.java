@@ -0,0 +1,43 @@
+package com.youzan.filebackup.context;
+
+/**
+ * Sizer of new backup files in backup scope with adaptive segment size. Write rate is measured on each backup file
+ * filled, as bytes written into it over time it is open for write, and smoothed with moving average, so that one
+ * burst does not swing size of backup files. Size of new backup file is bytes written in target fill time at that
+ * rate, within segment min and max bytes.
+ */
+class BackupSegmentSizer {
+    //weight of latest rate in moving average
+    private final static double RATE_WEIGHT = 0.5;
+
+    private final BackupScopeConfig config;
+    //smoothed write rate in byte per second, negative before first backup file is filled
+    private double rateInBytePerSecond = -1;
+
+    BackupSegmentSizer(final BackupScopeConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Invoked when backup file is filled and write goes to next one.
+     * @param bytes bytes written into backup file, since it opens for write
+     * @param elapsedInMillis   time backup file is open for write
+     */
+    void onRollover(long bytes, long elapsedInMillis) {
+        double rate = bytes * 1000.0 / Math.max(1, elapsedInMillis);
+        rateInBytePerSecond = rateInBytePerSecond < 0 ? rate : RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * rateInBytePerSecond;
+    }
+
+    /**
+     * @return max size of new backup file, backup file max byte within bounds until write rate is known
+     */
+    long nextSize() {
+        long size = rateInBytePerSecond < 0 ? config.getBackupFileMaxByte()
+                : (long) (rateInBytePerSecond * config.getSegmentTargetFillTimeInMillis() / 1000);
+        return Math.min(config.getSegmentMaxByte(), Math.max(config.getSegmentMinByte(), size));
+    }
+
+    double getRateInBytePerSecond() {
+        return this.rateInBytePerSecond;
+    }
+}
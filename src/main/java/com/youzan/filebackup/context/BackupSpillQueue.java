@@ -0,0 +1,350 @@
+package com.youzan.filebackup.context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue keeps contents in memory while consumer keeps up, and spills to {@link BackupScope} under backpressure.
+ * Contents are offered into a bounded in-memory queue. Once count or bytes of in-memory queue would go beyond its
+ * bounds, or the oldest content in memory waits longer than max lag, queue spills: contents in memory are written into
+ * backup scope, followed by all contents offered after, till consumer drains backup scope. Queue goes back to memory
+ * when there is nothing left to read in backup scope, so that contents are polled in order they are offered, and disk
+ * I/O is paid only while spilling.
+ * Contents in memory are lost on crash. They are written into backup scope on {@link #close()}, and contents left in
+ * backup scope are polled first by queue created on it next time. Contents polled from backup scope are not read
+ * again, so backup scope needs auto acknowledgement.
+ */
+public class BackupSpillQueue implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(BackupSpillQueue.class);
+
+    private final BackupScope scope;
+    private final ArrayDeque<Content> memory = new ArrayDeque<>();
+    private long memoryByte = 0;
+    private int maxMemoryCount = 10000;
+    private long maxMemoryByte = 4 * 1024 * 1024;
+    private long maxLagInMillis = 0;
+    //contents offered are written into backup scope, till backup scope is drained
+    private boolean spilling;
+    private long spilledCount = 0;
+    private long spillCount = 0;
+    //contents in memory are being written into backup scope, contents offered wait till they are written
+    private boolean movingMemory = false;
+    //writes into backup scope in flight, queue does not go back to memory till they are done
+    private int writing = 0;
+    private boolean closed = false;
+    //lock of queue state, which is not held during I/O of backup scope
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition written = lock.newCondition();
+
+    private static class Content {
+        private final byte[] content;
+        private final long timestamp;
+
+        Content(final byte[] content, long timestamp) {
+            this.content = content;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * @param scope backup scope initialized with auto acknowledgement, as contents polled are not read again. Queue
+     *              starts spilling if there are contents left to read in it.
+     */
+    public BackupSpillQueue(final BackupScope scope) {
+        if(!scope.getBackupMetaInfo().isAutoAck())
+            throw new IllegalArgumentException("Spill queue needs auto acknowledgement of " + scope);
+        this.scope = scope;
+        this.spilling = diskBacklog() > 0;
+        if(spilling)
+            logger.info("Spill queue starts with {} contents left in {}.", diskBacklog(), scope);
+    }
+
+    /**
+     * Set max count of contents kept in memory.
+     */
+    public BackupSpillQueue setMaxMemoryCount(int maxMemoryCount) {
+        if(maxMemoryCount < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.maxMemoryCount = maxMemoryCount;
+        return this;
+    }
+
+    /**
+     * Set max bytes of contents kept in memory.
+     */
+    public BackupSpillQueue setMaxMemoryByte(long maxMemoryByte) {
+        if(maxMemoryByte < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.maxMemoryByte = maxMemoryByte;
+        return this;
+    }
+
+    /**
+     * Set max wait of content in memory before queue spills, 0 to disable.
+     */
+    public BackupSpillQueue setMaxLagInMillis(long maxLagInMillis) {
+        if(maxLagInMillis < 0)
+            throw new IllegalArgumentException("Negative value is not accepted.");
+        this.maxLagInMillis = maxLagInMillis;
+        return this;
+    }
+
+    /**
+     * Offer one content into queue, content goes into backup scope when queue is spilling. Backup scope is written
+     * without lock of queue held, so that polls do not wait for write into backup scope.
+     * @return true if content is offered, false if queue is closed
+     */
+    public boolean offer(final byte[] content) throws IOException {
+        List<Content> moved = null;
+        lock.lock();
+        try {
+            //contents offered wait for contents in memory going into backup scope, so that they go after
+            while(movingMemory && !closed)
+                written.awaitUninterruptibly();
+            if(closed)
+                return false;
+            long now = System.currentTimeMillis();
+            if(!spilling && !shouldSpill(content, now)) {
+                memory.add(new Content(content, now));
+                memoryByte += content.length;
+                notEmpty.signal();
+                return true;
+            }
+            if(!spilling)
+                moved = moveMemory();
+            writing++;
+        } finally {
+            lock.unlock();
+        }
+        spill(moved, content);
+        return true;
+    }
+
+    private boolean shouldSpill(final byte[] content, long now) {
+        if(memory.size() + 1 > maxMemoryCount || memoryByte + content.length > maxMemoryByte)
+            return true;
+        return maxLagInMillis > 0 && !memory.isEmpty() && now - memory.peek().timestamp > maxLagInMillis;
+    }
+
+    /**
+     * take contents out of memory to write into backup scope and start spilling, invoked with lock held
+     */
+    private List<Content> moveMemory() {
+        List<Content> moved = new ArrayList<>(memory);
+        memory.clear();
+        memoryByte = 0;
+        spilling = true;
+        movingMemory = true;
+        return moved;
+    }
+
+    /**
+     * Write contents moved from memory followed by passin content into backup scope, invoked without lock held.
+     * Contents moved from memory go back to memory if write fails.
+     * @param moved     contents moved from memory, or null
+     * @param content   content offered, or null
+     */
+    private void spill(final List<Content> moved, final byte[] content) throws IOException {
+        int spilled = (null == moved ? 0 : moved.size()) + (null == content ? 0 : 1);
+        int count = 0;
+        try {
+            if(null == moved) {
+                count = scope.tryWrite(content);
+            } else {
+                List<byte[]> contents = new ArrayList<>(spilled);
+                for(Content one : moved)
+                    contents.add(one.content);
+                if(null != content)
+                    contents.add(content);
+                count = scope.tryWrite(contents);
+            }
+        } finally {
+            lock.lock();
+            try {
+                writing--;
+                if(count > 0)
+                    spilledCount += spilled;
+                if(null != moved) {
+                    movingMemory = false;
+                    if(count > 0) {
+                        spillCount++;
+                        logger.info("Spill queue starts spilling into {}.", scope);
+                    } else {
+                        for(Content one : moved) {
+                            memory.add(one);
+                            memoryByte += one.content.length;
+                        }
+                        spilling = false;
+                    }
+                }
+                written.signalAll();
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if(count <= 0)
+            throw new IOException("Fail to spill contents into " + scope);
+    }
+
+    /**
+     * Poll contents in order they are offered, without waiting.
+     * @param maxCount  max count of contents to poll
+     * @return contents polled, empty list if there is nothing to poll
+     */
+    public List<byte[]> poll(int maxCount) throws IOException {
+        return pollNow(maxCount);
+    }
+
+    /**
+     * Poll contents in order they are offered, waiting for passin timeout if there is nothing to poll.
+     * @param maxCount  max count of contents to poll
+     * @return contents polled, empty list if there is nothing to poll within timeout
+     */
+    public List<byte[]> poll(int maxCount, long timeout, final TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<byte[]> contents = pollNow(maxCount);
+        while(contents.isEmpty()) {
+            lock.lock();
+            try {
+                long nanos = deadline - System.nanoTime();
+                if(closed || nanos <= 0)
+                    return contents;
+                if(spilling ? diskBacklog() <= 0 : memory.isEmpty())
+                    notEmpty.awaitNanos(nanos);
+            } finally {
+                lock.unlock();
+            }
+            contents = pollNow(maxCount);
+        }
+        return contents;
+    }
+
+    /**
+     * Poll from memory, or from backup scope when spilling. Backup scope is read without lock held, queue goes back
+     * to memory when there is nothing left in backup scope and nothing being written into it.
+     */
+    private List<byte[]> pollNow(int maxCount) throws IOException {
+        lock.lock();
+        try {
+            if(!spilling) {
+                List<byte[]> contents = new ArrayList<>(Math.min(maxCount, memory.size()));
+                while(contents.size() < maxCount && !memory.isEmpty()) {
+                    Content content = memory.poll();
+                    memoryByte -= content.content.length;
+                    contents.add(content.content);
+                }
+                return contents;
+            }
+        } finally {
+            lock.unlock();
+        }
+        List<byte[]> contents = scope.tryRead(maxCount);
+        if(!contents.isEmpty())
+            return contents;
+        lock.lock();
+        try {
+            if(spilling && 0 == writing && diskBacklog() <= 0) {
+                spilling = false;
+                logger.info("Spill queue drains {}, back to memory.", scope);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return contents;
+    }
+
+    private long diskBacklog() {
+        return scope.getBackupMetaInfo().getWriteSequence() - scope.getBackupMetaInfo().getReadSequence();
+    }
+
+    /**
+     * @return true if contents offered go into backup scope
+     */
+    public boolean isSpilling() {
+        lock.lock();
+        try {
+            return this.spilling;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return count of contents in memory
+     */
+    public int getMemoryCount() {
+        lock.lock();
+        try {
+            return this.memory.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return count of contents written into backup scope
+     */
+    public long getSpilledCount() {
+        lock.lock();
+        try {
+            return this.spilledCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return count of times queue starts spilling
+     */
+    public long getSpillCount() {
+        lock.lock();
+        try {
+            return this.spillCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write contents in memory into backup scope and flush backup scope, consumers waiting in poll return. Backup scope
+     * is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        List<Content> moved;
+        lock.lock();
+        try {
+            if(closed)
+                return;
+            closed = true;
+            notEmpty.signalAll();
+            //offers waiting for contents in memory going into backup scope return
+            written.signalAll();
+            while(movingMemory || writing > 0)
+                written.awaitUninterruptibly();
+            moved = memory.isEmpty() ? null : moveMemory();
+            if(null != moved)
+                writing++;
+        } finally {
+            lock.unlock();
+        }
+        if(null != moved)
+            spill(moved, null);
+        scope.flush();
+    }
+
+    public String toString() {
+        return "Spill queue on " + scope;
+    }
+}
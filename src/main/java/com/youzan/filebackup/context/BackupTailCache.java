@@ -0,0 +1,155 @@
+package com.youzan.filebackup.context;
+
+import com.youzan.filebackup.files.BackupLocation;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded cache of contents most recently written into backup scope. Contents are copied into a direct buffer used as
+ * a ring, so that reader which is close behind writer reads contents from memory instead of backup file. Oldest
+ * contents are evicted when there is no room for new one, and contents before read location are evicted when they
+ * are read through.
+ */
+public class BackupTailCache {
+    private final ByteBuffer ring;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    //next free position in ring
+    private int tail = 0;
+    //true if contents written after tail wrapped to ring start are still in front of head
+    private boolean wrapped = false;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    private static class Entry {
+        private final BackupLocation location;
+        private final BackupLocation next;
+        private final int ringPos;
+        private final int length;
+
+        Entry(final BackupLocation location, final BackupLocation next, int ringPos, int length) {
+            this.location = location;
+            this.next = next;
+            this.ringPos = ringPos;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Content read from cache, with location of content following it in backup scope.
+     */
+    public static class Content {
+        private final byte[] content;
+        private final BackupLocation next;
+
+        Content(final byte[] content, final BackupLocation next) {
+            this.content = content;
+            this.next = next;
+        }
+
+        public byte[] getContent() {
+            return this.content;
+        }
+
+        public BackupLocation getNext() {
+            return this.next;
+        }
+    }
+
+    public BackupTailCache(int capacityInByte) {
+        if(capacityInByte <= 0)
+            throw new IllegalArgumentException("Cache capacity should be positive.");
+        this.ring = ByteBuffer.allocateDirect(capacityInByte);
+    }
+
+    /**
+     * Put content written at passin location into cache. Content larger than half of cache capacity is not cached.
+     * @param location  location of content in backup scope
+     * @param content   content in byte
+     * @param next      location of content following passin one
+     */
+    public synchronized void put(final BackupLocation location, final byte[] content, final BackupLocation next) {
+        int length = content.length;
+        if(length == 0 || length > ring.capacity() / 2)
+            return;
+        int pos = reserve(length);
+        ByteBuffer dup = ring.duplicate();
+        dup.position(pos);
+        dup.put(content);
+        entries.addLast(new Entry(location, next, pos, length));
+        tail = pos + length;
+    }
+
+    /**
+     * find room for content in ring, evicting oldest contents till there is
+     */
+    private int reserve(int length) {
+        while(!entries.isEmpty()) {
+            int head = entries.peekFirst().ringPos;
+            if(wrapped) {
+                if(head - tail >= length)
+                    return tail;
+            } else {
+                if(ring.capacity() - tail >= length)
+                    return tail;
+                if(head >= length) {
+                    wrapped = true;
+                    return 0;
+                }
+            }
+            evictFirst();
+        }
+        return 0;
+    }
+
+    private void evictFirst() {
+        Entry evicted = entries.pollFirst();
+        if(entries.isEmpty()) {
+            tail = 0;
+            wrapped = false;
+        } else if(wrapped && entries.peekFirst().ringPos < evicted.ringPos) {
+            wrapped = false;
+        }
+    }
+
+    /**
+     * Get content at passin location from cache. Contents before passin location are evicted, as reader has gone
+     * through them.
+     * @param location  location of content in backup scope
+     * @return content with location of its next, or null if content is not in cache
+     */
+    public synchronized Content get(final BackupLocation location) {
+        while(!entries.isEmpty()) {
+            Entry first = entries.peekFirst();
+            int cmp = first.location.compareTo(location);
+            if(cmp > 0)
+                break;
+            if(cmp == 0) {
+                byte[] content = new byte[first.length];
+                ByteBuffer dup = ring.duplicate();
+                dup.position(first.ringPos);
+                dup.get(content);
+                evictFirst();
+                hitCount++;
+                return new Content(content, first.next);
+            }
+            evictFirst();
+        }
+        missCount++;
+        return null;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        tail = 0;
+        wrapped = false;
+    }
+
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+}
@@ -7,4 +7,8 @@ public class DefaultBackupContext extends BackupContext{
     public DefaultBackupContext(String name) {
         super(name);
     }
+
+    public DefaultBackupContext(String name, final BackupContextConfig config) {
+        super(name, config);
+    }
 }
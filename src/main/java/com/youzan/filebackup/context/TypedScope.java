@@ -0,0 +1,80 @@
+package com.youzan.filebackup.context;
+
+import com.youzan.filebackup.codec.Codec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backup scope read and written in values of one type. Values are encoded by codec straight into write buffer of
+ * backup file, and decoded straight from read buffer, see {@link BackupScope#tryWrite(Object, Codec)} and
+ * {@link BackupScope#tryRead(Codec)}. Contents in backup scope are the same as bytes written with raw write, so that
+ * typed scope could be created on existing backup scope, with codec of contents in it.
+ */
+public class TypedScope<T> {
+    private final BackupScope scope;
+    private final Codec<T> codec;
+
+    public TypedScope(final BackupScope scope, final Codec<T> codec) {
+        if(null == scope || null == codec)
+            throw new IllegalArgumentException("Backup scope and codec could not be null.");
+        this.scope = scope;
+        this.codec = codec;
+    }
+
+    /**
+     * Write one value.
+     * @return byte write count
+     */
+    public int tryWrite(final T value) throws IOException {
+        return scope.tryWrite(value, codec);
+    }
+
+    /**
+     * Write values one by one, write stops at the first value which is not written.
+     * @return byte write count
+     */
+    public int tryWrite(final List<T> values) throws IOException {
+        int total = 0;
+        for(T value : values) {
+            int count = scope.tryWrite(value, codec);
+            if(count <= 0)
+                break;
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Read one value.
+     * @return value, or null if there is nothing to read
+     */
+    public T tryRead() throws IOException {
+        return scope.tryRead(codec);
+    }
+
+    /**
+     * Read values till max count is reached, or there is nothing more to read.
+     * @param maxCount  max count of values to read
+     * @return values, empty list if there is nothing to read
+     */
+    public List<T> tryRead(int maxCount) throws IOException {
+        List<T> values = new ArrayList<>();
+        while(values.size() < maxCount) {
+            T value = scope.tryRead(codec);
+            if(null == value)
+                break;
+            values.add(value);
+        }
+        return values;
+    }
+
+    public BackupScope getScope() {
+        return this.scope;
+    }
+
+    public Codec<T> getCodec() {
+        return this.codec;
+    }
+}
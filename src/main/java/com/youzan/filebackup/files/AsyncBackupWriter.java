@@ -0,0 +1,263 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.IAsyncBackupWriter;
+import com.youzan.filebackup.codec.Codec;
+import com.youzan.filebackup.context.BackupScopeConfig;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * {@link IAsyncBackupWriter} writes backup file with {@link AsynchronousFileChannel}. Write position is reserved when
+ * content is appended, and write is issued right away without waiting for writes issued before, so that there could
+ * be many outstanding writes on one backup file. Future of {@link #appendAsync(byte[], long)} is completed by I/O
+ * completion, in threads of passin completion executor.
+ * Writes may complete out of order, bytes of backup file are complete only till the first outstanding write.
+ */
+public class AsyncBackupWriter implements IAsyncBackupWriter {
+    private final Path path;
+    private final AsynchronousFileChannel channel;
+    private final BackupFileHeader header;
+    private long position;
+    //count of writes issued and not completed
+    private int outstanding = 0;
+    private final Object syncOutstanding = new Object();
+
+    /**
+     * @param header    head for newly created backup file, head of existing backup file is kept
+     * @param completionExec    executor completion handlers run in, null to use default thread pool of JVM
+     */
+    public AsyncBackupWriter(final Path path, final BackupFileHeader header, final ExecutorService completionExec) throws IOException {
+        this(path, header, completionExec, BackupChannelFactory.DEFAULT);
+    }
+
+    /**
+     * @param channelFactory    opener of channel of backup file
+     */
+    public AsyncBackupWriter(final Path path, final BackupFileHeader header, final ExecutorService completionExec,
+                             final BackupChannelFactory channelFactory) throws IOException {
+        this.path = path;
+        try(FileChannel headChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            this.header = BackupFileHeader.readOrCreate(headChannel, header);
+        }
+        Set<OpenOption> options = new HashSet<>();
+        Collections.addAll(options, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.channel = channelFactory.openAsync(path, options, completionExec);
+        this.position = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+    }
+
+    @Override
+    public CompletableFuture<Integer> appendAsync(final byte[] contents, long timestamp) {
+        ByteBuffer buf = ByteBuffer.allocate((int) header.getStoredRecordSize(contents.length));
+        put(buf, contents, timestamp);
+        return write(buf);
+    }
+
+    /**
+     * Append contents in batch with one write.
+     */
+    @Override
+    public CompletableFuture<Integer> appendAsync(final List<byte[]> contents, long timestamp) {
+        long size = 0;
+        for(byte[] content : contents)
+            size += header.getStoredRecordSize(content.length);
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        for(byte[] content : contents)
+            put(buf, content, timestamp);
+        return write(buf);
+    }
+
+    /**
+     * Append values in batch with one write, values are encoded straight into buffer written.
+     */
+    @Override
+    public <T> CompletableFuture<Integer> appendAsync(final List<T> values, final Codec<T> codec, long timestamp) throws IOException {
+        long size = 0;
+        for(T value : values)
+            size += header.getStoredRecordSize(codec.encodedSize(value));
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        for(T value : values) {
+            int length = codec.encodedSize(value);
+            putHead(buf, length, timestamp);
+            int contentStart = buf.position();
+            codec.encode(value, buf);
+            if(buf.position() - contentStart != length)
+                throw new IOException("Codec " + codec + " encodes " + (buf.position() - contentStart) + " bytes, instead of " + length);
+        }
+        return write(buf);
+    }
+
+    private void put(final ByteBuffer buf, final byte[] content, long timestamp) {
+        putHead(buf, content.length, timestamp);
+        buf.put(content);
+    }
+
+    private void putHead(final ByteBuffer buf, int length, long timestamp) {
+        if(header.hasRecordTimestamp()) {
+            buf.putInt(BackupFileHeader.RECORD_TIMESTAMP_SIZE_IN_BYTE + length);
+            buf.putLong(timestamp);
+        } else {
+            buf.putInt(length);
+        }
+    }
+
+    /**
+     * reserve write position for passin buffer and issue write
+     */
+    private CompletableFuture<Integer> write(final ByteBuffer buf) {
+        buf.flip();
+        final int size = buf.remaining();
+        final long start = this.position;
+        this.position += size;
+        synchronized (syncOutstanding) {
+            outstanding++;
+        }
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        channel.write(buf, start, start, new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer result, Long offset) {
+                if(buf.hasRemaining()) {
+                    //partial write, write the rest
+                    channel.write(buf, offset + result, offset + result, this);
+                    return;
+                }
+                //future is completed before write is counted done, so that actions on future are done before close
+                future.complete(size);
+                done();
+            }
+
+            @Override
+            public void failed(Throwable exc, Long offset) {
+                future.completeExceptionally(new IOException("Fail to write " + path + " at " + offset, exc));
+                done();
+            }
+        });
+        return future;
+    }
+
+    private void done() {
+        synchronized (syncOutstanding) {
+            if(--outstanding == 0)
+                syncOutstanding.notifyAll();
+        }
+    }
+
+    /**
+     * wait till all writes issued are completed
+     */
+    private void awaitOutstanding() throws IOException {
+        synchronized (syncOutstanding) {
+            while(outstanding > 0) {
+                try {
+                    syncOutstanding.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for outstanding writes on " + path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int append(final byte[] contents, long timestamp) throws IOException {
+        return get(appendAsync(contents, timestamp));
+    }
+
+    @Override
+    public int append(final List<byte[]> contents, long timestamp) throws IOException {
+        return get(appendAsync(contents, timestamp));
+    }
+
+    /**
+     * Encode value straight into buffer of record written.
+     */
+    @Override
+    public <T> int append(final T value, final Codec<T> codec, long timestamp) throws IOException {
+        int length = codec.encodedSize(value);
+        ByteBuffer buf = ByteBuffer.allocate((int) header.getStoredRecordSize(length));
+        putHead(buf, length, timestamp);
+        codec.encode(value, buf);
+        if(buf.hasRemaining())
+            throw new IOException("Codec " + codec + " encodes " + (buf.position() - header.getRecordHeadSize()) + " bytes, instead of " + length);
+        return get(write(buf));
+    }
+
+    @Override
+    public <T> int append(final List<T> values, final Codec<T> codec, long timestamp) throws IOException {
+        return get(appendAsync(values, codec, timestamp));
+    }
+
+    private int get(final CompletableFuture<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for write on " + path);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        if(offset < BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)
+            throw new IllegalArgumentException("Offset " + offset + " falls in head of backup file " + path);
+        this.position = offset;
+    }
+
+    @Override
+    public long position() {
+        return this.position;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return this.header.getMaxSize();
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return this.header;
+    }
+
+    /**
+     * Wait for outstanding writes and flush backup file to storage device.
+     */
+    @Override
+    public void flush() throws IOException {
+        awaitOutstanding();
+        channel.force(false);
+    }
+
+    /**
+     * Wait for outstanding writes and close backup file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitOutstanding();
+        } finally {
+            channel.close();
+        }
+    }
+
+    public String toString() {
+        return this.path.toString();
+    }
+}
@@ -0,0 +1,221 @@
+package com.youzan.filebackup.files;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Streamable archive of contents in backup scope, written by export and read by import of backup scope.
+ * Archive starts with a head of magic, version and sequence of first content, followed by segments, each of which is a
+ * segment head and bytes of records copied from one backup file as they are, and ends with an end mark:
+ * <pre>
+ * [int magic][int version][long first sequence]
+ * ([long head of backup file][long min timestamp][long max timestamp][long length][long first sequence]
+ *  [int count of sequence jumps]([long offset in segment][long sequence])*[records...])*
+ * [long end mark]
+ * </pre>
+ * Segment head keeps sequence of its first record, and sequences of records in it which do not follow the record
+ * before, as in backup file compacted, so that contents keep their sequences in backup scope imported.
+ * Records are copied between backup file and archive with {@link FileChannel#transferTo} and
+ * {@link FileChannel#transferFrom}, so that bytes do not go through user space.
+ */
+public class BackupArchive {
+    private static final int MAGIC = 0x46424b41;
+    private static final int VERSION = 2;
+    private static final int HEAD_SIZE_IN_BYTE = 16;
+    private static final int SEGMENT_HEAD_SIZE_IN_BYTE = 44;
+    private static final int SEQUENCE_JUMP_SIZE_IN_BYTE = 16;
+    //head of backup file is never 0, 0 marks end of archive
+    private static final long END_MARK = 0L;
+
+    /**
+     * Head of one segment in archive.
+     */
+    public static class SegmentHead {
+        private final BackupFileHeader header;
+        private final long minTimestamp;
+        private final long maxTimestamp;
+        //bytes of records in segment
+        private final long length;
+        //sequence of first record in segment
+        private final long firstSequence;
+        //sequence of record by its offset in segment, for records whose sequence does not follow the one before
+        private final NavigableMap<Long, Long> sequences;
+
+        public SegmentHead(final BackupFileHeader header, long minTimestamp, long maxTimestamp, long length,
+                           long firstSequence, final NavigableMap<Long, Long> sequences) {
+            this.header = header;
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.length = length;
+            this.firstSequence = firstSequence;
+            this.sequences = sequences;
+        }
+
+        public BackupFileHeader getHeader() {
+            return this.header;
+        }
+
+        public long getMinTimestamp() {
+            return this.minTimestamp;
+        }
+
+        public long getMaxTimestamp() {
+            return this.maxTimestamp;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+
+        public long getFirstSequence() {
+            return this.firstSequence;
+        }
+
+        /**
+         * @return sequence of record by its offset from the first record in segment, for records whose sequence does
+         * not follow the one before
+         */
+        public NavigableMap<Long, Long> getSequences() {
+            return this.sequences;
+        }
+    }
+
+    /**
+     * Write archive head.
+     * @param out   archive channel
+     * @param firstSequence sequence of first content in archive
+     * @return bytes written
+     */
+    public static long writeHead(final WritableByteChannel out, long firstSequence) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEAD_SIZE_IN_BYTE);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putLong(firstSequence);
+        return write(out, buf);
+    }
+
+    /**
+     * Write one segment with records of backup file in passin range.
+     * @param out   archive channel
+     * @param source    channel of backup file
+     * @param head  segment head, with length of range
+     * @param from  offset of first record in backup file
+     * @return bytes written
+     */
+    public static long writeSegment(final WritableByteChannel out, final FileChannel source, final SegmentHead head, long from) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SEGMENT_HEAD_SIZE_IN_BYTE + head.sequences.size() * SEQUENCE_JUMP_SIZE_IN_BYTE);
+        buf.putLong(head.header.encode());
+        buf.putLong(head.minTimestamp);
+        buf.putLong(head.maxTimestamp);
+        buf.putLong(head.length);
+        buf.putLong(head.firstSequence);
+        buf.putInt(head.sequences.size());
+        for(Map.Entry<Long, Long> entry : head.sequences.entrySet()) {
+            buf.putLong(entry.getKey());
+            buf.putLong(entry.getValue());
+        }
+        long written = write(out, buf);
+        long position = from;
+        long end = from + head.length;
+        while(position < end) {
+            long count = source.transferTo(position, end - position, out);
+            if(count <= 0 && position >= source.size())
+                throw new EOFException("Backup file ends at " + source.size() + " before " + end);
+            position += count;
+        }
+        return written + head.length;
+    }
+
+    /**
+     * Write end mark of archive.
+     * @return bytes written
+     */
+    public static long writeEnd(final WritableByteChannel out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putLong(END_MARK);
+        return write(out, buf);
+    }
+
+    private static long write(final WritableByteChannel out, final ByteBuffer buf) throws IOException {
+        buf.flip();
+        int size = buf.remaining();
+        while(buf.hasRemaining())
+            out.write(buf);
+        return size;
+    }
+
+    /**
+     * Read archive head.
+     * @param in    archive channel
+     * @return sequence of first content in archive
+     */
+    public static long readHead(final ReadableByteChannel in) throws IOException {
+        ByteBuffer buf = read(in, HEAD_SIZE_IN_BYTE);
+        if(buf.getInt() != MAGIC)
+            throw new IOException("Not a backup archive.");
+        int version = buf.getInt();
+        if(version != VERSION)
+            throw new IOException("Unsupported backup archive version " + version);
+        return buf.getLong();
+    }
+
+    /**
+     * Read head of next segment in archive.
+     * @param in    archive channel
+     * @return segment head, or null if archive ends
+     */
+    public static SegmentHead readSegmentHead(final ReadableByteChannel in) throws IOException {
+        long header = read(in, 8).getLong();
+        if(header == END_MARK)
+            return null;
+        ByteBuffer buf = read(in, SEGMENT_HEAD_SIZE_IN_BYTE - 8);
+        long minTimestamp = buf.getLong();
+        long maxTimestamp = buf.getLong();
+        long length = buf.getLong();
+        long firstSequence = buf.getLong();
+        int count = buf.getInt();
+        if(count < 0)
+            throw new IOException("Invalid count of sequence jumps " + count + " in backup archive.");
+        NavigableMap<Long, Long> sequences = new TreeMap<>();
+        for(int i = 0; i < count; i++) {
+            ByteBuffer jump = read(in, SEQUENCE_JUMP_SIZE_IN_BYTE);
+            sequences.put(jump.getLong(), jump.getLong());
+        }
+        return new SegmentHead(BackupFileHeader.decode(header), minTimestamp, maxTimestamp, length, firstSequence, sequences);
+    }
+
+    /**
+     * Copy records of segment, whose head is just read, into backup file at passin position.
+     * @param in    archive channel
+     * @param target    channel of backup file
+     * @param position  offset in backup file
+     * @param length    bytes of records in segment
+     */
+    public static void readSegment(final ReadableByteChannel in, final FileChannel target, long position, long length) throws IOException {
+        long end = position + length;
+        while(position < end) {
+            long count = target.transferFrom(in, position, end - position);
+            //transferFrom reads nothing once archive ends
+            if(count <= 0)
+                throw new EOFException("Backup archive ends " + (end - position) + " bytes before end of segment.");
+            position += count;
+        }
+    }
+
+    private static ByteBuffer read(final ReadableByteChannel in, int size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        while(buf.hasRemaining()) {
+            if(in.read(buf) < 0)
+                throw new EOFException("Backup archive ends unexpectedly.");
+        }
+        buf.flip();
+        return buf;
+    }
+}
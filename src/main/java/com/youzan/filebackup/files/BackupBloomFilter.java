@@ -0,0 +1,196 @@
+package com.youzan.filebackup.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Bloom filter of keys of contents in one sealed backup file, so that key lookup skips backup files which could not
+ * have the key. Filter is sized from count of keys and false positive rate when backup file is sealed, and is kept in
+ * file of its own:
+ * <pre>
+ * [int hash count][int count of words][long words...]
+ * </pre>
+ * Each key is hashed once into 64 bits, and bits are picked with double hashing of the two halves.
+ */
+public class BackupBloomFilter {
+    private static final int HEAD_SIZE_IN_BYTE = 8;
+    private static final int MIN_BITS = 64;
+    private static final int MAX_HASH_COUNT = 16;
+
+    private final int hashCount;
+    private final long[] words;
+    private final long bitCount;
+
+    private BackupBloomFilter(int hashCount, final long[] words) {
+        this.hashCount = hashCount;
+        this.words = words;
+        this.bitCount = (long) words.length * Long.SIZE;
+    }
+
+    /**
+     * Collector of key hashes of backup file being written, filter is built once count of distinct keys is known.
+     * Hashes are kept sorted and compacted whenever array of hashes is full, as keys updated again and again repeat
+     * their hashes.
+     */
+    public static class Builder {
+        private long[] hashes = new long[16];
+        private int count = 0;
+        //hashes before are sorted and distinct
+        private int distinct = 0;
+
+        public void add(long hash) {
+            if(count == hashes.length) {
+                compact();
+                if(count > hashes.length / 2)
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            hashes[count++] = hash;
+        }
+
+        /**
+         * sort hashes and drop duplicates
+         */
+        private void compact() {
+            if(distinct == count)
+                return;
+            Arrays.sort(hashes, 0, count);
+            int n = 0;
+            for(int i = 0; i < count; i++) {
+                if(n == 0 || hashes[i] != hashes[n - 1])
+                    hashes[n++] = hashes[i];
+            }
+            count = n;
+            distinct = n;
+        }
+
+        /**
+         * @return count of distinct keys added
+         */
+        public int getCount() {
+            compact();
+            return this.count;
+        }
+
+        /**
+         * @param falsePositiveRate expected false positive rate of filter
+         * @return filter of keys added, sized for count of distinct keys
+         */
+        public BackupBloomFilter build(double falsePositiveRate) {
+            compact();
+            BackupBloomFilter filter = create(count, falsePositiveRate);
+            for(int i = 0; i < count; i++)
+                filter.put(hashes[i]);
+            return filter;
+        }
+    }
+
+    /**
+     * Create empty filter for passin count of keys.
+     * @param expectedCount count of keys
+     * @param falsePositiveRate expected false positive rate, in (0, 1)
+     */
+    public static BackupBloomFilter create(long expectedCount, double falsePositiveRate) {
+        if(falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("False positive rate needs to be in (0, 1).");
+        long n = Math.max(1, expectedCount);
+        long bits = Math.max(MIN_BITS, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        int hashCount = (int) Math.max(1, Math.min(MAX_HASH_COUNT, Math.round((double) bits / n * Math.log(2))));
+        return new BackupBloomFilter(hashCount, new long[(int) ((bits + Long.SIZE - 1) / Long.SIZE)]);
+    }
+
+    /**
+     * @return 64 bits hash of key, FNV-1a of UTF-8 bytes with final mix of murmur3
+     */
+    public static long hash(final String key) {
+        long h = 0xcbf29ce484222325L;
+        for(byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void put(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 1; i <= hashCount; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if key with passin hash is definitely not in filter
+     */
+    public boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 1; i <= hashCount; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            if((words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public boolean mightContain(final String key) {
+        return mightContain(hash(key));
+    }
+
+    /**
+     * @return bytes of filter in file
+     */
+    public long getSizeInByte() {
+        return HEAD_SIZE_IN_BYTE + (long) words.length * 8;
+    }
+
+    /**
+     * Write filter into file at passin path, existing file is replaced.
+     */
+    public void write(final Path path) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) getSizeInByte());
+        buf.putInt(hashCount);
+        buf.putInt(words.length);
+        for(long word : words)
+            buf.putLong(word);
+        buf.flip();
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(buf.hasRemaining())
+                channel.write(buf);
+        }
+    }
+
+    /**
+     * Read filter from file at passin path.
+     */
+    public static BackupBloomFilter read(final Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() < HEAD_SIZE_IN_BYTE)
+                throw new IOException("Incomplete bloom filter " + path + ", size " + channel.size());
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while(buf.hasRemaining()) {
+                if(channel.read(buf) < 0)
+                    break;
+            }
+            buf.flip();
+            int hashCount = buf.getInt();
+            int wordCount = buf.getInt();
+            if(hashCount <= 0 || hashCount > MAX_HASH_COUNT || wordCount <= 0 || buf.remaining() != wordCount * 8L)
+                throw new IOException("Invalid bloom filter " + path + ", hash count " + hashCount + ", words " + wordCount);
+            long[] words = new long[wordCount];
+            for(int i = 0; i < wordCount; i++)
+                words[i] = buf.getLong();
+            return new BackupBloomFilter(hashCount, words);
+        }
+    }
+}
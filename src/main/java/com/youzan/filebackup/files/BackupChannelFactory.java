@@ -0,0 +1,35 @@
+package com.youzan.filebackup.files;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Opener of channels which backup files are written through in FILE_CHANNEL and ASYNC mode, so that channels could be
+ * wrapped, as tests do to inject I/O faults.
+ */
+@FunctionalInterface
+public interface BackupChannelFactory {
+    BackupChannelFactory DEFAULT = FileChannel::open;
+
+    /**
+     * @param path  path of backup file
+     * @param options   options to open backup file with
+     * @return channel of backup file
+     */
+    FileChannel open(Path path, OpenOption... options) throws IOException;
+
+    /**
+     * @param path  path of backup file
+     * @param options   options to open backup file with
+     * @param completionExec    executor completion handlers run in, null to use default thread pool of JVM
+     * @return asynchronous channel of backup file, opened by {@link AsynchronousFileChannel#open} by default
+     */
+    default AsynchronousFileChannel openAsync(Path path, Set<? extends OpenOption> options, ExecutorService completionExec) throws IOException {
+        return AsynchronousFileChannel.open(path, options, completionExec);
+    }
+}
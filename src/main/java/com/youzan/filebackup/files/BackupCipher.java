@@ -0,0 +1,280 @@
+package com.youzan.filebackup.files;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AES-GCM encryption of contents in backup files, with keys derived from one master key. Each writer of backup file
+ * takes a random salt, and encrypts contents it appends with segment key derived from master key and salt, so that no
+ * two backup files share a key even if they are written with the same master key. Contents appended together are
+ * encrypted in one pass as one block, authenticated by one tag, with lengths of contents as additional data. Each
+ * content keeps its own record, and the first record of block stores block head in front of its encrypted content:
+ * <pre>
+ * [long salt][int counter][int count of contents][16 bytes tag][encrypted content]
+ * </pre>
+ * Other records of block store encrypted content only, in the same length as content. Salt and counter make the 12
+ * bytes nonce. Counter goes up with each block encrypted by writer, and writer takes another salt when counter runs
+ * out, so that nonce is never used twice under one segment key, even when write is rewound over a torn write, or
+ * block is moved to other offset by compaction or import. Block is decrypted as a whole, contents of it are read from
+ * its head.
+ * Block is encrypted into a buffer of encryptor, and decrypted in place in a buffer of decryptor, both reused from
+ * block to block, so that contents are copied once on their way to and from write and read buffers of backup file.
+ * {@link Cipher} and {@link Mac} instances are expensive to create, they are kept per thread and initialized again
+ * for each block, and AES-GCM of JCE runs on AES-NI intrinsics where CPU has them.
+ */
+public class BackupCipher {
+    public static final int SALT_SIZE_IN_BYTE = 8;
+    public static final int NONCE_SIZE_IN_BYTE = SALT_SIZE_IN_BYTE + 4;
+    public static final int TAG_SIZE_IN_BYTE = 16;
+    //bytes in front of encrypted content in the first record of block
+    public static final int BLOCK_HEAD_SIZE_IN_BYTE = NONCE_SIZE_IN_BYTE + 4 + TAG_SIZE_IN_BYTE;
+    //contents appended in batch are cut into blocks of about this size, so that one content is read without
+    //decrypting too many others
+    public static final int BLOCK_MAX_SIZE_IN_BYTE = 64 * 1024;
+    private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_DERIVATION_ALGORITHM = "HmacSHA256";
+    private static final byte[] KEY_DERIVATION_LABEL = "fileBackup segment key".getBytes(StandardCharsets.UTF_8);
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(CIPHER_TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cipher " + CIPHER_TRANSFORMATION + " is not supported.", e);
+        }
+    });
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(KEY_DERIVATION_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Key derivation " + KEY_DERIVATION_ALGORITHM + " is not supported.", e);
+        }
+    });
+
+    private final SecretKeySpec masterKey;
+    private final int keySize;
+
+    /**
+     * @param masterKey master key of AES-128, AES-192 or AES-256, segment keys are of the same size
+     */
+    public BackupCipher(final byte[] masterKey) {
+        if(null == masterKey || (masterKey.length != 16 && masterKey.length != 24 && masterKey.length != 32))
+            throw new IllegalArgumentException("Master key needs to be 16, 24 or 32 bytes.");
+        this.masterKey = new SecretKeySpec(masterKey, KEY_DERIVATION_ALGORITHM);
+        this.keySize = masterKey.length;
+    }
+
+    /**
+     * Encryption of contents appended by one writer, not thread safe.
+     */
+    public class Encryptor {
+        private long salt;
+        private SecretKeySpec key;
+        private int counter;
+        //block encrypted, block head is followed by encrypted contents and tag
+        private byte[] block = new byte[0];
+
+        private Encryptor() {
+            nextSalt();
+        }
+
+        private void nextSalt() {
+            this.salt = random.nextLong();
+            this.key = deriveKey(this.salt);
+            this.counter = 0;
+        }
+
+        /**
+         * Encrypt contents as one block.
+         * @param contents  contents to encrypt
+         * @return encrypted contents as they are stored, block head is in front of the first one. Buffers are views of
+         * block buffer of encryptor, valid till next block is encrypted.
+         */
+        public List<ByteBuffer> encrypt(final List<byte[]> contents) throws IOException {
+            if(counter == -1)
+                nextSalt();
+            int[] lengths = new int[contents.size()];
+            int size = 0;
+            for(int i = 0; i < lengths.length; i++) {
+                lengths[i] = contents.get(i).length;
+                size += lengths[i];
+            }
+            int blockSize = BLOCK_HEAD_SIZE_IN_BYTE + size + TAG_SIZE_IN_BYTE;
+            if(block.length < blockSize || block.length > Math.max(blockSize, BLOCK_MAX_SIZE_IN_BYTE) * 2)
+                block = new byte[Math.max(blockSize, BLOCK_MAX_SIZE_IN_BYTE + BLOCK_HEAD_SIZE_IN_BYTE + TAG_SIZE_IN_BYTE)];
+            ByteBuffer.wrap(block).putLong(salt).putInt(counter++).putInt(contents.size());
+            try {
+                Cipher cipher = ciphers.get();
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE_IN_BYTE * 8, block, 0, NONCE_SIZE_IN_BYTE));
+                cipher.updateAAD(lengthsOf(lengths));
+                int position = BLOCK_HEAD_SIZE_IN_BYTE;
+                for(byte[] content : contents)
+                    position += cipher.update(content, 0, content.length, block, position);
+                cipher.doFinal(block, position);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Fail to encrypt block of " + contents.size() + " contents, " + size + " bytes.", e);
+            }
+            System.arraycopy(block, BLOCK_HEAD_SIZE_IN_BYTE + size, block, NONCE_SIZE_IN_BYTE + 4, TAG_SIZE_IN_BYTE);
+            List<ByteBuffer> stored = new ArrayList<>(contents.size());
+            int position = 0;
+            for(int i = 0; i < lengths.length; i++) {
+                int length = (i == 0 ? BLOCK_HEAD_SIZE_IN_BYTE : 0) + lengths[i];
+                stored.add(ByteBuffer.wrap(block, position, length).slice());
+                position += length;
+            }
+            return stored;
+        }
+    }
+
+    /**
+     * Decryption of contents read by one reader, segment key of the last salt is kept, not thread safe. Encrypted
+     * contents of block are added one by one as they are stored, from the one with block head, and block is decrypted
+     * once all its contents are added.
+     */
+    public class Decryptor {
+        private long salt;
+        private SecretKeySpec key = null;
+        private final byte[] head = new byte[BLOCK_HEAD_SIZE_IN_BYTE];
+        //encrypted contents added, followed by tag once block is complete, decrypted in place
+        private byte[] block = new byte[0];
+        private int size = 0;
+        private int[] lengths = null;
+        private int added = 0;
+
+        private Decryptor() {
+        }
+
+        /**
+         * Add encrypted content of block being decrypted, from position to limit of passin buffer.
+         * @param stored    encrypted content as it is stored, block head is in front of the first one of block
+         * @return false if the first content of block has no valid block head, nothing is added then
+         */
+        public boolean add(final ByteBuffer stored) {
+            ByteBuffer content = stored.duplicate();
+            if(null == lengths) {
+                int count = countOf(content);
+                if(count < 0)
+                    return false;
+                content.get(head);
+                lengths = new int[count];
+            }
+            int length = content.remaining();
+            if(block.length < size + length + TAG_SIZE_IN_BYTE)
+                block = Arrays.copyOf(block, Math.max(block.length * 2, size + length + TAG_SIZE_IN_BYTE));
+            content.get(block, size, length);
+            lengths[added++] = length;
+            size += length;
+            return true;
+        }
+
+        /**
+         * @return count of contents still to add to block being decrypted, 0 if there is no block being decrypted
+         */
+        public int remaining() {
+            return null == lengths ? 0 : lengths.length - added;
+        }
+
+        /**
+         * Decrypt block whose contents are all added.
+         * @return contents decrypted
+         */
+        public List<byte[]> decrypt() throws IOException {
+            if(null == lengths || added < lengths.length)
+                throw new IOException("Block of " + (null == lengths ? 0 : lengths.length) + " contents is decrypted with " + added + " contents.");
+            int count = lengths.length;
+            try {
+                long salt = ByteBuffer.wrap(head).getLong();
+                if(null == key || this.salt != salt) {
+                    this.key = deriveKey(salt);
+                    this.salt = salt;
+                }
+                System.arraycopy(head, NONCE_SIZE_IN_BYTE + 4, block, size, TAG_SIZE_IN_BYTE);
+                Cipher cipher = ciphers.get();
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE_IN_BYTE * 8, head, 0, NONCE_SIZE_IN_BYTE));
+                cipher.updateAAD(lengthsOf(lengths));
+                cipher.doFinal(block, 0, size + TAG_SIZE_IN_BYTE, block, 0);
+                List<byte[]> decrypted = new ArrayList<>(count);
+                int position = 0;
+                for(int length : lengths) {
+                    decrypted.add(Arrays.copyOfRange(block, position, position + length));
+                    position += length;
+                }
+                return decrypted;
+            } catch (AEADBadTagException e) {
+                throw new IOException("Encrypted block fails authentication, it is corrupted or encrypted with other master key.", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Fail to decrypt block of " + count + " contents.", e);
+            } finally {
+                reset();
+            }
+        }
+
+        /**
+         * Drop contents added of block being decrypted.
+         */
+        public void reset() {
+            lengths = null;
+            added = 0;
+            size = 0;
+            if(block.length > BLOCK_MAX_SIZE_IN_BYTE * 4)
+                block = new byte[0];
+        }
+    }
+
+    /**
+     * @param first encrypted content in the first record of block, or block head only, from position to limit
+     * @return count of contents in block, or -1 if passin bytes are too short to be block head
+     */
+    public static int countOf(final ByteBuffer first) {
+        if(first.remaining() < BLOCK_HEAD_SIZE_IN_BYTE)
+            return -1;
+        int count = first.getInt(first.position() + NONCE_SIZE_IN_BYTE);
+        return count > 0 ? count : -1;
+    }
+
+    /**
+     * lengths of contents, as additional data of block
+     */
+    private static byte[] lengthsOf(final int[] lengths) {
+        ByteBuffer aad = ByteBuffer.allocate(4 * lengths.length);
+        for(int length : lengths)
+            aad.putInt(length);
+        return aad.array();
+    }
+
+    public Encryptor newEncryptor() {
+        return new Encryptor();
+    }
+
+    public Decryptor newDecryptor() {
+        return new Decryptor();
+    }
+
+    /**
+     * @return segment key of passin salt, HMAC-SHA256 of label and salt with master key, cut to size of master key
+     */
+    private SecretKeySpec deriveKey(long salt) {
+        try {
+            Mac mac = macs.get();
+            mac.init(masterKey);
+            mac.update(KEY_DERIVATION_LABEL);
+            mac.update(ByteBuffer.allocate(SALT_SIZE_IN_BYTE).putLong(0, salt).array());
+            byte[] derived = mac.doFinal();
+            SecretKeySpec key = new SecretKeySpec(derived, 0, keySize, "AES");
+            Arrays.fill(derived, (byte) 0);
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Fail to derive segment key.", e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.context.BackupScopeConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Head of backup file, max size of backup file is kept in first {@link BackupScopeConfig#BACKUP_FILE_MAX_SIZE_IN_BYTE}
+ * bytes of backup file. The highest byte of head keeps flags of record format in backup file, which is 0 for backup
+ * file with length head only.
+ */
+public class BackupFileHeader {
+    //each record has append timestamp after length head
+    public static final int FLAG_RECORD_TIMESTAMP = 0x1;
+    public static final int RECORD_TIMESTAMP_SIZE_IN_BYTE = 8;
+    //contents are encrypted in blocks, see BackupCipher
+    public static final int FLAG_ENCRYPTED = 0x2;
+    private static final int FLAG_SHIFT = 56;
+    private static final long MAX_SIZE_MASK = (1L << FLAG_SHIFT) - 1;
+
+    private final long maxSize;
+    private final int flags;
+
+    public BackupFileHeader(long maxSize, int flags) {
+        if(maxSize <= 0 || maxSize > MAX_SIZE_MASK)
+            throw new IllegalArgumentException("Invalid backup file max size " + maxSize);
+        if(flags < 0 || flags > 0xFF)
+            throw new IllegalArgumentException("Invalid backup file flags " + flags);
+        this.maxSize = maxSize;
+        this.flags = flags;
+    }
+
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    public int getFlags() {
+        return this.flags;
+    }
+
+    public boolean hasRecordTimestamp() {
+        return (this.flags & FLAG_RECORD_TIMESTAMP) != 0;
+    }
+
+    public boolean isEncrypted() {
+        return (this.flags & FLAG_ENCRYPTED) != 0;
+    }
+
+    /**
+     * @return bytes in front of content of each record, length counted in length head excludes itself only
+     */
+    public int getRecordHeadSize() {
+        return BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + (hasRecordTimestamp() ? RECORD_TIMESTAMP_SIZE_IN_BYTE : 0);
+    }
+
+    /**
+     * @return bytes of block head in front of contents appended together, 0 if backup file is not encrypted
+     */
+    public int getBlockHeadSize() {
+        return isEncrypted() ? BackupCipher.BLOCK_HEAD_SIZE_IN_BYTE : 0;
+    }
+
+    /**
+     * @return bytes of one record with passin bytes stored after record head. Content of record in plain backup file
+     * is stored as it is, and in encrypted backup file, the first record of each block stores
+     * {@link #getBlockHeadSize()} more bytes than its content.
+     */
+    public long getStoredRecordSize(int storedLength) {
+        return getRecordHeadSize() + storedLength;
+    }
+
+    /**
+     * Read head of backup file. If backup file has no complete head, passin head is written.
+     * @param channel   channel of backup file
+     * @param header    head for newly created backup file
+     * @return head of backup file
+     */
+    public static BackupFileHeader readOrCreate(final FileChannel channel, final BackupFileHeader header) throws IOException {
+        if(channel.size() >= BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)
+            return read(channel);
+        write(channel, header);
+        return header;
+    }
+
+    /**
+     * Write head of backup file, over existing one if there is.
+     * @param channel   channel of backup file
+     * @param header    head of backup file
+     */
+    public static void write(final FileChannel channel, final BackupFileHeader header) throws IOException {
+        ByteBuffer headBuf = ByteBuffer.allocate(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+        headBuf.putLong(header.encode());
+        headBuf.flip();
+        while(headBuf.hasRemaining())
+            channel.write(headBuf, headBuf.position());
+    }
+
+    /**
+     * Read head of backup file.
+     * @param channel   channel of backup file
+     * @return head of backup file
+     */
+    public static BackupFileHeader read(final FileChannel channel) throws IOException {
+        ByteBuffer headBuf = ByteBuffer.allocate(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+        while(headBuf.hasRemaining()) {
+            if(channel.read(headBuf, headBuf.position()) < 0)
+                throw new IOException("Incomplete head in backup file, size " + channel.size());
+        }
+        headBuf.flip();
+        return decode(headBuf.getLong());
+    }
+
+    /**
+     * @return head in long, as it is kept in backup file
+     */
+    public long encode() {
+        return ((long) this.flags << FLAG_SHIFT) | this.maxSize;
+    }
+
+    /**
+     * Decode head kept in backup file.
+     * @param head  head in long
+     * @return head of backup file
+     */
+    public static BackupFileHeader decode(long head) throws IOException {
+        try {
+            return new BackupFileHeader(head & MAX_SIZE_MASK, (int) (head >>> FLAG_SHIFT));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid head in backup file, " + head, e);
+        }
+    }
+
+    public String toString() {
+        return "MaxSize: " + maxSize + ", Flags: " + flags;
+    }
+}
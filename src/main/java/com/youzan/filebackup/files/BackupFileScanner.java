@@ -0,0 +1,240 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Offline scan of record framing in one backup file, with backup file memory mapped read only. Scan walks record heads
+ * from the first record, and checks each length head against end of contents and size of backup file, without
+ * copying contents out unless visitor asks for them. Backup file is mapped in windows of at most 1GB, and window is
+ * mapped again at record which goes beyond it, so that backup file of any size could be scanned. Backup file is not
+ * locked, scan is meant for backup file which is not being written.
+ */
+public class BackupFileScanner {
+    private final static long MAP_WINDOW_SIZE_IN_BYTE = 1L << 30;
+    private final static int ZERO_CHECK_BUFFER_SIZE_IN_BYTE = 64 * 1024;
+
+    /**
+     * Visitor of records scanned.
+     */
+    public interface RecordVisitor {
+        /**
+         * @param offset    offset of record in backup file
+         * @param timestamp record timestamp, or -1 if backup file has no record timestamp
+         * @param content   content as it is stored, valid in this call only
+         * @return false to stop scan
+         */
+        boolean visit(long offset, long timestamp, final ByteBuffer content) throws IOException;
+    }
+
+    /**
+     * Records found by scan of one backup file.
+     */
+    public static class Result {
+        private final Path path;
+        private final long fileSize;
+        private final BackupFileHeader header;
+        private long recordCount = 0;
+        private long contentByte = 0;
+        private long endOffset = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+        private String error = null;
+
+        private Result(final Path path, long fileSize, final BackupFileHeader header) {
+            this.path = path;
+            this.fileSize = fileSize;
+            this.header = header;
+        }
+
+        public Path getPath() {
+            return this.path;
+        }
+
+        public long getFileSize() {
+            return this.fileSize;
+        }
+
+        public BackupFileHeader getHeader() {
+            return this.header;
+        }
+
+        public long getRecordCount() {
+            return this.recordCount;
+        }
+
+        /**
+         * @return bytes of contents as they are stored, record heads excluded
+         */
+        public long getContentByte() {
+            return this.contentByte;
+        }
+
+        /**
+         * @return offset after the last complete record
+         */
+        public long getEndOffset() {
+            return this.endOffset;
+        }
+
+        /**
+         * @return min record timestamp, or Long.MAX_VALUE if there is none
+         */
+        public long getMinTimestamp() {
+            return this.minTimestamp;
+        }
+
+        /**
+         * @return max record timestamp, or Long.MIN_VALUE if there is none
+         */
+        public long getMaxTimestamp() {
+            return this.maxTimestamp;
+        }
+
+        /**
+         * @return bytes in backup file after the last complete record
+         */
+        public long getTrailingByte() {
+            return this.fileSize - this.endOffset;
+        }
+
+        /**
+         * @return description of broken framing, or null if records are framed to end of scan
+         */
+        public String getError() {
+            return this.error;
+        }
+
+        public boolean isValid() {
+            return null == this.error;
+        }
+
+        public String toString() {
+            return path + ", Records: " + recordCount + ", EndOffset: " + endOffset + ", FileSize: " + fileSize
+                    + (null == error ? "" : ", Error: " + error);
+        }
+    }
+
+    /**
+     * Scan records of backup file.
+     * @param path  path of backup file
+     * @param end   offset where contents end, records need to be framed right to it. -1 to scan till the last
+     *              complete record, broken or incomplete record head is taken as end of contents then, and so are
+     *              zeros after contents, as in preallocated backup file.
+     * @param visitor   visitor of records, null to check framing only
+     * @return records found
+     */
+    public static Result scan(final Path path, long end, final RecordVisitor visitor) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            Result result = new Result(path, fileSize, BackupFileHeader.read(channel));
+            long limit = end < 0 ? fileSize : Math.min(end, fileSize);
+            walk(channel, result, limit, end < 0, visitor);
+            if(end >= 0 && result.isValid() && result.endOffset < end)
+                result.error = "backup file of " + fileSize + " bytes ends before end of contents " + end;
+            return result;
+        }
+    }
+
+    /**
+     * @param zerosAsEnd    true to take zeros from record head to limit as end of contents
+     */
+    private static void walk(final FileChannel channel, final Result result, long limit, boolean zerosAsEnd, final RecordVisitor visitor) throws IOException {
+        BackupFileHeader header = result.header;
+        int headSize = header.getRecordHeadSize();
+        int timestampSize = headSize - BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE;
+        long position = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+        //window of backup file mapped, from offset base
+        MappedByteBuffer mapped = null;
+        long base = 0;
+        try {
+            while(position < limit) {
+                if(limit - position < headSize) {
+                    result.error = "incomplete record head of " + (limit - position) + " bytes at " + position;
+                    return;
+                }
+                if(null == mapped || position + headSize > base + mapped.limit()) {
+                    IOUtils.unmap(mapped);
+                    mapped = map(channel, position, headSize, limit);
+                    base = position;
+                }
+                //length head counts bytes after it, record timestamp included
+                int head = mapped.getInt((int) (position - base));
+                if(head == 0 && zerosAsEnd && isZeros(channel, position, limit))
+                    return;
+                int length = head - timestampSize;
+                if(length < 0) {
+                    result.error = "invalid content length " + length + " at " + position;
+                    return;
+                }
+                long recordEnd = position + headSize + length;
+                if(recordEnd > limit) {
+                    result.error = "record at " + position + " ends at " + recordEnd + ", beyond " + limit;
+                    return;
+                }
+                if(recordEnd > base + mapped.limit()) {
+                    IOUtils.unmap(mapped);
+                    mapped = map(channel, position, recordEnd - position, limit);
+                    base = position;
+                }
+                int start = (int) (position - base);
+                long timestamp = header.hasRecordTimestamp() ? mapped.getLong(start + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE) : -1;
+                result.recordCount++;
+                result.contentByte += length;
+                result.endOffset = recordEnd;
+                if(header.hasRecordTimestamp()) {
+                    result.minTimestamp = Math.min(result.minTimestamp, timestamp);
+                    result.maxTimestamp = Math.max(result.maxTimestamp, timestamp);
+                }
+                if(null != visitor) {
+                    ByteBuffer content = mapped.duplicate();
+                    content.limit(start + headSize + length);
+                    content.position(start + headSize);
+                    if(!visitor.visit(position, timestamp, content.slice()))
+                        return;
+                }
+                position = recordEnd;
+            }
+        } finally {
+            IOUtils.unmap(mapped);
+        }
+    }
+
+    /**
+     * map window of backup file from passin position, of at least passin size
+     */
+    private static MappedByteBuffer map(final FileChannel channel, long position, long minSize, long limit) throws IOException {
+        long size = Math.min(limit - position, Math.max(minSize, MAP_WINDOW_SIZE_IN_BYTE));
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Record at " + position + " of " + minSize + " bytes exceeds size for memory mapped scan.");
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /**
+     * @return true if bytes of backup file from passin position to limit are all zeros
+     */
+    private static boolean isZeros(final FileChannel channel, long position, long limit) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(ZERO_CHECK_BUFFER_SIZE_IN_BYTE, limit - position));
+        while(position < limit) {
+            buf.clear();
+            if(limit - position < buf.capacity())
+                buf.limit((int) (limit - position));
+            int read = channel.read(buf, position);
+            if(read < 0)
+                return false;
+            for(int i = 0; i < read; i++) {
+                if(buf.get(i) != 0)
+                    return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+}
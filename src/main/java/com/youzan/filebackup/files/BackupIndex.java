@@ -2,6 +2,7 @@ package com.youzan.filebackup.files;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.youzan.filebackup.context.BackupScope;
 import com.youzan.filebackup.util.IOUtils;
 import org.slf4j.Logger;
@@ -9,14 +10,19 @@ import org.slf4j.LoggerFactory;
 
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * Index of keyed contents in backup scope, from key to location of the latest content of key. Index is updated on
+ * write when backup scope has key extractor, and kept in scope index file.
  * Created by lin on 17/4/7.
  */
 public class BackupIndex {
@@ -27,12 +33,17 @@ public class BackupIndex {
     private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
     private Map<String, IndexItem> index;
     private AtomicInteger status;
+    //index file is loaded on first lookup
+    private volatile boolean loaded = false;
+    private volatile boolean inSync = true;
+    //count of commits of scope index file in current session
+    private volatile long commitCount = 0;
     enum Status {
         READY,
         INVALID,
     }
 
-    static class IndexItem {
+    public static class IndexItem {
         //offset in target backup file
         private long offset;
         //backup file index in current scope
@@ -64,20 +75,38 @@ public class BackupIndex {
         this.indexPath = this.scope.getIndexPath();
         index = new ConcurrentHashMap<>();
         this.status = new AtomicInteger(Status.READY.ordinal());
-        if(Files.exists(this.indexPath) && !Files.isDirectory(this.indexPath)) {
-            try {
-                loadIndexFile();
-                logger.info("Scope index {} loaded.", this.indexPath);
-            } catch (FileNotFoundException e) {
-                logger.error("Scope index file not exist.");
-                this.status.set(Status.INVALID.ordinal());
+    }
+
+    /**
+     * load index file if it is not loaded yet, index file is loaded lazily as it could be large and is not needed to
+     * open backup scope for read/write.
+     */
+    private void ensureLoaded() {
+        if(loaded)
+            return;
+        try{
+            indexLock.writeLock().lock();
+            if(loaded)
+                return;
+            if(Files.exists(this.indexPath) && !Files.isDirectory(this.indexPath)) {
+                try {
+                    loadIndexFile();
+                    logger.info("Scope index {} loaded.", this.indexPath);
+                } catch (FileNotFoundException e) {
+                    logger.error("Scope index file not exist.");
+                    this.status.set(Status.INVALID.ordinal());
+                }
+            }else{
+                logger.info("Scope index does not exist.");
             }
-        }else{
-            logger.info("Scope index does not exist.");
+            loaded = true;
+        }finally {
+            indexLock.writeLock().unlock();
         }
     }
 
     public IndexItem lookup(String key) {
+        ensureLoaded();
         try{
             indexLock.readLock().lock();
             return this.index.get(key);
@@ -87,10 +116,123 @@ public class BackupIndex {
     }
 
     private void loadIndexFile() throws FileNotFoundException {
-        JsonReader jreader = new JsonReader(
+        try(JsonReader jreader = new JsonReader(
                 new FileReader(this.indexPath.toAbsolutePath().toString())
-        );
-        Gson gson = IOUtils.getGson();
-        index = gson.fromJson(jreader, new TypeToken<Map<String, IndexItem>>(){}.getType());
+        )) {
+            Gson gson = IOUtils.getGson();
+            Map<String, IndexItem> loadedIndex = gson.fromJson(jreader, new TypeToken<Map<String, IndexItem>>(){}.getType());
+            if(null != loadedIndex)
+                index = new ConcurrentHashMap<>(loadedIndex);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            logger.warn("Fail to close scope index file {}.", this.indexPath, e);
+        }
+    }
+
+    /**
+     * @return count of commits of scope index file in current session, content of scope index file changes only when
+     * it changes
+     */
+    public long getCommitCount() {
+        return this.commitCount;
+    }
+
+    /**
+     * Commit to update index in scope index file, if index is loaded and updated.
+     * @throws IOException
+     */
+    public void commitIndexFile() throws IOException {
+        if(!loaded || inSync)
+            return;
+        try{
+            indexLock.writeLock().lock();
+            try(JsonWriter jWriter = new JsonWriter(new FileWriter(this.indexPath.toAbsolutePath().toString()))) {
+                IOUtils.getGson().toJson(index, new TypeToken<Map<String, IndexItem>>(){}.getType(), jWriter);
+            }
+            inSync = true;
+            commitCount++;
+            logger.info("Scope index {} committed.", this.indexPath);
+        }finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Update location of the latest content of passin key, on content written.
+     * @param key   key of content
+     * @param backupFileIndex   index of backup file content is written into
+     * @param offset    offset of content in backup file
+     * @param length    length of content
+     * @return location of previous content of key, or null if key is new
+     */
+    public IndexItem put(String key, long backupFileIndex, long offset, long length) {
+        ensureLoaded();
+        try{
+            indexLock.writeLock().lock();
+            inSync = false;
+            return this.index.put(key, new IndexItem(backupFileIndex, offset, length));
+        }finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if content at passin location is the latest one of passin key, or key is not in index
+     */
+    public boolean isLatest(String key, long backupFileIndex, long offset) {
+        IndexItem item = lookup(key);
+        return null == item || (item.backupFileIndex == backupFileIndex && item.offset == offset);
+    }
+
+    /**
+     * Move items in passin backup file to new offsets, after backup file is rewritten by compaction. Items whose
+     * offset is not in passin offsets point to contents written after compaction, and stay where they are.
+     * @param backupFileIndex   index of backup file compacted
+     * @param offsets   new offset of content by its offset before compaction
+     */
+    public void relocate(long backupFileIndex, Map<Long, Long> offsets) {
+        ensureLoaded();
+        try{
+            indexLock.writeLock().lock();
+            for(IndexItem item : this.index.values()) {
+                if(item.backupFileIndex != backupFileIndex)
+                    continue;
+                Long offset = offsets.get(item.offset);
+                if(null != offset) {
+                    item.offset = offset;
+                    inSync = false;
+                }
+            }
+        }finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove items in backup file with passin index, invoked when backup file is deleted.
+     */
+    public void removeBackupFile(long backupFileIndex) {
+        ensureLoaded();
+        try{
+            indexLock.writeLock().lock();
+            Iterator<IndexItem> items = this.index.values().iterator();
+            while(items.hasNext()) {
+                if(items.next().backupFileIndex == backupFileIndex) {
+                    items.remove();
+                    inSync = false;
+                }
+            }
+        }finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return count of keys in index
+     */
+    public int size() {
+        ensureLoaded();
+        return this.index.size();
     }
 }
@@ -0,0 +1,97 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.context.BackupScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Ownership of backup scope across processes. Lease is an exclusive lock on lock file in scope folder, which is taken
+ * once for backup scope, instead of locking regions of backup files on each read and write. Read and write of backup
+ * scope retain lease while they are open, lease is released when neither of them retains it.
+ */
+public class BackupLease {
+    private final static Logger logger = LoggerFactory.getLogger(BackupLease.class);
+    private final Path lockPath;
+    private FileChannel lockChannel = null;
+    private FileLock lock = null;
+    private int holders = 0;
+
+    public BackupLease(final BackupScope scope) {
+        this.lockPath = scope.getLockPath();
+    }
+
+    /**
+     * Take lock on lock file, if lease is not taken yet.
+     * @return true if lease is taken by current backup scope, false if lock file is locked by others
+     */
+    public synchronized boolean lock() throws IOException {
+        if(isValid())
+            return true;
+        if(null == lockChannel || !lockChannel.isOpen())
+            lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            //locked by another backup scope in current process
+            lock = null;
+        }
+        if(null == lock) {
+            lockChannel.close();
+            logger.warn("Lease on {} is taken by others.", lockPath);
+            return false;
+        }
+        logger.info("Lease on {} taken.", lockPath);
+        return true;
+    }
+
+    /**
+     * Retain lease for read or write, lease is taken if it is not yet.
+     * @return true if lease is retained, false if lock file is locked by others
+     */
+    public synchronized boolean retain() throws IOException {
+        if(!lock())
+            return false;
+        holders++;
+        return true;
+    }
+
+    /**
+     * Release lease retained for read or write, lease is unlocked when there is no more holder.
+     */
+    public synchronized void release() {
+        if(holders > 0)
+            holders--;
+        if(holders == 0)
+            unlock();
+    }
+
+    /**
+     * Unlock lease regardless of holders.
+     */
+    public synchronized void unlock() {
+        holders = 0;
+        try {
+            if(null != lock && lock.isValid())
+                lock.release();
+            if(null != lockChannel)
+                lockChannel.close();
+            logger.info("Lease on {} released.", lockPath);
+        } catch (IOException e) {
+            logger.error("Fail to release lease on {}.", lockPath, e);
+        } finally {
+            lock = null;
+            lockChannel = null;
+        }
+    }
+
+    public synchronized boolean isValid() {
+        return null != lock && lock.isValid();
+    }
+}
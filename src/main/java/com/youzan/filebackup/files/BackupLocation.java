@@ -3,7 +3,7 @@ package com.youzan.filebackup.files;
 /**
  * Created by lin on 17/4/10.
  */
-public class BackupLocation {
+public class BackupLocation implements Comparable<BackupLocation> {
     private long backupFileIndex;
     private long backupFileOffset;
 
@@ -32,4 +32,25 @@ public class BackupLocation {
     public String toString() {
         return "BackupFileIndex: " + this.backupFileIndex +", BackupFileOffset: " + this.backupFileOffset;
     }
+
+    @Override
+    public int compareTo(final BackupLocation other) {
+        int cmp = Long.compare(this.backupFileIndex, other.backupFileIndex);
+        if(cmp != 0)
+            return cmp;
+        return Long.compare(this.backupFileOffset, other.backupFileOffset);
+    }
+
+    public boolean equals(Object other) {
+        if(this == other)
+            return true;
+        if(!(other instanceof BackupLocation))
+            return false;
+        BackupLocation loc = (BackupLocation) other;
+        return this.backupFileIndex == loc.backupFileIndex && this.backupFileOffset == loc.backupFileOffset;
+    }
+
+    public int hashCode() {
+        return Long.hashCode(this.backupFileIndex) * 31 + Long.hashCode(this.backupFileOffset);
+    }
 }
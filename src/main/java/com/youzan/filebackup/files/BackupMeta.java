@@ -14,6 +14,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -28,16 +30,27 @@ public class BackupMeta {
     private BackupMetaInfo metaInfo = null;
     private AtomicInteger status;
     private volatile boolean inSync = false;
+    //in-memory read position, read start in meta data file is the acknowledged position
+    private BackupLocation readCursor;
+    private long readCursorSequence;
+    //read start is acknowledged as soon as read moves
+    private volatile boolean autoAck = true;
+    //read positions not acknowledged yet, by sequence of content at them
+    private final TreeMap<Long, BackupLocation> unacked = new TreeMap<>();
     enum Status {
         READY,
         INVALID,
     }
 
     static class BackupMetaInfo {
-        //read start of
+        //read start acknowledged, read goes on from it after restart
         private BackupLocation readStart;
         private BackupLocation readEnd;
         private BackupLocation writeStart;
+        //sequence of content at read start
+        private long readSequence;
+        //sequence of next content to write
+        private long writeSequence;
 
         public BackupMetaInfo(final BackupLocation readStart, final BackupLocation readEnd, final BackupLocation writeStart) {
             this.readStart = readStart;
@@ -68,6 +81,22 @@ public class BackupMeta {
         void setWriteStart(BackupLocation newLoc) {
             this.writeStart = newLoc;
         }
+
+        long getReadSequence() {
+            return this.readSequence;
+        }
+
+        long getWriteSequence() {
+            return this.writeSequence;
+        }
+
+        void setReadSequence(long sequence) {
+            this.readSequence = sequence;
+        }
+
+        void setWriteSequence(long sequence) {
+            this.writeSequence = sequence;
+        }
     }
 
     public boolean isValid() {
@@ -100,6 +129,22 @@ public class BackupMeta {
                 this.status.set(BackupIndex.Status.INVALID.ordinal());
             }
         }
+        if(null != this.metaInfo) {
+            this.readCursor = this.metaInfo.getReadStart();
+            this.readCursorSequence = this.metaInfo.getReadSequence();
+        }
+    }
+
+    /**
+     * Set whether read start is acknowledged as soon as read moves. When auto acknowledgement is off, read moves an
+     * in-memory read position only, read start persisted moves with {@link #ack(long)}.
+     */
+    public void setAutoAck(boolean autoAck) {
+        this.autoAck = autoAck;
+    }
+
+    public boolean isAutoAck() {
+        return this.autoAck;
     }
 
     //there is no synchronization on loadMetaFile as it is invoked in constructor
@@ -135,7 +180,87 @@ public class BackupMeta {
         }
     }
 
+    /**
+     * Positions of backup scope taken together, which do not change once taken.
+     */
+    public static class Snapshot {
+        private final BackupLocation readStart;
+        private final long readSequence;
+        private final BackupLocation ackStart;
+        private final long ackSequence;
+        private final BackupLocation readEnd;
+        private final BackupLocation writeStart;
+        private final long writeSequence;
+
+        Snapshot(final BackupLocation readStart, long readSequence, final BackupLocation ackStart, long ackSequence,
+                 final BackupLocation readEnd, final BackupLocation writeStart, long writeSequence) {
+            this.readStart = readStart;
+            this.readSequence = readSequence;
+            this.ackStart = ackStart;
+            this.ackSequence = ackSequence;
+            this.readEnd = readEnd;
+            this.writeStart = writeStart;
+            this.writeSequence = writeSequence;
+        }
+
+        public BackupLocation getReadStart() {
+            return this.readStart;
+        }
+
+        public long getReadSequence() {
+            return this.readSequence;
+        }
+
+        public BackupLocation getAckStart() {
+            return this.ackStart;
+        }
+
+        public long getAckSequence() {
+            return this.ackSequence;
+        }
+
+        public BackupLocation getReadEnd() {
+            return this.readEnd;
+        }
+
+        public BackupLocation getWriteStart() {
+            return this.writeStart;
+        }
+
+        public long getWriteSequence() {
+            return this.writeSequence;
+        }
+    }
+
+    /**
+     * @return snapshot of read, acknowledged and write positions, taken under one read lock
+     */
+    public Snapshot snapshot() {
+        try {
+            metaLock.readLock().lock();
+            return new Snapshot(this.readCursor, this.readCursorSequence, metaInfo.getReadStart(), metaInfo.getReadSequence(),
+                    metaInfo.getReadEnd(), metaInfo.getWriteStart(), metaInfo.getWriteSequence());
+        }finally {
+            metaLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return location of next content to read
+     */
     public BackupLocation getReadStart() {
+        try {
+            metaLock.readLock().lock();
+            return this.readCursor;
+        }finally {
+            metaLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return read start acknowledged, which is persisted in meta data file
+     */
+    public BackupLocation getAckStart() {
         try {
             metaLock.readLock().lock();
             return metaInfo.getReadStart();
@@ -144,6 +269,18 @@ public class BackupMeta {
         }
     }
 
+    /**
+     * @return sequence of content at read start acknowledged
+     */
+    public long getAckSequence() {
+        try {
+            metaLock.readLock().lock();
+            return metaInfo.getReadSequence();
+        }finally {
+            metaLock.readLock().unlock();
+        }
+    }
+
     public BackupLocation getReadEnd() {
         try {
             metaLock.readLock().lock();
@@ -165,13 +302,27 @@ public class BackupMeta {
     public void setReadStart(BackupLocation newLoc) {
         try{
             metaLock.writeLock().lock();
-            metaInfo.setReadStart(newLoc);
-            this.inSync = false;
+            moveReadCursor(newLoc, this.readCursorSequence);
         }finally {
             metaLock.writeLock().unlock();
         }
     }
 
+    /**
+     * move in-memory read position, invoked with write lock held
+     */
+    private void moveReadCursor(BackupLocation newLoc, long sequence) {
+        this.readCursor = newLoc;
+        this.readCursorSequence = sequence;
+        if(autoAck) {
+            metaInfo.setReadStart(newLoc);
+            metaInfo.setReadSequence(sequence);
+            this.inSync = false;
+        } else {
+            unacked.put(sequence, newLoc);
+        }
+    }
+
     public void setReadEnd(BackupLocation newLoc) {
         try{
             metaLock.writeLock().lock();
@@ -191,4 +342,90 @@ public class BackupMeta {
             metaLock.writeLock().unlock();
         }
     }
+
+    /**
+     * @return sequence of next content to read
+     */
+    public long getReadSequence() {
+        try {
+            metaLock.readLock().lock();
+            return this.readCursorSequence;
+        }finally {
+            metaLock.readLock().unlock();
+        }
+    }
+
+    public long getWriteSequence() {
+        try {
+            metaLock.readLock().lock();
+            return metaInfo.getWriteSequence();
+        }finally {
+            metaLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Update read start together with sequence of content at it.
+     */
+    public void setReadStart(BackupLocation newLoc, long sequence) {
+        try{
+            metaLock.writeLock().lock();
+            moveReadCursor(newLoc, sequence);
+        }finally {
+            metaLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Acknowledge contents read, till the one with passin sequence. Read start persisted moves to the content after it,
+     * as far as read has gone.
+     * @param sequence  sequence of the last content acknowledged
+     * @return count of contents newly acknowledged
+     */
+    public long ack(long sequence) {
+        try{
+            metaLock.writeLock().lock();
+            Map.Entry<Long, BackupLocation> acked = unacked.floorEntry(sequence + 1);
+            long ackSequence = metaInfo.getReadSequence();
+            if(null == acked || acked.getKey() <= ackSequence)
+                return 0;
+            metaInfo.setReadStart(acked.getValue());
+            metaInfo.setReadSequence(acked.getKey());
+            unacked.headMap(acked.getKey()).clear();
+            this.inSync = false;
+            return acked.getKey() - ackSequence;
+        }finally {
+            metaLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Move read start persisted to passin location, regardless of acknowledgement. Invoked when contents before are
+     * deleted.
+     */
+    public void setAckStart(BackupLocation newLoc, long sequence) {
+        try{
+            metaLock.writeLock().lock();
+            metaInfo.setReadStart(newLoc);
+            metaInfo.setReadSequence(sequence);
+            unacked.headMap(sequence).clear();
+            this.inSync = false;
+        }finally {
+            metaLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Update write start together with sequence of next content to write.
+     */
+    public void setWriteStart(BackupLocation newLoc, long sequence) {
+        try{
+            metaLock.writeLock().lock();
+            metaInfo.setWriteStart(newLoc);
+            metaInfo.setWriteSequence(sequence);
+            this.inSync = false;
+        }finally {
+            metaLock.writeLock().unlock();
+        }
+    }
 }
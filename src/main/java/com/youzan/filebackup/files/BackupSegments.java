@@ -0,0 +1,419 @@
+package com.youzan.filebackup.files;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Catalog of backup files in backup scope. Catalog keeps sequence of first content, count of contents, append
+ * timestamp range and size of each backup file, so that backup file is located without reading it.
+ */
+public class BackupSegments {
+    private final static Logger logger = LoggerFactory.getLogger(BackupSegments.class);
+    private final BackupScope scope;
+    final private Path segmentsPath;
+    private final ReentrantReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    //segment info by backup file index
+    private TreeMap<Long, SegmentInfo> segments = new TreeMap<>();
+    private AtomicInteger status;
+    private volatile boolean inSync = false;
+    enum Status {
+        READY,
+        INVALID,
+    }
+
+    /**
+     * Info of one backup file.
+     */
+    public static class SegmentInfo {
+        private long backupFileIndex;
+        private long maxSize;
+        //sequence of first content in backup file
+        private long firstSequence;
+        private long contentCount;
+        //range of append timestamp of contents in backup file
+        private long minTimestamp;
+        private long maxTimestamp;
+        //offset after last content in backup file
+        private long endOffset;
+        //count of contents overwritten by later contents of the same key
+        private long obsoleteCount;
+        //count of rewrites by compaction, sequences of contents in backup file compacted are not consecutive
+        private long compactionGeneration;
+
+        SegmentInfo(long backupFileIndex, long maxSize, long firstSequence) {
+            this.backupFileIndex = backupFileIndex;
+            this.maxSize = maxSize;
+            this.firstSequence = firstSequence;
+            this.minTimestamp = Long.MAX_VALUE;
+            this.maxTimestamp = Long.MIN_VALUE;
+        }
+
+        SegmentInfo copy() {
+            SegmentInfo info = new SegmentInfo(this.backupFileIndex, this.maxSize, this.firstSequence);
+            info.contentCount = this.contentCount;
+            info.minTimestamp = this.minTimestamp;
+            info.maxTimestamp = this.maxTimestamp;
+            info.endOffset = this.endOffset;
+            info.obsoleteCount = this.obsoleteCount;
+            info.compactionGeneration = this.compactionGeneration;
+            return info;
+        }
+
+        public long getBackupFileIndex() {
+            return this.backupFileIndex;
+        }
+
+        public long getMaxSize() {
+            return this.maxSize;
+        }
+
+        public long getFirstSequence() {
+            return this.firstSequence;
+        }
+
+        public long getContentCount() {
+            return this.contentCount;
+        }
+
+        public long getMinTimestamp() {
+            return this.minTimestamp;
+        }
+
+        public long getMaxTimestamp() {
+            return this.maxTimestamp;
+        }
+
+        public long getEndOffset() {
+            return this.endOffset;
+        }
+
+        public long getObsoleteCount() {
+            return this.obsoleteCount;
+        }
+
+        /**
+         * @return count of rewrites of backup file by compaction, 0 if it is as it is written
+         */
+        public long getCompactionGeneration() {
+            return this.compactionGeneration;
+        }
+
+        public String toString() {
+            return "BackupFileIndex: " + backupFileIndex + ", FirstSequence: " + firstSequence + ", ContentCount: " + contentCount
+                    + ", Timestamp: [" + minTimestamp + ", " + maxTimestamp + "], EndOffset: " + endOffset + ", MaxSize: " + maxSize
+                    + ", ObsoleteCount: " + obsoleteCount + ", CompactionGeneration: " + compactionGeneration;
+        }
+    }
+
+    /**
+     * Bytes and count of contents from one location till the end of backup files.
+     */
+    public static class Backlog {
+        private final int segmentCount;
+        private long byteCount = 0;
+        private long contentCount = 0;
+
+        Backlog(int segmentCount) {
+            this.segmentCount = segmentCount;
+        }
+
+        /**
+         * @return count of backup files in backup scope
+         */
+        public int getSegmentCount() {
+            return this.segmentCount;
+        }
+
+        /**
+         * @return bytes of records, heads included
+         */
+        public long getByteCount() {
+            return this.byteCount;
+        }
+
+        public long getContentCount() {
+            return this.contentCount;
+        }
+    }
+
+    public BackupSegments(BackupScope scope) {
+        this.scope = scope;
+        this.segmentsPath = scope.getSegmentsPath();
+        this.status = new AtomicInteger(Status.READY.ordinal());
+        if(Files.exists(this.segmentsPath) && !Files.isDirectory(this.segmentsPath)) {
+            try {
+                loadSegmentsFile();
+                logger.info("Scope segments {} loaded.", this.segmentsPath);
+            } catch (IOException e) {
+                logger.error("Fail to load scope segments file {}.", this.segmentsPath, e);
+                this.status.set(Status.INVALID.ordinal());
+            }
+        } else {
+            logger.info("Scope segments file not exist for backup scope: {}", scope);
+        }
+    }
+
+    public boolean isValid() {
+        return !(this.status.get() == Status.INVALID.ordinal());
+    }
+
+    //there is no synchronization on loadSegmentsFile as it is invoked in constructor
+    private void loadSegmentsFile() throws IOException {
+        try(JsonReader jreader = new JsonReader(new FileReader(this.segmentsPath.toAbsolutePath().toString()))) {
+            Gson gson = IOUtils.getGson();
+            List<SegmentInfo> infos = gson.fromJson(jreader, new TypeToken<List<SegmentInfo>>(){}.getType());
+            if(null != infos) {
+                for (SegmentInfo info : infos)
+                    segments.put(info.getBackupFileIndex(), info);
+            }
+        }
+        inSync = true;
+    }
+
+    /**
+     * Commit to update segments info in scope segments file.
+     * @throws IOException
+     */
+    public void commitSegmentsFile() throws IOException {
+        if(inSync)
+            return;
+        try{
+            segmentsLock.writeLock().lock();
+            List<SegmentInfo> infos = new ArrayList<>(segments.values());
+            try(JsonWriter jWriter = new JsonWriter(new FileWriter(this.segmentsPath.toAbsolutePath().toString()))) {
+                IOUtils.getGson().toJson(infos, new TypeToken<List<SegmentInfo>>(){}.getType(), jWriter);
+            }
+            inSync = true;
+            logger.info("segments file {} committed.", this.segmentsPath);
+        }finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Update segment info on contents appended into backup file.
+     * @param backupFileIndex   index of backup file
+     * @param maxSize   max size of backup file
+     * @param firstSequence sequence of first content appended
+     * @param count     count of contents appended
+     * @param timestamp append timestamp
+     * @param endOffset offset after last content appended
+     */
+    public void onAppend(long backupFileIndex, long maxSize, long firstSequence, int count, long timestamp, long endOffset) {
+        try{
+            segmentsLock.writeLock().lock();
+            SegmentInfo info = segments.get(backupFileIndex);
+            if(null == info) {
+                info = new SegmentInfo(backupFileIndex, maxSize, firstSequence);
+                segments.put(backupFileIndex, info);
+            }
+            info.contentCount += count;
+            info.minTimestamp = Math.min(info.minTimestamp, timestamp);
+            info.maxTimestamp = Math.max(info.maxTimestamp, timestamp);
+            info.endOffset = endOffset;
+            inSync = false;
+        }finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Count one content in backup file with passin index as obsolete, invoked when later content of the same key is
+     * written.
+     */
+    public void onObsolete(long backupFileIndex) {
+        try{
+            segmentsLock.writeLock().lock();
+            SegmentInfo info = segments.get(backupFileIndex);
+            if(null != info) {
+                info.obsoleteCount++;
+                inSync = false;
+            }
+        }finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Update info of backup file with passin index, after it is rewritten by compaction. Sequence of first content
+     * stays, contents kept keep their sequences, which are found from sparse index of backup file.
+     * @param backupFileIndex   index of backup file
+     * @param contentCount  count of contents kept
+     * @param minTimestamp  min append timestamp of contents kept
+     * @param maxTimestamp  max append timestamp of contents kept
+     * @param endOffset offset after last content kept
+     * @param compactedObsoleteCount  count of obsolete contents when compaction starts, contents overwritten after
+     *                                that stay obsolete
+     */
+    public void onCompacted(long backupFileIndex, long contentCount, long minTimestamp, long maxTimestamp, long endOffset, long compactedObsoleteCount) {
+        try{
+            segmentsLock.writeLock().lock();
+            SegmentInfo info = segments.get(backupFileIndex);
+            if(null == info)
+                return;
+            info.contentCount = contentCount;
+            info.minTimestamp = minTimestamp;
+            info.maxTimestamp = maxTimestamp;
+            info.endOffset = endOffset;
+            info.obsoleteCount = Math.max(0, info.obsoleteCount - compactedObsoleteCount);
+            info.compactionGeneration++;
+            inSync = false;
+        }finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Mark backup file with passin index as compacted, invoked when backup file is imported with sequences which are
+     * not consecutive, so that sequences are found from its sparse index.
+     */
+    public void markCompacted(long backupFileIndex) {
+        try{
+            segmentsLock.writeLock().lock();
+            SegmentInfo info = segments.get(backupFileIndex);
+            if(null != info) {
+                info.compactionGeneration++;
+                inSync = false;
+            }
+        }finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove info of backup file with passin index, invoked when backup file is deleted.
+     */
+    public void remove(long backupFileIndex) {
+        try{
+            segmentsLock.writeLock().lock();
+            if(null != segments.remove(backupFileIndex))
+                inSync = false;
+        }finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return info of backup file with passin index, or null if there is no content in it
+     */
+    public SegmentInfo getSegment(long backupFileIndex) {
+        try{
+            segmentsLock.readLock().lock();
+            SegmentInfo info = segments.get(backupFileIndex);
+            return null == info ? null : info.copy();
+        }finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return info of backup file which content with passin sequence is in, or null if sequence is before first
+     * backup file
+     */
+    public SegmentInfo floorBySequence(long sequence) {
+        try{
+            segmentsLock.readLock().lock();
+            SegmentInfo found = null;
+            //backup files are in order of sequence, binary search on them
+            List<SegmentInfo> infos = new ArrayList<>(segments.values());
+            int low = 0, high = infos.size() - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                if(infos.get(mid).getFirstSequence() <= sequence) {
+                    found = infos.get(mid);
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return null == found ? null : found.copy();
+        }finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return info of the first backup file which has content appended at or after passin timestamp, or null if
+     * there is no such one
+     */
+    public SegmentInfo ceilingByTimestamp(long timestamp) {
+        try{
+            segmentsLock.readLock().lock();
+            SegmentInfo found = null;
+            List<SegmentInfo> infos = new ArrayList<>(segments.values());
+            int low = 0, high = infos.size() - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                if(infos.get(mid).getMaxTimestamp() >= timestamp) {
+                    found = infos.get(mid);
+                    high = mid - 1;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return null == found ? null : found.copy();
+        }finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sum up contents at and after passin location, from end offset and content count kept in segment info of each
+     * backup file, so that heads of backup files are not read and segment infos are not copied.
+     * @param from  location of content
+     * @param fromSequence  sequence of content at location
+     * @return backlog from location
+     */
+    public Backlog backlog(final BackupLocation from, long fromSequence) {
+        try{
+            segmentsLock.readLock().lock();
+            Backlog backlog = new Backlog(segments.size());
+            for(SegmentInfo info : segments.tailMap(from.getBackupFileIndex(), true).values()) {
+                if(info.backupFileIndex == from.getBackupFileIndex()) {
+                    backlog.byteCount += Math.max(0, info.endOffset - Math.max(from.getBackupFileOffset(), BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE));
+                    backlog.contentCount += Math.max(0, info.firstSequence + info.contentCount - fromSequence);
+                } else {
+                    backlog.byteCount += info.endOffset - BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+                    backlog.contentCount += info.contentCount;
+                }
+            }
+            return backlog;
+        }finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return snapshot of info of backup files, in order of backup file index
+     */
+    public List<SegmentInfo> getSegments() {
+        try{
+            segmentsLock.readLock().lock();
+            List<SegmentInfo> infos = new ArrayList<>(segments.size());
+            for(Map.Entry<Long, SegmentInfo> entry : segments.entrySet())
+                infos.add(entry.getValue().copy());
+            return infos;
+        }finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+}
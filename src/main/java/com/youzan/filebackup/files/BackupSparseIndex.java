@@ -0,0 +1,229 @@
+package com.youzan.filebackup.files;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Sparse index of one backup file. Index file keeps entries of sequence, append timestamp and offset of contents in
+ * backup file, one entry every interval of bytes or contents, and always one entry for the first content appended and
+ * for each content whose sequence does not follow the one before, as in backup file compacted. Sequence of any content
+ * is that of the entry before it plus count of contents in between. Entries are in fixed size, so that index file is
+ * binary searched on sequence, timestamp or offset. Encrypted backup file is indexed by block, so that each entry is at
+ * block head, where decryption starts.
+ */
+public class BackupSparseIndex implements Closeable {
+    //sequence, timestamp, offset, 8 bytes each
+    public static final int ENTRY_SIZE_IN_BYTE = 24;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer entryBuf = ByteBuffer.allocate(ENTRY_SIZE_IN_BYTE);
+    private final long intervalInByte;
+    private final long intervalInContent;
+    private long position;
+    private long byteSinceEntry = 0;
+    private long contentSinceEntry = 0;
+    private boolean first = true;
+    //sequence of next content if sequences are consecutive
+    private long nextSequence = -1;
+
+    /**
+     * Entry of sparse index.
+     */
+    public static class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final long offset;
+
+        Entry(long sequence, long timestamp, long offset) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.offset = offset;
+        }
+
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        public long getOffset() {
+            return this.offset;
+        }
+    }
+
+    /**
+     * Open sparse index file for append.
+     * @param path  index file path
+     * @param intervalInByte    bytes of contents between two entries
+     * @param intervalInContent count of contents between two entries, 0 to index with byte interval only
+     */
+    public BackupSparseIndex(final Path path, long intervalInByte, long intervalInContent) throws IOException {
+        this.path = path;
+        this.intervalInByte = intervalInByte;
+        this.intervalInContent = intervalInContent;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //incomplete entry at the end is overwritten
+        this.position = this.channel.size() / ENTRY_SIZE_IN_BYTE * ENTRY_SIZE_IN_BYTE;
+    }
+
+    /**
+     * Invoked on each content appended into backup file, entry is written if it is due.
+     * @param sequence  sequence of content
+     * @param timestamp append timestamp of content
+     * @param offset    offset of content in backup file
+     * @param size      bytes of content in backup file, including length head
+     */
+    public void onAppend(long sequence, long timestamp, long offset, long size) throws IOException {
+        onAppend(sequence, 1, timestamp, offset, size);
+    }
+
+    /**
+     * Invoked on each block of contents appended into encrypted backup file, entry is written at block head if it is
+     * due.
+     * @param sequence  sequence of the first content in block
+     * @param count     count of contents in block, with consecutive sequences
+     * @param timestamp append timestamp of contents
+     * @param offset    offset of block head in backup file
+     * @param size      bytes of block in backup file, including record heads
+     */
+    public void onAppend(long sequence, int count, long timestamp, long offset, long size) throws IOException {
+        if(first || sequence != nextSequence || byteSinceEntry >= intervalInByte || (intervalInContent > 0 && contentSinceEntry >= intervalInContent)) {
+            entryBuf.clear();
+            entryBuf.putLong(sequence);
+            entryBuf.putLong(timestamp);
+            entryBuf.putLong(offset);
+            entryBuf.flip();
+            while(entryBuf.hasRemaining())
+                position += channel.write(entryBuf, position);
+            first = false;
+            byteSinceEntry = 0;
+            contentSinceEntry = 0;
+        }
+        byteSinceEntry += size;
+        contentSinceEntry += count;
+        nextSequence = sequence + count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Find the last entry with sequence no larger than passin one.
+     * @param path  index file path
+     * @param sequence  sequence of content
+     * @return entry found, or null if there is no such entry
+     */
+    public static Entry floorBySequence(final Path path, long sequence) throws IOException {
+        return search(path, sequence, Entry::getSequence);
+    }
+
+    /**
+     * Find the last entry at or before passin offset.
+     * @param path  index file path
+     * @param offset    offset in backup file
+     * @return entry found, or null if there is no such entry
+     */
+    public static Entry floorByOffset(final Path path, long offset) throws IOException {
+        return search(path, offset, Entry::getOffset);
+    }
+
+    /**
+     * Find the last entry with timestamp before passin one, or the first entry if there is no such one. Contents
+     * appended at or after passin timestamp start from or after entry found.
+     * @param path  index file path
+     * @param timestamp  append timestamp
+     * @return entry found, or null if index file is empty
+     */
+    public static Entry floorByTimestamp(final Path path, long timestamp) throws IOException {
+        Entry entry = search(path, timestamp - 1, Entry::getTimestamp);
+        if(null == entry)
+            entry = read(path, 0);
+        return entry;
+    }
+
+    /**
+     * Read all entries of index file, for backup file whose sequences are not consecutive. Content at offset of an
+     * entry has sequence of entry, content at other offset has sequence of content before it plus 1.
+     * @param path  index file path
+     * @return sequence of entry by offset, empty if index file does not exist
+     */
+    public static NavigableMap<Long, Long> sequencesByOffset(final Path path) throws IOException {
+        NavigableMap<Long, Long> sequences = new TreeMap<>();
+        if(!Files.exists(path))
+            return sequences;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE_IN_BYTE);
+            long count = channel.size() / ENTRY_SIZE_IN_BYTE;
+            for(long i = 0; i < count; i++) {
+                Entry entry = read(channel, buf, i);
+                sequences.put(entry.getOffset(), entry.getSequence());
+            }
+        }
+        return sequences;
+    }
+
+    /**
+     * read entry at passin position of index file
+     */
+    static Entry read(final Path path, long entryIndex) throws IOException {
+        if(!Files.exists(path))
+            return null;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if((entryIndex + 1) * ENTRY_SIZE_IN_BYTE > channel.size())
+                return null;
+            return read(channel, ByteBuffer.allocate(ENTRY_SIZE_IN_BYTE), entryIndex);
+        }
+    }
+
+    private static Entry search(final Path path, long target, final ToLongFunction<Entry> keyOf) throws IOException {
+        if(!Files.exists(path))
+            return null;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE_IN_BYTE);
+            long low = 0;
+            long high = channel.size() / ENTRY_SIZE_IN_BYTE - 1;
+            Entry found = null;
+            while(low <= high) {
+                long mid = (low + high) >>> 1;
+                Entry entry = read(channel, buf, mid);
+                long key = keyOf.applyAsLong(entry);
+                if(key <= target) {
+                    found = entry;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    private static Entry read(final FileChannel channel, final ByteBuffer buf, long entryIndex) throws IOException {
+        buf.clear();
+        long pos = entryIndex * ENTRY_SIZE_IN_BYTE;
+        while(buf.hasRemaining()) {
+            int cnt = channel.read(buf, pos + buf.position());
+            if(cnt < 0)
+                throw new IOException("Incomplete sparse index entry " + entryIndex);
+        }
+        buf.flip();
+        return new Entry(buf.getLong(), buf.getLong(), buf.getLong());
+    }
+
+    public String toString() {
+        return this.path.toString();
+    }
+}
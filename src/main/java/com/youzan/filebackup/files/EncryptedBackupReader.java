@@ -0,0 +1,188 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.IBackupReader;
+import com.youzan.filebackup.context.BackupScopeConfig;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reader which decrypts contents read by reader it wraps, from backup file written by {@link EncryptedBackupWriter}.
+ * Contents are decrypted by block, block read is kept till its contents are all read. Offsets are the ones of reader
+ * wrapped, offset of content in block is the one of its record, and timestamp of content is the one of its block.
+ * Encrypted contents of block are added to decryptor straight from read buffer of reader wrapped, with one batch
+ * read, and decrypted in place. Seek to offset of content in block goes to block head first, found from the sparse index entry before offset, as entries of encrypted backup file are
+ * all at block heads.
+ */
+public class EncryptedBackupReader implements IBackupReader {
+    private final IBackupReader reader;
+    private final BackupCipher.Decryptor decryptor;
+    private final Path sparseIndexPath;
+    //contents of block read, with offsets of their records, contents of block are appended with one timestamp
+    private List<byte[]> block = Collections.emptyList();
+    private long[] offsets;
+    private long blockTimestamp = -1;
+    //position of next content in block
+    private int cursor = 0;
+    private long timestamp = -1;
+
+    /**
+     * @param sparseIndexPath   path of sparse index file of backup file, null to seek from the first block
+     */
+    public EncryptedBackupReader(final IBackupReader reader, final BackupCipher cipher, final Path sparseIndexPath) {
+        if(!reader.getHeader().isEncrypted())
+            throw new IllegalArgumentException("Backup file head " + reader.getHeader() + " has no encrypted flag.");
+        this.reader = reader;
+        this.decryptor = cipher.newDecryptor();
+        this.sparseIndexPath = sparseIndexPath;
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        if(cursor >= block.size() && !readBlock())
+            return null;
+        timestamp = blockTimestamp;
+        return block.get(cursor++);
+    }
+
+    @Override
+    public List<byte[]> read(int maxCount, long limit) throws IOException {
+        return read(maxCount, limit, null);
+    }
+
+    @Override
+    public List<byte[]> read(int maxCount, long limit, final List<Long> ends) throws IOException {
+        List<byte[]> contents = new ArrayList<>();
+        byte[] content;
+        while(contents.size() < maxCount && position() <= limit && null != (content = read())) {
+            contents.add(content);
+            if(null != ends)
+                ends.add(position());
+        }
+        return contents;
+    }
+
+    /**
+     * read and decrypt block at read position of reader wrapped
+     * @return false if there is no complete block at read position
+     */
+    private boolean readBlock() throws IOException {
+        long head = reader.position();
+        final List<Long> offsets = new ArrayList<>();
+        final long[] timestamp = new long[]{-1};
+        final boolean[] valid = new boolean[]{true};
+        reader.read((offset, recordTimestamp, content) -> {
+            if(!decryptor.add(content)) {
+                //zeros after contents, as in preallocated backup file
+                valid[0] = false;
+                return false;
+            }
+            if(offsets.isEmpty())
+                timestamp[0] = recordTimestamp;
+            offsets.add(offset);
+            return decryptor.remaining() > 0;
+        });
+        if(!valid[0] || offsets.isEmpty() || decryptor.remaining() > 0) {
+            decryptor.reset();
+            reader.seek(head);
+            return false;
+        }
+        long[] blockOffsets = new long[offsets.size()];
+        for(int i = 0; i < blockOffsets.length; i++)
+            blockOffsets[i] = offsets.get(i);
+        this.block = decryptor.decrypt();
+        this.offsets = blockOffsets;
+        this.blockTimestamp = timestamp[0];
+        this.cursor = 0;
+        return true;
+    }
+
+    /**
+     * Move read position to passin offset, which is offset of block head or of content in block.
+     */
+    @Override
+    public void seek(long offset) throws IOException {
+        if(seekInBlock(offset))
+            return;
+        boolean atBlockEnd = cursor >= block.size() && reader.position() == offset;
+        block = Collections.emptyList();
+        cursor = 0;
+        //reader wrapped is at block head already
+        if(atBlockEnd)
+            return;
+        BackupSparseIndex.Entry entry = null == sparseIndexPath ? null : BackupSparseIndex.floorByOffset(sparseIndexPath, offset);
+        long head = null == entry ? BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE : entry.getOffset();
+        //walk record heads block by block, without decryption, till the block passin offset is in
+        while(head < offset) {
+            reader.seek(head);
+            long next = skipBlock();
+            if(next <= head)
+                break;
+            if(next > offset) {
+                reader.seek(head);
+                if(!readBlock())
+                    throw new IOException("Incomplete block at " + head + " before offset " + offset);
+                if(!seekInBlock(offset))
+                    throw new IOException("Offset " + offset + " is not at content of block at " + head);
+                return;
+            }
+            head = next;
+        }
+        reader.seek(offset);
+    }
+
+    /**
+     * move cursor to content at passin offset, if it is in block read
+     */
+    private boolean seekInBlock(long offset) {
+        for(int i = 0; i < block.size(); i++) {
+            if(offsets[i] == offset) {
+                cursor = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * read over records of block at read position of reader wrapped
+     * @return offset after block, or -1 if there is no complete block
+     */
+    private long skipBlock() throws IOException {
+        final int[] remaining = new int[]{-1};
+        reader.read((offset, recordTimestamp, content) -> {
+            if(remaining[0] < 0 && (remaining[0] = BackupCipher.countOf(content)) < 0)
+                return false;
+            return --remaining[0] > 0;
+        });
+        return remaining[0] == 0 ? reader.position() : -1;
+    }
+
+    @Override
+    public long position() {
+        return cursor < block.size() ? offsets[cursor] : reader.position();
+    }
+
+    @Override
+    public long getMaxSize() {
+        return reader.getMaxSize();
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return reader.getHeader();
+    }
+
+    @Override
+    public long timestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
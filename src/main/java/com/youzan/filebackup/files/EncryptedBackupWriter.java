@@ -0,0 +1,96 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.IAsyncBackupWriter;
+import com.youzan.filebackup.IBackupWriter;
+import com.youzan.filebackup.codec.ByteBufferCodec;
+import com.youzan.filebackup.codec.Codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writer which encrypts contents with {@link BackupCipher} and appends them with writer it wraps, whose backup file
+ * head has {@link BackupFileHeader#FLAG_ENCRYPTED}. Contents of one append are encrypted in one pass as one block, and
+ * appended with one batch append, see {@link BackupCipher} for block format. Encrypted contents are copied straight
+ * from buffer of encryptor into write buffer of writer wrapped. Offsets, record heads and byte counts are
+ * the ones of writer wrapped. Async append goes to writer wrapped if it is {@link IAsyncBackupWriter}, or completes
+ * after synchronous append otherwise.
+ */
+public class EncryptedBackupWriter implements IAsyncBackupWriter {
+    private final IBackupWriter writer;
+    private final BackupCipher.Encryptor encryptor;
+
+    public EncryptedBackupWriter(final IBackupWriter writer, final BackupCipher cipher) {
+        if(!writer.getHeader().isEncrypted())
+            throw new IllegalArgumentException("Backup file head " + writer.getHeader() + " has no encrypted flag.");
+        this.writer = writer;
+        this.encryptor = cipher.newEncryptor();
+    }
+
+    @Override
+    public int append(final byte[] contents, long timestamp) throws IOException {
+        return append(Collections.singletonList(contents), timestamp);
+    }
+
+    @Override
+    public int append(final List<byte[]> contents, long timestamp) throws IOException {
+        return writer.append(encryptor.encrypt(contents), ByteBufferCodec.INSTANCE, timestamp);
+    }
+
+    @Override
+    public <T> CompletableFuture<Integer> appendAsync(final List<T> values, final Codec<T> codec, long timestamp) throws IOException {
+        List<byte[]> contents = new ArrayList<>(values.size());
+        for(T value : values) {
+            ByteBuffer buf = ByteBuffer.allocate(codec.encodedSize(value));
+            codec.encode(value, buf);
+            contents.add(buf.array());
+        }
+        return appendAsync(contents, timestamp);
+    }
+
+    @Override
+    public CompletableFuture<Integer> appendAsync(final byte[] contents, long timestamp) throws IOException {
+        return appendAsync(Collections.singletonList(contents), timestamp);
+    }
+
+    @Override
+    public CompletableFuture<Integer> appendAsync(final List<byte[]> contents, long timestamp) throws IOException {
+        if(writer instanceof IAsyncBackupWriter)
+            return ((IAsyncBackupWriter) writer).appendAsync(encryptor.encrypt(contents), ByteBufferCodec.INSTANCE, timestamp);
+        return CompletableFuture.completedFuture(append(contents, timestamp));
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        writer.seek(offset);
+    }
+
+    @Override
+    public long position() {
+        return writer.position();
+    }
+
+    @Override
+    public long getMaxSize() {
+        return writer.getMaxSize();
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return writer.getHeader();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
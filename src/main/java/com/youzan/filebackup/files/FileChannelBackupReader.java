@@ -0,0 +1,220 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.IBackupReader;
+import com.youzan.filebackup.codec.Codec;
+import com.youzan.filebackup.context.BackupScopeConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link IBackupReader} reads backup file with positional {@link FileChannel} read. Backup file is read in blocks into
+ * a reusable direct buffer, so that small contents next to each other are read with one read call. Block read is only
+ * reused within one read invocation, as bytes after the last written content may be updated by writer in between.
+ */
+public class FileChannelBackupReader implements IBackupReader {
+    private final Path path;
+    private final FileChannel channel;
+    private final BackupFileHeader header;
+    private final ByteBuffer readBuf;
+    //offset in backup file of first byte in read buffer
+    private long readBufStart = -1;
+    private long position;
+    private long timestamp = -1;
+
+    public FileChannelBackupReader(final Path path, int bufferSizeInByte) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.header = BackupFileHeader.read(this.channel);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.readBuf = ByteBuffer.allocateDirect(Math.max(bufferSizeInByte, this.header.getRecordHeadSize()));
+        this.position = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        readBufStart = -1;
+        return readNext();
+    }
+
+    @Override
+    public List<byte[]> read(int maxCount, long limit) throws IOException {
+        List<byte[]> contents = new ArrayList<>();
+        readBufStart = -1;
+        while(contents.size() < maxCount && this.position <= limit) {
+            byte[] content = readNext();
+            if(null == content)
+                break;
+            contents.add(content);
+        }
+        readBufStart = -1;
+        return contents;
+    }
+
+    /**
+     * Decode value straight from read buffer, if record fits in read buffer.
+     */
+    @Override
+    public <T> T read(final Codec<T> codec) throws IOException {
+        readBufStart = -1;
+        try {
+            ByteBuffer content = nextContent();
+            return null == content ? null : codec.decode(content);
+        } finally {
+            readBufStart = -1;
+        }
+    }
+
+    /**
+     * Visit contents straight in read buffer, if record fits in read buffer.
+     */
+    @Override
+    public int read(final BackupFileScanner.RecordVisitor visitor) throws IOException {
+        int count = 0;
+        readBufStart = -1;
+        try {
+            while(true) {
+                long offset = this.position;
+                ByteBuffer content = nextContent();
+                if(null == content)
+                    return count;
+                count++;
+                if(!visitor.visit(offset, this.timestamp, content))
+                    return count;
+            }
+        } finally {
+            readBufStart = -1;
+        }
+    }
+
+    /**
+     * read next content as a view of read buffer, read buffer is filled from record head if record is not all in it
+     * @return content in read buffer, or content in byte array if record is larger than read buffer, or null if there
+     * is no complete content
+     */
+    private ByteBuffer nextContent() throws IOException {
+        int headSize = header.getRecordHeadSize();
+        if(!buffered(this.position, headSize) && !fill(this.position, headSize))
+            return null;
+        int headStart = (int) (this.position - readBufStart);
+        int length = readBuf.getInt(headStart) - (headSize - BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE);
+        if(length < 0)
+            throw new IOException("Invalid content length " + length + " at " + this.position + " in " + path);
+        if(headSize + length > readBuf.capacity()) {
+            byte[] content = readNext();
+            return null == content ? null : ByteBuffer.wrap(content);
+        }
+        if(!buffered(this.position, headSize + length)) {
+            if(!fill(this.position, headSize + length))
+                return null;
+            headStart = 0;
+        }
+        long recordTimestamp = header.hasRecordTimestamp() ? readBuf.getLong(headStart + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE) : -1;
+        ByteBuffer content = readBuf.duplicate();
+        content.limit(headStart + headSize + length);
+        content.position(headStart + headSize);
+        this.position += headSize + length;
+        this.timestamp = recordTimestamp;
+        return content;
+    }
+
+    private byte[] readNext() throws IOException {
+        int headSize = header.getRecordHeadSize();
+        if(!buffered(this.position, headSize) && !fill(this.position, headSize))
+            return null;
+        int headStart = (int) (this.position - readBufStart);
+        //length head counts bytes after it, record timestamp included
+        int length = readBuf.getInt(headStart) - (headSize - BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE);
+        if(length < 0)
+            throw new IOException("Invalid content length " + length + " at " + this.position + " in " + path);
+        long recordTimestamp = header.hasRecordTimestamp() ? readBuf.getLong(headStart + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE) : -1;
+        long contentStart = this.position + headSize;
+        //copy what is in buffer, read the rest from backup file directly
+        int inBuf = (int) Math.max(0, Math.min(length, readBufStart + readBuf.limit() - contentStart));
+        if(inBuf < length && contentStart + length > channel.size())
+            return null;
+        byte[] content = new byte[length];
+        if(inBuf > 0) {
+            ByteBuffer dup = readBuf.duplicate();
+            dup.position((int) (contentStart - readBufStart));
+            dup.get(content, 0, inBuf);
+        }
+        if(inBuf < length) {
+            ByteBuffer rest = ByteBuffer.wrap(content, inBuf, length - inBuf);
+            long pos = contentStart + inBuf;
+            while(rest.hasRemaining()) {
+                int cnt = channel.read(rest, pos);
+                if(cnt < 0)
+                    return null;
+                pos += cnt;
+            }
+        }
+        this.position = contentStart + length;
+        this.timestamp = recordTimestamp;
+        return content;
+    }
+
+    private boolean buffered(long offset, int len) {
+        return readBufStart >= 0 && offset >= readBufStart && offset + len <= readBufStart + readBuf.limit();
+    }
+
+    private boolean fill(long offset, int minLen) throws IOException {
+        readBuf.clear();
+        readBufStart = offset;
+        while(readBuf.position() < minLen) {
+            if(channel.read(readBuf, offset + readBuf.position()) < 0)
+                break;
+        }
+        readBuf.flip();
+        if(readBuf.limit() < minLen) {
+            readBufStart = -1;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        if(offset < BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)
+            throw new IllegalArgumentException("Offset " + offset + " falls in head of backup file " + path);
+        this.position = offset;
+    }
+
+    @Override
+    public long position() {
+        return this.position;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return this.header.getMaxSize();
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return this.header;
+    }
+
+    @Override
+    public long timestamp() {
+        return this.timestamp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public String toString() {
+        return this.path.toString();
+    }
+}
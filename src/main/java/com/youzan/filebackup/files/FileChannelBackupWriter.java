@@ -0,0 +1,186 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.IBackupWriter;
+import com.youzan.filebackup.codec.Codec;
+import com.youzan.filebackup.context.BackupScopeConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * {@link IBackupWriter} writes backup file with positional {@link FileChannel} write. Contents are copied into a
+ * reusable direct buffer, which is written when it is full, or when append returns.
+ */
+public class FileChannelBackupWriter implements IBackupWriter {
+    private final Path path;
+    private final FileChannel channel;
+    private final BackupFileHeader header;
+    private final ByteBuffer writeBuf;
+    private long position;
+
+    public FileChannelBackupWriter(final Path path, long maxSize, int bufferSizeInByte) throws IOException {
+        this(path, new BackupFileHeader(maxSize, 0), bufferSizeInByte);
+    }
+
+    /**
+     * @param header    head for newly created backup file, head of existing backup file is kept
+     */
+    public FileChannelBackupWriter(final Path path, final BackupFileHeader header, int bufferSizeInByte) throws IOException {
+        this(path, header, bufferSizeInByte, BackupChannelFactory.DEFAULT);
+    }
+
+    /**
+     * @param channelFactory    opener of channel of backup file
+     */
+    public FileChannelBackupWriter(final Path path, final BackupFileHeader header, int bufferSizeInByte,
+                                   final BackupChannelFactory channelFactory) throws IOException {
+        this.path = path;
+        this.channel = channelFactory.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            this.header = BackupFileHeader.readOrCreate(this.channel, header);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.writeBuf = ByteBuffer.allocateDirect(Math.max(bufferSizeInByte, this.header.getRecordHeadSize()));
+        this.position = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+    }
+
+    @Override
+    public int append(final byte[] contents, long timestamp) throws IOException {
+        long start = this.position;
+        put(contents, timestamp);
+        drain();
+        return (int) (this.position - start);
+    }
+
+    @Override
+    public int append(final List<byte[]> contents, long timestamp) throws IOException {
+        long start = this.position;
+        for(byte[] content : contents)
+            put(content, timestamp);
+        drain();
+        return (int) (this.position - start);
+    }
+
+    /**
+     * Encode value straight into write buffer, if record fits in write buffer.
+     */
+    @Override
+    public <T> int append(final T value, final Codec<T> codec, long timestamp) throws IOException {
+        long start = this.position;
+        put(value, codec, timestamp);
+        drain();
+        return (int) (this.position - start);
+    }
+
+    /**
+     * Encode values straight into write buffer, as {@link #append(Object, Codec, long)} does.
+     */
+    @Override
+    public <T> int append(final List<T> values, final Codec<T> codec, long timestamp) throws IOException {
+        long start = this.position;
+        for(T value : values)
+            put(value, codec, timestamp);
+        drain();
+        return (int) (this.position - start);
+    }
+
+    /**
+     * encode record into write buffer, record larger than write buffer is encoded into byte array and copied
+     */
+    private <T> void put(final T value, final Codec<T> codec, long timestamp) throws IOException {
+        int length = codec.encodedSize(value);
+        if(header.getStoredRecordSize(length) > writeBuf.capacity()) {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            codec.encode(value, buf);
+            put(buf.array(), timestamp);
+            return;
+        }
+        if(writeBuf.remaining() < header.getStoredRecordSize(length))
+            drain();
+        putHead(length, timestamp);
+        int contentStart = writeBuf.position();
+        codec.encode(value, writeBuf);
+        if(writeBuf.position() - contentStart != length) {
+            writeBuf.clear();
+            throw new IOException("Codec " + codec + " encodes " + (writeBuf.position() - contentStart) + " bytes, instead of " + length);
+        }
+    }
+
+    /**
+     * copy record head and content into write buffer, write buffer is drained into backup file whenever it is full
+     */
+    private void put(final byte[] content, long timestamp) throws IOException {
+        if(writeBuf.remaining() < header.getRecordHeadSize())
+            drain();
+        putHead(content.length, timestamp);
+        int offset = 0;
+        while(offset < content.length) {
+            if(!writeBuf.hasRemaining())
+                drain();
+            int len = Math.min(writeBuf.remaining(), content.length - offset);
+            writeBuf.put(content, offset, len);
+            offset += len;
+        }
+    }
+
+    private void putHead(int length, long timestamp) {
+        if(header.hasRecordTimestamp()) {
+            writeBuf.putInt(BackupFileHeader.RECORD_TIMESTAMP_SIZE_IN_BYTE + length);
+            writeBuf.putLong(timestamp);
+        } else {
+            writeBuf.putInt(length);
+        }
+    }
+
+    private void drain() throws IOException {
+        writeBuf.flip();
+        try {
+            while (writeBuf.hasRemaining())
+                this.position += channel.write(writeBuf, this.position);
+        } finally {
+            writeBuf.clear();
+        }
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        if(offset < BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)
+            throw new IllegalArgumentException("Offset " + offset + " falls in head of backup file " + path);
+        this.position = offset;
+    }
+
+    @Override
+    public long position() {
+        return this.position;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return this.header.getMaxSize();
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public String toString() {
+        return this.path.toString();
+    }
+}
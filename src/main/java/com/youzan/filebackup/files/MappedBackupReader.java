@@ -0,0 +1,204 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.IBackupReader;
+import com.youzan.filebackup.codec.Codec;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link IBackupReader} reads backup file by copying contents out of memory mapped backup file. Backup file is
+ * mapped in a window of fixed size from read position, or of record size if record is larger, and window is mapped
+ * again from read position when read goes beyond it, as read moves on or backup file grows while writer appends.
+ */
+public class MappedBackupReader implements IBackupReader {
+    //64MB default window size
+    private final static long WINDOW_SIZE_IN_BYTE = 64 * 1024 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final BackupFileHeader header;
+    private final long windowSize;
+    private MappedByteBuffer mapped;
+    //offset in backup file mapping starts at
+    private long mappedStart;
+    private long position;
+    private long timestamp = -1;
+
+    public MappedBackupReader(final Path path) throws IOException {
+        this(path, WINDOW_SIZE_IN_BYTE);
+    }
+
+    MappedBackupReader(final Path path, long windowSizeInByte) throws IOException {
+        if(windowSizeInByte <= 0 || windowSizeInByte > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid window size " + windowSizeInByte);
+        this.windowSize = windowSizeInByte;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.header = BackupFileHeader.read(this.channel);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.position = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+    }
+
+    /**
+     * make sure mapping covers passin range, window is mapped again from passin start otherwise
+     * @return false if backup file is not that large
+     */
+    private boolean ensureMapped(long start, long end) throws IOException {
+        if(null != mapped && start >= mappedStart && end <= mappedStart + mapped.capacity())
+            return true;
+        long size = channel.size();
+        if(end > size)
+            return false;
+        if(end - start > Integer.MAX_VALUE)
+            throw new IOException("Record of " + (end - start) + " bytes at " + start + " exceeds size for memory mapped read in " + path);
+        long windowEnd = Math.min(size, Math.max(end, start + windowSize));
+        MappedByteBuffer previous = mapped;
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, windowEnd - start);
+        mappedStart = start;
+        IOUtils.unmap(previous);
+        return true;
+    }
+
+    /**
+     * @return index in mapping of passin offset in backup file
+     */
+    private int indexOf(long offset) {
+        return (int) (offset - mappedStart);
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        int headSize = header.getRecordHeadSize();
+        if(!ensureMapped(this.position, this.position + headSize))
+            return null;
+        //length head counts bytes after it, record timestamp included
+        int length = mapped.getInt(indexOf(this.position)) - (headSize - BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE);
+        if(length < 0)
+            throw new IOException("Invalid content length " + length + " at " + this.position + " in " + path);
+        long recordTimestamp = header.hasRecordTimestamp() ? mapped.getLong(indexOf(this.position) + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE) : -1;
+        long contentStart = this.position + headSize;
+        if(!ensureMapped(this.position, contentStart + length))
+            return null;
+        byte[] content = new byte[length];
+        mapped.position(indexOf(contentStart));
+        mapped.get(content);
+        this.position = contentStart + length;
+        this.timestamp = recordTimestamp;
+        return content;
+    }
+
+    /**
+     * Decode value straight from mapped backup file.
+     */
+    @Override
+    public <T> T read(final Codec<T> codec) throws IOException {
+        int headSize = header.getRecordHeadSize();
+        if(!ensureMapped(this.position, this.position + headSize))
+            return null;
+        int length = mapped.getInt(indexOf(this.position)) - (headSize - BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE);
+        if(length < 0)
+            throw new IOException("Invalid content length " + length + " at " + this.position + " in " + path);
+        long recordTimestamp = header.hasRecordTimestamp() ? mapped.getLong(indexOf(this.position) + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE) : -1;
+        long contentStart = this.position + headSize;
+        if(!ensureMapped(this.position, contentStart + length))
+            return null;
+        ByteBuffer content = mapped.duplicate();
+        content.limit(indexOf(contentStart + length));
+        content.position(indexOf(contentStart));
+        T value = codec.decode(content);
+        this.position = contentStart + length;
+        this.timestamp = recordTimestamp;
+        return value;
+    }
+
+    /**
+     * Visit contents straight in mapped backup file.
+     */
+    @Override
+    public int read(final BackupFileScanner.RecordVisitor visitor) throws IOException {
+        int count = 0;
+        int headSize = header.getRecordHeadSize();
+        while(ensureMapped(this.position, this.position + headSize)) {
+            int length = mapped.getInt(indexOf(this.position)) - (headSize - BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE);
+            if(length < 0)
+                throw new IOException("Invalid content length " + length + " at " + this.position + " in " + path);
+            long recordTimestamp = header.hasRecordTimestamp() ? mapped.getLong(indexOf(this.position) + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE) : -1;
+            long offset = this.position;
+            long contentStart = offset + headSize;
+            if(!ensureMapped(offset, contentStart + length))
+                break;
+            ByteBuffer content = mapped.duplicate();
+            content.limit(indexOf(contentStart + length));
+            content.position(indexOf(contentStart));
+            this.position = contentStart + length;
+            this.timestamp = recordTimestamp;
+            count++;
+            if(!visitor.visit(offset, recordTimestamp, content))
+                break;
+        }
+        return count;
+    }
+
+    @Override
+    public List<byte[]> read(int maxCount, long limit) throws IOException {
+        List<byte[]> contents = new ArrayList<>();
+        while(contents.size() < maxCount && this.position <= limit) {
+            byte[] content = read();
+            if(null == content)
+                break;
+            contents.add(content);
+        }
+        return contents;
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        if(offset < BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)
+            throw new IllegalArgumentException("Offset " + offset + " falls in head of backup file " + path);
+        this.position = offset;
+    }
+
+    @Override
+    public long position() {
+        return this.position;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return this.header.getMaxSize();
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return this.header;
+    }
+
+    @Override
+    public long timestamp() {
+        return this.timestamp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.unmap(mapped);
+        mapped = null;
+        channel.close();
+    }
+
+    public String toString() {
+        return this.path.toString();
+    }
+}
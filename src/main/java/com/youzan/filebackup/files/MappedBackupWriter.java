@@ -0,0 +1,207 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.IBackupWriter;
+import com.youzan.filebackup.codec.Codec;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * {@link IBackupWriter} writes backup file by copying contents into memory mapped backup file. Backup file is mapped
+ * in a window from write position, which is preallocated to next chunk of passin size, or to max size of backup file
+ * if preallocate size is 0. Window is mapped again from write position when append goes beyond it, as the last
+ * content in backup file may go beyond max size, and window never goes beyond 2GB, which one mapping could hold.
+ * Mapping is unmapped and backup file is truncated to write position when writer closes.
+ */
+public class MappedBackupWriter implements IBackupWriter {
+    //max size of one mapping
+    private final static long MAX_WINDOW_SIZE_IN_BYTE = Integer.MAX_VALUE;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final BackupFileHeader header;
+    private final long preallocateSize;
+    private final long maxWindowSize;
+    private MappedByteBuffer mapped;
+    //offset in backup file mapping starts at
+    private long mappedStart;
+    //windows written are unmapped before flush, they are flushed with channel
+    private boolean unmappedWritten = false;
+    private long position;
+
+    public MappedBackupWriter(final Path path, long maxSize) throws IOException {
+        this(path, maxSize, 0);
+    }
+
+    public MappedBackupWriter(final Path path, long maxSize, long preallocateSizeInByte) throws IOException {
+        this(path, new BackupFileHeader(maxSize, 0), preallocateSizeInByte);
+    }
+
+    /**
+     * @param header    head for newly created backup file, head of existing backup file is kept
+     */
+    public MappedBackupWriter(final Path path, final BackupFileHeader header, long preallocateSizeInByte) throws IOException {
+        this(path, header, preallocateSizeInByte, MAX_WINDOW_SIZE_IN_BYTE);
+    }
+
+    MappedBackupWriter(final Path path, final BackupFileHeader header, long preallocateSizeInByte, long maxWindowSizeInByte) throws IOException {
+        if(preallocateSizeInByte < 0)
+            throw new IllegalArgumentException("Negative preallocate size is not accepted.");
+        if(maxWindowSizeInByte <= 0 || maxWindowSizeInByte > MAX_WINDOW_SIZE_IN_BYTE)
+            throw new IllegalArgumentException("Invalid max window size " + maxWindowSizeInByte);
+        this.maxWindowSize = maxWindowSizeInByte;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            this.header = BackupFileHeader.readOrCreate(this.channel, header);
+            this.preallocateSize = preallocateSizeInByte;
+            this.position = BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE;
+            ensureMapped(this.position, this.position);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * make sure mapping covers passin range, window is mapped again from passin start otherwise, and is preallocated
+     * to next chunk boundary
+     */
+    private void ensureMapped(long start, long end) throws IOException {
+        if(null != mapped && start >= mappedStart && end <= mappedStart + mapped.capacity())
+            return;
+        if(end - start > maxWindowSize)
+            throw new IOException("Record of " + (end - start) + " bytes at " + start + " exceeds size for memory mapped write in " + path);
+        long windowEnd;
+        if(preallocateSize == 0)
+            windowEnd = Math.max(end, this.header.getMaxSize());
+        else
+            windowEnd = (end + preallocateSize - 1) / preallocateSize * preallocateSize;
+        windowEnd = Math.min(windowEnd, start + maxWindowSize);
+        MappedByteBuffer previous = mapped;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, start, windowEnd - start);
+        mappedStart = start;
+        if(null != previous)
+            unmappedWritten = true;
+        IOUtils.unmap(previous);
+    }
+
+    @Override
+    public int append(final byte[] contents, long timestamp) throws IOException {
+        long start = this.position;
+        put(contents, timestamp);
+        return (int) (this.position - start);
+    }
+
+    @Override
+    public int append(final List<byte[]> contents, long timestamp) throws IOException {
+        long start = this.position;
+        for(byte[] content : contents)
+            put(content, timestamp);
+        return (int) (this.position - start);
+    }
+
+    /**
+     * Encode value straight into mapped backup file.
+     */
+    @Override
+    public <T> int append(final T value, final Codec<T> codec, long timestamp) throws IOException {
+        long start = this.position;
+        put(value, codec, timestamp);
+        return (int) (this.position - start);
+    }
+
+    /**
+     * Encode values straight into mapped backup file.
+     */
+    @Override
+    public <T> int append(final List<T> values, final Codec<T> codec, long timestamp) throws IOException {
+        long start = this.position;
+        for(T value : values)
+            put(value, codec, timestamp);
+        return (int) (this.position - start);
+    }
+
+    private <T> void put(final T value, final Codec<T> codec, long timestamp) throws IOException {
+        int length = codec.encodedSize(value);
+        putHead(length, timestamp);
+        int contentStart = mapped.position();
+        codec.encode(value, mapped);
+        if(mapped.position() - contentStart != length)
+            throw new IOException("Codec " + codec + " encodes " + (mapped.position() - contentStart) + " bytes, instead of " + length);
+        this.position = mappedStart + mapped.position();
+    }
+
+    private void put(final byte[] content, long timestamp) throws IOException {
+        putHead(content.length, timestamp);
+        mapped.put(content);
+        this.position = mappedStart + mapped.position();
+    }
+
+    /**
+     * map record of passin content length and put record head, mapped buffer is left at start of content
+     */
+    private void putHead(int length, long timestamp) throws IOException {
+        ensureMapped(this.position, this.position + header.getStoredRecordSize(length));
+        mapped.position((int) (this.position - mappedStart));
+        if(header.hasRecordTimestamp()) {
+            mapped.putInt(BackupFileHeader.RECORD_TIMESTAMP_SIZE_IN_BYTE + length);
+            mapped.putLong(timestamp);
+        } else {
+            mapped.putInt(length);
+        }
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        if(offset < BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE)
+            throw new IllegalArgumentException("Offset " + offset + " falls in head of backup file " + path);
+        this.position = offset;
+    }
+
+    @Override
+    public long position() {
+        return this.position;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return this.header.getMaxSize();
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mapped.force();
+        if(unmappedWritten) {
+            channel.force(false);
+            unmappedWritten = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            IOUtils.unmap(mapped);
+            mapped = null;
+            //drop preallocated space after last content
+            channel.truncate(this.position);
+        } finally {
+            channel.close();
+        }
+    }
+
+    public String toString() {
+        return this.path.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.youzan.filebackup.replica;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Replica end of {@link SocketReplicaTransport}, which keeps files replicated in local directory with
+ * {@link LocalDirReplicaTransport}. Server listens on loopback address, as stand-in of replica node, and serves each
+ * connection in a thread of its own. Ranges of backup files go from socket to file with
+ * {@link java.nio.channels.FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.
+ */
+public class BackupReplicaServer implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(BackupReplicaServer.class);
+
+    private final LocalDirReplicaTransport local;
+    private final int port;
+    private ServerSocketChannel server = null;
+    private final List<SocketChannel> connections = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param root  directory replicated files are kept in
+     * @param port  port to listen on, 0 for any free port
+     */
+    public BackupReplicaServer(final Path root, int port) {
+        this.local = new LocalDirReplicaTransport(root);
+        this.port = port;
+    }
+
+    /**
+     * Start listening on loopback address.
+     */
+    public synchronized BackupReplicaServer start() throws IOException {
+        if(null != server)
+            throw new IllegalStateException("Replica server already started.");
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread acceptor = new Thread(this::accept, "backup-replica-server-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Replica server listens on {}, replicas in {}.", getAddress(), local.getRoot());
+        return this;
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), getPort());
+    }
+
+    private void accept() {
+        while(server.isOpen()) {
+            try {
+                SocketChannel connection = server.accept();
+                connections.add(connection);
+                Thread thread = new Thread(() -> serve(connection), "backup-replica-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if(server.isOpen())
+                    logger.error("Replica server fails to accept connection.", e);
+            }
+        }
+    }
+
+    private void serve(final SocketChannel connection) {
+        try {
+            while(true) {
+                ByteBuffer op = ByteBuffer.allocate(1);
+                if(!readFully(connection, op, true))
+                    break;
+                String scopeId = readString(connection);
+                String fileName = readString(connection);
+                ByteBuffer range = ByteBuffer.allocate(16);
+                readFully(connection, range, false);
+                long position = range.getLong(0);
+                long count = range.getLong(8);
+                long result = 0;
+                switch (op.get(0)) {
+                    case SocketReplicaTransport.OP_SIZE:
+                        result = local.size(scopeId, fileName);
+                        break;
+                    case SocketReplicaTransport.OP_TRANSFER:
+                        local.receive(scopeId, fileName, connection, position, count);
+                        break;
+                    case SocketReplicaTransport.OP_REPLACE:
+                        ByteBuffer content = ByteBuffer.allocate((int) count);
+                        readFully(connection, content, false);
+                        content.flip();
+                        local.replace(scopeId, fileName, content);
+                        break;
+                    case SocketReplicaTransport.OP_DELETE:
+                        local.delete(scopeId, fileName);
+                        break;
+                    default:
+                        throw new IOException("Unknown replica op " + op.get(0));
+                }
+                ByteBuffer answer = ByteBuffer.allocate(8);
+                answer.putLong(result).flip();
+                SocketReplicaTransport.writeFully(connection, answer);
+            }
+        } catch (IOException e) {
+            if(server.isOpen())
+                logger.error("Replica connection fails, connection closes.", e);
+        } finally {
+            connections.remove(connection);
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return false if connection closes before first byte, when passin end of stream is allowed
+     */
+    private static boolean readFully(final SocketChannel connection, final ByteBuffer buf, boolean allowEnd) throws IOException {
+        while(buf.hasRemaining()) {
+            if(connection.read(buf) < 0) {
+                if(allowEnd && buf.position() == 0)
+                    return false;
+                throw new EOFException("Replica connection closes in the middle of request.");
+            }
+        }
+        return true;
+    }
+
+    private static String readString(final SocketChannel connection) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(2);
+        readFully(connection, length, false);
+        ByteBuffer bytes = ByteBuffer.allocate(length.getShort(0) & 0xFFFF);
+        readFully(connection, bytes, false);
+        return new String(bytes.array(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(null == server)
+            return;
+        server.close();
+        for(SocketChannel connection : connections)
+            connection.close();
+        logger.info("Replica server on {} closed.", local.getRoot());
+    }
+}
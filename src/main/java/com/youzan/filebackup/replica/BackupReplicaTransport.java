@@ -0,0 +1,39 @@
+package com.youzan.filebackup.replica;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Transport of backup files and meta data checkpoints of backup scopes to a replica. Replica keeps files of each
+ * backup scope in a folder named by scope id, under the same file names, so that replica folder opens as backup scope
+ * once primary is lost. Transport is shared by backup scopes, and is invoked from one replication thread at a time.
+ */
+public interface BackupReplicaTransport extends Closeable {
+
+    /**
+     * @return size of file in replica of backup scope, 0 if there is no such file
+     */
+    long size(String scopeId, String fileName) throws IOException;
+
+    /**
+     * Copy passin range of source file into file of the same name in replica of backup scope, at the same position.
+     * File in replica is created if it does not exist, and range copied is forced to disk before transfer returns, as
+     * checkpoint replaced afterwards refers to it.
+     * @param source    channel of source file
+     * @param position  position of range in source file
+     * @param count     byte count of range
+     */
+    void transfer(String scopeId, String fileName, FileChannel source, long position, long count) throws IOException;
+
+    /**
+     * Replace file in replica of backup scope with passin content as a whole, for checkpoint of meta data files.
+     */
+    void replace(String scopeId, String fileName, ByteBuffer content) throws IOException;
+
+    /**
+     * Delete file in replica of backup scope, if there is.
+     */
+    void delete(String scopeId, String fileName) throws IOException;
+}
@@ -0,0 +1,106 @@
+package com.youzan.filebackup.replica;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link BackupReplicaTransport} into local directory, usually on another disk. Ranges of backup files are copied with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so that bytes are copied in
+ * kernel without passing user space. Checkpoints are written into temporary file and moved over the old one.
+ */
+public class LocalDirReplicaTransport implements BackupReplicaTransport {
+    private final static String REPLACING_SUFFIX = ".replacing";
+    private final Path root;
+
+    public LocalDirReplicaTransport(final Path root) {
+        if(null == root)
+            throw new IllegalArgumentException("Replica root could not be null.");
+        this.root = root;
+    }
+
+    public Path getRoot() {
+        return this.root;
+    }
+
+    /**
+     * @return path of file in replica of backup scope, scope folder is created if it does not exist
+     */
+    Path resolve(String scopeId, String fileName) throws IOException {
+        if(scopeId.contains("/") || scopeId.contains("\\") || scopeId.startsWith(".")
+                || fileName.contains("/") || fileName.contains("\\") || fileName.startsWith("."))
+            throw new IOException("Invalid replica file " + scopeId + "/" + fileName);
+        Path folder = root.resolve(scopeId);
+        Files.createDirectories(folder);
+        return folder.resolve(fileName);
+    }
+
+    @Override
+    public long size(String scopeId, String fileName) throws IOException {
+        Path path = resolve(scopeId, fileName);
+        return Files.exists(path) ? Files.size(path) : 0;
+    }
+
+    @Override
+    public void transfer(String scopeId, String fileName, final FileChannel source, long position, long count) throws IOException {
+        try(FileChannel target = FileChannel.open(resolve(scopeId, fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            target.position(position);
+            long transferred = 0;
+            while(transferred < count) {
+                long n = source.transferTo(position + transferred, count - transferred, target);
+                if(n <= 0)
+                    throw new IOException("Source of " + fileName + " ends before " + (position + count));
+                transferred += n;
+            }
+            //checkpoint replaced after transfer refers to bytes copied
+            target.force(false);
+        }
+    }
+
+    /**
+     * Write passin count of bytes from source channel into file in replica of backup scope at passin position, as
+     * replica server receives ranges of backup files.
+     */
+    void receive(String scopeId, String fileName, final ReadableByteChannel source, long position, long count) throws IOException {
+        try(FileChannel target = FileChannel.open(resolve(scopeId, fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long received = 0;
+            while(received < count) {
+                long n = target.transferFrom(source, position + received, count - received);
+                if(n <= 0)
+                    throw new IOException("Replica stream of " + fileName + " ends before " + (position + count));
+                received += n;
+            }
+            target.force(false);
+        }
+    }
+
+    @Override
+    public void replace(String scopeId, String fileName, final ByteBuffer content) throws IOException {
+        Path path = resolve(scopeId, fileName);
+        Path replacing = path.resolveSibling(fileName + REPLACING_SUFFIX);
+        try(FileChannel channel = FileChannel.open(replacing, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(content.hasRemaining())
+                channel.write(content);
+            channel.force(false);
+        }
+        Files.move(replacing, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void delete(String scopeId, String fileName) throws IOException {
+        Files.deleteIfExists(resolve(scopeId, fileName));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public String toString() {
+        return "replica@" + this.root;
+    }
+}
@@ -0,0 +1,148 @@
+package com.youzan.filebackup.replica;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link BackupReplicaTransport} to {@link BackupReplicaServer} over socket. Each request is a head:
+ * <pre>
+ * [byte op][short scope id length][scope id][short file name length][file name][long position][long count]
+ * </pre>
+ * followed by count of bytes for transfer and replace, and is answered with one long, which is file size for size
+ * request. Ranges of backup files are sent with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so that bytes go from page cache to socket without passing user space. Connection is opened on first request, and
+ * opened again on next request after failure.
+ */
+public class SocketReplicaTransport implements BackupReplicaTransport {
+    static final byte OP_SIZE = 1;
+    static final byte OP_TRANSFER = 2;
+    static final byte OP_REPLACE = 3;
+    static final byte OP_DELETE = 4;
+
+    private final InetSocketAddress address;
+    private SocketChannel channel = null;
+
+    public SocketReplicaTransport(final InetSocketAddress address) {
+        if(null == address)
+            throw new IllegalArgumentException("Replica address could not be null.");
+        this.address = address;
+    }
+
+    private SocketChannel connect() throws IOException {
+        if(null == channel || !channel.isOpen()) {
+            channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+        }
+        return channel;
+    }
+
+    /**
+     * send head of request
+     */
+    private void sendHead(byte op, String scopeId, String fileName, long position, long count) throws IOException {
+        byte[] scopeBytes = scopeId.getBytes(StandardCharsets.UTF_8);
+        byte[] fileBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer head = ByteBuffer.allocate(1 + 2 + scopeBytes.length + 2 + fileBytes.length + 16);
+        head.put(op);
+        head.putShort((short) scopeBytes.length).put(scopeBytes);
+        head.putShort((short) fileBytes.length).put(fileBytes);
+        head.putLong(position).putLong(count);
+        head.flip();
+        writeFully(connect(), head);
+    }
+
+    private long receiveResult() throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(8);
+        while(result.hasRemaining()) {
+            if(channel.read(result) < 0)
+                throw new EOFException("Replica " + address + " closes connection.");
+        }
+        result.flip();
+        return result.getLong();
+    }
+
+    static void writeFully(final SocketChannel channel, final ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining())
+            channel.write(buf);
+    }
+
+    /**
+     * connection is dropped after failure, as request stream could be broken in the middle
+     */
+    private IOException fail(final IOException e) {
+        disconnect();
+        return e;
+    }
+
+    private void disconnect() {
+        if(null != channel) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public synchronized long size(String scopeId, String fileName) throws IOException {
+        try {
+            sendHead(OP_SIZE, scopeId, fileName, 0, 0);
+            return receiveResult();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void transfer(String scopeId, String fileName, final FileChannel source, long position, long count) throws IOException {
+        try {
+            sendHead(OP_TRANSFER, scopeId, fileName, position, count);
+            long transferred = 0;
+            while(transferred < count) {
+                long n = source.transferTo(position + transferred, count - transferred, channel);
+                if(n <= 0 && position + transferred >= source.size())
+                    throw new IOException("Source of " + fileName + " ends before " + (position + count));
+                transferred += n;
+            }
+            receiveResult();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void replace(String scopeId, String fileName, final ByteBuffer content) throws IOException {
+        try {
+            sendHead(OP_REPLACE, scopeId, fileName, 0, content.remaining());
+            writeFully(channel, content);
+            receiveResult();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(String scopeId, String fileName) throws IOException {
+        try {
+            sendHead(OP_DELETE, scopeId, fileName, 0, 0);
+            receiveResult();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        disconnect();
+    }
+
+    public String toString() {
+        return "replica@" + this.address;
+    }
+}
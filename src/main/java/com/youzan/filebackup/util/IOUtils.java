@@ -1,15 +1,51 @@
 package com.youzan.filebackup.util;
 
 import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
 
 /**
  * Created by lin on 17/4/7.
  */
 public class IOUtils {
+    private final static Logger logger = LoggerFactory.getLogger(IOUtils.class);
 
     private final static Gson GSON = new Gson();
 
     public static Gson getGson() {
         return GSON;
     }
+
+    /**
+     * Unmap memory mapped buffer right away, instead of waiting for it to be garbage collected. Buffer MUST not be
+     * accessed after it is unmapped. If buffer could not be unmapped on current JVM, it is left to garbage collection.
+     * @param buffer    memory mapped buffer
+     */
+    public static void unmap(final MappedByteBuffer buffer) {
+        if(null == buffer || !buffer.isDirect())
+            return;
+        try {
+            try {
+                //java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                //java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if(null != cleaner)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.warn("Fail to unmap buffer, it is left to garbage collection.", e);
+        }
+    }
 }
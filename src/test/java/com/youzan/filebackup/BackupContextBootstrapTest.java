@@ -0,0 +1,124 @@
+package com.youzan.filebackup;
+
+import com.youzan.filebackup.context.BackupContext;
+import com.youzan.filebackup.context.BackupContextBootstrap;
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeBuilder;
+import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class BackupContextBootstrapTest {
+
+    @Test
+    public void testBootstrapScopes() throws IOException, InterruptedException {
+        Path parent = Paths.get("src/test/resources/testBootstrapScopes");
+        Files.createDirectories(parent);
+        Set<String> scopeIds = new HashSet<>();
+        for(int i = 0; i < 20; i++) {
+            BackupScope aScope = BackupScopeBuilder.create(parent.toString())
+                    .setBackupContext(new DefaultBackupContext("testBootstrapScopes"))
+                    .build();
+            aScope.init();
+            aScope.openWrite();
+            aScope.tryWrite(aScope.getScopeId().getBytes(Charset.defaultCharset()));
+            aScope.closeWrite();
+            scopeIds.add(aScope.getScopeId());
+        }
+        //folder not for backup scope is skipped
+        Files.createDirectories(parent.resolve("not_a_scope"));
+
+        BackupContext context = new DefaultBackupContext("testBootstrapScopes");
+        final Set<String> readyIds = ConcurrentHashMap.newKeySet();
+        BackupContextBootstrap bootstrap = context.bootstrap(parent.toString())
+                .setParallelism(4)
+                .setListener(new BackupContextBootstrap.Listener() {
+                    @Override
+                    public void onScopeReady(BackupScope scope, BackupContextBootstrap.Metrics metrics) {
+                        readyIds.add(scope.getScopeId());
+                    }
+
+                    @Override
+                    public void onScopeFailed(BackupScope scope, BackupContextBootstrap.Metrics metrics) {
+                    }
+                })
+                .start();
+        Assert.assertTrue(bootstrap.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(bootstrap.isDone());
+        BackupContextBootstrap.Metrics metrics = bootstrap.getMetrics();
+        Assert.assertEquals(20, metrics.getDiscovered());
+        Assert.assertEquals(20, metrics.getReady());
+        Assert.assertEquals(0, metrics.getFailed());
+        Assert.assertEquals(scopeIds, readyIds);
+        Assert.assertEquals(20, context.getScopes().size());
+
+        for(String scopeId : scopeIds) {
+            BackupScope aScope = context.getScope(scopeId);
+            Assert.assertNotNull(aScope);
+            Assert.assertEquals(scopeId, new String(aScope.tryRead()));
+            aScope.closeRead();
+        }
+        clear(parent);
+    }
+
+    @Test
+    public void testBootstrapDuplicateScope() throws IOException, InterruptedException {
+        Path parent = Paths.get("src/test/resources/testBootstrapDuplicateScope");
+        Files.createDirectories(parent);
+        BackupScope aScope = BackupScopeBuilder.create(parent.toString())
+                .setBackupContext(new DefaultBackupContext("testBootstrapDuplicateScope"))
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        aScope.tryWrite(aScope.getScopeId().getBytes(Charset.defaultCharset()));
+        aScope.close();
+
+        //scope of the same scope id is in backup context before bootstrap
+        BackupContext context = new DefaultBackupContext("testBootstrapDuplicateScope");
+        BackupScope added = BackupScopeBuilder.create(parent.toString(), aScope.getScopeId())
+                .setBackupContext(context)
+                .build();
+        final Set<String> failedIds = ConcurrentHashMap.newKeySet();
+        BackupContextBootstrap bootstrap = context.bootstrap(parent.toString())
+                .setListener(new BackupContextBootstrap.Listener() {
+                    @Override
+                    public void onScopeReady(BackupScope scope, BackupContextBootstrap.Metrics metrics) {
+                    }
+
+                    @Override
+                    public void onScopeFailed(BackupScope scope, BackupContextBootstrap.Metrics metrics) {
+                        failedIds.add(scope.getScopeId());
+                    }
+                })
+                .start();
+        Assert.assertTrue(bootstrap.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, bootstrap.getMetrics().getReady());
+        Assert.assertEquals(1, bootstrap.getMetrics().getFailed());
+        Assert.assertTrue(failedIds.contains(aScope.getScopeId()));
+        Assert.assertSame(added, context.getScope(aScope.getScopeId()));
+        //scope failed in bootstrap is closed, and leaves scope folder to scope in context
+        added.init();
+        Assert.assertEquals(aScope.getScopeId(), new String(added.tryRead()));
+        added.close();
+        clear(parent);
+    }
+
+    private void clear(Path path) throws IOException {
+        DirectoryDelete walk = new DirectoryDelete();
+        EnumSet opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+        Files.walkFileTree(path, opts, Integer.MAX_VALUE, walk);
+    }
+}
@@ -0,0 +1,145 @@
+package com.youzan.filebackup;
+
+import com.youzan.filebackup.context.BackupContext;
+import com.youzan.filebackup.context.BackupFanInReader;
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeBuilder;
+import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class BackupFanInReaderTest {
+
+    private List<BackupScope> createScopes(final BackupContext context, final Path parent, int count) throws IOException {
+        Files.createDirectories(parent);
+        List<BackupScope> scopes = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            BackupScope aScope = BackupScopeBuilder.create(parent.toString(), "scope" + i)
+                    .setBackupContext(context)
+                    .build();
+            aScope.init();
+            aScope.openWrite();
+            aScope.openRead();
+            scopes.add(aScope);
+        }
+        return scopes;
+    }
+
+    private void closeScopes(final List<BackupScope> scopes) throws IOException {
+        for(BackupScope aScope : scopes) {
+            aScope.closeRead();
+            aScope.closeWrite();
+        }
+    }
+
+    private void write(final BackupScope scope, int count) throws IOException {
+        for(int i = 0; i < count; i++)
+            scope.tryWrite((scope.getScopeId() + "_" + i).getBytes(Charset.defaultCharset()));
+    }
+
+    @Test
+    public void testFairFanIn() throws IOException {
+        Path parent = Paths.get("src/test/resources/testFairFanIn");
+        BackupContext context = new DefaultBackupContext("testFairFanIn");
+        List<BackupScope> scopes = createScopes(context, parent, 20);
+        BackupFanInReader reader = context.newFanInReader().setQuantum(10).open();
+        //idle scopes are not ready after first poll on them
+        while(null != reader.poll());
+        Assert.assertEquals(0, reader.getReadyCount());
+
+        write(scopes.get(3), 30);
+        write(scopes.get(7), 30);
+        Assert.assertEquals(2, reader.getReadyCount());
+        //scopes with the same priority are served in turn
+        String[] expected = {"scope3", "scope7", "scope3", "scope7", "scope3", "scope7"};
+        for(String scopeId : expected) {
+            BackupFanInReader.Batch batch = reader.poll();
+            Assert.assertNotNull(batch);
+            Assert.assertEquals(scopeId, batch.getScope().getScopeId());
+            Assert.assertEquals(10, batch.getRecords().size());
+        }
+        Assert.assertNull(reader.poll());
+        Assert.assertEquals(30, scopes.get(3).getBackupMetaInfo().getReadSequence());
+        Assert.assertEquals(30, scopes.get(7).getBackupMetaInfo().getReadSequence());
+        reader.close();
+        closeScopes(scopes);
+        clear(parent);
+    }
+
+    @Test
+    public void testPriorityFanIn() throws IOException {
+        Path parent = Paths.get("src/test/resources/testPriorityFanIn");
+        BackupContext context = new DefaultBackupContext("testPriorityFanIn");
+        List<BackupScope> scopes = createScopes(context, parent, 3);
+        BackupFanInReader reader = context.newFanInReader()
+                .setQuantum(10)
+                .setQuantum("scope1", 20)
+                .setPriority("scope2", 1)
+                .open();
+        write(scopes.get(0), 20);
+        write(scopes.get(1), 40);
+        write(scopes.get(2), 20);
+        //priority scope is drained first
+        Assert.assertEquals("scope2", reader.poll().getScope().getScopeId());
+        Assert.assertEquals("scope2", reader.poll().getScope().getScopeId());
+        //then scope with larger quantum takes larger share
+        BackupFanInReader.Batch batch = reader.poll();
+        Assert.assertEquals("scope0", batch.getScope().getScopeId());
+        Assert.assertEquals(10, batch.getRecords().size());
+        batch = reader.poll();
+        Assert.assertEquals("scope1", batch.getScope().getScopeId());
+        Assert.assertEquals(20, batch.getRecords().size());
+        reader.close();
+        closeScopes(scopes);
+        clear(parent);
+    }
+
+    @Test
+    public void testBlockingPoll() throws IOException, InterruptedException {
+        Path parent = Paths.get("src/test/resources/testBlockingPoll");
+        BackupContext context = new DefaultBackupContext("testBlockingPoll");
+        final List<BackupScope> scopes = createScopes(context, parent, 5);
+        BackupFanInReader reader = context.newFanInReader().open();
+        while(null != reader.poll());
+        Assert.assertNull(reader.poll(10, TimeUnit.MILLISECONDS));
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    write(scopes.get(4), 5);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+        //poll waits till write from another thread
+        BackupFanInReader.Batch batch = reader.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(batch);
+        Assert.assertEquals("scope4", batch.getScope().getScopeId());
+        Assert.assertEquals(0, batch.getRecords().get(0).getSequence());
+        writer.join();
+        reader.close();
+        Assert.assertNull(reader.poll(10, TimeUnit.MILLISECONDS));
+        closeScopes(scopes);
+        clear(parent);
+    }
+
+    private void clear(final Path scopePath) throws IOException {
+        Files.walkFileTree(scopePath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new DirectoryDelete());
+    }
+}
@@ -0,0 +1,137 @@
+package com.youzan.filebackup;
+
+import com.youzan.App;
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeBuilder;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.context.BackupScopeInspector;
+import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+public class BackupScopeInspectorTest {
+
+    @Test
+    public void testInspectAndVerify() throws IOException {
+        String scopeId = "testInspector";
+        Path scopeFolder = writeScope(scopeId, new BackupScopeConfig().setBackupFileMaxByte(200).setRecordTimestamp(true));
+        BackupScopeInspector inspector = new BackupScopeInspector(scopeFolder);
+        Assert.assertEquals(100, inspector.getMetaSequence("writeSequence"));
+        Assert.assertEquals(10, inspector.getMetaSequence("readSequence"));
+        Assert.assertTrue(inspector.getMetaJson().contains("writeStart"));
+        Assert.assertTrue(inspector.verify(4).isEmpty());
+
+        List<BackupScopeInspector.SegmentReport> reports = inspector.scan(4);
+        //the empty backup file rolled over to is scanned too
+        Assert.assertEquals(inspector.getSegments().size() + 1, reports.size());
+        long records = 0;
+        for(BackupScopeInspector.SegmentReport report : reports) {
+            Assert.assertTrue(report.getResult().isValid());
+            Assert.assertTrue(report.getProblems().isEmpty());
+            if(null != report.getInfo())
+                Assert.assertEquals(report.getInfo().getContentCount(), report.getResult().getRecordCount());
+            records += report.getResult().getRecordCount();
+        }
+        Assert.assertEquals(100, records);
+        //zeros preallocated in the empty backup file rolled over to are not taken as records
+        Path rolled = reports.get(reports.size() - 1).getPath();
+        try(FileChannel channel = FileChannel.open(rolled, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(1024), channel.size());
+        }
+        Assert.assertTrue(inspector.verify(4).isEmpty());
+        Assert.assertEquals(0, inspector.scan(4).get(reports.size() - 1).getResult().getRecordCount());
+
+        List<BackupScopeInspector.InspectedRecord> read = new ArrayList<>();
+        Assert.assertEquals(5, inspector.read(10, 5, null, read::add));
+        for(int i = 0; i < 5; i++) {
+            Assert.assertEquals(10 + i, read.get(i).getSequence());
+            Assert.assertEquals("content " + (10 + i), new String(read.get(i).getContent(), Charset.defaultCharset()));
+            Assert.assertTrue(read.get(i).getTimestamp() > 0);
+        }
+        read.clear();
+        Assert.assertEquals(3, inspector.tail(3, null, read::add));
+        Assert.assertEquals("content 97", new String(read.get(0).getContent(), Charset.defaultCharset()));
+        Assert.assertEquals("content 99", new String(read.get(2).getContent(), Charset.defaultCharset()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(0, App.run(new String[]{"segments", scopeFolder.toString(), "--threads", "2"}, new PrintStream(out), System.err));
+        Assert.assertTrue(out.toString().contains("100 records"));
+        out.reset();
+        Assert.assertEquals(0, App.run(new String[]{"print", scopeFolder.toString(), "--from", "42", "--count", "1"}, new PrintStream(out), System.err));
+        Assert.assertTrue(out.toString().startsWith("42 @"));
+        Assert.assertTrue(out.toString().trim().endsWith("content 42"));
+        Assert.assertEquals(2, App.run(new String[]{"unknown", scopeFolder.toString()}, new PrintStream(out), new PrintStream(new ByteArrayOutputStream())));
+
+        //torn backup file is caught by verify
+        Path torn = inspector.getBackupFilePath(inspector.getSegments().get(1).getBackupFileIndex());
+        try(FileChannel channel = FileChannel.open(torn, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        List<String> problems = new BackupScopeInspector(scopeFolder).verify(4);
+        Assert.assertEquals(1, problems.size());
+        Assert.assertTrue(problems.get(0).contains(torn.toString()));
+        out.reset();
+        Assert.assertEquals(1, App.run(new String[]{"verify", scopeFolder.toString()}, new PrintStream(out), System.err));
+        Assert.assertTrue(out.toString().contains("1 problems found."));
+        clear(scopeFolder);
+    }
+
+    @Test
+    public void testInspectEncrypted() throws IOException {
+        String scopeId = "testInspectorEncrypted";
+        byte[] masterKey = new byte[16];
+        for(int i = 0; i < masterKey.length; i++)
+            masterKey[i] = (byte) i;
+        Path scopeFolder = writeScope(scopeId, new BackupScopeConfig().setBackupFileMaxByte(300).setEncryptionKey(masterKey));
+        BackupScopeInspector inspector = new BackupScopeInspector(scopeFolder);
+        Assert.assertTrue(inspector.verify(2).isEmpty());
+        List<BackupScopeInspector.InspectedRecord> read = new ArrayList<>();
+        inspector.tail(1, null, read::add);
+        Assert.assertTrue(read.get(0).isEncrypted());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(0, App.run(new String[]{"tail", scopeFolder.toString(), "--count", "1", "--key", "000102030405060708090a0b0c0d0e0f"},
+                new PrintStream(out), System.err));
+        Assert.assertTrue(out.toString().trim().endsWith("content 99"));
+        clear(scopeFolder);
+    }
+
+    /**
+     * write 100 contents into backup scope, and read 10 of them
+     */
+    private Path writeScope(String scopeId, BackupScopeConfig config) throws IOException {
+        Files.createDirectories(Paths.get("src/test/resources/"));
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                .setBackupContext(new DefaultBackupContext(scopeId))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.start();
+        for (int i = 0; i < 100; i++)
+            Assert.assertTrue(aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset())) > 0);
+        Assert.assertEquals(10, aScope.tryRead(10).size());
+        aScope.close();
+        return Paths.get("src/test/resources/", scopeId);
+    }
+
+    private void clear(Path path) throws IOException {
+        DirectoryDelete walk = new DirectoryDelete();
+        EnumSet opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+        Files.walkFileTree(path, opts, Integer.MAX_VALUE, walk);
+    }
+}
@@ -1,9 +1,23 @@
 package com.youzan.filebackup;
 
+import com.youzan.filebackup.context.BackupContext;
+import com.youzan.filebackup.context.BackupContextBootstrap;
+import com.youzan.filebackup.context.BackupContextConfig;
+import com.youzan.filebackup.context.BackupContextStats;
+import com.youzan.filebackup.context.BackupLimitExceededException;
+import com.youzan.filebackup.context.BackupRecord;
+import com.youzan.filebackup.context.BackupReplicationStats;
 import com.youzan.filebackup.context.BackupScope;
 import com.youzan.filebackup.context.BackupScopeBuilder;
 import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.context.BackupScopeStats;
 import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.files.BackupBloomFilter;
+import com.youzan.filebackup.files.BackupFileHeader;
+import com.youzan.filebackup.replica.BackupReplicaServer;
+import com.youzan.filebackup.replica.BackupReplicaTransport;
+import com.youzan.filebackup.replica.LocalDirReplicaTransport;
+import com.youzan.filebackup.replica.SocketReplicaTransport;
 import com.youzan.filebackup.utils.DirectoryDelete;
 import org.junit.Assert;
 import org.junit.Test;
@@ -11,15 +25,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -140,6 +165,1380 @@ public class BackupScopeTest {
         clear(Paths.get("src/test/resources/testBackupMetaUpdateAfterBackupScopeBasicWrite"));
     }
 
+    @Test
+    public void testBatchWriteAndReadCrossBackupFiles() throws IOException {
+        for(BackupScopeConfig.IOMode mode : BackupScopeConfig.IOMode.values()) {
+            BackupScopeConfig config = new BackupScopeConfig()
+                    .setBackupFileMaxByte(100)
+                    .setIOMode(mode);
+            BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testBatchWriteAndReadCrossBackupFiles")
+                    .setBackupContext(new DefaultBackupContext("testBatchWriteAndReadCrossBackupFiles"))
+                    .setBackupScopeConfig(config)
+                    .build();
+            aScope.init();
+            aScope.openWrite();
+            List<byte[]> contents = new ArrayList<>();
+            for (int i = 0; i < 50; i++)
+                contents.add(("content " + i).getBytes(Charset.defaultCharset()));
+            aScope.tryWrite(contents.subList(0, 25));
+            for (byte[] content : contents.subList(25, 50))
+                aScope.tryWrite(content);
+            Assert.assertTrue(aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex() > 1);
+
+            List<byte[]> contRead = aScope.tryRead(30);
+            Assert.assertEquals(30, contRead.size());
+            contRead.add(aScope.tryRead());
+            contRead.addAll(aScope.tryRead(100));
+            Assert.assertEquals(contents.size(), contRead.size());
+            for (int i = 0; i < contents.size(); i++)
+                Assert.assertEquals(new String(contents.get(i)), new String(contRead.get(i)));
+            Assert.assertNull(aScope.tryRead());
+            Assert.assertTrue(aScope.tryRead(10).isEmpty());
+
+            aScope.closeRead();
+            aScope.closeWrite();
+            clear(Paths.get("src/test/resources/testBatchWriteAndReadCrossBackupFiles"));
+        }
+    }
+
+    @Test
+    public void testBackupScopeLease() throws IOException {
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testBackupScopeLease")
+                .setBackupContext(new DefaultBackupContext("testBackupScopeLease"))
+                .build();
+        aScope.init();
+        Assert.assertTrue(aScope.openWrite());
+        aScope.tryWrite("testBackupScopeLease".getBytes(Charset.defaultCharset()));
+
+        //scope folder is owned by first scope
+        BackupScope anotherScope = BackupScopeBuilder.create("src/test/resources/", "testBackupScopeLease")
+                .setBackupContext(new DefaultBackupContext("testBackupScopeLease"))
+                .build();
+        anotherScope.init();
+        Assert.assertFalse(anotherScope.openWrite());
+        Assert.assertNull(anotherScope.tryRead());
+
+        //lease is released once both read and write are closed
+        Assert.assertNotNull(aScope.tryRead());
+        aScope.closeWrite();
+        aScope.closeRead();
+        anotherScope = BackupScopeBuilder.create("src/test/resources/", "testBackupScopeLease")
+                .setBackupContext(new DefaultBackupContext("testBackupScopeLease"))
+                .build();
+        anotherScope.init();
+        Assert.assertTrue(anotherScope.openWrite());
+        anotherScope.closeWrite();
+        clear(Paths.get("src/test/resources/testBackupScopeLease"));
+    }
+
+    @Test
+    public void testSeekBySequence() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(500)
+                .setSparseIndexIntervalInByte(64);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testSeekBySequence")
+                .setBackupContext(new DefaultBackupContext("testSeekBySequence"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            contents.add(("content " + i).getBytes(Charset.defaultCharset()));
+        aScope.tryWrite(contents.subList(0, 100));
+        for (byte[] content : contents.subList(100, 200))
+            aScope.tryWrite(content);
+        Assert.assertEquals(200, aScope.getBackupMetaInfo().getWriteSequence());
+
+        for(int sequence : new int[]{150, 0, 37, 199, 100, 64}) {
+            Assert.assertTrue(aScope.seek(sequence));
+            Assert.assertEquals(sequence, aScope.getBackupMetaInfo().getReadSequence());
+            Assert.assertEquals("content " + sequence, new String(aScope.tryRead()));
+        }
+        Assert.assertTrue(aScope.seek(190));
+        List<byte[]> contRead = aScope.tryRead(100);
+        Assert.assertEquals(10, contRead.size());
+        Assert.assertEquals("content 199", new String(contRead.get(9)));
+        Assert.assertEquals(200, aScope.getBackupMetaInfo().getReadSequence());
+        Assert.assertFalse(aScope.seek(201));
+        Assert.assertTrue(aScope.seek(200));
+        Assert.assertNull(aScope.tryRead());
+        aScope.closeRead();
+        aScope.closeWrite();
+
+        //seek on reopened scope, with segments and sparse index persisted
+        BackupScope reopened = BackupScopeBuilder.create("src/test/resources/", "testSeekBySequence")
+                .setBackupContext(new DefaultBackupContext("testSeekBySequence"))
+                .setBackupScopeConfig(config)
+                .build();
+        reopened.init();
+        Assert.assertTrue(reopened.seek(42));
+        Assert.assertEquals("content 42", new String(reopened.tryRead()));
+        reopened.tryWrite("content 200".getBytes(Charset.defaultCharset()));
+        Assert.assertTrue(reopened.seek(200));
+        Assert.assertEquals("content 200", new String(reopened.tryRead()));
+        reopened.closeRead();
+        reopened.closeWrite();
+        clear(Paths.get("src/test/resources/testSeekBySequence"));
+    }
+
+    @Test
+    public void testSeekByTimestamp() throws IOException, InterruptedException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setSparseIndexIntervalInContent(1);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testSeekByTimestamp")
+                .setBackupContext(new DefaultBackupContext("testSeekByTimestamp"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        for (int i = 0; i < 50; i++)
+            aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+        Thread.sleep(20);
+        long timestamp = System.currentTimeMillis();
+        Thread.sleep(20);
+        for (int i = 50; i < 100; i++)
+            aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+
+        Assert.assertTrue(aScope.seekByTimestamp(timestamp));
+        //read starts from index entry before timestamp
+        Assert.assertEquals("content 49", new String(aScope.tryRead()));
+        Assert.assertEquals(50, aScope.tryRead(100).size());
+        Assert.assertTrue(aScope.seekByTimestamp(0));
+        Assert.assertEquals("content 0", new String(aScope.tryRead()));
+        Assert.assertFalse(aScope.seekByTimestamp(System.currentTimeMillis() + 1000));
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testSeekByTimestamp"));
+    }
+
+    @Test
+    public void testSeekByRecordTimestamp() throws IOException, InterruptedException {
+        for(BackupScopeConfig.IOMode mode : BackupScopeConfig.IOMode.values()) {
+            BackupScopeConfig config = new BackupScopeConfig()
+                    .setBackupFileMaxByte(200)
+                    .setSparseIndexIntervalInByte(100)
+                    .setRecordTimestamp(true)
+                    .setIOMode(mode);
+            BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testSeekByRecordTimestamp")
+                    .setBackupContext(new DefaultBackupContext("testSeekByRecordTimestamp"))
+                    .setBackupScopeConfig(config)
+                    .build();
+            aScope.init();
+            aScope.openWrite();
+            for (int i = 0; i < 50; i++)
+                aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+            Thread.sleep(20);
+            long timestamp = System.currentTimeMillis();
+            Thread.sleep(20);
+            List<byte[]> contents = new ArrayList<>();
+            for (int i = 50; i < 100; i++)
+                contents.add(("content " + i).getBytes(Charset.defaultCharset()));
+            aScope.tryWrite(contents);
+
+            //record timestamps make seek exact
+            Assert.assertTrue(aScope.seekByTimestamp(timestamp));
+            Assert.assertEquals(50, aScope.getBackupMetaInfo().getReadSequence());
+            Assert.assertEquals("content 50", new String(aScope.tryRead()));
+            List<byte[]> contRead = aScope.tryRead(100);
+            Assert.assertEquals(49, contRead.size());
+            Assert.assertEquals("content 99", new String(contRead.get(48)));
+            Assert.assertTrue(aScope.seek(10));
+            Assert.assertEquals("content 10", new String(aScope.tryRead()));
+            aScope.closeRead();
+            aScope.closeWrite();
+            clear(Paths.get("src/test/resources/testSeekByRecordTimestamp"));
+        }
+    }
+
+    @Test
+    public void testRetention() throws IOException, InterruptedException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(100)
+                .setRetentionSizeInByte(500);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testRetention")
+                .setBackupContext(new DefaultBackupContext("testRetention"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        for (int i = 0; i < 100; i++)
+            aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+        Assert.assertEquals("content 0", new String(aScope.tryRead()));
+        long writeBackupFileIndex = aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex();
+
+        //oldest backup files are deleted till total size is within retention size
+        Assert.assertTrue(aScope.applyRetention() > 0);
+        Assert.assertFalse(Files.exists(aScope.getBackupFilePath(0)));
+        Assert.assertFalse(Files.exists(aScope.getSparseIndexPath(0)));
+        long totalSize = 0;
+        for(long i = 0; i <= writeBackupFileIndex; i++) {
+            if(Files.exists(aScope.getBackupFilePath(i)))
+                totalSize += Files.size(aScope.getBackupFilePath(i));
+        }
+        Assert.assertTrue(totalSize <= 500);
+        Assert.assertEquals(0, aScope.applyRetention());
+        //read goes on from the oldest content left
+        long readSequence = aScope.getBackupMetaInfo().getReadSequence();
+        Assert.assertTrue(readSequence > 1);
+        Assert.assertEquals("content " + readSequence, new String(aScope.tryRead()));
+        Assert.assertFalse(aScope.seek(0));
+
+        //all backup files but the one writer is on are beyond retention time
+        config.setRetentionSizeInByte(0).setRetentionTimeInMillis(10);
+        Thread.sleep(20);
+        Assert.assertTrue(aScope.applyRetention() > 0);
+        for(long i = 0; i < writeBackupFileIndex; i++)
+            Assert.assertFalse(Files.exists(aScope.getBackupFilePath(i)));
+        Assert.assertTrue(Files.exists(aScope.getBackupFilePath(writeBackupFileIndex)));
+        readSequence = aScope.getBackupMetaInfo().getReadSequence();
+        List<byte[]> contRead = aScope.tryRead(100);
+        Assert.assertEquals(100 - readSequence, contRead.size());
+        Assert.assertEquals("content " + readSequence, new String(contRead.get(0)));
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testRetention"));
+    }
+
+    @Test
+    public void testWriteAsyncInAsyncMode() throws Exception {
+        BackupContext context = new DefaultBackupContext("testWriteAsyncInAsyncMode", new BackupContextConfig().setCompletionThreads(2));
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(1024)
+                .setIOMode(BackupScopeConfig.IOMode.ASYNC);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testWriteAsyncInAsyncMode")
+                .setBackupContext(context)
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            futures.add(aScope.writeAsync(("content " + i).getBytes(Charset.defaultCharset())));
+        //contents are readable once their writes complete, in order of write
+        List<byte[]> contRead = new ArrayList<>();
+        for (Future<Integer> future : futures) {
+            Assert.assertTrue(future.get() > 0);
+            contRead.addAll(aScope.tryRead(100));
+        }
+        contRead.addAll(aScope.tryRead(500));
+        Assert.assertEquals(500, contRead.size());
+        for (int i = 0; i < 500; i++)
+            Assert.assertEquals("content " + i, new String(contRead.get(i)));
+        Assert.assertTrue(aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex() > 1);
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testWriteAsyncInAsyncMode"));
+    }
+
+    @Test
+    public void testKeyLookupInAsyncMode() throws Exception {
+        byte[] masterKey = new byte[16];
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(1024)
+                .setIOMode(BackupScopeConfig.IOMode.ASYNC)
+                .setEncryptionKey(masterKey)
+                .setKeyExtractor(content -> {
+                    String str = new String(content);
+                    return str.substring(0, str.indexOf('='));
+                });
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testKeyLookupInAsyncMode")
+                .setBackupContext(new DefaultBackupContext("testKeyLookupInAsyncMode", new BackupContextConfig().setCompletionThreads(2)))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(aScope.writeAsync(("key" + (i % 3) + "=" + i).getBytes(Charset.defaultCharset())));
+            //key is found once write of its content completes, content not written yet is never read
+            byte[] content = aScope.tryReadByKey("key" + (i % 3));
+            if(null != content)
+                Assert.assertTrue(new String(content).startsWith("key" + (i % 3) + "="));
+        }
+        for (Future<Integer> future : futures)
+            Assert.assertTrue(future.get() > 0);
+        for (int i = 0; i < 3; i++)
+            Assert.assertEquals("key" + i + "=" + (499 - (499 - i) % 3), new String(aScope.tryReadByKey("key" + i)));
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testKeyLookupInAsyncMode"));
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        for(BackupScopeConfig.IOMode mode : BackupScopeConfig.IOMode.values()) {
+            BackupScopeConfig config = new BackupScopeConfig()
+                    .setBackupFileMaxByte(200)
+                    .setReadAheadSizeInByte(256)
+                    .setIOMode(mode);
+            BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testReadAhead")
+                    .setBackupContext(new DefaultBackupContext("testReadAhead"))
+                    .setBackupScopeConfig(config)
+                    .build();
+            aScope.init();
+            aScope.openWrite();
+            for (int i = 0; i < 100; i++)
+                aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+
+            //read start moves with contents consumed only, not with contents read ahead
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals("content " + i, new String(aScope.tryRead()));
+            Thread.sleep(20);
+            Assert.assertEquals(10, aScope.getBackupMetaInfo().getReadSequence());
+            aScope.closeRead();
+            Assert.assertEquals("content 10", new String(aScope.tryRead()));
+            //read ahead restarts from where seek goes
+            Assert.assertTrue(aScope.seek(3));
+            Assert.assertEquals("content 3", new String(aScope.tryRead()));
+
+            //writer appends while consumer drains
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 100; i < 1000; i++)
+                        aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+                } catch (IOException e) {
+                    logger.error("Fail to write.", e);
+                }
+            });
+            writer.start();
+            List<byte[]> contRead = new ArrayList<>();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (contRead.size() < 996 && System.currentTimeMillis() < deadline) {
+                if (contRead.size() % 2 == 0) {
+                    byte[] content = aScope.tryRead();
+                    if (null != content)
+                        contRead.add(content);
+                } else {
+                    contRead.addAll(aScope.tryRead(7));
+                }
+            }
+            writer.join();
+            Assert.assertEquals(996, contRead.size());
+            for (int i = 0; i < 996; i++)
+                Assert.assertEquals("content " + (i + 4), new String(contRead.get(i)));
+            Assert.assertNull(aScope.tryRead());
+            aScope.closeRead();
+            aScope.closeWrite();
+            clear(Paths.get("src/test/resources/testReadAhead"));
+        }
+    }
+
+    @Test
+    public void testManualAck() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setAutoAck(false)
+                .setAckCommitIntervalInContent(10);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testManualAck")
+                .setBackupContext(new DefaultBackupContext("testManualAck"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        for (int i = 0; i < 100; i++)
+            aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+
+        List<BackupRecord> records = aScope.tryReadRecords(30);
+        Assert.assertEquals(30, records.size());
+        Assert.assertEquals(29, records.get(29).getSequence());
+        Assert.assertEquals("content 29", new String(records.get(29).getContent()));
+        //read moves ahead of acknowledged read start
+        Assert.assertEquals(30, aScope.getBackupMetaInfo().getReadSequence());
+        Assert.assertEquals(0, aScope.getBackupMetaInfo().getAckSequence());
+        Assert.assertEquals(10, aScope.ack(9));
+        Assert.assertEquals(0, aScope.ack(4));
+        Assert.assertEquals(10, aScope.getBackupMetaInfo().getAckSequence());
+        Assert.assertEquals(20, aScope.ack(29));
+        Assert.assertEquals(30, aScope.getBackupMetaInfo().getAckSequence());
+
+        Assert.assertEquals("content 30", new String(aScope.tryRead()));
+        Assert.assertEquals(19, aScope.tryRead(19).size());
+        //acknowledge could not go beyond read
+        Assert.assertEquals(10, aScope.ack(39));
+        Assert.assertEquals(10, aScope.ack(1000));
+        Assert.assertEquals(50, aScope.getBackupMetaInfo().getAckSequence());
+        Assert.assertEquals(10, aScope.tryRead(10).size());
+        aScope.closeRead();
+        aScope.closeWrite();
+
+        //contents not acknowledged are read again
+        BackupScope reopened = BackupScopeBuilder.create("src/test/resources/", "testManualAck")
+                .setBackupContext(new DefaultBackupContext("testManualAck"))
+                .setBackupScopeConfig(config)
+                .build();
+        reopened.init();
+        Assert.assertEquals(50, reopened.getBackupMetaInfo().getReadSequence());
+        Assert.assertEquals("content 50", new String(reopened.tryRead()));
+        reopened.closeRead();
+        clear(Paths.get("src/test/resources/testManualAck"));
+    }
+
+    @Test
+    public void testDiskQuota() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(100)
+                .setDiskQuotaInByte(500)
+                .setQuotaPolicy(BackupScopeConfig.QuotaPolicy.REJECT);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testDiskQuota")
+                .setBackupContext(new DefaultBackupContext("testDiskQuota"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        int written = 0;
+        try {
+            for (; written < 100; written++)
+                aScope.tryWrite(("content " + written).getBytes(Charset.defaultCharset()));
+            Assert.fail("Write beyond disk quota should be rejected.");
+        } catch (BackupLimitExceededException e) {
+            //nothing is written beyond quota
+        }
+        Assert.assertTrue(written > 0);
+        Assert.assertTrue(aScope.getDiskUsageInByte() <= 500);
+        Assert.assertEquals(written, aScope.getBackupMetaInfo().getWriteSequence());
+
+        //oldest backup files are dropped to make room
+        config.setQuotaPolicy(BackupScopeConfig.QuotaPolicy.DROP_OLDEST);
+        for (int i = written; i < 100; i++)
+            aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+        Assert.assertTrue(aScope.getDiskUsageInByte() <= 500);
+        Assert.assertFalse(Files.exists(aScope.getBackupFilePath(0)));
+        long readSequence = aScope.getBackupMetaInfo().getReadSequence();
+        Assert.assertTrue(readSequence > 0);
+        Assert.assertEquals("content " + readSequence, new String(aScope.tryRead()));
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testDiskQuota"));
+    }
+
+    @Test
+    public void testRejectedWriteKeepsRateLimit() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setDiskQuotaInByte(2100)
+                .setWriteRateInBytePerSecond(4096)
+                .setQuotaPolicy(BackupScopeConfig.QuotaPolicy.REJECT);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testRejectedWriteKeepsRateLimit")
+                .setBackupContext(new DefaultBackupContext("testRejectedWriteKeepsRateLimit"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        aScope.tryWrite(new byte[1000]);
+        aScope.tryWrite(new byte[1000]);
+        //writes refused by disk quota take no tokens of write rate limit
+        for (int i = 0; i < 10; i++) {
+            try {
+                aScope.tryWrite(new byte[1000]);
+                Assert.fail("Write beyond disk quota should be rejected.");
+            } catch (BackupLimitExceededException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Disk quota"));
+            }
+        }
+        Assert.assertEquals(2, aScope.getBackupMetaInfo().getWriteSequence());
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testRejectedWriteKeepsRateLimit"));
+    }
+
+    @Test
+    public void testContextDiskQuotaAndRateLimit() throws IOException {
+        BackupContext context = new DefaultBackupContext("testContextDiskQuota", new BackupContextConfig()
+                .setDiskQuotaInByte(1000)
+                .setWriteRateInBytePerSecond(10 * 1024));
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(100)
+                .setQuotaBlockTimeoutInMillis(100);
+        List<BackupScope> scopes = new ArrayList<>();
+        for(int i = 0; i < 2; i++) {
+            BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testContextDiskQuota" + i)
+                    .setBackupContext(context)
+                    .setBackupScopeConfig(config)
+                    .build();
+            aScope.init();
+            aScope.openWrite();
+            scopes.add(aScope);
+        }
+        byte[] content = new byte[20];
+        try {
+            for(int i = 0; i < 100; i++)
+                scopes.get(i % 2).tryWrite(content);
+            Assert.fail("Write beyond disk quota of context should time out.");
+        } catch (BackupLimitExceededException e) {
+            //write blocks till timeout
+        }
+        Assert.assertTrue(context.getDiskUsageInByte() <= 1000);
+        Assert.assertEquals(context.getDiskUsageInByte(), scopes.get(0).getDiskUsageInByte() + scopes.get(1).getDiskUsageInByte());
+        for(BackupScope aScope : scopes) {
+            aScope.closeWrite();
+            clear(Paths.get("src/test/resources/" + aScope.getScopeId()));
+        }
+
+        //writes beyond burst wait for write rate limit
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testWriteRateLimit")
+                .setBackupContext(new DefaultBackupContext("testWriteRateLimit"))
+                .setBackupScopeConfig(new BackupScopeConfig().setWriteRateInBytePerSecond(50 * 1024))
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 100; i++)
+            aScope.tryWrite(new byte[1024]);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 800);
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testWriteRateLimit"));
+    }
+
+    @Test
+    public void testFlushWhileWriteWaitsForQuota() throws Exception {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setDiskQuotaInByte(2100)
+                .setQuotaBlockTimeoutInMillis(2000);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testFlushWhileWriteWaitsForQuota")
+                .setBackupContext(new DefaultBackupContext("testFlushWhileWriteWaitsForQuota"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        aScope.tryWrite(new byte[1000]);
+        aScope.tryWrite(new byte[1000]);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> blocked = executor.submit(() -> aScope.tryWrite(new byte[1000]));
+            Thread.sleep(200);
+            //write waiting for disk quota holds no write monitor
+            long start = System.currentTimeMillis();
+            aScope.flush();
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+            Assert.assertFalse(blocked.isDone());
+            try {
+                blocked.get();
+                Assert.fail("Write beyond disk quota should time out.");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof BackupLimitExceededException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(2, aScope.getBackupMetaInfo().getWriteSequence());
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testFlushWhileWriteWaitsForQuota"));
+    }
+
+    @Test
+    public void testExportImport() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(100)
+                .setRecordTimestamp(true);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testExport")
+                .setBackupContext(new DefaultBackupContext("testExport"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        for (int i = 0; i < 100; i++)
+            aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+        Assert.assertEquals(10, aScope.tryRead(10).size());
+        Path archive = Paths.get("src/test/resources/testExport.archive");
+        long size;
+        try(FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            size = aScope.export(out);
+        }
+        Assert.assertEquals(Files.size(archive), size);
+        //write after export is not in archive
+        aScope.tryWrite("content 100".getBytes(Charset.defaultCharset()));
+        aScope.closeRead();
+        aScope.closeWrite();
+
+        BackupScope imported = BackupScopeBuilder.create("src/test/resources/", "testImport")
+                .setBackupContext(new DefaultBackupContext("testImport"))
+                .setBackupScopeConfig(new BackupScopeConfig().setBackupFileMaxByte(100))
+                .build();
+        imported.init();
+        try(FileChannel in = FileChannel.open(archive, StandardOpenOption.READ)) {
+            Assert.assertEquals(90, imported.importFrom(in));
+        }
+        Assert.assertEquals(10, imported.getBackupMetaInfo().getReadSequence());
+        Assert.assertEquals(100, imported.getBackupMetaInfo().getWriteSequence());
+        List<byte[]> contRead = imported.tryRead(100);
+        Assert.assertEquals(90, contRead.size());
+        for(int i = 0; i < 90; i++)
+            Assert.assertEquals("content " + (i + 10), new String(contRead.get(i)));
+        //sparse index and segments are rebuilt
+        Assert.assertTrue(imported.seek(50));
+        Assert.assertEquals("content 50", new String(imported.tryRead()));
+        imported.tryWrite("content 100".getBytes(Charset.defaultCharset()));
+        Assert.assertEquals(101, imported.getBackupMetaInfo().getWriteSequence());
+        imported.closeRead();
+        imported.closeWrite();
+        Files.delete(archive);
+        clear(Paths.get("src/test/resources/testExport"));
+        clear(Paths.get("src/test/resources/testImport"));
+    }
+
+    @Test
+    public void testAdaptiveSegmentSize() throws IOException, InterruptedException {
+        //segment min byte could not go beyond segment max byte, whichever is set last
+        try {
+            new BackupScopeConfig().setSegmentMaxByte(1024).setSegmentMinByte(2048);
+            Assert.fail("Segment min byte beyond max byte should be refused.");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        try {
+            new BackupScopeConfig().setSegmentMinByte(2048).setSegmentMaxByte(1024);
+            Assert.fail("Segment max byte below min byte should be refused.");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setAdaptiveSegmentSize(true)
+                .setSegmentMinByte(200)
+                .setSegmentMaxByte(10 * 1024)
+                .setSegmentTargetFillTimeInMillis(100);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testAdaptiveSegmentSize")
+                .setBackupContext(new DefaultBackupContext("testAdaptiveSegmentSize"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        //slow write keeps backup files at min size
+        for (int i = 0; i < 30; i++) {
+            aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+            Thread.sleep(20);
+        }
+        long slowIndex = aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex();
+        Assert.assertTrue(slowIndex > 1);
+        Assert.assertEquals(200, readMaxSize(aScope.getBackupFilePath(slowIndex)));
+        //fast write grows backup files till max size
+        for (int i = 30; i < 5000; i++)
+            aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset()));
+        long fastIndex = aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex();
+        Assert.assertEquals(10 * 1024, readMaxSize(aScope.getBackupFilePath(fastIndex)));
+        //readers follow size in head of each backup file
+        List<byte[]> contRead = aScope.tryRead(5000);
+        Assert.assertEquals(5000, contRead.size());
+        Assert.assertEquals("content 4999", new String(contRead.get(4999)));
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testAdaptiveSegmentSize"));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setKeyExtractor(content -> {
+                    String str = new String(content);
+                    int sep = str.indexOf('=');
+                    return sep < 0 ? null : str.substring(0, sep);
+                });
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testCompaction")
+                .setBackupContext(new DefaultBackupContext("testCompaction"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        aScope.tryWrite("no key".getBytes(Charset.defaultCharset()));
+        for (int i = 0; i < 100; i++)
+            aScope.tryWrite(("key" + (i % 5) + "=" + i).getBytes(Charset.defaultCharset()));
+        Assert.assertEquals(5, aScope.getKeyCount());
+        Assert.assertEquals("key3=98", new String(aScope.tryReadByKey("key3")));
+        //backup files before read start are compacted
+        Assert.assertEquals(0, aScope.compact());
+        Assert.assertEquals(101, aScope.tryRead(200).size());
+        long diskUsage = aScope.getDiskUsageInByte();
+        Assert.assertTrue(aScope.compact() > 0);
+        Assert.assertTrue(aScope.getDiskUsageInByte() < diskUsage);
+        Assert.assertEquals(0, aScope.compact());
+        for (int i = 0; i < 5; i++)
+            Assert.assertEquals("key" + i + "=" + (95 + i), new String(aScope.tryReadByKey("key" + i)));
+
+        //replay goes through compacted backup files, and contents written after
+        aScope.tryWrite("key0=100".getBytes(Charset.defaultCharset()));
+        Assert.assertTrue(aScope.seek(0));
+        List<byte[]> contRead = aScope.tryRead(200);
+        Assert.assertTrue(contRead.size() < 100);
+        Assert.assertEquals("no key", new String(contRead.get(0)));
+        Assert.assertEquals("key0=100", new String(contRead.get(contRead.size() - 1)));
+        List<String> replayed = new ArrayList<>();
+        for(byte[] content : contRead)
+            replayed.add(new String(content));
+        for (int i = 1; i < 5; i++)
+            Assert.assertTrue(replayed.contains("key" + i + "=" + (95 + i)));
+        //contents kept have sequences they are written with
+        Assert.assertTrue(aScope.seek(0));
+        for(BackupRecord record : aScope.tryReadRecords(200)) {
+            String content = new String(record.getContent());
+            long expected = content.equals("no key") ? 0 : Long.parseLong(content.substring(content.indexOf('=') + 1)) + 1;
+            Assert.assertEquals(expected, record.getSequence());
+        }
+        Assert.assertTrue(aScope.seek(97));
+        Assert.assertEquals("key1=96", new String(aScope.tryRead()));
+        List<BackupRecord> history = aScope.tryReadHistory("key2");
+        Assert.assertEquals(98, history.get(history.size() - 1).getSequence());
+        Assert.assertEquals("key2=97", new String(history.get(history.size() - 1).getContent()));
+        //sequence dropped by compaction goes to the next content kept
+        Assert.assertTrue(aScope.seek(1));
+        Assert.assertNotNull(aScope.tryRead());
+        Assert.assertTrue(aScope.getBackupMetaInfo().getReadSequence() > 2);
+        //backup files compacted again keep sequences of contents kept
+        for (int i = 101; i < 130; i++)
+            aScope.tryWrite(("key" + (i % 5) + "=" + i).getBytes(Charset.defaultCharset()));
+        aScope.tryRead(200);
+        config.setCompactionMinObsoleteRatio(0.01);
+        Assert.assertTrue(aScope.compact() > 0);
+        config.setCompactionMinObsoleteRatio(0.5);
+        Assert.assertTrue(aScope.seek(0));
+        List<BackupRecord> records = aScope.tryReadRecords(200);
+        Assert.assertEquals("no key", new String(records.get(0).getContent()));
+        for(BackupRecord record : records.subList(1, records.size())) {
+            String content = new String(record.getContent());
+            Assert.assertEquals(Long.parseLong(content.substring(content.indexOf('=') + 1)) + 1, record.getSequence());
+        }
+        aScope.closeRead();
+        aScope.closeWrite();
+
+        //compacting copy left by crash is rolled back, scope index is kept
+        Path backupFilePath = aScope.getBackupFilePath(0);
+        Files.write(backupFilePath.resolveSibling(backupFilePath.getFileName() + ".compacting"), new byte[16]);
+        BackupScope reopened = BackupScopeBuilder.create("src/test/resources/", "testCompaction")
+                .setBackupContext(new DefaultBackupContext("testCompaction"))
+                .setBackupScopeConfig(config)
+                .build();
+        reopened.init();
+        Assert.assertFalse(Files.exists(backupFilePath.resolveSibling(backupFilePath.getFileName() + ".compacting")));
+        Assert.assertEquals("key0=125", new String(reopened.tryReadByKey("key0")));
+        Assert.assertEquals("key2=127", new String(reopened.tryReadByKey("key2")));
+        clear(Paths.get("src/test/resources/testCompaction"));
+    }
+
+    @Test
+    public void testCompactionWithReadAhead() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setReadAheadSizeInByte(256)
+                .setKeyExtractor(content -> {
+                    String str = new String(content);
+                    return str.substring(0, str.indexOf('='));
+                });
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testCompactionWithReadAhead")
+                .setBackupContext(new DefaultBackupContext("testCompactionWithReadAhead"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        for (int i = 0; i < 100; i++)
+            aScope.tryWrite(("key" + (i % 5) + "=" + i).getBytes(Charset.defaultCharset()));
+        List<byte[]> contRead = new ArrayList<>();
+        byte[] content;
+        while (null != (content = aScope.tryRead()))
+            contRead.add(content);
+        Assert.assertEquals(100, contRead.size());
+        Assert.assertTrue(aScope.compact() > 0);
+        //replay reads compacted backup files, not contents read ahead before compaction
+        aScope.tryWrite("key0=100".getBytes(Charset.defaultCharset()));
+        Assert.assertTrue(aScope.seek(0));
+        List<String> replayed = new ArrayList<>();
+        while (null != (content = aScope.tryRead()))
+            replayed.add(new String(content));
+        Assert.assertTrue(replayed.size() < 100);
+        Assert.assertEquals("key0=100", replayed.get(replayed.size() - 1));
+        for (int i = 1; i < 5; i++)
+            Assert.assertTrue(replayed.contains("key" + i + "=" + (95 + i)));
+        Assert.assertEquals(replayed.size(), new HashSet<>(replayed).size());
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testCompactionWithReadAhead"));
+    }
+
+    @Test
+    public void testCompactionWithTailCache() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setTailCacheSizeInByte(64 * 1024)
+                .setCompactionMinObsoleteRatio(0.01)
+                .setKeyExtractor(content -> {
+                    String str = new String(content);
+                    return str.substring(0, str.indexOf('='));
+                });
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testCompactionWithTailCache")
+                .setBackupContext(new DefaultBackupContext("testCompactionWithTailCache"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        //contents of same size, so that compacted contents land where cached ones are
+        int i = 0;
+        for (; aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex() == 0; i++)
+            aScope.tryWrite(("key" + (i % 8) + "=" + (10 + i)).getBytes(Charset.defaultCharset()));
+        aScope.tryWrite(("key" + (i % 8) + "=" + (10 + i)).getBytes(Charset.defaultCharset()));
+        //seek passes contents cached in first backup file without reading them
+        Assert.assertTrue(aScope.seek(i));
+        Assert.assertTrue(aScope.compact() > 0);
+        //contents cached at locations in compacted backup file are not served after seek back
+        Assert.assertTrue(aScope.seek(0));
+        BackupRecord record;
+        int count = 0;
+        while(null != (record = first(aScope.tryReadRecords(1)))) {
+            String content = new String(record.getContent());
+            Assert.assertEquals(Long.parseLong(content.substring(content.indexOf('=') + 1)) - 10, record.getSequence());
+            count++;
+        }
+        Assert.assertEquals(8, count);
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testCompactionWithTailCache"));
+    }
+
+    private static BackupRecord first(final List<BackupRecord> records) {
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    @Test
+    public void testExportImportCompacted() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setKeyExtractor(content -> {
+                    String str = new String(content);
+                    int sep = str.indexOf('=');
+                    return sep < 0 ? null : str.substring(0, sep);
+                });
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testExportCompacted")
+                .setBackupContext(new DefaultBackupContext("testExportCompacted"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        aScope.tryWrite("no key".getBytes(Charset.defaultCharset()));
+        for (int i = 0; i < 100; i++)
+            aScope.tryWrite(("key" + (i % 5) + "=" + i).getBytes(Charset.defaultCharset()));
+        Assert.assertEquals(101, aScope.tryRead(200).size());
+        Assert.assertTrue(aScope.compact() > 0);
+        //export goes from the first content, through compacted backup files
+        Assert.assertTrue(aScope.seek(0));
+        Path archive = Paths.get("src/test/resources/testExportCompacted.archive");
+        try(FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            aScope.export(out);
+        }
+        List<BackupRecord> exported = aScope.tryReadRecords(200);
+        Assert.assertTrue(exported.size() < 100);
+        aScope.closeRead();
+        aScope.closeWrite();
+
+        BackupScope imported = BackupScopeBuilder.create("src/test/resources/", "testImportCompacted")
+                .setBackupContext(new DefaultBackupContext("testImportCompacted"))
+                .setBackupScopeConfig(config)
+                .build();
+        imported.init();
+        try(FileChannel in = FileChannel.open(archive, StandardOpenOption.READ)) {
+            Assert.assertEquals(exported.size(), imported.importFrom(in));
+        }
+        Assert.assertEquals(101, imported.getBackupMetaInfo().getWriteSequence());
+        //scope index and bloom filters are rebuilt
+        Assert.assertEquals(5, imported.getKeyCount());
+        for (int i = 0; i < 5; i++)
+            Assert.assertEquals("key" + i + "=" + (95 + i), new String(imported.tryReadByKey("key" + i)));
+        Assert.assertTrue(Files.exists(imported.getBloomFilterPath(0)));
+        Assert.assertTrue(imported.containsKey("key3"));
+        Assert.assertFalse(imported.containsKey("missing"));
+        List<BackupRecord> history = imported.tryReadHistory("key2");
+        Assert.assertEquals(98, history.get(history.size() - 1).getSequence());
+        //contents keep sequences they have in exported backup scope
+        List<BackupRecord> records = imported.tryReadRecords(200);
+        Assert.assertEquals(exported.size(), records.size());
+        for (int i = 0; i < records.size(); i++) {
+            Assert.assertEquals(exported.get(i).getSequence(), records.get(i).getSequence());
+            Assert.assertEquals(new String(exported.get(i).getContent()), new String(records.get(i).getContent()));
+        }
+        Assert.assertTrue(imported.seek(97));
+        Assert.assertEquals("key1=96", new String(imported.tryRead()));
+        Assert.assertTrue(imported.seek(2));
+        Assert.assertNotNull(imported.tryRead());
+        Assert.assertTrue(imported.getBackupMetaInfo().getReadSequence() > 3);
+        imported.tryWrite("key0=100".getBytes(Charset.defaultCharset()));
+        Assert.assertEquals("key0=100", new String(imported.tryReadByKey("key0")));
+        imported.closeRead();
+        imported.closeWrite();
+        Files.delete(archive);
+        clear(Paths.get("src/test/resources/testExportCompacted"));
+        clear(Paths.get("src/test/resources/testImportCompacted"));
+    }
+
+    @Test
+    public void testKeyLookupWithBloomFilter() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setKeyExtractor(content -> {
+                    String str = new String(content);
+                    int sep = str.indexOf('=');
+                    return sep < 0 ? null : str.substring(0, sep);
+                });
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testKeyLookupWithBloomFilter")
+                .setBackupContext(new DefaultBackupContext("testKeyLookupWithBloomFilter"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        for (int i = 0; i < 300; i++)
+            aScope.tryWrite(("key" + (i % 10) + "=" + i).getBytes(Charset.defaultCharset()));
+        aScope.tryWrite("rare=300".getBytes(Charset.defaultCharset()));
+        long writeIndex = aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex();
+        Assert.assertTrue(writeIndex > 10);
+        //bloom filter is written once backup file is sealed
+        for (long i = 0; i < writeIndex; i++)
+            Assert.assertTrue(Files.exists(aScope.getBloomFilterPath(i)));
+        Assert.assertFalse(Files.exists(aScope.getBloomFilterPath(writeIndex)));
+
+        List<BackupRecord> history = aScope.tryReadHistory("key3");
+        Assert.assertEquals(30, history.size());
+        for (int i = 0; i < 30; i++) {
+            Assert.assertEquals(i * 10 + 3, history.get(i).getSequence());
+            Assert.assertEquals("key3=" + (i * 10 + 3), new String(history.get(i).getContent()));
+        }
+        Assert.assertEquals(1, aScope.tryReadHistory("rare").size());
+        Assert.assertTrue(aScope.containsKey("key9"));
+        Assert.assertFalse(aScope.containsKey("missing"));
+        aScope.closeWrite();
+
+        //bloom filter missing is rebuilt from backup file
+        Files.delete(aScope.getBloomFilterPath(2));
+        BackupScope reopened = BackupScopeBuilder.create("src/test/resources/", "testKeyLookupWithBloomFilter")
+                .setBackupContext(new DefaultBackupContext("testKeyLookupWithBloomFilter"))
+                .setBackupScopeConfig(config)
+                .build();
+        reopened.init();
+        Assert.assertEquals(30, reopened.tryReadHistory("key5").size());
+        Assert.assertTrue(Files.exists(reopened.getBloomFilterPath(2)));
+        //sealed backup files without key are not read
+        Files.delete(reopened.getBackupFilePath(1));
+        Assert.assertEquals(1, reopened.tryReadHistory("rare").size());
+        Assert.assertTrue(reopened.tryReadHistory("missing").isEmpty());
+        Assert.assertFalse(reopened.containsKey("missing"));
+        clear(Paths.get("src/test/resources/testKeyLookupWithBloomFilter"));
+    }
+
+    @Test
+    public void testBloomFilterSizedByDistinctKeys() {
+        BackupBloomFilter.Builder builder = new BackupBloomFilter.Builder();
+        for (int i = 0; i < 10000; i++)
+            builder.add(BackupBloomFilter.hash("key" + (i % 100)));
+        Assert.assertEquals(100, builder.getCount());
+        BackupBloomFilter filter = builder.build(0.01);
+        Assert.assertEquals(BackupBloomFilter.create(100, 0.01).getSizeInByte(), filter.getSizeInByte());
+        for (int i = 0; i < 100; i++)
+            Assert.assertTrue(filter.mightContain("key" + i));
+        //keys added after build are counted once too
+        builder.add(BackupBloomFilter.hash("key0"));
+        builder.add(BackupBloomFilter.hash("key100"));
+        Assert.assertEquals(101, builder.getCount());
+    }
+
+    @Test
+    public void testStats() throws IOException, InterruptedException {
+        BackupContext context = new DefaultBackupContext("testStats");
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testStats")
+                .setBackupContext(context)
+                .setBackupScopeConfig(new BackupScopeConfig().setBackupFileMaxByte(100))
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        for (int i = 0; i < 50; i++) {
+            byte[] content = ("content " + i).getBytes(Charset.defaultCharset());
+            aScope.tryWrite(content);
+            bytes += BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + content.length;
+        }
+        Thread.sleep(10);
+        BackupScopeStats stats = aScope.getStats();
+        Assert.assertEquals(50, stats.getUnreadCount());
+        Assert.assertEquals(bytes, stats.getUnreadByte());
+        Assert.assertEquals(bytes, stats.getUnackedByte());
+        //backup file writer just opens has no content yet
+        Assert.assertTrue(stats.getSegmentCount() > 1);
+        Assert.assertTrue(stats.getSegmentCount() <= aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex() + 1);
+        Assert.assertTrue(stats.getOldestUnreadTimestamp() >= start);
+        Assert.assertTrue(stats.getLagInMillis() >= 10);
+
+        List<byte[]> contRead = aScope.tryRead(20);
+        for (byte[] content : contRead)
+            bytes -= BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + content.length;
+        stats = aScope.getStats();
+        Assert.assertEquals(30, stats.getUnreadCount());
+        Assert.assertEquals(bytes, stats.getUnreadByte());
+        Assert.assertEquals(20, stats.getReadSequence());
+        Assert.assertEquals(50, stats.getWriteSequence());
+        BackupContextStats contextStats = context.getStats();
+        Assert.assertEquals(1, contextStats.getScopeStats().size());
+        Assert.assertEquals(30, contextStats.getUnreadCount());
+        Assert.assertEquals(aScope.getDiskUsageInByte(), contextStats.getDiskUsageInByte());
+
+        Assert.assertEquals(30, aScope.tryRead(100).size());
+        stats = aScope.getStats();
+        Assert.assertEquals(0, stats.getUnreadCount());
+        Assert.assertEquals(0, stats.getUnreadByte());
+        Assert.assertEquals(-1, stats.getOldestUnreadTimestamp());
+        Assert.assertEquals(0, stats.getLagInMillis());
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testStats"));
+    }
+
+    private long readMaxSize(final Path backupFilePath) throws IOException {
+        try(FileChannel channel = FileChannel.open(backupFilePath, StandardOpenOption.READ)) {
+            return BackupFileHeader.read(channel).getMaxSize();
+        }
+    }
+
+
+    @Test
+    public void testLifecycle() throws IOException, InterruptedException, ExecutionException {
+        for(BackupScopeConfig.IOMode ioMode : new BackupScopeConfig.IOMode[]{BackupScopeConfig.IOMode.FILE_CHANNEL, BackupScopeConfig.IOMode.ASYNC}) {
+            String scopeId = "testLifecycle" + ioMode;
+            BackupScope aScope;
+            try(BackupContext context = new DefaultBackupContext(scopeId)) {
+                aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                        .setBackupContext(context)
+                        .setBackupScopeConfig(new BackupScopeConfig().setIOMode(ioMode).setBackupFileMaxByte(1024))
+                        .build();
+                aScope.start();
+                List<Future<Integer>> futures = new ArrayList<>();
+                for (int i = 0; i < 100; i++)
+                    futures.add(aScope.writeAsync(("content " + i).getBytes(Charset.defaultCharset())));
+                Assert.assertTrue(aScope.drain(10, TimeUnit.SECONDS));
+                for (Future<Integer> future : futures)
+                    Assert.assertTrue(future.isDone());
+                //write async goes on after write is closed and opens again
+                aScope.closeWrite();
+                Assert.assertTrue(aScope.writeAsync("content 100".getBytes(Charset.defaultCharset())).get() > 0);
+                //writes queued are drained by close of context
+                for (int i = 101; i < 150; i++)
+                    aScope.writeAsync(("content " + i).getBytes(Charset.defaultCharset()));
+            }
+            try {
+                aScope.start();
+                Assert.fail("Closed backup scope could not start again.");
+            } catch (AccessDeniedException e) {
+                //expected
+            }
+            Assert.assertEquals(0, aScope.writeAsync("after close".getBytes(Charset.defaultCharset())).get().intValue());
+
+            try(BackupContext context = new DefaultBackupContext(scopeId)) {
+                BackupScope restarted = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                        .setBackupContext(context)
+                        .build();
+                restarted.start();
+                List<byte[]> contRead = restarted.tryRead(1000);
+                Assert.assertEquals(150, contRead.size());
+                for (int i = 0; i < 150; i++)
+                    Assert.assertEquals("content " + i, new String(contRead.get(i), Charset.defaultCharset()));
+                restarted.close();
+                Assert.assertTrue(context.getScopes().isEmpty());
+            }
+            clear(Paths.get("src/test/resources/" + scopeId));
+        }
+    }
+
+
+    @Test
+    public void testDataDirPlacement() throws IOException, InterruptedException {
+        Path root = Paths.get("src/test/resources/testDataDirPlacement");
+        BackupContextConfig contextConfig = new BackupContextConfig()
+                .setDataDirs(root.resolve("disk0").toString(), root.resolve("disk1").toString(), root.resolve("disk2").toString())
+                .setSegmentStriping(true);
+        List<String> scopeIds = new ArrayList<>();
+        try(BackupContext context = new DefaultBackupContext("testDataDirPlacement", contextConfig)) {
+            Set<Path> parents = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                String scopeId = "backup_scope_placement" + i;
+                scopeIds.add(scopeId);
+                BackupScope aScope = BackupScopeBuilder.create(context, scopeId)
+                        .setBackupScopeConfig(new BackupScopeConfig().setBackupFileMaxByte(100))
+                        .build();
+                aScope.start();
+                parents.add(aScope.getParent().toAbsolutePath().normalize());
+            }
+            //scopes spread across data directories
+            Assert.assertEquals(3, parents.size());
+            Assert.assertEquals(3, context.getScopes().size());
+
+            BackupScope aScope = context.getScope(scopeIds.get(0));
+            for (int i = 0; i < 50; i++)
+                Assert.assertTrue(aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset())) > 0);
+            //backup files go round-robin across data directories
+            Set<Path> segmentDirs = new HashSet<>();
+            for (long i = 0; i < 3; i++) {
+                Path backupFilePath = aScope.getBackupFilePath(i);
+                Assert.assertTrue(Files.exists(backupFilePath));
+                segmentDirs.add(backupFilePath.toAbsolutePath().normalize().getParent().getParent());
+            }
+            Assert.assertEquals(new HashSet<>(context.getDataDirs()), segmentDirs);
+            List<byte[]> contRead = aScope.tryRead(20);
+            for (int i = 0; i < 20; i++)
+                Assert.assertEquals("content " + i, new String(contRead.get(i), Charset.defaultCharset()));
+        }
+
+        //scopes are discovered in all data directories, stripes do not move
+        try(BackupContext context = new DefaultBackupContext("testDataDirPlacement", contextConfig)) {
+            BackupContextBootstrap bootstrap = context.bootstrap().start();
+            Assert.assertTrue(bootstrap.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertEquals(3, bootstrap.getMetrics().getReady());
+            BackupScope aScope = context.getScope(scopeIds.get(0));
+            List<byte[]> contRead = aScope.tryRead(100);
+            Assert.assertEquals(30, contRead.size());
+            for (int i = 0; i < 30; i++)
+                Assert.assertEquals("content " + (20 + i), new String(contRead.get(i), Charset.defaultCharset()));
+            //existing scope is located, not placed again
+            Assert.assertEquals(aScope.getParent(), BackupScopeBuilder.create(context, scopeIds.get(0)).build().getParent());
+        }
+        clear(root);
+    }
+
+    @Test
+    public void testReplication() throws IOException, InterruptedException {
+        Path root = Paths.get("src/test/resources/testReplication");
+        Files.createDirectories(root);
+        BackupReplicaServer server = new BackupReplicaServer(root.resolve("socket_replica"), 0).start();
+        BackupReplicaTransport[] transports = new BackupReplicaTransport[]{
+                new LocalDirReplicaTransport(root.resolve("local_replica")),
+                new SocketReplicaTransport(server.getAddress())};
+        for (int t = 0; t < transports.length; t++) {
+            String scopeId = "backup_scope_replication" + t;
+            try(BackupContext context = new DefaultBackupContext(scopeId);
+                BackupReplicaTransport transport = transports[t]) {
+                BackupScope aScope = BackupScopeBuilder.create(root.toString(), scopeId)
+                        .setBackupContext(context)
+                        .setBackupScopeConfig(new BackupScopeConfig().setBackupFileMaxByte(100)
+                                .setReplicaTransport(transport)
+                                .setReplicationIntervalInMillis(0))
+                        .build();
+                aScope.start();
+                for (int i = 0; i < 53; i++)
+                    Assert.assertTrue(aScope.tryWrite(("content " + i).getBytes(Charset.defaultCharset())) > 0);
+                //sealed backup files are copied, backup file being written is left as lag
+                Assert.assertTrue(aScope.replicate() > 0);
+                BackupReplicationStats stats = aScope.getReplicationStats();
+                Assert.assertTrue(stats.getReplicatedByte() > 0);
+                Assert.assertTrue(stats.getLagByte() > 0);
+                Assert.assertEquals(0, stats.getFailureCount());
+                Assert.assertEquals(0, aScope.replicate());
+                //the last round on close catches up with backup file being written
+                aScope.close();
+            }
+        }
+        server.close();
+
+        String[] replicas = new String[]{"local_replica", "socket_replica"};
+        for (int t = 0; t < replicas.length; t++) {
+            String scopeId = "backup_scope_replication" + t;
+            try(BackupContext context = new DefaultBackupContext(scopeId)) {
+                BackupScope replica = BackupScopeBuilder.create(root.resolve(replicas[t]).toString(), scopeId)
+                        .setBackupContext(context)
+                        .build();
+                replica.start();
+                List<byte[]> contRead = replica.tryRead(100);
+                Assert.assertEquals(53, contRead.size());
+                for (int i = 0; i < 53; i++)
+                    Assert.assertEquals("content " + i, new String(contRead.get(i), Charset.defaultCharset()));
+            }
+        }
+        clear(root);
+    }
+
+    @Test
+    public void testReplicationOfCompaction() throws IOException {
+        Path root = Paths.get("src/test/resources/testReplicationOfCompaction");
+        Files.createDirectories(root);
+        String scopeId = "backup_scope_replication_compaction";
+        List<String> expected = new ArrayList<>();
+        try(BackupContext context = new DefaultBackupContext(scopeId);
+            BackupReplicaTransport transport = new LocalDirReplicaTransport(root.resolve("local_replica"))) {
+            BackupScope aScope = BackupScopeBuilder.create(root.toString(), scopeId)
+                    .setBackupContext(context)
+                    .setBackupScopeConfig(new BackupScopeConfig().setBackupFileMaxByte(200)
+                            .setReplicaTransport(transport)
+                            .setReplicationIntervalInMillis(0)
+                            .setReplicateActiveSegment(true)
+                            .setCompactionMinObsoleteRatio(0.01)
+                            .setKeyExtractor(content -> {
+                                String str = new String(content);
+                                return str.substring(0, str.indexOf('='));
+                            }))
+                    .build();
+            aScope.start();
+            int i = 0;
+            for (; i < 3; i++)
+                aScope.tryWrite(("key" + (i % 4) + "=" + (10 + i)).getBytes(Charset.defaultCharset()));
+            //head of active backup file is copied
+            Assert.assertEquals(1, aScope.replicate());
+            for (; aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex() == 0; i++)
+                aScope.tryWrite(("key" + (i % 4) + "=" + (10 + i)).getBytes(Charset.defaultCharset()));
+            aScope.tryWrite(("key" + (i % 4) + "=" + (10 + i)).getBytes(Charset.defaultCharset()));
+            Assert.assertFalse(aScope.tryRead(200).isEmpty());
+            //compacted backup file ends after bytes copied, and is copied again as a whole
+            Assert.assertTrue(aScope.compact() > 0);
+            Assert.assertTrue(aScope.seek(0));
+            for(byte[] content : aScope.tryRead(200))
+                expected.add(new String(content));
+            aScope.replicate();
+            aScope.close();
+        }
+        try(BackupContext context = new DefaultBackupContext(scopeId)) {
+            BackupScope replica = BackupScopeBuilder.create(root.resolve("local_replica").toString(), scopeId)
+                    .setBackupContext(context)
+                    .build();
+            replica.start();
+            Assert.assertTrue(replica.seek(0));
+            List<String> replicated = new ArrayList<>();
+            for(byte[] content : replica.tryRead(200))
+                replicated.add(new String(content));
+            Assert.assertEquals(expected, replicated);
+        }
+        clear(root);
+    }
+
+    @Test
+    public void testEncryption() throws Exception {
+        byte[] masterKey = new byte[32];
+        new Random(20170427).nextBytes(masterKey);
+        for(BackupScopeConfig.IOMode ioMode : BackupScopeConfig.IOMode.values()) {
+            String scopeId = "testEncryption" + ioMode;
+            BackupScopeConfig config = new BackupScopeConfig()
+                    .setIOMode(ioMode)
+                    .setBackupFileMaxByte(300)
+                    .setRecordTimestamp(true)
+                    .setEncryptionKey(masterKey)
+                    .setKeyExtractor(content -> {
+                        String str = new String(content);
+                        int sep = str.indexOf('=');
+                        return sep < 0 ? null : str.substring(0, sep);
+                    });
+            BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                    .setBackupContext(new DefaultBackupContext(scopeId))
+                    .setBackupScopeConfig(config)
+                    .build();
+            aScope.init();
+            aScope.openWrite();
+            for (int i = 0; i < 50; i++)
+                aScope.writeAsync(("key" + (i % 5) + "=" + i).getBytes(Charset.defaultCharset())).get();
+            List<byte[]> batch = new ArrayList<>();
+            for (int i = 50; i < 100; i++)
+                batch.add(("key" + (i % 5) + "=" + i).getBytes(Charset.defaultCharset()));
+            Assert.assertTrue(aScope.tryWrite(batch) > 0);
+            aScope.flush();
+            //contents are not in backup file in plain text
+            byte[] stored = Files.readAllBytes(aScope.getBackupFilePath(0));
+            Assert.assertFalse(new String(stored, Charset.defaultCharset()).contains("key0=0"));
+            Assert.assertTrue(BackupFileHeader.decode(ByteBuffer.wrap(stored).getLong()).isEncrypted());
+
+            List<byte[]> contRead = aScope.tryRead(100);
+            Assert.assertEquals(100, contRead.size());
+            for (int i = 0; i < 100; i++)
+                Assert.assertEquals("key" + (i % 5) + "=" + i, new String(contRead.get(i)));
+            Assert.assertEquals("key3=98", new String(aScope.tryReadByKey("key3")));
+            //compacted contents are encrypted again at offsets they move to
+            Assert.assertTrue(aScope.compact() > 0);
+            for (int i = 0; i < 5; i++)
+                Assert.assertEquals("key" + i + "=" + (95 + i), new String(aScope.tryReadByKey("key" + i)));
+            Assert.assertTrue(aScope.seek(0));
+            Assert.assertTrue(aScope.tryRead(100).size() < 100);
+            aScope.closeRead();
+            aScope.closeWrite();
+
+            //encrypted backup files could not be read without master key, or with other one
+            byte[] otherKey = masterKey.clone();
+            otherKey[0]++;
+            for(BackupScopeConfig other : new BackupScopeConfig[]{new BackupScopeConfig(), new BackupScopeConfig().setEncryptionKey(otherKey)}) {
+                BackupScope reopened = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                        .setBackupContext(new DefaultBackupContext(scopeId))
+                        .setBackupScopeConfig(other.setIOMode(ioMode))
+                        .build();
+                reopened.init();
+                try {
+                    reopened.seek(0);
+                    //content failing decryption is not read
+                    Assert.assertNull(reopened.tryRead());
+                } catch (IOException e) {
+                    //expected
+                }
+                reopened.closeRead();
+            }
+            clear(Paths.get("src/test/resources/" + scopeId));
+        }
+    }
+
+    @Test
+    public void testEncryptionInBlocks() throws Exception {
+        byte[] masterKey = new byte[16];
+        new Random(20170427).nextBytes(masterKey);
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(64 * 1024)
+                .setSparseIndexIntervalInByte(64)
+                .setAutoAck(false)
+                .setEncryptionKey(masterKey)
+                .setKeyExtractor(content -> {
+                    String str = new String(content);
+                    int sep = str.indexOf('=');
+                    return sep < 0 ? null : str.substring(0, sep);
+                });
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testEncryptionInBlocks")
+                .setBackupContext(new DefaultBackupContext("testEncryptionInBlocks"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        long plain = 0;
+        for (int i = 0; i < 5; i++) {
+            List<byte[]> batch = new ArrayList<>();
+            for (int j = 0; j < 20; j++) {
+                batch.add(("key" + (j % 7) + "=" + (i * 20 + j)).getBytes(Charset.defaultCharset()));
+                plain += 4 + batch.get(j).length;
+            }
+            Assert.assertTrue(aScope.tryWrite(batch) > 0);
+        }
+        aScope.flush();
+        //one block head for each batch
+        Assert.assertEquals(8 + plain + 5 * 32, Files.size(aScope.getBackupFilePath(0)));
+        //content in the middle of block is read with block it is in
+        Assert.assertEquals("key2=96", new String(aScope.tryReadByKey("key2")));
+
+        List<BackupRecord> records = aScope.tryReadRecords(27);
+        Assert.assertEquals(27, records.size());
+        aScope.ack(26);
+        aScope.closeRead();
+        //read goes on from the middle of block after reopen
+        Assert.assertTrue(aScope.openRead());
+        records = aScope.tryReadRecords(1);
+        Assert.assertEquals(27, records.get(0).getSequence());
+        Assert.assertEquals("key0=27", new String(records.get(0).getContent()));
+
+        Path archive = Paths.get("src/test/resources/testEncryptionInBlocks.archive");
+        try(FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            aScope.export(out);
+        }
+        aScope.closeRead();
+        aScope.closeWrite();
+        BackupScope imported = BackupScopeBuilder.create("src/test/resources/", "testEncryptionInBlocksImport")
+                .setBackupContext(new DefaultBackupContext("testEncryptionInBlocksImport"))
+                .setBackupScopeConfig(new BackupScopeConfig().setEncryptionKey(masterKey))
+                .build();
+        imported.init();
+        try(FileChannel in = FileChannel.open(archive, StandardOpenOption.READ)) {
+            Assert.assertEquals(73, imported.importFrom(in));
+        }
+        List<BackupRecord> importedRecords = imported.tryReadRecords(100);
+        Assert.assertEquals(73, importedRecords.size());
+        for (int i = 0; i < 73; i++) {
+            Assert.assertEquals(27 + i, importedRecords.get(i).getSequence());
+            Assert.assertEquals("key" + ((27 + i) % 20 % 7) + "=" + (27 + i), new String(importedRecords.get(i).getContent()));
+        }
+        imported.closeRead();
+        Files.delete(archive);
+        clear(Paths.get("src/test/resources/testEncryptionInBlocks"));
+        clear(Paths.get("src/test/resources/testEncryptionInBlocksImport"));
+    }
+
     private void clear(Path path) throws IOException {
         DirectoryDelete walk = new DirectoryDelete();
         EnumSet opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
@@ -0,0 +1,244 @@
+package com.youzan.filebackup;
+
+import com.youzan.filebackup.context.BackupLimitExceededException;
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeBuilder;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.context.BackupSpillQueue;
+import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class BackupSpillQueueTest {
+
+    private BackupScope createScope(final String scopeId) {
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                .setBackupContext(new DefaultBackupContext(scopeId))
+                .build();
+        aScope.init();
+        return aScope;
+    }
+
+    private List<String> poll(final BackupSpillQueue queue, int maxCount) throws IOException {
+        List<String> polled = new ArrayList<>();
+        for(byte[] content : queue.poll(maxCount))
+            polled.add(new String(content, Charset.defaultCharset()));
+        return polled;
+    }
+
+    private void offer(final BackupSpillQueue queue, int from, int to) throws IOException {
+        for(int i = from; i < to; i++)
+            Assert.assertTrue(queue.offer(String.valueOf(i).getBytes(Charset.defaultCharset())));
+    }
+
+    @Test
+    public void testMemoryOnly() throws IOException {
+        BackupScope aScope = createScope("testSpillQueueMemoryOnly");
+        BackupSpillQueue queue = new BackupSpillQueue(aScope).setMaxMemoryCount(100);
+        for(int round = 0; round < 10; round++) {
+            offer(queue, 0, 50);
+            List<String> polled = poll(queue, 100);
+            Assert.assertEquals(50, polled.size());
+            Assert.assertEquals("49", polled.get(49));
+        }
+        //nothing goes to disk while consumer keeps up
+        Assert.assertFalse(queue.isSpilling());
+        Assert.assertEquals(0, queue.getSpilledCount());
+        Assert.assertEquals(0, aScope.getBackupMetaInfo().getWriteSequence());
+        queue.close();
+        aScope.closeWrite();
+        aScope.closeRead();
+        clear(Paths.get("src/test/resources/testSpillQueueMemoryOnly"));
+    }
+
+    @Test
+    public void testSpillInOrder() throws IOException {
+        BackupScope aScope = createScope("testSpillInOrder");
+        BackupSpillQueue queue = new BackupSpillQueue(aScope).setMaxMemoryCount(100);
+        offer(queue, 0, 100);
+        Assert.assertFalse(queue.isSpilling());
+        //count bound exceeded, contents in memory go to disk first
+        offer(queue, 100, 150);
+        Assert.assertTrue(queue.isSpilling());
+        Assert.assertEquals(0, queue.getMemoryCount());
+        Assert.assertEquals(150, queue.getSpilledCount());
+
+        List<String> polled = poll(queue, 120);
+        //contents offered while draining keep going to disk after the rest
+        offer(queue, 150, 200);
+        while(true) {
+            List<String> batch = poll(queue, 30);
+            if(batch.isEmpty())
+                break;
+            polled.addAll(batch);
+        }
+        Assert.assertEquals(200, polled.size());
+        for(int i = 0; i < 200; i++)
+            Assert.assertEquals(String.valueOf(i), polled.get(i));
+        //back to memory after disk is drained
+        Assert.assertFalse(queue.isSpilling());
+        offer(queue, 200, 210);
+        Assert.assertEquals(10, queue.getMemoryCount());
+        Assert.assertEquals(200, queue.getSpilledCount());
+        Assert.assertEquals(1, queue.getSpillCount());
+        queue.close();
+        aScope.closeWrite();
+        aScope.closeRead();
+        clear(Paths.get("src/test/resources/testSpillInOrder"));
+    }
+
+    @Test
+    public void testSpillOnLag() throws IOException, InterruptedException {
+        BackupScope aScope = createScope("testSpillOnLag");
+        BackupSpillQueue queue = new BackupSpillQueue(aScope).setMaxLagInMillis(50);
+        offer(queue, 0, 10);
+        Thread.sleep(100);
+        offer(queue, 10, 11);
+        Assert.assertTrue(queue.isSpilling());
+        Assert.assertEquals(11, queue.getSpilledCount());
+        List<String> polled = new ArrayList<>();
+        for(byte[] content : queue.poll(100, 1, TimeUnit.SECONDS))
+            polled.add(new String(content, Charset.defaultCharset()));
+        Assert.assertEquals(11, polled.size());
+        Assert.assertEquals("10", polled.get(10));
+        queue.close();
+        aScope.closeWrite();
+        aScope.closeRead();
+        clear(Paths.get("src/test/resources/testSpillOnLag"));
+    }
+
+    @Test
+    public void testSpillOnClose() throws IOException {
+        BackupScope aScope = createScope("testSpillOnClose");
+        BackupSpillQueue queue = new BackupSpillQueue(aScope);
+        offer(queue, 0, 20);
+        Assert.assertEquals(5, poll(queue, 5).size());
+        queue.close();
+        Assert.assertFalse(queue.offer("closed".getBytes(Charset.defaultCharset())));
+        aScope.closeWrite();
+        aScope.closeRead();
+
+        //contents in memory are written into backup scope on close, and polled first next time
+        aScope = createScope("testSpillOnClose");
+        queue = new BackupSpillQueue(aScope);
+        Assert.assertTrue(queue.isSpilling());
+        offer(queue, 20, 25);
+        List<String> polled = poll(queue, 100);
+        Assert.assertEquals(20, polled.size());
+        Assert.assertEquals("5", polled.get(0));
+        Assert.assertEquals("24", polled.get(19));
+        queue.close();
+        aScope.closeWrite();
+        aScope.closeRead();
+        clear(Paths.get("src/test/resources/testSpillOnClose"));
+    }
+
+    @Test
+    public void testPollWhileSpillWaits() throws Exception {
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testPollWhileSpillWaits")
+                .setBackupContext(new DefaultBackupContext("testPollWhileSpillWaits"))
+                .setBackupScopeConfig(new BackupScopeConfig()
+                        .setDiskQuotaInByte(200)
+                        .setQuotaBlockTimeoutInMillis(2000))
+                .build();
+        aScope.init();
+        BackupSpillQueue queue = new BackupSpillQueue(aScope).setMaxMemoryCount(10);
+        offer(queue, 0, 11);
+        Assert.assertTrue(queue.isSpilling());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            //spill waits for disk quota without lock of queue held
+            Future<Boolean> blocked = executor.submit(() -> queue.offer(new byte[200]));
+            Thread.sleep(200);
+            long start = System.currentTimeMillis();
+            Assert.assertEquals(11, poll(queue, 100).size());
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+            try {
+                blocked.get();
+                Assert.fail("Spill beyond disk quota should time out.");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof BackupLimitExceededException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        queue.close();
+        aScope.closeWrite();
+        aScope.closeRead();
+        clear(Paths.get("src/test/resources/testPollWhileSpillWaits"));
+    }
+
+    @Test
+    public void testConcurrentSpillInOrder() throws Exception {
+        BackupScope aScope = createScope("testConcurrentSpillInOrder");
+        BackupSpillQueue queue = new BackupSpillQueue(aScope).setMaxMemoryCount(50);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Boolean>> producers = new ArrayList<>();
+        try {
+            for(int p = 0; p < 2; p++) {
+                final String producer = "p" + p + "-";
+                producers.add(executor.submit(() -> {
+                    for(int i = 0; i < 2000; i++)
+                        queue.offer((producer + i).getBytes(Charset.defaultCharset()));
+                    return true;
+                }));
+            }
+            //contents of each producer are polled in order they are offered, across spills and drains
+            int[] next = new int[2];
+            while(next[0] + next[1] < 4000) {
+                for(byte[] content : queue.poll(30, 1, TimeUnit.SECONDS)) {
+                    String str = new String(content, Charset.defaultCharset());
+                    int p = str.charAt(1) - '0';
+                    Assert.assertEquals("p" + p + "-" + next[p], str);
+                    next[p]++;
+                }
+            }
+            for(Future<Boolean> producer : producers)
+                Assert.assertTrue(producer.get());
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue(queue.poll(100).isEmpty());
+        queue.close();
+        aScope.closeWrite();
+        aScope.closeRead();
+        clear(Paths.get("src/test/resources/testConcurrentSpillInOrder"));
+    }
+
+    @Test
+    public void testNoAutoAck() throws IOException {
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testSpillQueueNoAutoAck")
+                .setBackupContext(new DefaultBackupContext("testSpillQueueNoAutoAck"))
+                .setBackupScopeConfig(new BackupScopeConfig().setAutoAck(false))
+                .build();
+        aScope.init();
+        //contents polled from backup scope would be read again without acknowledgement
+        try {
+            new BackupSpillQueue(aScope);
+            Assert.fail("Spill queue should need auto acknowledgement.");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        clear(Paths.get("src/test/resources/testSpillQueueNoAutoAck"));
+    }
+
+    private void clear(final Path scopePath) throws IOException {
+        Files.walkFileTree(scopePath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new DirectoryDelete());
+    }
+}
@@ -0,0 +1,415 @@
+package com.youzan.filebackup;
+
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeBuilder;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import com.youzan.filebackup.utils.FaultInjectingFileChannel;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+/**
+ * Stress and fault injection of backup scope. Workloads are randomized with fixed seeds, so that failing round is
+ * replayed with seed in its assertion message. Each content carries id of its writer, sequence in writer and a payload
+ * derived from both, so that contents read are checked intact and in order of each writer.
+ */
+public class BackupStressTest {
+    private final static Logger logger = LoggerFactory.getLogger(BackupStressTest.class);
+    private final static long SEED = 20170427L;
+    private final static int MAX_PAYLOAD = 200;
+
+    /**
+     * @return content number n of passin writer, with payload of passin length
+     */
+    private static byte[] content(int writer, long n, int length) {
+        StringBuilder builder = new StringBuilder("w" + writer + "-" + n + "-" + length + "-");
+        for (int i = 0; i < length; i++)
+            builder.append((char) ('a' + (writer * 31 + n + i) % 26));
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check content is intact, and is next one of its writer.
+     * @param next  next sequence of each writer, moved by content checked
+     */
+    private static void verify(final byte[] content, final long[] next, final String round) {
+        String value = new String(content, StandardCharsets.UTF_8);
+        String[] parts = value.split("-", 4);
+        Assert.assertEquals(round + " malformed content " + value, 4, parts.length);
+        int writer = Integer.parseInt(parts[0].substring(1));
+        long n = Long.parseLong(parts[1]);
+        Assert.assertEquals(round + " content out of order of writer " + writer, next[writer], n);
+        Assert.assertArrayEquals(round + " torn content " + value, content(writer, n, Integer.parseInt(parts[2])), content);
+        next[writer]++;
+    }
+
+    @Test
+    public void testConcurrentWorkload() throws Exception {
+        final int writers = 4;
+        final int contentsPerWriter = 3000;
+        for (BackupScopeConfig.IOMode ioMode : BackupScopeConfig.IOMode.values()) {
+            String scopeId = "testConcurrentWorkload" + ioMode;
+            String round = ioMode + " seed " + SEED;
+            BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                    .setBackupContext(new DefaultBackupContext(scopeId))
+                    .setBackupScopeConfig(new BackupScopeConfig()
+                            .setIOMode(ioMode)
+                            .setBackupFileMaxByte(16 * 1024)
+                            .setBackupContentBufferSizeInByte(1024)
+                            .setRecordTimestamp(true))
+                    .build();
+            aScope.start();
+            ExecutorService exec = Executors.newFixedThreadPool(writers + 1);
+            AtomicLongArray writtenBytes = new AtomicLongArray(writers);
+            long start = System.nanoTime();
+            List<Future<?>> writes = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                final int writer = w;
+                writes.add(exec.submit(() -> {
+                    Random random = new Random(SEED + writer);
+                    List<Future<Integer>> asyncWrites = new ArrayList<>();
+                    //write async is ordered after sync writes issued later, it goes in a writer id of its own
+                    long n = 0;
+                    long asyncN = 0;
+                    while (n + asyncN < contentsPerWriter) {
+                        int op = random.nextInt(10);
+                        if (op < 6) {
+                            int count = aScope.tryWrite(content(writer, n++, random.nextInt(MAX_PAYLOAD)));
+                            Assert.assertTrue(count > 0);
+                            writtenBytes.addAndGet(writer, count);
+                        } else if (op < 8) {
+                            List<byte[]> batch = new ArrayList<>();
+                            for (int i = 1 + random.nextInt(8); i > 0 && n + asyncN < contentsPerWriter; i--)
+                                batch.add(content(writer, n++, random.nextInt(MAX_PAYLOAD)));
+                            writtenBytes.addAndGet(writer, aScope.tryWrite(batch));
+                        } else {
+                            //write async of one writer runs in order on write executor, or issues in order in ASYNC mode
+                            asyncWrites.add(aScope.writeAsync(content(writers + writer, asyncN++, random.nextInt(MAX_PAYLOAD))));
+                        }
+                        if (random.nextInt(500) == 0)
+                            aScope.flush();
+                    }
+                    for (Future<Integer> future : asyncWrites)
+                        writtenBytes.addAndGet(writer, future.get());
+                    return null;
+                }));
+            }
+            //read concurrently with writes, till all contents are read
+            Future<Long> reads = exec.submit(() -> {
+                long[] next = new long[writers * 2];
+                long readCount = 0;
+                long deadline = System.currentTimeMillis() + 60 * 1000;
+                while (readCount < (long) writers * contentsPerWriter && System.currentTimeMillis() < deadline) {
+                    List<byte[]> contRead = aScope.tryRead(64);
+                    for (byte[] content : contRead)
+                        verify(content, next, round);
+                    readCount += contRead.size();
+                    if (contRead.isEmpty())
+                        Thread.sleep(1);
+                }
+                return readCount;
+            });
+            for (Future<?> write : writes)
+                write.get();
+            long writeNanos = System.nanoTime() - start;
+            Assert.assertEquals(round, (long) writers * contentsPerWriter, reads.get().longValue());
+            long readNanos = System.nanoTime() - start;
+            exec.shutdown();
+            long bytes = 0;
+            for (int w = 0; w < writers; w++)
+                bytes += writtenBytes.get(w);
+            logger.info("{}: {} contents, {} bytes by {} writers, written in {} ms at {} MB/s, read through in {} ms at {} contents/s.",
+                    ioMode, writers * contentsPerWriter, bytes, writers, TimeUnit.NANOSECONDS.toMillis(writeNanos),
+                    String.format("%.2f", bytes * 1000.0 / writeNanos), TimeUnit.NANOSECONDS.toMillis(readNanos),
+                    (long) writers * contentsPerWriter * 1000000000L / Math.max(1, readNanos));
+            //contents go through a number of backup files
+            Assert.assertTrue(round, aScope.getBackupMetaInfo().getWriteStart().getBackupFileIndex() > 10);
+            aScope.close();
+
+            BackupScope restarted = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                    .setBackupContext(new DefaultBackupContext(scopeId))
+                    .build();
+            restarted.start();
+            Assert.assertNull(round, restarted.tryRead());
+            restarted.close();
+            clear(Paths.get("src/test/resources/" + scopeId));
+        }
+    }
+
+    @Test
+    public void testTornWriteAndFailedFsync() throws IOException {
+        String scopeId = "testTornWriteAndFailedFsync";
+        FaultInjectingFileChannel.Faults faults = new FaultInjectingFileChannel.Faults();
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                .setBackupContext(new DefaultBackupContext(scopeId))
+                .setBackupScopeConfig(new BackupScopeConfig()
+                        .setBackupFileMaxByte(1024)
+                        .setBackupContentBufferSizeInByte(64)
+                        .setChannelFactory(faults))
+                .build();
+        aScope.start();
+        Random random = new Random(SEED);
+        long n = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++)
+                Assert.assertTrue(aScope.tryWrite(content(0, n++, random.nextInt(MAX_PAYLOAD))) > 0);
+            //torn write fails, and is written over by next write of the same content
+            byte[] content = content(0, n, 20 + random.nextInt(MAX_PAYLOAD));
+            faults.tearAfter(random.nextInt(content.length));
+            try {
+                aScope.tryWrite(content);
+                Assert.fail("Torn write needs to fail.");
+            } catch (IOException e) {
+                //expected
+            }
+            faults.reset();
+            //failed fsync leaves contents written readable
+            faults.failForce(true);
+            try {
+                aScope.flush();
+                Assert.fail("Failed fsync needs to fail flush.");
+            } catch (IOException e) {
+                //expected
+            }
+            faults.reset();
+        }
+        aScope.flush();
+        aScope.close();
+
+        BackupScope restarted = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                .setBackupContext(new DefaultBackupContext(scopeId))
+                .build();
+        restarted.start();
+        long[] next = new long[1];
+        List<byte[]> contRead;
+        while (!(contRead = restarted.tryRead(100)).isEmpty()) {
+            for (byte[] content : contRead)
+                verify(content, next, "seed " + SEED);
+        }
+        Assert.assertEquals(n, next[0]);
+        restarted.close();
+        clear(Paths.get("src/test/resources/" + scopeId));
+    }
+
+    /**
+     * Failed asynchronous write wakes up drain waiting for it, read end stays in front of it, and write is closed, so
+     * that no write goes on past the gap.
+     */
+    @Test
+    public void testFailedAsyncWrite() throws Exception {
+        String scopeId = "testFailedAsyncWrite";
+        FaultInjectingFileChannel.Faults faults = new FaultInjectingFileChannel.Faults();
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                .setBackupContext(new DefaultBackupContext(scopeId))
+                .setBackupScopeConfig(new BackupScopeConfig()
+                        .setBackupFileMaxByte(64 * 1024)
+                        .setIOMode(BackupScopeConfig.IOMode.ASYNC)
+                        .setChannelFactory(faults))
+                .build();
+        aScope.start();
+        //contents of one size, as their numbers have the same digits
+        long n = 10;
+        for (; n < 30; n++)
+            Assert.assertTrue(aScope.writeAsync(content(0, n, 100)).get() > 0);
+        long recordSize = faults.getWrittenBytes() / 20;
+        //writes are held in flight while drain waits for them, the second one is torn once they are issued
+        faults.holdWrites();
+        List<Future<Integer>> held = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            held.add(aScope.writeAsync(content(0, n + i, 100)));
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        Future<Boolean> drain = exec.submit(() -> aScope.drain(60, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        faults.tearAfter(recordSize).releaseWrites();
+        Assert.assertTrue(held.get(0).get() > 0);
+        for (int i = 1; i < 3; i++) {
+            try {
+                held.get(i).get();
+                Assert.fail("Write after torn write needs to fail.");
+            } catch (ExecutionException e) {
+                //expected
+            }
+        }
+        drain.get(10, TimeUnit.SECONDS);
+        exec.shutdown();
+        faults.reset();
+        Assert.assertEquals(0, (int) aScope.writeAsync(content(0, n + 3, 100)).get());
+        Assert.assertFalse(aScope.couldWrite());
+        aScope.close();
+
+        BackupScope restarted = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                .setBackupContext(new DefaultBackupContext(scopeId))
+                .build();
+        restarted.start();
+        long[] next = new long[]{10};
+        List<byte[]> contRead;
+        while (!(contRead = restarted.tryRead(100)).isEmpty()) {
+            for (byte[] content : contRead)
+                verify(content, next, "seed " + SEED);
+        }
+        Assert.assertEquals(n + 1, next[0]);
+        restarted.close();
+        clear(Paths.get("src/test/resources/" + scopeId));
+    }
+
+    /**
+     * Writers run till injected crash tears a write, while contents written are flushed now and then. Backup scope
+     * recovered from image of scope folder at crash needs to have every content flushed before crash, intact, in order
+     * of each writer and with no gap, and to go on with new writes.
+     */
+    @Test
+    public void testCrashRecovery() throws Exception {
+        final int writers = 3;
+        for (int round = 0; round < 20; round++) {
+            String scopeId = "testCrashRecovery" + round;
+            String imageId = scopeId + "-image";
+            Random random = new Random(SEED + round);
+            String roundInfo = "round " + round + " seed " + (SEED + round);
+            FaultInjectingFileChannel.Faults faults = new FaultInjectingFileChannel.Faults()
+                    .crashOnTear(true)
+                    .tearAfter(2 * 1024 + random.nextInt(62 * 1024));
+            BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                    .setBackupContext(new DefaultBackupContext(scopeId))
+                    .setBackupScopeConfig(new BackupScopeConfig()
+                            .setBackupFileMaxByte(1024 + random.nextInt(4 * 1024))
+                            .setBackupContentBufferSizeInByte(64 + random.nextInt(1024))
+                            .setChannelFactory(faults))
+                    .build();
+            aScope.start();
+            //sequence of last content each writer has written, and has flushed
+            AtomicLongArray written = new AtomicLongArray(writers);
+            long[] flushed = new long[writers];
+            for (int w = 0; w < writers; w++) {
+                written.set(w, -1);
+                flushed[w] = -1;
+            }
+            AtomicBoolean writing = new AtomicBoolean(true);
+            ExecutorService exec = Executors.newFixedThreadPool(writers);
+            List<Future<?>> writes = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                final int writer = w;
+                final long writerSeed = random.nextLong();
+                writes.add(exec.submit(() -> {
+                    Random writerRandom = new Random(writerSeed);
+                    for (long n = 0; n < 100000; n++) {
+                        try {
+                            if (aScope.tryWrite(content(writer, n, writerRandom.nextInt(MAX_PAYLOAD))) == 0)
+                                return;
+                        } catch (IOException e) {
+                            return;
+                        }
+                        written.set(writer, n);
+                    }
+                }));
+            }
+            exec.submit(() -> {
+                for (Future<?> write : writes) {
+                    try {
+                        write.get();
+                    } catch (Exception e) {
+                        logger.error("Writer fails.", e);
+                    }
+                }
+                writing.set(false);
+            });
+            while (writing.get()) {
+                long[] snapshot = new long[writers];
+                for (int w = 0; w < writers; w++)
+                    snapshot[w] = written.get(w);
+                try {
+                    aScope.flush();
+                    flushed = snapshot;
+                } catch (IOException e) {
+                    //flush after crash
+                }
+                Thread.sleep(random.nextInt(3));
+            }
+            exec.shutdown();
+            Assert.assertTrue(roundInfo, faults.isCrashed());
+            copy(Paths.get("src/test/resources/" + scopeId), Paths.get("src/test/resources/" + imageId));
+            try {
+                aScope.close();
+            } catch (IOException e) {
+                //scope is crashed
+            }
+
+            BackupScope recovered = BackupScopeBuilder.create("src/test/resources/", imageId)
+                    .setBackupContext(new DefaultBackupContext(imageId))
+                    .setBackupScopeConfig(new BackupScopeConfig().setBackupFileMaxByte(4 * 1024))
+                    .build();
+            recovered.start();
+            long[] next = new long[writers];
+            List<byte[]> contRead;
+            while (!(contRead = recovered.tryRead(100)).isEmpty()) {
+                for (byte[] content : contRead)
+                    verify(content, next, roundInfo);
+            }
+            for (int w = 0; w < writers; w++) {
+                Assert.assertTrue(roundInfo + " flushed content lost of writer " + w, next[w] > flushed[w]);
+                //write in flight at crash may have its record intact, while it fails
+                Assert.assertTrue(roundInfo + " content not written of writer " + w, next[w] <= written.get(w) + 2);
+            }
+            //writes go on from recovered contents
+            long[] recoveredNext = next.clone();
+            for (int w = 0; w < writers; w++) {
+                for (int i = 0; i < 10; i++)
+                    Assert.assertTrue(recovered.tryWrite(content(w, recoveredNext[w] + i, random.nextInt(MAX_PAYLOAD))) > 0);
+            }
+            while (!(contRead = recovered.tryRead(100)).isEmpty()) {
+                for (byte[] content : contRead)
+                    verify(content, next, roundInfo);
+            }
+            for (int w = 0; w < writers; w++)
+                Assert.assertEquals(roundInfo, recoveredNext[w] + 10, next[w]);
+            logger.info("Crash {}: {} bytes written before crash, {} contents recovered, {} flushed.", roundInfo,
+                    faults.getWrittenBytes(), sum(recoveredNext), sum(flushed) + writers);
+            recovered.close();
+            clear(Paths.get("src/test/resources/" + scopeId));
+            clear(Paths.get("src/test/resources/" + imageId));
+        }
+    }
+
+    private static long sum(final long[] values) {
+        long sum = 0;
+        for (long value : values)
+            sum += value;
+        return sum;
+    }
+
+    /**
+     * copy files in scope folder, as image of it at crash
+     */
+    private void copy(final Path from, final Path to) throws IOException {
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                Files.copy(file, to.resolve(file.getFileName()));
+        }
+    }
+
+    private void clear(Path path) throws IOException {
+        Files.walkFileTree(path, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new DirectoryDelete());
+    }
+}
@@ -0,0 +1,101 @@
+package com.youzan.filebackup;
+
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeBuilder;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.context.BackupTailCache;
+import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.files.BackupLocation;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+public class BackupTailCacheTest {
+
+    @Test
+    public void testPutAndGet() {
+        BackupTailCache cache = new BackupTailCache(64);
+        for(int i = 0; i < 4; i++)
+            cache.put(new BackupLocation(0, i * 20), content(i, 20), new BackupLocation(0, (i + 1) * 20));
+        //first ones are evicted for room of later ones
+        Assert.assertNull(cache.get(new BackupLocation(0, 0)));
+        BackupTailCache.Content content = cache.get(new BackupLocation(0, 40));
+        Assert.assertNotNull(content);
+        Assert.assertEquals(2, content.getContent()[0]);
+        Assert.assertEquals(new BackupLocation(0, 60), content.getNext());
+        //content read through is evicted
+        Assert.assertNull(cache.get(new BackupLocation(0, 40)));
+        Assert.assertEquals(3, cache.get(new BackupLocation(0, 60)).getContent()[0]);
+        Assert.assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testPutWrapAround() {
+        BackupTailCache cache = new BackupTailCache(100);
+        long offset = 0;
+        for(int i = 0; i < 100; i++) {
+            byte[] content = new byte[7 + i % 13];
+            content[0] = (byte) i;
+            cache.put(new BackupLocation(0, offset), content, new BackupLocation(0, offset + content.length));
+            BackupTailCache.Content cached = cache.get(new BackupLocation(0, offset));
+            Assert.assertNotNull(cached);
+            Assert.assertEquals((byte) i, cached.getContent()[0]);
+            Assert.assertEquals(content.length, cached.getContent().length);
+            offset += content.length;
+        }
+    }
+
+    @Test
+    public void testReadFromTailCache() throws IOException {
+        BackupScopeConfig config = new BackupScopeConfig()
+                .setBackupFileMaxByte(200)
+                .setTailCacheSizeInByte(256);
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testReadFromTailCache")
+                .setBackupContext(new DefaultBackupContext("testReadFromTailCache"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        List<String> written = new ArrayList<>();
+        List<String> read = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            String content = "content " + i;
+            written.add(content);
+            aScope.tryWrite(content.getBytes(Charset.defaultCharset()));
+            //reader falls behind writer from time to time, beyond what cache holds
+            if(i % 30 == 0)
+                continue;
+            for(byte[] contRead : aScope.tryRead(i % 7 + 1))
+                read.add(new String(contRead));
+        }
+        byte[] contRead;
+        while(null != (contRead = aScope.tryRead()))
+            read.add(new String(contRead));
+        Assert.assertEquals(written, read);
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testReadFromTailCache"));
+    }
+
+    private byte[] content(int first, int length) {
+        byte[] content = new byte[length];
+        content[0] = (byte) first;
+        return content;
+    }
+
+    private void clear(Path path) throws IOException {
+        DirectoryDelete walk = new DirectoryDelete();
+        EnumSet opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+        Files.walkFileTree(path, opts, Integer.MAX_VALUE, walk);
+    }
+}
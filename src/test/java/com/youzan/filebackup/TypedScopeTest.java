@@ -0,0 +1,145 @@
+package com.youzan.filebackup;
+
+import com.google.gson.Gson;
+import com.youzan.filebackup.codec.GsonBinaryCodec;
+import com.youzan.filebackup.codec.RawCodec;
+import com.youzan.filebackup.codec.Utf8StringCodec;
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeBuilder;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.context.TypedScope;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class TypedScopeTest {
+
+    static class Order {
+        long id;
+        int quantity;
+        double price;
+        String buyer;
+        boolean paid;
+        List<String> items;
+        Map<String, Long> tags;
+        Order next;
+
+        Order(long id) {
+            this.id = id;
+            this.quantity = (int) (id % 7) - 3;
+            this.price = id * 1.25;
+            this.buyer = "buyer \u4e70\u5bb6 \ud83d\ude00 " + id;
+            this.paid = id % 2 == 0;
+            this.items = Arrays.asList("item" + id, "item" + (id + 1));
+            this.tags = new TreeMap<>();
+            this.tags.put("min", Long.MIN_VALUE);
+            this.tags.put("max", Long.MAX_VALUE);
+        }
+    }
+
+    private void assertOrder(final Order expected, final Order actual) {
+        Assert.assertEquals(expected.id, actual.id);
+        Assert.assertEquals(expected.quantity, actual.quantity);
+        Assert.assertEquals(expected.price, actual.price, 0);
+        Assert.assertEquals(expected.buyer, actual.buyer);
+        Assert.assertEquals(expected.paid, actual.paid);
+        Assert.assertEquals(expected.items, actual.items);
+        Assert.assertEquals(expected.tags, actual.tags);
+    }
+
+    @Test
+    public void testCodecs() {
+        GsonBinaryCodec<Order> codec = new GsonBinaryCodec<>(Order.class);
+        Order order = new Order(42);
+        order.next = new Order(43);
+        order.next.buyer = null;
+        int size = codec.encodedSize(order);
+        //compact binary is smaller than json text
+        Assert.assertTrue(size < new Gson().toJson(order).getBytes(StandardCharsets.UTF_8).length);
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        codec.encode(order, buf);
+        Assert.assertFalse(buf.hasRemaining());
+        buf.flip();
+        Order decoded = codec.decode(buf);
+        assertOrder(order, decoded);
+        Assert.assertNull(decoded.next.buyer);
+        Assert.assertEquals(43, decoded.next.id);
+        //value changed after its size is taken, as in write retried, is encoded as it is
+        codec.encodedSize(order);
+        order.buyer = "another buyer";
+        buf = ByteBuffer.allocate(codec.encodedSize(order));
+        codec.encode(order, buf);
+        Assert.assertFalse(buf.hasRemaining());
+        buf.flip();
+        Assert.assertEquals("another buyer", codec.decode(buf).buyer);
+
+        String value = "ascii, \u4e2d\u6587, \ud83d\ude00";
+        Assert.assertEquals(value.getBytes(StandardCharsets.UTF_8).length, Utf8StringCodec.INSTANCE.encodedSize(value));
+        buf = ByteBuffer.allocate(Utf8StringCodec.INSTANCE.encodedSize(value));
+        Utf8StringCodec.INSTANCE.encode(value, buf);
+        Assert.assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), buf.array());
+        buf.flip();
+        Assert.assertEquals(value, Utf8StringCodec.INSTANCE.decode(buf));
+    }
+
+    @Test
+    public void testTypedScope() throws IOException {
+        for(BackupScopeConfig.IOMode ioMode : BackupScopeConfig.IOMode.values()) {
+            String scopeId = "testTypedScope" + ioMode;
+            BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", scopeId)
+                    .setBackupContext(new DefaultBackupContext(scopeId))
+                    .setBackupScopeConfig(new BackupScopeConfig()
+                            .setIOMode(ioMode)
+                            .setBackupFileMaxByte(1024)
+                            .setBackupContentBufferSizeInByte(128)
+                            .setRecordTimestamp(true))
+                    .build();
+            aScope.init();
+            aScope.openWrite();
+            TypedScope<Order> orders = new TypedScope<>(aScope, new GsonBinaryCodec<>(Order.class));
+            List<Order> written = new ArrayList<>();
+            for(int i = 0; i < 50; i++)
+                written.add(new Order(i));
+            //a few orders are larger than write and read buffer
+            for(int i = 0; i < 50; i += 10)
+                written.get(i).items = new ArrayList<>(Arrays.asList(new String[40]));
+            Assert.assertTrue(orders.tryWrite(written) > 0);
+            List<Order> read = orders.tryRead(100);
+            Assert.assertEquals(50, read.size());
+            for(int i = 0; i < 50; i++)
+                assertOrder(written.get(i), read.get(i));
+
+            //typed contents are the same bytes as raw contents
+            TypedScope<String> strings = new TypedScope<>(aScope, Utf8StringCodec.INSTANCE);
+            strings.tryWrite("typed \u4e2d\u6587");
+            aScope.tryWrite("raw \u4e2d\u6587".getBytes(StandardCharsets.UTF_8));
+            Assert.assertArrayEquals("typed \u4e2d\u6587".getBytes(StandardCharsets.UTF_8), aScope.tryRead());
+            Assert.assertEquals("raw \u4e2d\u6587", strings.tryRead());
+            Assert.assertNull(strings.tryRead());
+            new TypedScope<>(aScope, RawCodec.INSTANCE).tryWrite(new byte[]{1, 2, 3});
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, aScope.tryRead(RawCodec.INSTANCE));
+            aScope.closeRead();
+            aScope.closeWrite();
+            clear(Paths.get("src/test/resources/" + scopeId));
+        }
+    }
+
+    private void clear(final Path scopePath) throws IOException {
+        Files.walkFileTree(scopePath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new DirectoryDelete());
+    }
+}
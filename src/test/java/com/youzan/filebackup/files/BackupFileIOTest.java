@@ -0,0 +1,219 @@
+package com.youzan.filebackup.files;
+
+import com.youzan.filebackup.IBackupReader;
+import com.youzan.filebackup.IBackupWriter;
+import com.youzan.filebackup.codec.ByteBufferCodec;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class BackupFileIOTest {
+
+    @Test
+    public void testFileChannelAppendAndRead() throws IOException {
+        Path dir = Paths.get("src/test/resources/testFileChannelAppendAndRead");
+        Files.createDirectories(dir);
+        Path file = dir.resolve("scope.backup_0");
+        //small buffer, so that contents are written and read across buffer boundaries
+        verifyAppendAndRead(new FileChannelBackupWriter(file, 1024, 16), file);
+        verifySeek(new FileChannelBackupReader(file, 16));
+        clear(dir);
+    }
+
+    @Test
+    public void testMappedAppendAndRead() throws IOException {
+        Path dir = Paths.get("src/test/resources/testMappedAppendAndRead");
+        Files.createDirectories(dir);
+        Path file = dir.resolve("scope.backup_0");
+        verifyAppendAndRead(new MappedBackupWriter(file, 1024), file);
+        verifySeek(new MappedBackupReader(file));
+        clear(dir);
+    }
+
+    @Test
+    public void testAsyncAppendAndRead() throws Exception {
+        Path dir = Paths.get("src/test/resources/testAsyncAppendAndRead");
+        Files.createDirectories(dir);
+        Path file = dir.resolve("scope.backup_0");
+        verifyAppendAndRead(new AsyncBackupWriter(file, new BackupFileHeader(1024, 0), null), file);
+        verifySeek(new FileChannelBackupReader(file, 16));
+
+        //many outstanding writes, contents are in order of append
+        Path anotherFile = dir.resolve("scope.backup_1");
+        AsyncBackupWriter writer = new AsyncBackupWriter(anotherFile, new BackupFileHeader(1024 * 1024, 0), null);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for(int i = 0; i < 1000; i++)
+            futures.add(writer.appendAsync(("async content " + i).getBytes(Charset.defaultCharset()), 0L));
+        for(CompletableFuture<Integer> future : futures)
+            Assert.assertTrue(future.get() > 0);
+        writer.close();
+        try(IBackupReader reader = new FileChannelBackupReader(anotherFile, 64)) {
+            List<byte[]> contents = reader.read(2000, Long.MAX_VALUE);
+            Assert.assertEquals(1000, contents.size());
+            for(int i = 0; i < 1000; i++)
+                Assert.assertEquals("async content " + i, new String(contents.get(i)));
+        }
+        clear(dir);
+    }
+
+    @Test
+    public void testMappedPreallocateInChunk() throws IOException {
+        Path dir = Paths.get("src/test/resources/testMappedPreallocateInChunk");
+        Files.createDirectories(dir);
+        Path file = dir.resolve("scope.backup_0");
+        MappedBackupWriter writer = new MappedBackupWriter(file, 1024, 64);
+        Assert.assertEquals(64L, Files.size(file));
+        writer.append(new byte[100]);
+        Assert.assertEquals(128L, Files.size(file));
+        writer.close();
+        //preallocated space is dropped on close
+        Assert.assertEquals(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + 100L, Files.size(file));
+        verifyAppendAndRead(new MappedBackupWriter(file, 1024, 64), file, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + 100L);
+        clear(dir);
+    }
+
+    @Test
+    public void testMappedInWindows() throws IOException {
+        Path dir = Paths.get("src/test/resources/testMappedInWindows");
+        Files.createDirectories(dir);
+        Path file = dir.resolve("scope.backup_0");
+        //windows far smaller than backup file, so that contents are written and read across windows
+        MappedBackupWriter writer = new MappedBackupWriter(file, new BackupFileHeader(1024, 0), 0, 128);
+        for(int i = 0; i < 50; i++)
+            writer.append(("windowed content " + i).getBytes(Charset.defaultCharset()));
+        byte[] large = new byte[100];
+        Arrays.fill(large, (byte) 1);
+        writer.append(large);
+        writer.flush();
+        long end = writer.position();
+        writer.close();
+        Assert.assertEquals(end, Files.size(file));
+
+        //record larger than read window is mapped whole
+        try(MappedBackupReader reader = new MappedBackupReader(file, 32)) {
+            List<byte[]> contents = reader.read(100, Long.MAX_VALUE);
+            Assert.assertEquals(51, contents.size());
+            for(int i = 0; i < 50; i++)
+                Assert.assertEquals("windowed content " + i, new String(contents.get(i)));
+            Assert.assertArrayEquals(large, contents.get(50));
+            Assert.assertEquals(end, reader.position());
+            Assert.assertNull(reader.read());
+            //seek back before current window
+            reader.seek(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+            Assert.assertEquals(ByteBuffer.wrap("windowed content 0".getBytes(Charset.defaultCharset())), reader.read(ByteBufferCodec.INSTANCE));
+            List<String> visited = new ArrayList<>();
+            Assert.assertEquals(50, reader.read((offset, timestamp, content) -> {
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                visited.add(new String(bytes));
+                return true;
+            }));
+            Assert.assertEquals("windowed content 49", visited.get(48));
+            Assert.assertEquals(end, reader.position());
+        }
+        clear(dir);
+    }
+
+    @Test
+    public void testRecordTimestamp() throws IOException {
+        Path dir = Paths.get("src/test/resources/testRecordTimestamp");
+        Files.createDirectories(dir);
+        BackupFileHeader header = new BackupFileHeader(1024, BackupFileHeader.FLAG_RECORD_TIMESTAMP);
+        Path channelFile = dir.resolve("scope.backup_0");
+        verifyRecordTimestamp(new FileChannelBackupWriter(channelFile, header, 16), new FileChannelBackupReader(channelFile, 16));
+        Path mappedFile = dir.resolve("scope.backup_1");
+        verifyRecordTimestamp(new MappedBackupWriter(mappedFile, header, 0), new MappedBackupReader(mappedFile));
+        //head of existing backup file is kept
+        try(IBackupWriter writer = new FileChannelBackupWriter(channelFile, 2048, 16)) {
+            Assert.assertTrue(writer.getHeader().hasRecordTimestamp());
+            Assert.assertEquals(1024L, writer.getMaxSize());
+        }
+        clear(dir);
+    }
+
+    private void verifyRecordTimestamp(IBackupWriter writer, IBackupReader reader) throws IOException {
+        byte[] first = "first content".getBytes(Charset.defaultCharset());
+        Assert.assertEquals(BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + BackupFileHeader.RECORD_TIMESTAMP_SIZE_IN_BYTE + first.length, writer.append(first, 100L));
+        List<byte[]> batch = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+            batch.add(("batch content " + i).getBytes(Charset.defaultCharset()));
+        writer.append(batch, 200L);
+        long end = writer.position();
+        writer.close();
+
+        try {
+            Assert.assertTrue(reader.getHeader().hasRecordTimestamp());
+            Assert.assertEquals(-1L, reader.timestamp());
+            Assert.assertEquals("first content", new String(reader.read()));
+            Assert.assertEquals(100L, reader.timestamp());
+            List<byte[]> contents = reader.read(100, end - 1);
+            Assert.assertEquals(10, contents.size());
+            Assert.assertEquals("batch content 9", new String(contents.get(9)));
+            Assert.assertEquals(200L, reader.timestamp());
+            Assert.assertNull(reader.read());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void verifyAppendAndRead(IBackupWriter writer, Path file) throws IOException {
+        verifyAppendAndRead(writer, file, BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE);
+    }
+
+    private void verifyAppendAndRead(IBackupWriter writer, Path file, long start) throws IOException {
+        Assert.assertEquals(1024L, writer.getMaxSize());
+        writer.seek(start);
+        byte[] first = "first content".getBytes(Charset.defaultCharset());
+        Assert.assertEquals(BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + first.length, writer.append(first));
+        List<byte[]> batch = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+            batch.add(("batch content " + i).getBytes(Charset.defaultCharset()));
+        writer.append(batch);
+        writer.flush();
+        long end = writer.position();
+        writer.close();
+
+        try(IBackupReader reader = new FileChannelBackupReader(file, 16)) {
+            Assert.assertEquals(1024L, reader.getMaxSize());
+            reader.seek(start);
+            Assert.assertEquals("first content", new String(reader.read()));
+            List<byte[]> contents = reader.read(100, end - 1);
+            Assert.assertEquals(10, contents.size());
+            Assert.assertEquals("batch content 9", new String(contents.get(9)));
+            Assert.assertEquals(end, reader.position());
+            Assert.assertNull(reader.read());
+        }
+    }
+
+    private void verifySeek(IBackupReader reader) throws IOException {
+        try {
+            reader.seek(BackupScopeConfig.BACKUP_FILE_MAX_SIZE_IN_BYTE + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + "first content".length());
+            Assert.assertEquals("batch content 0", new String(reader.read()));
+            //limit stops batch read at the third content
+            long limit = reader.position() + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE + "batch content 1".length();
+            Assert.assertEquals(2, reader.read(100, limit).size());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void clear(Path path) throws IOException {
+        DirectoryDelete walk = new DirectoryDelete();
+        EnumSet opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+        Files.walkFileTree(path, opts, Integer.MAX_VALUE, walk);
+    }
+}
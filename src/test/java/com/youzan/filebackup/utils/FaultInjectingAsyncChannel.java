@@ -0,0 +1,132 @@
+package com.youzan.filebackup.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * {@link AsynchronousFileChannel} which injects I/O faults of {@link FaultInjectingFileChannel.Faults} into channel it
+ * wraps. Write going beyond byte budget has its bytes within budget written, and fails in completion handler. Writes
+ * issued while faults hold writes are issued once they are released.
+ */
+public class FaultInjectingAsyncChannel extends AsynchronousFileChannel {
+    private final AsynchronousFileChannel channel;
+    private final FaultInjectingFileChannel.Faults faults;
+
+    FaultInjectingAsyncChannel(final AsynchronousFileChannel channel, final FaultInjectingFileChannel.Faults faults) {
+        this.channel = channel;
+        this.faults = faults;
+    }
+
+    @Override
+    public <A> void write(final ByteBuffer src, long position, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        if(faults.hold(() -> write(src, position, attachment, handler)))
+            return;
+        int length = src.remaining();
+        try {
+            int admitted = faults.admit(length);
+            if(admitted < length) {
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + admitted);
+                long pos = position;
+                while(part.hasRemaining())
+                    pos += channel.write(part, pos).get();
+                src.position(part.position());
+                faults.addWritten(admitted);
+                handler.failed(faults.tear(admitted, length), attachment);
+                return;
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            handler.failed(e, attachment);
+            return;
+        }
+        channel.write(src, position, attachment, new CompletionHandler<Integer, A>() {
+            @Override
+            public void completed(final Integer result, final A attachment) {
+                faults.addWritten(result);
+                handler.completed(result, attachment);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final A attachment) {
+                handler.failed(exc, attachment);
+            }
+        });
+    }
+
+    @Override
+    public Future<Integer> write(final ByteBuffer src, long position) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        write(src, position, null, new CompletionHandler<Integer, Object>() {
+            @Override
+            public void completed(final Integer result, final Object attachment) {
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Object attachment) {
+                future.completeExceptionally(exc);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public <A> void read(final ByteBuffer dst, long position, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        channel.read(dst, position, attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> read(final ByteBuffer dst, long position) {
+        return channel.read(dst, position);
+    }
+
+    @Override
+    public long size() throws IOException {
+        faults.checkCrashed();
+        return channel.size();
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(long size) throws IOException {
+        faults.checkCrashed();
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        faults.checkForce();
+        channel.force(metaData);
+    }
+
+    @Override
+    public <A> void lock(long position, long size, boolean shared, final A attachment, final CompletionHandler<FileLock, ? super A> handler) {
+        channel.lock(position, size, shared, attachment, handler);
+    }
+
+    @Override
+    public Future<FileLock> lock(long position, long size, boolean shared) {
+        return channel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return channel.tryLock(position, size, shared);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
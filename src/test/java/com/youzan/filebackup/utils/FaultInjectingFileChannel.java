@@ -0,0 +1,312 @@
+package com.youzan.filebackup.utils;
+
+import com.youzan.filebackup.files.BackupChannelFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link FileChannel} which injects I/O faults into channel it wraps. Faults are shared by all channels opened by one
+ * {@link Faults}, which is set as channel factory of backup scope, asynchronous channels opened by it are wrapped by
+ * {@link FaultInjectingAsyncChannel}:
+ * <ul>
+ *     <li>torn write, write going beyond byte budget has its bytes within budget written, and fails</li>
+ *     <li>failed fsync, force fails without syncing</li>
+ *     <li>crash, all reads, writes and opens fail after torn write, as if process died there</li>
+ *     <li>held writes, asynchronous writes are held in flight till they are released</li>
+ * </ul>
+ */
+public class FaultInjectingFileChannel extends FileChannel {
+    private final FileChannel channel;
+    private final Faults faults;
+
+    /**
+     * Faults injected into channels opened by it.
+     */
+    public static class Faults implements BackupChannelFactory {
+        //bytes could be written before write is torn
+        private final AtomicLong writeBudget = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong writtenBytes = new AtomicLong(0);
+        private volatile boolean failForce = false;
+        private volatile boolean crashOnTear = false;
+        private volatile boolean crashed = false;
+        //asynchronous writes held, null if writes are not held
+        private List<Runnable> heldWrites = null;
+
+        @Override
+        public FileChannel open(final Path path, final OpenOption... options) throws IOException {
+            checkCrashed();
+            return new FaultInjectingFileChannel(FileChannel.open(path, options), this);
+        }
+
+        @Override
+        public AsynchronousFileChannel openAsync(final Path path, final Set<? extends OpenOption> options, final ExecutorService completionExec) throws IOException {
+            checkCrashed();
+            return new FaultInjectingAsyncChannel(AsynchronousFileChannel.open(path, options, completionExec), this);
+        }
+
+        /**
+         * Tear write which goes beyond passin bytes from now on.
+         */
+        public Faults tearAfter(long bytes) {
+            writeBudget.set(bytes);
+            return this;
+        }
+
+        public Faults failForce(boolean failForce) {
+            this.failForce = failForce;
+            return this;
+        }
+
+        /**
+         * Crash once write is torn.
+         */
+        public Faults crashOnTear(boolean crashOnTear) {
+            this.crashOnTear = crashOnTear;
+            return this;
+        }
+
+        /**
+         * Hold asynchronous writes from now on, till they are released.
+         */
+        public synchronized Faults holdWrites() {
+            if(null == heldWrites)
+                heldWrites = new ArrayList<>();
+            return this;
+        }
+
+        /**
+         * Issue asynchronous writes held, in order they are issued, and stop holding writes.
+         */
+        public Faults releaseWrites() {
+            List<Runnable> writes;
+            synchronized (this) {
+                writes = null == heldWrites ? new ArrayList<>() : heldWrites;
+                heldWrites = null;
+            }
+            for(Runnable write : writes)
+                write.run();
+            return this;
+        }
+
+        /**
+         * Clear faults, and recover from crash.
+         */
+        public Faults reset() {
+            writeBudget.set(Long.MAX_VALUE);
+            failForce = false;
+            crashOnTear = false;
+            crashed = false;
+            return this;
+        }
+
+        public boolean isCrashed() {
+            return this.crashed;
+        }
+
+        /**
+         * @return bytes written through channels opened, torn writes included
+         */
+        public long getWrittenBytes() {
+            return this.writtenBytes.get();
+        }
+
+        /**
+         * @return true if passin write is held
+         */
+        synchronized boolean hold(final Runnable write) {
+            if(null == heldWrites)
+                return false;
+            heldWrites.add(write);
+            return true;
+        }
+
+        void checkCrashed() throws IOException {
+            if(crashed)
+                throw new IOException("Injected crash.");
+        }
+
+        void checkForce() throws IOException {
+            checkCrashed();
+            if(failForce)
+                throw new IOException("Injected fsync failure.");
+        }
+
+        void addWritten(long bytes) {
+            writtenBytes.addAndGet(bytes);
+        }
+
+        /**
+         * @return bytes of passin length could be written within budget
+         */
+        int admit(int length) throws IOException {
+            checkCrashed();
+            while(true) {
+                long budget = writeBudget.get();
+                int admitted = (int) Math.min(budget, length);
+                if(writeBudget.compareAndSet(budget, budget - admitted))
+                    return admitted;
+            }
+        }
+
+        IOException tear(int admitted, int length) {
+            if(crashOnTear)
+                crashed = true;
+            return new IOException("Injected torn write, " + admitted + " of " + length + " bytes written.");
+        }
+    }
+
+    private FaultInjectingFileChannel(final FileChannel channel, final Faults faults) {
+        this.channel = channel;
+        this.faults = faults;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        faults.checkCrashed();
+        return channel.read(dst);
+    }
+
+    @Override
+    public long read(final ByteBuffer[] dsts, int offset, int length) throws IOException {
+        faults.checkCrashed();
+        return channel.read(dsts, offset, length);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst, long position) throws IOException {
+        faults.checkCrashed();
+        return channel.read(dst, position);
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        int admitted = faults.admit(length);
+        if(admitted < length) {
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + admitted);
+            while(part.hasRemaining())
+                faults.writtenBytes.addAndGet(channel.write(part));
+            src.position(part.position());
+            throw faults.tear(admitted, length);
+        }
+        int count = channel.write(src);
+        faults.writtenBytes.addAndGet(count);
+        return count;
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long count = 0;
+        for(int i = offset; i < offset + length; i++)
+            count += write(srcs[i]);
+        return count;
+    }
+
+    @Override
+    public int write(final ByteBuffer src, long position) throws IOException {
+        int length = src.remaining();
+        int admitted = faults.admit(length);
+        if(admitted < length) {
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + admitted);
+            while(part.hasRemaining()) {
+                int count = channel.write(part, position);
+                position += count;
+                faults.writtenBytes.addAndGet(count);
+            }
+            src.position(part.position());
+            throw faults.tear(admitted, length);
+        }
+        int count = channel.write(src, position);
+        faults.writtenBytes.addAndGet(count);
+        return count;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return channel.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        channel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        faults.checkCrashed();
+        return channel.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        faults.checkCrashed();
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        faults.checkForce();
+        channel.force(metaData);
+    }
+
+    @Override
+    public long transferTo(long position, long count, final WritableByteChannel target) throws IOException {
+        faults.checkCrashed();
+        return channel.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(final ReadableByteChannel src, long position, long count) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+        long transferred = 0;
+        while(transferred < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - transferred));
+            if(src.read(buf) <= 0)
+                break;
+            buf.flip();
+            while(buf.hasRemaining())
+                transferred += write(buf, position + transferred);
+        }
+        return transferred;
+    }
+
+    @Override
+    public MappedByteBuffer map(final MapMode mode, long position, long size) throws IOException {
+        faults.checkCrashed();
+        return channel.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return channel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return channel.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,205 @@
+package it.com.youzan.filebackup;
+
+import com.youzan.filebackup.context.BackupScope;
+import com.youzan.filebackup.context.BackupScopeBuilder;
+import com.youzan.filebackup.context.BackupScopeConfig;
+import com.youzan.filebackup.context.DefaultBackupContext;
+import com.youzan.filebackup.utils.DirectoryDelete;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Write throughput of backup scope with FileChannel write and memory mapped write, on small contents where per write
+ * overhead dominates. Overhead of encryption is taken on contents of 1KB written in batch and drained.
+ */
+public class BackupScopeBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(BackupScopeBenchmarkTest.class);
+    private static final int CONTENT_NUM = 200000;
+    private static final int CONTENT_SIZE = 64;
+
+    @Test
+    public void testWriteThroughput() throws IOException {
+        for(BackupScopeConfig.IOMode mode : BackupScopeConfig.IOMode.values()) {
+            //warm up
+            benchmark("warmup", new BackupScopeConfig().setIOMode(mode));
+        }
+        for(BackupScopeConfig.IOMode mode : BackupScopeConfig.IOMode.values()) {
+            benchmark(mode.toString(), new BackupScopeConfig().setIOMode(mode));
+            benchmark(mode + " flush per MB", new BackupScopeConfig().setIOMode(mode)
+                    .setFlushPolicy(BackupScopeConfig.FlushPolicy.INTERVAL));
+        }
+        benchmark("MEMORY_MAPPED preallocated in 64KB", new BackupScopeConfig()
+                .setIOMode(BackupScopeConfig.IOMode.MEMORY_MAPPED)
+                .setMappedPreallocateSizeInByte(64 * 1024));
+    }
+
+    @Test
+    public void testWriteAsyncThroughput() throws Exception {
+        for(BackupScopeConfig.IOMode mode : new BackupScopeConfig.IOMode[]{BackupScopeConfig.IOMode.FILE_CHANNEL, BackupScopeConfig.IOMode.ASYNC}) {
+            benchmarkAsync("warmup", new BackupScopeConfig().setIOMode(mode));
+            benchmarkAsync(mode + " writeAsync", new BackupScopeConfig().setIOMode(mode));
+        }
+    }
+
+    private void benchmarkAsync(String name, BackupScopeConfig config) throws Exception {
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testWriteAsyncThroughput")
+                .setBackupContext(new DefaultBackupContext("testWriteAsyncThroughput"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        byte[] content = new byte[CONTENT_SIZE];
+        List<Future<Integer>> futures = new ArrayList<>(CONTENT_NUM);
+        long start = System.nanoTime();
+        for(int i = 0; i < CONTENT_NUM; i++)
+            futures.add(aScope.writeAsync(content));
+        for(Future<Integer> future : futures)
+            future.get();
+        long elapsed = System.nanoTime() - start;
+        logger.info("{}: {} writes/s", name, (long) (CONTENT_NUM * 1e9 / elapsed));
+        Assert.assertEquals(CONTENT_NUM, aScope.getBackupMetaInfo().getWriteSequence());
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testWriteAsyncThroughput"));
+    }
+
+    @Test
+    public void testDrainThroughput() throws IOException {
+        for(long readAheadSize : new long[]{0, 0, 4 * 1024 * 1024}) {
+            benchmarkDrain(readAheadSize == 0 ? "drain" : "drain with read-ahead", new BackupScopeConfig()
+                    .setReadAheadSizeInByte(readAheadSize));
+        }
+    }
+
+    private void benchmarkDrain(String name, BackupScopeConfig config) throws IOException {
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testDrainThroughput")
+                .setBackupContext(new DefaultBackupContext("testDrainThroughput"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        byte[] content = new byte[CONTENT_SIZE * 16];
+        for(int i = 0; i < CONTENT_NUM; i++)
+            aScope.tryWrite(content);
+        aScope.closeWrite();
+
+        //consumer checksums each content, which overlaps with read-ahead
+        CRC32 crc = new CRC32();
+        long start = System.nanoTime();
+        int read = 0;
+        byte[] contRead;
+        while(null != (contRead = aScope.tryRead())) {
+            crc.update(contRead, 0, contRead.length);
+            read++;
+        }
+        long elapsed = System.nanoTime() - start;
+        Assert.assertEquals(CONTENT_NUM, read);
+        logger.info("{}: {} reads/s, {} MB/s", name, (long) (CONTENT_NUM * 1e9 / elapsed),
+                String.format("%.2f", (double) CONTENT_NUM * content.length * 1e3 / elapsed));
+        aScope.closeRead();
+        clear(Paths.get("src/test/resources/testDrainThroughput"));
+    }
+
+    private void benchmark(String name, BackupScopeConfig config) throws IOException {
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testWriteThroughput")
+                .setBackupContext(new DefaultBackupContext("testWriteThroughput"))
+                .setBackupScopeConfig(config)
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        byte[] content = new byte[CONTENT_SIZE];
+        long start = System.nanoTime();
+        for(int i = 0; i < CONTENT_NUM; i++)
+            aScope.tryWrite(content);
+        aScope.flush();
+        long elapsed = System.nanoTime() - start;
+        logger.info("{}: {} writes/s, {} MB/s", name, (long) (CONTENT_NUM * 1e9 / elapsed),
+                String.format("%.2f", (double) CONTENT_NUM * (CONTENT_SIZE + BackupScopeConfig.BACKUP_ITEM_MAX_SIZE_IN_BYTE) * 1e3 / elapsed));
+
+        int read = 0;
+        while(aScope.tryRead(1000).size() > 0)
+            read++;
+        Assert.assertEquals(CONTENT_NUM / 1000, read);
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testWriteThroughput"));
+    }
+
+    @Test
+    public void testEncryptionOverhead() throws IOException {
+        byte[] masterKey = new byte[16];
+        new Random(20170427).nextBytes(masterKey);
+        //cipher takes rounds more than plain io to get compiled
+        for(int i = 0; i < 5; i++) {
+            benchmarkEncryption("warmup", new BackupScopeConfig());
+            benchmarkEncryption("warmup encrypted", new BackupScopeConfig().setEncryptionKey(masterKey));
+        }
+        //best of rounds run in turn, so that page cache and GC noise hit both alike
+        double plain = 0;
+        double encrypted = 0;
+        for(int i = 0; i < 5; i++) {
+            plain = Math.max(plain, benchmarkEncryption("plain", new BackupScopeConfig()));
+            encrypted = Math.max(encrypted, benchmarkEncryption("AES-GCM encrypted", new BackupScopeConfig().setEncryptionKey(masterKey)));
+        }
+        logger.info("encryption overhead: {}%", String.format("%.1f", (plain - encrypted) * 100 / plain));
+    }
+
+    /**
+     * write contents in batches of 64, then drain them. Each batch is encrypted as one block.
+     * @return MB/s of write and read
+     */
+    private double benchmarkEncryption(String name, BackupScopeConfig config) throws IOException {
+        BackupScope aScope = BackupScopeBuilder.create("src/test/resources/", "testEncryptionOverhead")
+                .setBackupContext(new DefaultBackupContext("testEncryptionOverhead"))
+                .setBackupScopeConfig(config.setBackupFileMaxByte(64 * 1024 * 1024))
+                .build();
+        aScope.init();
+        aScope.openWrite();
+        int contentSize = CONTENT_SIZE * 16;
+        int contentNum = CONTENT_NUM / 4 / 64 * 64;
+        List<byte[]> batch = new ArrayList<>();
+        Random random = new Random(20170427);
+        for(int i = 0; i < 64; i++) {
+            byte[] content = new byte[contentSize];
+            random.nextBytes(content);
+            batch.add(content);
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < contentNum; i += batch.size())
+            aScope.tryWrite(batch);
+        aScope.flush();
+        long stored = Files.size(aScope.getBackupFilePath(0));
+        int read = 0;
+        List<byte[]> contRead;
+        while((contRead = aScope.tryRead(1000)).size() > 0)
+            read += contRead.size();
+        long elapsed = System.nanoTime() - start;
+        Assert.assertEquals(contentNum, read);
+        double throughput = (double) contentNum * contentSize * 1e3 / elapsed;
+        logger.info("{}: {} MB/s written and read, {} bytes stored for {} bytes of contents", name, String.format("%.2f", throughput),
+                stored, (long) contentNum * contentSize);
+        aScope.closeRead();
+        aScope.closeWrite();
+        clear(Paths.get("src/test/resources/testEncryptionOverhead"));
+        return throughput;
+    }
+
+    private void clear(Path path) throws IOException {
+        DirectoryDelete walk = new DirectoryDelete();
+        EnumSet opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+        Files.walkFileTree(path, opts, Integer.MAX_VALUE, walk);
+    }
+}